@@ -0,0 +1,255 @@
+package rumble.disrupted.org.rumble;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.test.ServiceTestCase;
+
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.DatabaseFactory;
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.database.objects.Group;
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.network.NetworkCoordinator;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackNetwork;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackServerConnection;
+import org.disrupted.rumble.network.protocols.command.CommandSendLocalInformation;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.BlockCompression;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.BlockContact;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.BlockHeader;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.BlockNull;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.BlockPushStatus;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.EncodingContext;
+import org.disrupted.rumble.util.HashUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the local node (NetworkCoordinator and the whole Rumble stack) on the LoopbackNetwork
+ * against several virtual peers, each one behind a differently shaped link, and checks that
+ * every status of the node reaches every peer.
+ *
+ * The protocol stack is made of process-wide singletons (EventBus, DatabaseFactory, the
+ * CommandExecutor...) and the LoopbackNetwork only exists within this process, so only the
+ * local node runs the full stack. The peers speak the Rumble block protocol directly over
+ * their loopback connection: they accept the connection of the node, send their contact
+ * information and decode the BlockPushStatus they receive, with the same block readers as
+ * the stack, so short reads on a slow or lossy link are exercised as well.
+ */
+public class LoopbackNetworkTest extends ServiceTestCase<NetworkCoordinator> {
+
+    private static final String NODE = "node";
+    private static final int    STATUSES = 20;
+    private static final long   STARTUP_TIMEOUT  = 10000;
+    private static final long   DELIVERY_TIMEOUT = 60000;
+
+    /* bandwidth (bytes/s), latency (ms), loss, disconnect after (bytes) */
+    private static final LoopbackNetwork.LinkProfile[] PROFILES = {
+            LoopbackNetwork.LinkProfile.PERFECT,
+            new LoopbackNetwork.LinkProfile(16*1024, 0,   0,    0),    // slow
+            new LoopbackNetwork.LinkProfile(0,       200, 0,    0),    // far
+            new LoopbackNetwork.LinkProfile(64*1024, 20,  0.1,  0),    // lossy
+    };
+
+    private LoopbackNetwork network;
+    private List<Peer> peers;
+
+    public LoopbackNetworkTest() {
+        super(NetworkCoordinator.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ensureLocalContact();
+
+        network = LoopbackNetwork.getInstance();
+        network.setSeed(42);
+        network.enable(NODE);
+        peers = new ArrayList<Peer>();
+        for(int i = 0; i < PROFILES.length; i++) {
+            String address = "peer-"+i;
+            network.setProfile(NODE, address, PROFILES[i]);
+            peers.add(new Peer(address));
+        }
+
+        startService(new Intent(getContext(), NetworkCoordinator.class)
+                .setAction(NetworkCoordinator.ACTION_MAIN_ACTION));
+        runOnServiceThread(new Runnable() {
+            @Override
+            public void run() {
+                getService().startNetworking();
+            }
+        });
+    }
+
+    /*
+     * onDestroy() ends the process (System.exit) so the service is not shut down, only
+     * its networking is stopped
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        runOnServiceThread(new Runnable() {
+            @Override
+            public void run() {
+                getService().stopNetworking();
+            }
+        });
+        for(Peer peer : peers)
+            peer.stop();
+    }
+
+    public void testStatusDelivery() throws Exception {
+        Contact local = Contact.getLocalContact();
+        Group group = null;
+        for(String gid : local.getJoinedGroupIDs()) {
+            Group joined = DatabaseFactory.getGroupDatabase(RumbleApplication.getContext()).getGroup(gid);
+            if((joined != null) && !joined.isPrivate()) {
+                group = joined;
+                break;
+            }
+        }
+        assertNotNull("the local contact has no public group", group);
+
+        Set<String> expected = new HashSet<String>();
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < STATUSES; i++) {
+            PushStatus status = new PushStatus(local, group, "loopback status "+i, now+i, local.getUid());
+            status.setTimeOfExpiration(0);
+            assertTrue(DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).insertStatus(status) >= 0);
+            expected.add(status.getUuid());
+        }
+
+        for(Peer peer : peers)
+            peer.start(group.getGid());
+
+        for(Peer peer : peers)
+            assertTrue("statuses missing at "+peer.address+": "+peer.missing(expected),
+                    peer.awaitStatuses(expected, DELIVERY_TIMEOUT));
+    }
+
+    private void runOnServiceThread(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(getService().getServiceLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(STARTUP_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    /*
+     * same as what the LoginScreen does the first time Rumble is launched
+     */
+    private static void ensureLocalContact() {
+        if(Contact.getLocalContact() != null)
+            return;
+        Group group = Group.getDefaultGroup();
+        DatabaseFactory.getGroupDatabase(RumbleApplication.getContext()).insertGroup(group);
+        Contact local = Contact.createLocalContact("loopback");
+        DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).insertOrUpdateContact(local);
+        long contactDBID = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).getContactDBID(local.getUid());
+        long groupDBID = DatabaseFactory.getGroupDatabase(RumbleApplication.getContext()).getGroupDBID(group.getGid());
+        DatabaseFactory.getContactJoinGroupDatabase(RumbleApplication.getContext()).insertContactGroup(contactDBID, groupDBID);
+    }
+
+    /*
+     * a virtual node that waits for the local node to connect, then tells it which group it
+     * joined and records every status it receives
+     */
+    private class Peer implements Runnable {
+
+        final String address;
+        private final Contact contact;
+        private final Set<String> received;
+        private Thread thread;
+        private LoopbackServerConnection con;
+
+        Peer(String address) {
+            this.address = address;
+            this.contact = new Contact(address, HashUtil.computeContactUid(address, System.currentTimeMillis()), false);
+            this.received = new HashSet<String>();
+        }
+
+        void start(String gid) throws IOException {
+            contact.addGroup(gid);
+            network.attach(address);
+            network.listen(address);
+            thread = new Thread(this, "Peer "+address);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            network.detach(address);
+            if(thread != null)
+                thread.join(STARTUP_TIMEOUT);
+        }
+
+        @Override
+        public void run() {
+            try {
+                con = network.accept(address);
+                con.connect();
+                BlockContact contactBlock = new BlockContact(new CommandSendLocalInformation(contact,
+                        Contact.FLAG_TAG_INTEREST | Contact.FLAG_GROUP_LIST, 1));
+                contactBlock.writeBlock(con.getOutputStream(), null);
+
+                InputStream in = con.getInputStream();
+                EncodingContext context = new EncodingContext();
+                while(true) {
+                    BlockHeader header = BlockHeader.readBlockHeader(in);
+                    context.peerVersionReceived(header.getVersion());
+                    InputStream is = in;
+                    if(header.isCompressed()) {
+                        byte[] payload = BlockCompression.inflate(in, (int)header.getBlockLength());
+                        header.setCompressed(false);
+                        header.setPayloadLength(payload.length);
+                        is = new ByteArrayInputStream(payload);
+                    }
+                    if(header.getBlockType() == BlockHeader.BLOCKTYPE_PUSH_STATUS) {
+                        BlockPushStatus block = new BlockPushStatus(header, context);
+                        block.readBlock(is);
+                        synchronized (received) {
+                            received.add(block.status.getUuid());
+                            received.notifyAll();
+                        }
+                    } else {
+                        new BlockNull(header).readBlock(is);
+                    }
+                }
+            } catch (Exception e) {
+                // the link was dropped or the peer detached
+            }
+        }
+
+        boolean awaitStatuses(Set<String> expected, long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            synchronized (received) {
+                while(!received.containsAll(expected)) {
+                    long left = deadline - System.currentTimeMillis();
+                    if(left <= 0)
+                        return false;
+                    received.wait(left);
+                }
+                return true;
+            }
+        }
+
+        Set<String> missing(Set<String> expected) {
+            Set<String> missing = new HashSet<String>(expected);
+            synchronized (received) {
+                missing.removeAll(received);
+            }
+            return missing;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.app;
+
+import org.disrupted.rumble.database.statistics.metrics.Counter;
+import org.disrupted.rumble.database.statistics.metrics.Gauge;
+import org.disrupted.rumble.database.statistics.metrics.LatencyHistogram;
+import org.disrupted.rumble.database.statistics.metrics.MetricRegistry;
+import org.disrupted.rumble.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * EventDispatcher holds a set of named and bounded executors, one per group of subscribers,
+ * so that the thread posting an event (very often the network thread reading a block in the
+ * BlockProcessor) never runs the database work of the subscribers itself.
+ *
+ * - GROUP_ASYNC is used by EventBus for every onEventAsync subscriber (CacheManager...).
+ *   It replaces the default unbounded cached thread pool of EventBus.
+ * - GROUP_STATISTICS is used by the StatisticManager for its onEvent subscribers. The
+ *   StatisticManager coalesces its writes so that at most one task is pending in this group.
+ * - GROUP_IMAGES is used by the ImageProcessor and the ThumbnailCache, it caps the number
+ *   of images being decoded at the same time.
+ *
+ * Every group has its own backpressure policy that applies when its queue is full. A task is
+ * never run by the posting thread:
+ * - OVERFLOW: the task is kept in an unbounded overflow queue that the threads of the group
+ *   move back to the executor queue as soon as it has room (nothing is lost, the order of
+ *   the tasks is kept and a task that posts to its own group cannot deadlock)
+ * - DROP_OLDEST: the oldest pending task is dropped to make room for the new one
+ * - DROP_NEWEST: the new task is dropped
+ *
+ * For each group, the time spent by the tasks in the queue and the time spent running
+ * them are reported to the MetricRegistry, as well as the queue size (overflow included), the
+ * tasks that overflowed and the dropped tasks.
+ */
+public class EventDispatcher {
+
+    private static final String TAG = "EventDispatcher";
+
+    public static final String GROUP_ASYNC      = "async";
+    public static final String GROUP_STATISTICS = "statistics";
+    public static final String GROUP_IMAGES     = "images";
+
+    public enum Policy {
+        OVERFLOW,
+        DROP_OLDEST,
+        DROP_NEWEST
+    }
+
+    private static final Object lock = new Object();
+    private static EventDispatcher instance;
+
+    private final Map<String, GroupExecutor> groups;
+
+    public static EventDispatcher getInstance() {
+        synchronized (lock) {
+            if (instance == null)
+                instance = new EventDispatcher();
+
+            return instance;
+        }
+    }
+
+    private EventDispatcher() {
+        groups = new ConcurrentHashMap<String, GroupExecutor>();
+        groups.put(GROUP_ASYNC,      new GroupExecutor(GROUP_ASYNC,      4, 512, Policy.OVERFLOW));
+        groups.put(GROUP_STATISTICS, new GroupExecutor(GROUP_STATISTICS, 1, 256, Policy.OVERFLOW));
+        groups.put(GROUP_IMAGES,     new GroupExecutor(GROUP_IMAGES,     2, 64,  Policy.OVERFLOW));
+    }
+
+    /*
+     * must be called before anyone uses EventBus.getDefault()
+     */
+    public void installDefaultEventBus() {
+        try {
+            EventBus.builder()
+                    .executorService(groups.get(GROUP_ASYNC))
+                    .installDefaultEventBus();
+        } catch(Exception e) {
+            Log.e(TAG, "[!] default EventBus already installed", e);
+        }
+    }
+
+    public Executor getExecutor(String group) {
+        return groups.get(group);
+    }
+
+    public void dispatch(String group, Runnable task) {
+        GroupExecutor executor = groups.get(group);
+        if(executor == null)
+            throw new IllegalArgumentException("unknown group: "+group);
+        executor.execute(task);
+    }
+
+    private static class GroupExecutor extends ThreadPoolExecutor {
+
+        private final LatencyHistogram waitTime;
+        private final LatencyHistogram runTime;
+        private final Gauge            queueSize;
+        private final Counter          overflowed;
+
+        /* tasks rejected by the full executor queue (OVERFLOW policy), guarded by itself */
+        private final ArrayDeque<Runnable> overflow;
+
+        public GroupExecutor(String name, int threads, int capacity, Policy policy) {
+            super(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(capacity),
+                    threadFactory(name),
+                    rejectionHandler(name, policy));
+            allowCoreThreadTimeOut(true);
+            MetricRegistry metrics = MetricRegistry.getInstance();
+            this.waitTime  = metrics.histogram(MetricRegistry.DISPATCH_PREFIX+name+".wait");
+            this.runTime   = metrics.histogram(MetricRegistry.DISPATCH_PREFIX+name+".run");
+            this.queueSize = metrics.gauge(MetricRegistry.DISPATCH_PREFIX+name+".queue");
+            this.overflowed = metrics.counter(MetricRegistry.DISPATCH_PREFIX+name+".overflowed");
+            this.overflow  = new ArrayDeque<Runnable>();
+        }
+
+        private static ThreadFactory threadFactory(final String name) {
+            return new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "EventDispatcher-"+name+"-"+count.incrementAndGet());
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            };
+        }
+
+        private static RejectedExecutionHandler rejectionHandler(String name, Policy policy) {
+            final Counter dropped = MetricRegistry.getInstance()
+                    .counter(MetricRegistry.DISPATCH_PREFIX+name+".dropped");
+            final Gauge queueSize = MetricRegistry.getInstance()
+                    .gauge(MetricRegistry.DISPATCH_PREFIX+name+".queue");
+            switch (policy) {
+                case DROP_OLDEST:
+                    return new RejectedExecutionHandler() {
+                        @Override
+                        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                            if(executor.isShutdown())
+                                return;
+                            if(executor.getQueue().poll() != null) {
+                                dropped.inc();
+                                queueSize.dec();
+                            }
+                            if(!executor.getQueue().offer(task)) {
+                                dropped.inc();
+                                queueSize.dec();
+                            }
+                        }
+                    };
+                case DROP_NEWEST:
+                    return new RejectedExecutionHandler() {
+                        @Override
+                        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                            dropped.inc();
+                            queueSize.dec();
+                        }
+                    };
+                case OVERFLOW:
+                default:
+                    return new RejectedExecutionHandler() {
+                        @Override
+                        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                            if(executor.isShutdown()) {
+                                dropped.inc();
+                                queueSize.dec();
+                                return;
+                            }
+                            ((GroupExecutor)executor).overflow(task);
+                        }
+                    };
+            }
+        }
+
+        private void overflow(Runnable wrapped) {
+            synchronized (overflow) {
+                overflow.add(wrapped);
+                overflowed.inc();
+                drainOverflow();
+            }
+        }
+
+        /*
+         * moves the overflowing tasks to the executor queue while it has room, called by the
+         * posting thread after an overflow and by the threads of the group after every task
+         * so that a task never stays in the overflow while the group is idle
+         */
+        private void drainOverflow() {
+            synchronized (overflow) {
+                while(!overflow.isEmpty() && (getQueue().remainingCapacity() > 0)) {
+                    Runnable wrapped = overflow.poll();
+                    super.execute(wrapped);
+                }
+            }
+        }
+
+        @Override
+        protected void afterExecute(Runnable task, Throwable throwable) {
+            super.afterExecute(task, throwable);
+            synchronized (overflow) {
+                if(overflow.isEmpty())
+                    return;
+            }
+            drainOverflow();
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            final long queued = System.nanoTime();
+            queueSize.inc();
+            Runnable wrapped = new Runnable() {
+                @Override
+                public void run() {
+                    queueSize.dec();
+                    long start = waitTime.recordSince(queued);
+                    try {
+                        task.run();
+                    } finally {
+                        runTime.recordSince(start);
+                    }
+                }
+            };
+            // the tasks already overflowing go first
+            synchronized (overflow) {
+                if(!overflow.isEmpty()) {
+                    overflow(wrapped);
+                    return;
+                }
+            }
+            super.execute(wrapped);
+        }
+    }
+}
@@ -51,6 +51,7 @@ public class RumbleApplication extends Application{
     public void onCreate() {
         super.onCreate();
 
+        EventDispatcher.getInstance().installDefaultEventBus();
         EventLogger.getInstance().init();
         DatabaseFactory.getInstance(this);
         CacheManager.getInstance().start();
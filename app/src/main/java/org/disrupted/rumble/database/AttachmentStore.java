@@ -0,0 +1,139 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import android.util.Base64;
+
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.util.FileUtil;
+import org.disrupted.rumble.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+/**
+ * AttachmentStore stores the attached files of the album under a name derived from their
+ * content: the SHA-256 of the file, base64 encoded (see FileUtil.cleanBase64). Two statuses
+ * carrying the same image thus share the same file, which is only deleted once the last
+ * status referencing it (push_status.filename) has been deleted.
+ *
+ * As the name is always computed locally from the bytes that were actually stored, two
+ * different contents never share a file. It is up to the caller to decide whether a status
+ * may point to the stored file (see CacheManager.saveAttachedFile). The name also tells a
+ * peer whether it already has the content or not (see BlockFileRequest).
+ *
+ * Files named before the store existed (JPEG_xxx.jpg) or outside the album (starting with '/')
+ * are left untouched.
+ */
+public class AttachmentStore {
+
+    private static final String TAG = "AttachmentStore";
+
+    private static final String  SUFFIX     = ".jpg";
+    private static final int     HASH_CHARS = 43; // 32 bytes, base64 without padding
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-]{"+HASH_CHARS+"}\\"+SUFFIX);
+    private static final int     BUFFER_SIZE  = 8192;
+
+    private static final Object lock = new Object();
+    private static AttachmentStore instance;
+
+    public static AttachmentStore getInstance() {
+        synchronized (lock) {
+            if(instance == null)
+                instance = new AttachmentStore();
+            return instance;
+        }
+    }
+
+    private AttachmentStore() {
+    }
+
+    public static boolean isContentAddressed(String filename) {
+        return (filename != null) && NAME_PATTERN.matcher(filename).matches();
+    }
+
+    public boolean contains(String filename) {
+        if(!isContentAddressed(filename))
+            return false;
+        File dir = ThumbnailCache.getInstance().getAlbumDir();
+        return (dir != null) && new File(dir, filename).isFile();
+    }
+
+    /*
+     * moves the file (which must be in the album) under its content name and returns this
+     * name. If the content is already stored, the file is simply deleted.
+     */
+    public String store(File file) throws IOException {
+        String filename = hash(file) + SUFFIX;
+        synchronized (lock) {
+            File stored = new File(file.getParentFile(), filename);
+            if(stored.isFile()) {
+                Log.d(TAG, "[+] " + filename + " already stored, discarding the copy");
+                if(!file.equals(stored))
+                    file.delete();
+                return filename;
+            }
+            if(!file.renameTo(stored))
+                throw new IOException("cannot rename the file");
+            return filename;
+        }
+    }
+
+    /*
+     * deletes the file if no status references it anymore. Must be called after the status
+     * has been deleted from the database.
+     */
+    public void release(String filename) {
+        if((filename == null) || filename.equals("") || filename.startsWith("/"))
+            return;
+        synchronized (lock) {
+            if(DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext())
+                    .countFileReferences(filename) > 0)
+                return;
+            try {
+                File attached = new File(FileUtil.getWritableAlbumStorageDir(), filename);
+                if (attached.exists() && attached.isFile())
+                    attached.delete();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        InputStream in = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            in = new BufferedInputStream(new FileInputStream(file));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while((count = in.read(buffer)) > 0)
+                md.update(buffer, 0, count);
+            return FileUtil.cleanBase64(Base64.encodeToString(md.digest(), Base64.NO_WRAP));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available");
+        } finally {
+            if(in != null)
+                in.close();
+        }
+    }
+}
@@ -19,10 +19,6 @@
 
 package org.disrupted.rumble.database;
 
-import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
 
 import org.disrupted.rumble.userinterface.events.UserLeaveGroup;
 import org.disrupted.rumble.util.Log;
@@ -31,6 +27,7 @@ import org.disrupted.rumble.app.RumbleApplication;
 import org.disrupted.rumble.database.events.ChatMessageInsertedEvent;
 import org.disrupted.rumble.database.events.ChatMessageUpdatedEvent;
 import org.disrupted.rumble.database.events.ContactGroupListUpdated;
+import org.disrupted.rumble.database.events.ContactInformationApplied;
 import org.disrupted.rumble.database.events.ContactInterfaceInserted;
 import org.disrupted.rumble.database.events.ContactTagInterestUpdatedEvent;
 import org.disrupted.rumble.database.events.FileInsertedEvent;
@@ -44,6 +41,7 @@ import org.disrupted.rumble.network.events.ContactConnected;
 import org.disrupted.rumble.network.protocols.events.ChatMessageReceived;
 import org.disrupted.rumble.network.protocols.events.ChatMessageSent;
 import org.disrupted.rumble.network.protocols.events.ContactInformationReceived;
+import org.disrupted.rumble.network.protocols.events.FileReceived;
 import org.disrupted.rumble.network.protocols.events.PushStatusReceived;
 import org.disrupted.rumble.network.protocols.events.PushStatusSent;
 import org.disrupted.rumble.userinterface.events.UserComposeChatMessage;
@@ -65,10 +63,11 @@ import org.disrupted.rumble.util.FileUtil;
 import org.disrupted.rumble.util.NetUtil;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.greenrobot.event.EventBus;
 
@@ -81,14 +80,18 @@ public class CacheManager {
 
     private static final String TAG = "CacheManager";
 
-    private static final int MAX_IMAGE_SIZE_ON_DISK = 500000;
-    private static final int MAX_IMAGE_BORDER_PX = 1000;
-
     private static final Object globalQueuelock = new Object();
     private static CacheManager instance;
 
     private boolean started;
 
+    /*
+     * last version of the contact information applied for every contact uid. It is only kept
+     * in memory, a delta received for a contact that is not in there (never met or met before
+     * a restart) is rejected and a snapshot is asked instead
+     */
+    private final Map<String, Long> contactInformationVersions = new ConcurrentHashMap<String, Long>();
+
     public static CacheManager getInstance() {
         synchronized (globalQueuelock) {
             if (instance == null)
@@ -103,6 +106,8 @@ public class CacheManager {
             Log.d(TAG, "[+] Starting Cache Manager");
             started = true;
             EventBus.getDefault().register(this);
+            ChatUnreadCounter.getInstance().start();
+            StatusSummary.getInstance().start();
         }
     }
 
@@ -110,6 +115,7 @@ public class CacheManager {
         if(started) {
             Log.d(TAG, "[-] Stopping Cache Manager");
             started = false;
+            ChatUnreadCounter.getInstance().stop();
             if(EventBus.getDefault().isRegistered(this))
                 EventBus.getDefault().unregister(this);
         }
@@ -120,6 +126,7 @@ public class CacheManager {
      * Managing Network Interaction, onEventAsync to avoid slowing down network
      */
     public void onEventAsync(PushStatusReceived event) {
+        boolean tempfileHandedOver = false;
         try {
             if (event.status == null)
                 return;
@@ -164,7 +171,9 @@ public class CacheManager {
 
             // we add the status to the database
             PushStatus exists = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatus(event.status.getUuid());
+            boolean inserted = false;
             if (exists == null) {
+                inserted = true;
                 exists = new PushStatus(event.status);
                 exists.addDuplicate(1);
                 DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).insertStatus(exists);
@@ -190,21 +199,14 @@ public class CacheManager {
             if (!FileUtil.isFileNameClean(exists.getFileName()))
                 throw new Exception("filename is suspicious");
 
-            /*
-             * we check if we already received the attached file. We don't want to overwrite as
-             * it would enable an attack that would overwrite every status
-             */
-            File attached = new File(FileUtil.getWritableAlbumStorageDir(), exists.getFileName());
-            if (attached.exists())
-                throw new Exception("file already exists");
-
-            if (saveImageOnDisk(event.tempfile, exists.getFileName()))
-                EventBus.getDefault().post(new FileInsertedEvent(attached.getName(), exists.getUuid()));
+            // the image is processed (and the temporary file deleted) by the ImageProcessor
+            tempfileHandedOver = true;
+            saveAttachedFile(event.tempfile, exists.getUuid(), inserted);
 
         } catch (Exception ignore ) {
             ignore.getMessage();
         } finally {
-            if (!event.tempfile.equals("")) {
+            if (!event.tempfile.equals("") && !tempfileHandedOver) {
                 try {
                     File toDelete = new File(FileUtil.getWritableAlbumStorageDir(), event.tempfile);
                     toDelete.delete();
@@ -215,6 +217,60 @@ public class CacheManager {
                 event.status.discard();
         }
     }
+    /*
+     * a file requested after its status has been received (see BlockFileRequest). The status
+     * may not be inserted yet, it is looked up once the file has been processed
+     */
+    public void onEventAsync(FileReceived event) {
+        if (event.filename.equals("") || (event.uuid == null))
+            return;
+        saveAttachedFile(event.filename, event.uuid, false);
+    }
+
+    /*
+     * the attached file is stored under the name of its content (see AttachmentStore) which
+     * is not necessarily the name announced by the sender. Only a status that has just been
+     * inserted along with its file may be renamed, otherwise the content must match the name
+     * we already have: a peer cannot replace the attachment of a status we know of. Such a
+     * file is thus not downscaled, it would never match its name once re-encoded.
+     */
+    private void saveAttachedFile(String tempfile, final String uuid, final boolean rename) {
+        ImageProcessor.getInstance().saveImage(tempfile, uuid, rename,
+                new ImageProcessor.Callback() {
+                    @Override
+                    public void onImageSaved(String filename) {
+                        if (filename == null)
+                            return;
+                        PushStatusDatabase database = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext());
+                        PushStatus status = database.getStatus(uuid);
+                        if (status == null) {
+                            // unknown status or deleted in the meantime
+                            AttachmentStore.getInstance().release(filename);
+                            return;
+                        }
+                        try {
+                            if (!status.hasAttachedFile()) {
+                                AttachmentStore.getInstance().release(filename);
+                                return;
+                            }
+                            String current = status.getFileName();
+                            if (!filename.equals(current)) {
+                                if (!rename) {
+                                    Log.d(TAG, "[!] file received for " + uuid + " does not match " + current);
+                                    AttachmentStore.getInstance().release(filename);
+                                    return;
+                                }
+                                database.updateFileName(uuid, filename);
+                                AttachmentStore.getInstance().release(current);
+                            }
+                            EventBus.getDefault().post(new FileInsertedEvent(filename, uuid));
+                        } finally {
+                            status.discard();
+                        }
+                    }
+                });
+    }
+
     public void onEventAsync(ContactInformationReceived event) {
         Contact contact = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).getContact(event.contact.getUid());
         if(contact == null) {
@@ -246,8 +302,35 @@ public class CacheManager {
         long contactDBID = DatabaseFactory.getContactDatabase(RumbleApplication.getContext())
                 .getContactDBID(contact.getUid());
 
+        int flags = event.flags;
+        long appliedVersion = 0;
+        if(event.version > 0) {
+            synchronized (contactInformationVersions) {
+                // events are processed asynchronously, we must not apply an older version
+                Long lastVersion = contactInformationVersions.get(contact.getUid());
+                if ((lastVersion != null) && (lastVersion >= event.version)) {
+                    Log.d(TAG, "[-] outdated contact information (version "+event.version+")");
+                    flags = 0;
+                } else if (event.isDelta() && ((lastVersion == null) || (lastVersion != event.baseVersion))) {
+                    // a delta is only meaningful on top of the exact version it was computed from
+                    Log.d(TAG, "[-] contact information delta on an unknown base (version "
+                            +event.baseVersion+", held "+lastVersion+")");
+                    flags = 0;
+                } else {
+                    contactInformationVersions.put(contact.getUid(), event.version);
+                }
+                Long held = contactInformationVersions.get(contact.getUid());
+                appliedVersion = (held == null) ? 0 : held;
+            }
+        }
+
+        if(event.isDelta()) {
+            applyContactInformationDelta(contact, contactDBID, flags, event);
+            flags = 0;
+        }
+
         // We only update the affected attributes
-        if ((event.flags & Contact.FLAG_GROUP_LIST) == Contact.FLAG_GROUP_LIST) {
+        if ((flags & Contact.FLAG_GROUP_LIST) == Contact.FLAG_GROUP_LIST) {
             contact.setJoinedGroupIDs(event.contact.getJoinedGroupIDs());
             DatabaseFactory.getContactJoinGroupDatabase(RumbleApplication.getContext())
                     .deleteEntriesMatchingContactID(contactDBID);
@@ -258,7 +341,7 @@ public class CacheManager {
             }
             EventBus.getDefault().post(new ContactGroupListUpdated(contact));
         }
-        if ((event.flags & Contact.FLAG_TAG_INTEREST) == Contact.FLAG_TAG_INTEREST) {
+        if ((flags & Contact.FLAG_TAG_INTEREST) == Contact.FLAG_TAG_INTEREST) {
             contact.setHashtagInterests(event.contact.getHashtagInterests());
             DatabaseFactory.getContactHashTagInterestDatabase(RumbleApplication.getContext())
                     .deleteEntriesMatchingContactID(contactDBID);
@@ -270,6 +353,10 @@ public class CacheManager {
             EventBus.getDefault().post(new ContactTagInterestUpdatedEvent(contact));
         }
 
+        // the version now held is acknowledged to the contact, it is the base of its next deltas
+        if(event.version > 0)
+            EventBus.getDefault().post(new ContactInformationApplied(contact, event.channel, event.version, appliedVersion));
+
         // We also keep track of the interface and protocol this contact was discovered on
         try {
             long interfaceDBID = DatabaseFactory.getInterfaceDatabase(RumbleApplication.getContext())
@@ -283,30 +370,83 @@ public class CacheManager {
         } catch(NetUtil.NoMacAddressException ignore) {
         }
     }
+    /*
+     * a delta only holds what changed since a previous version, we update the affected rows
+     * instead of deleting and re-inserting every group and interest of this contact
+     */
+    private void applyContactInformationDelta(Contact contact, long contactDBID, int flags, ContactInformationReceived event) {
+        if ((flags & Contact.FLAG_GROUP_LIST) == Contact.FLAG_GROUP_LIST) {
+            boolean updated = false;
+            for(String group : event.removedGroupIDs) {
+                long groupDBID = DatabaseFactory.getGroupDatabase(RumbleApplication.getContext()).getGroupDBID(group);
+                if(groupDBID > 0)
+                    DatabaseFactory.getContactJoinGroupDatabase(RumbleApplication.getContext()).deleteContactGroup(contactDBID, groupDBID);
+                updated |= contact.getJoinedGroupIDs().remove(group);
+            }
+            for(String group : event.contact.getJoinedGroupIDs()) {
+                long groupDBID = DatabaseFactory.getGroupDatabase(RumbleApplication.getContext()).getGroupDBID(group);
+                if(groupDBID > 0)
+                    DatabaseFactory.getContactJoinGroupDatabase(RumbleApplication.getContext()).insertContactGroup(contactDBID, groupDBID);
+                updated |= contact.getJoinedGroupIDs().add(group);
+            }
+            if(updated)
+                EventBus.getDefault().post(new ContactGroupListUpdated(contact));
+        }
+        if ((flags & Contact.FLAG_TAG_INTEREST) == Contact.FLAG_TAG_INTEREST) {
+            boolean updated = false;
+            for(String hashtag : event.removedHashtags) {
+                long hashtagDBID = DatabaseFactory.getHashtagDatabase(RumbleApplication.getContext()).getHashtagDBID(hashtag);
+                if(hashtagDBID > 0)
+                    DatabaseFactory.getContactHashTagInterestDatabase(RumbleApplication.getContext()).deleteContactTagInterest(contactDBID, hashtagDBID);
+                updated |= (contact.getHashtagInterests().remove(hashtag) != null);
+            }
+            for(Map.Entry<String, Integer> entry : event.contact.getHashtagInterests().entrySet()) {
+                long hashtagDBID = DatabaseFactory.getHashtagDatabase(RumbleApplication.getContext()).getHashtagDBID(entry.getKey());
+                if(hashtagDBID > 0)
+                    DatabaseFactory.getContactHashTagInterestDatabase(RumbleApplication.getContext()).insertContactTagInterest(contactDBID, hashtagDBID, entry.getValue());
+                updated |= !entry.getValue().equals(contact.getHashtagInterests().put(entry.getKey(), entry.getValue()));
+            }
+            if(updated)
+                EventBus.getDefault().post(new ContactTagInterestUpdatedEvent(contact));
+        }
+    }
+
     public void onEventAsync(PushStatusSent event) {
-        if(event.status == null)
+        if(event.statuses.isEmpty())
             return;
 
-        PushStatus status = new PushStatus(event.status);
-        status.addReplication(event.recipients.size());
-
-        // first we update the status
-        DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).updateStatus(status);
+        // the statuses of a same bundle are updated within a single transaction
+        DatabaseFactory.beginTransaction(RumbleApplication.getContext());
+        try {
+            // first we update the statuses
+            List<Long> sent = new ArrayList<Long>(event.statuses.size());
+            for(PushStatus sentStatus : event.statuses) {
+                PushStatus status = new PushStatus(sentStatus);
+                status.addReplication(event.recipients.size());
+                DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).updateStatus(status);
+                if(status.getdbId() > 0)
+                    sent.add(status.getdbId());
+            }
 
-        // then the Contact database
-        if(status.getdbId() > 0) {
-            for(Contact recipient : event.recipients) {
-                Contact contact = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).getContact(recipient.getUid());
-                long contactDBID;
-                if(contact == null) {
-                    recipient.setStatusSent(1);
-                    contactDBID = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).insertOrUpdateContact(recipient);
-                } else {
-                    contact.setStatusSent(contact.nbStatusSent()+1);
-                    contactDBID = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).insertOrUpdateContact(contact);
+            // then the Contact database
+            if(!sent.isEmpty()) {
+                for(Contact recipient : event.recipients) {
+                    Contact contact = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).getContact(recipient.getUid());
+                    long contactDBID;
+                    if(contact == null) {
+                        recipient.setStatusSent(sent.size());
+                        contactDBID = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).insertOrUpdateContact(recipient);
+                    } else {
+                        contact.setStatusSent(contact.nbStatusSent()+sent.size());
+                        contactDBID = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).insertOrUpdateContact(contact);
+                    }
+                    for(Long statusDBID : sent)
+                        DatabaseFactory.getStatusContactDatabase(RumbleApplication.getContext()).insertStatusContact(statusDBID, contactDBID);
                 }
-                DatabaseFactory.getStatusContactDatabase(RumbleApplication.getContext()).insertStatusContact(status.getdbId(), contactDBID);
             }
+            DatabaseFactory.setTransactionSuccessful(RumbleApplication.getContext());
+        } finally {
+            DatabaseFactory.endTransaction(RumbleApplication.getContext());
         }
     }
     public void onEventAsync(ChatMessageReceived event) {
@@ -363,58 +503,60 @@ public class CacheManager {
         EventBus.getDefault().post(new ContactTagInterestUpdatedEvent(contact));
 
     }
-    public void onEventAsync(UserReadStatus event) {
+    /*
+     * the user flags are only recorded here (on the posting thread, it is cheap),
+     * the StatusFlagTracker writes them to the database in batch
+     */
+    public void onEvent(UserReadStatus event) {
         if(event.status == null)
             return;
-        event.status.setUserRead(true);
-        DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).updateStatus(event.status);
-        //todo trow an event
+        StatusFlagTracker.getInstance().markRead(event.status);
     }
-    public void onEventAsync(UserLikedStatus event) {
+    public void onEvent(UserLikedStatus event) {
         if(event.status == null)
             return;
-        event.status.setUserLike(true);
-        DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).updateStatus(event.status);
-        //todo trow an event
+        StatusFlagTracker.getInstance().markLiked(event.status);
     }
-    public void onEventAsync(UserSavedStatus event) {
+    public void onEvent(UserSavedStatus event) {
         if(event.status == null)
             return;
-        event.status.setUserSaved(true);
-        DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).updateStatus(event.status);
-        //todo trow an event
+        StatusFlagTracker.getInstance().markSaved(event.status);
     }
     public void onEventAsync(UserDeleteStatus event) {
         if(event.status == null)
             return;
         if(DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).deleteStatus(event.status.getUuid())) {
-            if(event.status.hasAttachedFile()) {
-                // if filename starts with a '/' it means that the file is from another album
-                // we do not delete the file in that case
-                if(!event.status.getFileName().startsWith("/")) {
-                    try {
-                        File attached = new File(FileUtil.getWritableAlbumStorageDir(), event.status.getFileName());
-                        if (attached.exists() && attached.isFile()) {
-                            attached.delete();
-                        }
-                    } catch (IOException e) {
-                    }
-                }
-            }
+            // the attached file itself is released by the PushStatusDatabase (see AttachmentStore)
+            if(event.status.hasAttachedFile())
+                ThumbnailCache.getInstance().delete(event.status.getUuid());
             EventBus.getDefault().post(new StatusDeletedEvent(event.status.getUuid(), event.status.getdbId()));
         }
     }
-    public void onEventAsync(UserComposeStatus event) {
+    public void onEventAsync(final UserComposeStatus event) {
+        if(event.status == null)
+            return;
+        if(event.tempfile.equals("")) {
+            insertComposedStatus(event.status);
+            return;
+        }
+
+        /*
+         * the status is inserted once its attached image has been saved, the ImageProcessor
+         * deletes the temporary file
+         */
+        ImageProcessor.getInstance().saveImage(event.tempfile, event.status.getUuid(),
+                new ImageProcessor.Callback() {
+                    @Override
+                    public void onImageSaved(String filename) {
+                        if (filename != null)
+                            event.status.setFileName(filename);
+                        insertComposedStatus(event.status);
+                    }
+                });
+    }
+    private void insertComposedStatus(PushStatus composed) {
         try {
-            if(event.status == null)
-                return;
-            if(!event.tempfile.equals("")) {
-                String cleanedUuid = FileUtil.cleanBase64(event.status.getUuid());
-                String filename = "JPEG_" + cleanedUuid + ".jpg";
-                if (saveImageOnDisk(event.tempfile, filename))
-                    event.status.setFileName(filename);
-            }
-            PushStatus status = new PushStatus(event.status);
+            PushStatus status = new PushStatus(composed);
             DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).insertStatus(status);
 
             // we subscribe the user to every hashtag he used in his message
@@ -424,15 +566,7 @@ public class CacheManager {
                 }
             }
         } finally {
-            if (!event.tempfile.equals("")) {
-                try {
-                    File toDelete = new File(FileUtil.getWritableAlbumStorageDir(), event.tempfile);
-                    toDelete.delete();
-                } catch (IOException ignore) {
-                }
-            }
-            if(event.status != null)
-                event.status.discard();
+            composed.discard();
         }
     }
     public void onEventAsync(UserCreateGroup event) {
@@ -483,13 +617,16 @@ public class CacheManager {
         if(event.chatMessage == null)
             return;
         event.chatMessage.setUserRead(true);
-        if(DatabaseFactory.getChatMessageDatabase(RumbleApplication.getContext()).updateMessage(event.chatMessage) > 0)
+        if(DatabaseFactory.getChatMessageDatabase(RumbleApplication.getContext()).markRead(event.chatMessage.getUUID()) > 0) {
+            ChatUnreadCounter.getInstance().messageRead();
             EventBus.getDefault().post(new ChatMessageUpdatedEvent(event.chatMessage));
+        }
     }
     public void onEventAsync(UserWipeChatMessages event) {
         DatabaseFactory.getChatMessageDatabase(RumbleApplication.getContext()).wipe();
     }
     public void onEventAsync(UserWipeFiles event) {
+        ThumbnailCache.getInstance().wipe();
         try {
             File dir = FileUtil.getReadableAlbumStorageDir();
             if(dir != null) {
@@ -507,70 +644,4 @@ public class CacheManager {
         this.onEventAsync(new UserWipeChatMessages());
         this.onEventAsync(new UserWipeFiles());
     }
-
-    private boolean saveImageOnDisk(String from, String to) {
-        File toDelete = null;
-        File savedImage = null;
-        try {
-            toDelete = new File(FileUtil.getWritableAlbumStorageDir(), from);
-            savedImage   = new File(FileUtil.getWritableAlbumStorageDir(), to);
-            if(toDelete.exists() && toDelete.isFile() && (toDelete.length() > MAX_IMAGE_SIZE_ON_DISK)) {
-
-                // first we extrat the width and height of the image
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inJustDecodeBounds = true;
-                BitmapFactory.decodeFile(toDelete.getAbsolutePath(), options);
-                final int height = options.outHeight;
-                final int width = options.outWidth;
-
-                Bitmap scaled;
-                if((height > MAX_IMAGE_BORDER_PX) || (height > MAX_IMAGE_BORDER_PX)) {
-                    // we compute the new required height and width given that
-                    // we want the bigger border (Width or Height) to be 1000 px
-                    float factor = Math.max(height, width) / (float) MAX_IMAGE_BORDER_PX;
-                    int reqHeight = (int) Math.floor(height / factor);
-                    int reqWidth = (int) Math.floor(width / factor);
-
-                    Log.d(TAG, "bitmap (" + height + "," + width + ") with samplesize of" + Math.floor(factor));
-
-                    // we can create the new bitmap
-                    options.inJustDecodeBounds = false;
-                    options.inSampleSize = (int) Math.floor(factor);
-                    options.inPurgeable = true;
-                    Bitmap original = BitmapFactory.decodeFile(toDelete.getAbsolutePath(), options);
-                    scaled = Bitmap.createScaledBitmap(original, reqWidth, reqHeight, false);
-                    original.recycle();
-                } else {
-                    // doesn't need to be scaled down
-                    options.inJustDecodeBounds = false;
-                    options.inSampleSize = 1;
-                    options.inPurgeable = true;
-                    scaled = BitmapFactory.decodeFile(toDelete.getAbsolutePath(), options);
-                }
-
-                // we compress 80% JPEG quality and save it to the file
-                OutputStream outputStream = new FileOutputStream(savedImage);
-                scaled.compress(Bitmap.CompressFormat.JPEG, 80, outputStream);
-                outputStream.close();
-
-                scaled.recycle();
-            } else {
-                // we rename the file
-                File fromFile = new File(FileUtil.getWritableAlbumStorageDir(), from);
-                if(!fromFile.renameTo(savedImage))
-                    throw new IOException("cannot rename the file");
-            }
-
-            // we add the saved image to the library
-            Uri contentUri = Uri.fromFile(savedImage);
-            Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-            mediaScanIntent.setData(contentUri);
-            RumbleApplication.getContext().sendBroadcast(mediaScanIntent);
-
-            return true;
-        } catch(IOException e) {
-            Log.d(TAG, "there was an error resizing the image: "+e.getMessage());
-        }
-        return false;
-    }
 }
@@ -66,6 +66,13 @@ public class ChatMessageDatabase extends Database {
                  + " FOREIGN KEY ( "+ AUTHOR_DBID + " ) REFERENCES " + ContactDatabase.TABLE_NAME + " ( " + ContactDatabase.ID   + " ) "
             + " );";
 
+    /*
+     * the history is paged on (time_of_arrival, _id), see FILTER_BEFORE_KEY
+     */
+    public static final String[] CREATE_INDEXS = {
+            "CREATE INDEX IF NOT EXISTS chat_toa_id_index ON " + TABLE_NAME + " (" + TIME_OF_ARRIVAL + ", " + ID + ");"
+    };
+
     public ChatMessageDatabase(Context context, SQLiteOpenHelper databaseHelper) {
         super(context, databaseHelper);
     }
@@ -79,6 +86,7 @@ public class ChatMessageDatabase extends Database {
         public static final long FILTER_TOA_FROM   = 0x0001;
         public static final long FILTER_TOA_TO     = 0x0002;
         public static final long FILTER_READ       = 0x0004;
+        public static final long FILTER_BEFORE_KEY = 0x0008;
 
         public enum QUERY_RESULT {
             COUNT,
@@ -88,6 +96,8 @@ public class ChatMessageDatabase extends Database {
         public long         filterFlags;
         public long         to_toa;
         public long         from_toa;
+        public long         before_key_toa;
+        public long         before_key_dbid;
         public int          answerLimit;
         public boolean      read;
         public QUERY_RESULT query_result;
@@ -96,6 +106,8 @@ public class ChatMessageDatabase extends Database {
             filterFlags = 0x00;
             to_toa = 0;
             from_toa = 0;
+            before_key_toa = 0;
+            before_key_dbid = 0;
             answerLimit = 0;
             read = true;
             query_result = QUERY_RESULT.LIST_OF_MESSAGE;
@@ -152,6 +164,21 @@ public class ChatMessageDatabase extends Database {
             query.append(" cm." + ChatMessageDatabase.TIME_OF_ARRIVAL + " < ? ");
             argumentList.add(Long.toString(options.to_toa));
         }
+        /*
+         * keyset pagination: strictly older than the last message of the previous page,
+         * the dbid breaks the ties between messages that arrived at the same time
+         */
+        if ((options.filterFlags & ChatMessageQueryOption.FILTER_BEFORE_KEY) == ChatMessageQueryOption.FILTER_BEFORE_KEY) {
+            if(!firstwhere)
+                query.append(" AND ");
+            firstwhere = false;
+            query.append(" ( cm." + ChatMessageDatabase.TIME_OF_ARRIVAL + " < ? " +
+                    " OR ( cm." + ChatMessageDatabase.TIME_OF_ARRIVAL + " = ? " +
+                    " AND cm." + ChatMessageDatabase.ID + " < ? ) ) ");
+            argumentList.add(Long.toString(options.before_key_toa));
+            argumentList.add(Long.toString(options.before_key_toa));
+            argumentList.add(Long.toString(options.before_key_dbid));
+        }
         if((options.filterFlags & ChatMessageQueryOption.FILTER_READ) == ChatMessageQueryOption.FILTER_READ) {
             if(!firstwhere)
                 query.append(" AND ");
@@ -163,7 +190,7 @@ public class ChatMessageDatabase extends Database {
         if(options.filterFlags > 0)
             query.append(" ) ");
 
-        query.append(" ORDER BY " + ChatMessageDatabase.TIME_OF_ARRIVAL + " DESC");
+        query.append(" ORDER BY cm." + ChatMessageDatabase.TIME_OF_ARRIVAL + " DESC, cm." + ChatMessageDatabase.ID + " DESC");
 
         if(options.answerLimit > 0) {
             query.append(" LIMIT ? ");
@@ -250,7 +277,10 @@ public class ChatMessageDatabase extends Database {
         contentValues.put(USERREAD,        chatMessage.hasUserReadAlready() ? 1 : 0);
         contentValues.put(RECIPENTS,       chatMessage.getNbRecipients());
 
-        return  databaseHelper.getWritableDatabase().insertWithOnConflict(TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE);
+        long dbid = databaseHelper.getWritableDatabase().insertWithOnConflict(TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE);
+        if(dbid >= 0)
+            chatMessage.setdbId(dbid);
+        return dbid;
     }
 
     public long updateMessage(ChatMessage chatMessage){
@@ -261,12 +291,24 @@ public class ChatMessageDatabase extends Database {
         return databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, UUID + " = ? ", new String[]{chatMessage.getUUID()});
     }
 
+    /*
+     * returns 1 only if the message was not already read, so that the caller knows if the
+     * number of unread messages has changed (see ChatUnreadCounter)
+     */
+    public int markRead(String uuid){
+        ContentValues contentValues  = new ContentValues();
+        contentValues.put(USERREAD, 1);
+        return databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues,
+                UUID + " = ? AND " + USERREAD + " = 0", new String[]{uuid});
+    }
+
     private ChatMessage cursorToChatMessage(final Cursor cursor) {
         if(cursor == null)
             return null;
         if(cursor.isAfterLast())
             return null;
 
+        long    dbid        = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
         String  uuid        = cursor.getString(cursor.getColumnIndexOrThrow(UUID));
         long author_dbid = cursor.getLong(cursor.getColumnIndexOrThrow(AUTHOR_DBID));
         String message     = cursor.getString(cursor.getColumnIndexOrThrow(MESSAGE));
@@ -281,6 +323,7 @@ public class ChatMessageDatabase extends Database {
         ChatMessage chatMessage = new ChatMessage(author, message, toc, toa, protocol);
         chatMessage.setUserRead(userRead);
         chatMessage.setAttachedFile(filename);
+        chatMessage.setdbId(dbid);
         chatMessage.setUUID(uuid);
         chatMessage.setNbRecipients(recipients);
 
@@ -0,0 +1,140 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.events.ChatMessageInsertedEvent;
+import org.disrupted.rumble.database.events.ChatUnreadCountChanged;
+import org.disrupted.rumble.database.events.ChatWipedEvent;
+import org.disrupted.rumble.util.Log;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * ChatUnreadCounter keeps the number of unread chat messages in memory so that the badge of
+ * the chat tab does not need a COUNT query on every chat event.
+ *
+ * The counter is loaded once from the database when it starts and is then maintained
+ * incrementally: it is incremented for every unread message inserted, decremented by the
+ * CacheManager when a message actually goes from unread to read and reset when the chat is
+ * wiped. A ChatUnreadCountChanged is thrown whenever the value changes.
+ */
+public class ChatUnreadCounter {
+
+    private static final String TAG = "ChatUnreadCounter";
+
+    private static final Object lock = new Object();
+    private static ChatUnreadCounter instance;
+
+    private boolean started;
+    private boolean loaded;
+    private int count;
+
+    public static ChatUnreadCounter getInstance() {
+        synchronized (lock) {
+            if(instance == null)
+                instance = new ChatUnreadCounter();
+            return instance;
+        }
+    }
+
+    private ChatUnreadCounter() {
+        started = false;
+        loaded = false;
+        count = 0;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if(started)
+                return;
+            started = true;
+            loaded = false;
+        }
+        Log.d(TAG, "[+] Starting Chat Unread Counter");
+        EventBus.getDefault().register(this);
+
+        ChatMessageDatabase.ChatMessageQueryOption options = new ChatMessageDatabase.ChatMessageQueryOption();
+        options.filterFlags = ChatMessageDatabase.ChatMessageQueryOption.FILTER_READ;
+        options.read = false;
+        options.query_result = ChatMessageDatabase.ChatMessageQueryOption.QUERY_RESULT.COUNT;
+        DatabaseFactory.getChatMessageDatabase(RumbleApplication.getContext()).getChatMessage(options,
+                new DatabaseExecutor.ReadableQueryCallback() {
+                    @Override
+                    public void onReadableQueryFinished(Object object) {
+                        if (object == null)
+                            return;
+                        synchronized (lock) {
+                            count = (Integer) object;
+                            loaded = true;
+                        }
+                        notifyCount();
+                    }
+                });
+    }
+
+    public void stop() {
+        synchronized (lock) {
+            if(!started)
+                return;
+            started = false;
+        }
+        Log.d(TAG, "[-] Stopping Chat Unread Counter");
+        if(EventBus.getDefault().isRegistered(this))
+            EventBus.getDefault().unregister(this);
+    }
+
+    public int getCount() {
+        synchronized (lock) {
+            return count;
+        }
+    }
+
+    /*
+     * to be called only when a message has been marked as read in the database, and it
+     * was not read before (see ChatMessageDatabase.markRead)
+     */
+    public void messageRead() {
+        add(-1);
+    }
+
+    private void add(int delta) {
+        synchronized (lock) {
+            /* until the count is loaded, the database already accounts for the change */
+            if(!loaded)
+                return;
+            count = Math.max(0, count + delta);
+        }
+        notifyCount();
+    }
+
+    private void notifyCount() {
+        EventBus.getDefault().post(new ChatUnreadCountChanged(getCount()));
+    }
+
+    public void onEvent(ChatMessageInsertedEvent event) {
+        if((event.chatMessage != null) && !event.chatMessage.hasUserReadAlready())
+            add(1);
+    }
+
+    public void onEvent(ChatWipedEvent event) {
+        synchronized (lock) {
+            count = 0;
+        }
+        notifyCount();
+    }
+}
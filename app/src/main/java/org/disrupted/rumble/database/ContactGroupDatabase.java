@@ -63,6 +63,12 @@ public class ContactGroupDatabase extends Database {
         db.delete(TABLE_NAME, GDBID + " = ?" , new String[] {Long.toString(groupID)});
     }
 
+    public void deleteContactGroup(long contactID, long groupID){
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        db.delete(TABLE_NAME, UDBID + " = ? AND " + GDBID + " = ?" ,
+                new String[] {Long.toString(contactID), Long.toString(groupID)});
+    }
+
     public long insertContactGroup(long contactID, long groupID){
         ContentValues contentValues = new ContentValues();
         contentValues.put(UDBID, contactID);
@@ -19,9 +19,13 @@
 
 package org.disrupted.rumble.database;
 
+import org.disrupted.rumble.database.statistics.metrics.Gauge;
+import org.disrupted.rumble.database.statistics.metrics.LatencyHistogram;
+import org.disrupted.rumble.database.statistics.metrics.MetricRegistry;
 import org.disrupted.rumble.util.Log;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -55,6 +59,11 @@ public class DatabaseExecutor {
     private static final Object lock = new Object();
     private boolean running;
 
+    private static final LatencyHistogram queueWait = MetricRegistry.getInstance()
+            .histogram(MetricRegistry.DB_QUEUE_WAIT);
+    private static final Gauge queueSize = MetricRegistry.getInstance()
+            .gauge(MetricRegistry.DB_QUEUE_SIZE);
+
     public interface WritableQuery {
         public boolean write();
     }
@@ -113,14 +122,40 @@ public class DatabaseExecutor {
         queryQueue.clear();
     }
 
+    /*
+     * the latency of each query is recorded under the name of the query class (which is
+     * most of the time an anonymous class of the database that issued it, e.g. PushStatusDatabase$3)
+     * so that the slow queries can be identified in the StatisticActivity. The histogram of
+     * every query class is looked up only once.
+     */
+    private static final ConcurrentHashMap<Class<?>, LatencyHistogram> queryHistograms =
+            new ConcurrentHashMap<Class<?>, LatencyHistogram>();
+
+    private static LatencyHistogram queryHistogram(Object query) {
+        Class<?> kind = query.getClass();
+        LatencyHistogram histogram = queryHistograms.get(kind);
+        if(histogram == null) {
+            histogram = MetricRegistry.getInstance().histogram(
+                    MetricRegistry.DB_QUERY_PREFIX+kind.getName()
+                            .substring(kind.getName().lastIndexOf('.')+1));
+            queryHistograms.put(kind, histogram);
+        }
+        return histogram;
+    }
+
     public boolean addQuery(final WritableQuery query, final WritableQueryCallback callback) {
         if(!running)
             return false;
+        final long queued = System.nanoTime();
         synchronized (lock) {
+            queueSize.inc();
             queryQueue.add(new Runnable() {
                 @Override
                 public void run() {
+                    queueSize.dec();
+                    long start = queueWait.recordSince(queued);
                     boolean success = query.write();
+                    queryHistogram(query).recordSince(start);
                     if(callback != null)
                         callback.onWritableQueryFinished(success);
                 }
@@ -132,11 +167,16 @@ public class DatabaseExecutor {
     public boolean addQuery(final ReadableQuery query, final ReadableQueryCallback callback) {
         if(!running)
             return false;
+        final long queued = System.nanoTime();
         synchronized (lock) {
+            queueSize.inc();
             queryQueue.add(new Runnable() {
                 @Override
                 public void run() {
+                    queueSize.dec();
+                    long start = queueWait.recordSince(queued);
                     Object object = query.read();
+                    queryHistogram(query).recordSince(start);
                     if(callback != null)
                         callback.onReadableQueryFinished(object);
 
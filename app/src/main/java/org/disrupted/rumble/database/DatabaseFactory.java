@@ -37,10 +37,10 @@ public class DatabaseFactory {
 
     private static final String TAG = "DatabaseFactory";
 
-    private static final int DATABASE_VERSION  = 1;
+    private static final int DATABASE_VERSION  = 4;
     private static final String MAIN_DB_NAME   = "rumble.db";
 
-    private static final int STATISTIC_VERSION  = 1;
+    private static final int STATISTIC_VERSION  = 2;
     private static final String STAT_DB_NAME   = "statistic.db";
 
     private static final Object lock           = new Object();
@@ -119,6 +119,20 @@ public class DatabaseFactory {
         return getInstance(context).databaseExecutor;
     }
 
+    /*
+     * every table of the main database share the same helper, a transaction thus covers every
+     * update made by the calling thread through any of the databases until endTransaction
+     */
+    public static void beginTransaction(Context context) {
+        getInstance(context).databaseHelper.getWritableDatabase().beginTransaction();
+    }
+    public static void setTransactionSuccessful(Context context) {
+        getInstance(context).databaseHelper.getWritableDatabase().setTransactionSuccessful();
+    }
+    public static void endTransaction(Context context) {
+        getInstance(context).databaseHelper.getWritableDatabase().endTransaction();
+    }
+
 
     public static StatReachabilityDatabase getStatReachabilityDatabase(Context context) {
         return getInstance(context).statReachabilityDatabase;
@@ -197,7 +211,12 @@ public class DatabaseFactory {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            //nothing for the moment
+            if(oldVersion < 2)
+                executeStatements(db, PushStatusDatabase.CREATE_INDEXS);
+            if(oldVersion < 3)
+                db.execSQL(PushStatusDatabase.ADD_COLUMN_SPANS);
+            if(oldVersion < 4)
+                executeStatements(db, ChatMessageDatabase.CREATE_INDEXS);
         }
 
         @Override
@@ -215,6 +234,8 @@ public class DatabaseFactory {
             db.execSQL(StatusContactDatabase.CREATE_TABLE);
 
             executeStatements(db, StatusTagDatabase.CREATE_INDEXS);
+            executeStatements(db, PushStatusDatabase.CREATE_INDEXS);
+            executeStatements(db, ChatMessageDatabase.CREATE_INDEXS);
         }
 
         private void executeStatements(SQLiteDatabase db, String[] statements) {
@@ -231,7 +252,8 @@ public class DatabaseFactory {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            // nothing for the moment
+            if(oldVersion < 2)
+                db.execSQL(StatReachabilityDatabase.ADD_COLUMN_WALLCLOCK);
         }
 
         @Override
@@ -0,0 +1,237 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.disrupted.rumble.database;
+
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+
+import org.disrupted.rumble.app.EventDispatcher;
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.util.FileUtil;
+import org.disrupted.rumble.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * ImageProcessor saves the images attached to the statuses into the album, downscaling them
+ * so that their bigger border is at most MAX_IMAGE_BORDER_PX.
+ *
+ * The images are processed on the EventDispatcher.GROUP_IMAGES executor which caps the number
+ * of images being decoded at the same time, so that several big attachments received together
+ * do not run out of memory nor hold the threads that insert the statuses. The memory used by
+ * one image is bounded as well:
+ *   - the image is subsampled by a power of two while it is decoded, before it is scaled
+ *   - if the subsampled image is still bigger than MAX_DECODE_BYTES, it is decoded band by band
+ *     (BitmapRegionDecoder) and every band is drawn scaled down onto the final bitmap.
+ *
+ * The processed image is then handed over to the AttachmentStore which names it after its
+ * content, so an image that is already in the album is not stored twice. A file that must
+ * match a name we already have (a content-addressed file we requested) is stored as it is,
+ * downscaling it would change its content and thus its name.
+ */
+public class ImageProcessor {
+
+    private static final String TAG = "ImageProcessor";
+
+    public static final int  MAX_IMAGE_SIZE_ON_DISK = 500000;
+    public static final int  MAX_IMAGE_BORDER_PX    = 1000;
+    private static final int JPEG_QUALITY           = 80;
+    private static final int MAX_DECODE_BYTES       = 4 * 1024 * 1024;
+    private static final int BAND_HEIGHT_PX         = 128;
+    private static final String PROCESSED_PREFIX    = "processed_";
+
+    public interface Callback {
+        /* called from the image processing thread, filename is null if the image was not saved */
+        public void onImageSaved(String filename);
+    }
+
+    private static final Object lock = new Object();
+    private static ImageProcessor instance;
+
+    public static ImageProcessor getInstance() {
+        synchronized (lock) {
+            if(instance == null)
+                instance = new ImageProcessor();
+            return instance;
+        }
+    }
+
+    private ImageProcessor() {
+    }
+
+    public void saveImage(final String from, final String uuid, final Callback callback) {
+        saveImage(from, uuid, true, callback);
+    }
+
+    /*
+     * saves the temporary file "from" in the album under the name given by the AttachmentStore
+     * and generates its thumbnail under the given uuid, the image is only downscaled if
+     * downscale is set. The temporary file is deleted whatever happens.
+     */
+    public void saveImage(final String from, final String uuid, final boolean downscale,
+                          final Callback callback) {
+        EventDispatcher.getInstance().dispatch(EventDispatcher.GROUP_IMAGES, new Runnable() {
+            @Override
+            public void run() {
+                String filename = null;
+                File tempFile = null;
+                File processed = null;
+                try {
+                    File dir = FileUtil.getWritableAlbumStorageDir();
+                    tempFile  = new File(dir, from);
+                    processed = new File(dir, PROCESSED_PREFIX + from);
+
+                    if(downscale) {
+                        saveImageOnDisk(tempFile, processed);
+                    } else {
+                        if(!tempFile.renameTo(processed))
+                            throw new IOException("cannot rename the file");
+                    }
+                    filename = AttachmentStore.getInstance().store(processed);
+                    File savedImage = new File(dir, filename);
+
+                    // we add the saved image to the library
+                    Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
+                    mediaScanIntent.setData(Uri.fromFile(savedImage));
+                    RumbleApplication.getContext().sendBroadcast(mediaScanIntent);
+
+                    ThumbnailCache.getInstance().generate(uuid, savedImage);
+                } catch (IOException e) {
+                    Log.d(TAG, "there was an error saving the image: " + e.getMessage());
+                    filename = null;
+                } catch (OutOfMemoryError e) {
+                    Log.e(TAG, "[!] not enough memory to process the image " + from);
+                    filename = null;
+                } finally {
+                    if ((tempFile != null) && tempFile.exists())
+                        tempFile.delete();
+                    if ((processed != null) && processed.exists())
+                        processed.delete();
+                }
+                if (callback != null)
+                    callback.onImageSaved(filename);
+            }
+        });
+    }
+
+    private void saveImageOnDisk(File from, File to) throws IOException {
+        if(!from.isFile())
+            throw new IOException("file does not exist");
+
+        if(from.length() <= MAX_IMAGE_SIZE_ON_DISK) {
+            if(!from.renameTo(to))
+                throw new IOException("cannot rename the file");
+            return;
+        }
+
+        // first we extract the width and height of the image
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(from.getAbsolutePath(), options);
+        final int height = options.outHeight;
+        final int width  = options.outWidth;
+        if((height <= 0) || (width <= 0))
+            throw new IOException("not an image");
+
+        // the size of the saved image given that the bigger border must be at most 1000 px
+        int border = Math.max(height, width);
+        float factor = Math.max(1f, border / (float) MAX_IMAGE_BORDER_PX);
+        int reqHeight = Math.max(1, Math.round(height / factor));
+        int reqWidth  = Math.max(1, Math.round(width / factor));
+
+        // the biggest power of two subsampling that keeps the image bigger than required
+        int sampleSize = 1;
+        while(border / (sampleSize * 2) >= MAX_IMAGE_BORDER_PX)
+            sampleSize *= 2;
+
+        Log.d(TAG, "bitmap (" + height + "," + width + ") to (" + reqHeight + "," + reqWidth
+                + ") with samplesize of " + sampleSize);
+
+        Bitmap scaled;
+        long decodedBytes = 4L * (width / sampleSize) * (height / sampleSize);
+        if(decodedBytes > MAX_DECODE_BYTES) {
+            scaled = decodeByBands(from, width, height, sampleSize, reqWidth, reqHeight);
+        } else {
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            Bitmap decoded = BitmapFactory.decodeFile(from.getAbsolutePath(), options);
+            if(decoded == null)
+                throw new IOException("cannot decode the image");
+            if((decoded.getWidth() > reqWidth) || (decoded.getHeight() > reqHeight)) {
+                scaled = Bitmap.createScaledBitmap(decoded, reqWidth, reqHeight, true);
+                if(scaled != decoded)
+                    decoded.recycle();
+            } else {
+                scaled = decoded;
+            }
+        }
+
+        // we compress 80% JPEG quality and save it to the file
+        OutputStream outputStream = new FileOutputStream(to);
+        try {
+            scaled.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, outputStream);
+        } finally {
+            outputStream.close();
+            scaled.recycle();
+        }
+    }
+
+    /*
+     * only one band of the subsampled image (BAND_HEIGHT_PX rows) is in memory at once,
+     * besides the final bitmap
+     */
+    private Bitmap decodeByBands(File from, int width, int height, int sampleSize,
+                                 int reqWidth, int reqHeight) throws IOException {
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(from.getAbsolutePath(), false);
+        Bitmap scaled = Bitmap.createBitmap(reqWidth, reqHeight, Bitmap.Config.ARGB_8888);
+        try {
+            Canvas canvas = new Canvas(scaled);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+
+            int band = BAND_HEIGHT_PX * sampleSize;
+            for (int top = 0; top < height; top += band) {
+                int bottom = Math.min(top + band, height);
+                Bitmap tile = decoder.decodeRegion(new Rect(0, top, width, bottom), options);
+                if (tile == null)
+                    throw new IOException("cannot decode the image");
+                RectF destination = new RectF(0, top * reqHeight / (float) height,
+                        reqWidth, bottom * reqHeight / (float) height);
+                canvas.drawBitmap(tile, null, destination, paint);
+                tile.recycle();
+            }
+        } catch (IOException e) {
+            scaled.recycle();
+            throw e;
+        } finally {
+            decoder.recycle();
+        }
+        return scaled;
+    }
+}
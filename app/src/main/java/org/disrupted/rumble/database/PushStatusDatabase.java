@@ -22,6 +22,7 @@ package org.disrupted.rumble.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import org.disrupted.rumble.util.Log;
@@ -32,11 +33,10 @@ import org.disrupted.rumble.database.events.StatusWipedEvent;
 import org.disrupted.rumble.database.objects.Contact;
 import org.disrupted.rumble.database.objects.Group;
 import org.disrupted.rumble.database.objects.PushStatus;
-import org.disrupted.rumble.util.FileUtil;
+import org.disrupted.rumble.util.SpanUtil;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -70,6 +70,7 @@ public class PushStatusDatabase extends Database {
     public static final String USERREAD           = "read";         // has the user read it already ?
     public static final String USERLIKED          = "liked";       // has the user liked it ?
     public static final String USERSAVED          = "saved";       // has the user liked it ?
+    public static final String SPANS              = "spans";       // hashtags and links offsets (SpanUtil)
 
     public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME +
             " (" + ID          + " INTEGER PRIMARY KEY, "
@@ -90,12 +91,23 @@ public class PushStatusDatabase extends Database {
                  + USERREAD    + " INTEGER, "
                  + USERLIKED   + " INTEGER, "
                  + USERSAVED   + " INTEGER, "
+                 + SPANS       + " TEXT, "
                  + "UNIQUE ( " + UUID + " ), "
                  + "FOREIGN KEY ( "+ AUTHOR_DBID + " ) REFERENCES " + ContactDatabase.TABLE_NAME + " ( " + ContactDatabase.ID   + " ), "
                  + "FOREIGN KEY ( "+ SENDER_DBID + " ) REFERENCES " + ContactDatabase.TABLE_NAME + " ( " + ContactDatabase.ID   + " ), "
                  + "FOREIGN KEY ( "+ GROUP_DBID  + " ) REFERENCES " + GroupDatabase.TABLE_NAME   + " ( " + GroupDatabase.ID   + " ) "
           + " );";
 
+    public static final String ADD_COLUMN_SPANS =
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + SPANS + " TEXT;";
+
+    /*
+     * the timeline is paged on (time_of_arrival, _id), see FILTER_BEFORE_KEY
+     */
+    public static final String[] CREATE_INDEXS = {
+            "CREATE INDEX IF NOT EXISTS status_toa_id_index ON " + TABLE_NAME + " (" + TIME_OF_ARRIVAL + ", " + ID + ");"
+    };
+
 
     public static class StatusQueryOption {
         public static final long FILTER_READ               = 0x0001;
@@ -110,6 +122,7 @@ public class PushStatusDatabase extends Database {
         public static final long FILTER_BEFORE_TOA         = 0x0200;
         public static final long FILTER_NEVER_SEND_TO_USER = 0x0400;
         public static final long FILTER_NOT_EXPIRED        = 0x0800;
+        public static final long FILTER_BEFORE_KEY         = 0x1000;
 
         public enum QUERY_RESULT {
             COUNT,
@@ -135,6 +148,8 @@ public class PushStatusDatabase extends Database {
         public long         after_toa;
         public long         before_toc;
         public long         before_toa;
+        public long         before_key_toa;
+        public long         before_key_dbid;
         public String       uid;
         public int          answerLimit;
         public ORDER_BY     order_by;
@@ -151,6 +166,8 @@ public class PushStatusDatabase extends Database {
             before_toc = 0;
             after_toa = 0;
             before_toa = 0;
+            before_key_toa = 0;
+            before_key_dbid = 0;
             answerLimit = 0;
             order_by = ORDER_BY.NO_ORDERING;
             query_result = QUERY_RESULT.LIST_OF_MESSAGE;
@@ -170,6 +187,9 @@ public class PushStatusDatabase extends Database {
          * General querying with options
          */
     public boolean getStatuses(final StatusQueryOption options, DatabaseExecutor.ReadableQueryCallback callback){
+        // the read flags still pending must be written before the query is run
+        if((options != null) && ((options.filterFlags & StatusQueryOption.FILTER_READ) == StatusQueryOption.FILTER_READ))
+            StatusFlagTracker.getInstance().flush();
         return DatabaseFactory.getDatabaseExecutor(context).addQuery(
                 new DatabaseExecutor.ReadableQuery() {
                     @Override
@@ -315,6 +335,21 @@ public class PushStatusDatabase extends Database {
             query.append(" ps." + PushStatusDatabase.TIME_OF_ARRIVAL + " <= ? ");
             argumentList.add(Long.toString(options.before_toa));
         }
+        /*
+         * keyset pagination: strictly older than the last status of the previous page,
+         * the dbid breaks the ties between statuses that arrived at the same time
+         */
+        if ((options.filterFlags & StatusQueryOption.FILTER_BEFORE_KEY) == StatusQueryOption.FILTER_BEFORE_KEY) {
+            if(!firstwhere)
+                query.append(" AND ");
+            firstwhere = false;
+            query.append(" ( ps." + PushStatusDatabase.TIME_OF_ARRIVAL + " < ? " +
+                    " OR ( ps." + PushStatusDatabase.TIME_OF_ARRIVAL + " = ? " +
+                    " AND ps." + PushStatusDatabase.ID + " < ? ) ) ");
+            argumentList.add(Long.toString(options.before_key_toa));
+            argumentList.add(Long.toString(options.before_key_toa));
+            argumentList.add(Long.toString(options.before_key_dbid));
+        }
         if ((options.filterFlags & StatusQueryOption.FILTER_HOPS) == StatusQueryOption.FILTER_HOPS) {
             if(!firstwhere)
                 query.append(" AND ");
@@ -364,7 +399,7 @@ public class PushStatusDatabase extends Database {
                     query.append(" ORDER BY " + PushStatusDatabase.TIME_OF_CREATION + " DESC ");
                     break;
                 case TIME_OF_ARRIVAL:
-                    query.append(" ORDER BY " + PushStatusDatabase.TIME_OF_ARRIVAL + " DESC ");
+                    query.append(" ORDER BY " + PushStatusDatabase.TIME_OF_ARRIVAL + " DESC, ps." + PushStatusDatabase.ID + " DESC ");
                     break;
             }
         }
@@ -473,13 +508,10 @@ public class PushStatusDatabase extends Database {
                 if (count > 0) {
                     DatabaseFactory.getStatusTagDatabase(context).deleteEntriesMatchingStatusID(id);
                     DatabaseFactory.getStatusContactDatabase(context).deleteEntriesMatchingStatusDBID(id);
+                    StatusSummary.getInstance().statusRemoved(uuid);
                 }
-                try {
-                    File attachedFile = new File(FileUtil.getWritableAlbumStorageDir(), filename);
-                    if (attachedFile.exists() && attachedFile.isFile())
-                        attachedFile.delete();
-                } catch (IOException ignore) {
-                }
+                // the attached file may be shared with other statuses (see AttachmentStore)
+                AttachmentStore.getInstance().release(filename);
                 return true;
 
             } else {
@@ -513,6 +545,45 @@ public class PushStatusDatabase extends Database {
         return count;
     }
 
+    /*
+     * Point a status to another attached file (the name given by the AttachmentStore)
+     */
+    public int updateFileName(String uuid, String filename){
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(FILE_NAME, filename);
+        return databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, UUID + " = ?", new String[]{uuid});
+    }
+
+    /*
+     * Number of statuses that reference a given attached file
+     */
+    public long countFileReferences(String filename){
+        return DatabaseUtils.queryNumEntries(databaseHelper.getReadableDatabase(), TABLE_NAME,
+                FILE_NAME + " = ?", new String[]{filename});
+    }
+
+    /*
+     * Set a user flag (USERREAD, USERLIKED or USERSAVED) on several statuses at once.
+     * Only the flag column is written and no event is thrown, it is up to the caller
+     * (see StatusFlagTracker) to notify the listeners once for the whole batch.
+     */
+    public int updateStatusFlag(String flag, Collection<Long> dbIds){
+        if(dbIds.isEmpty())
+            return 0;
+        StringBuilder where = new StringBuilder(ID + " IN (");
+        boolean first = true;
+        for(Long dbId : dbIds) {
+            if(!first)
+                where.append(',');
+            where.append(dbId);
+            first = false;
+        }
+        where.append(')');
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(flag, 1);
+        return databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, where.toString(), null);
+    }
+
     /*
      * Insert a single status
      */
@@ -542,11 +613,15 @@ public class PushStatusDatabase extends Database {
         contentValues.put(USERREAD, status.hasUserReadAlready() ? 1 : 0);
         contentValues.put(USERLIKED, status.hasUserLiked() ? 1 : 0);
         contentValues.put(USERSAVED, status.hasUserSaved() ? 1 : 0);
+        if(status.getSpans() == null)
+            status.setSpans(SpanUtil.parse(status.getPost()));
+        contentValues.put(SPANS, SpanUtil.encode(status.getSpans()));
 
         long statusID = databaseHelper.getWritableDatabase().insertWithOnConflict(TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE);
 
         if(statusID >= 0) {
             status.setdbId(statusID);
+            StatusSummary.getInstance().statusAdded(status.getUuid());
             for (String hashtag : status.getHashtagSet()) {
                 long tagID = DatabaseFactory.getHashtagDatabase(context).insertHashtag(hashtag.toLowerCase());
                 if(tagID >=0 )
@@ -608,6 +683,7 @@ public class PushStatusDatabase extends Database {
         message.setUserLike((cursor.getInt(cursor.getColumnIndexOrThrow(USERLIKED)) == 1));
         message.setUserSaved((cursor.getInt(cursor.getColumnIndexOrThrow(USERSAVED)) == 1));
         message.setHashtagSet(getHashTagList(statusDBID));
+        message.setSpans(SpanUtil.decode(cursor.getString(cursor.getColumnIndexOrThrow(SPANS)), post.length()));
 
         return message;
     }
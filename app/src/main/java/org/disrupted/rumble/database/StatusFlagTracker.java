@@ -0,0 +1,151 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.disrupted.rumble.database;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.events.StatusFlagsUpdatedEvent;
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.database.statistics.metrics.Counter;
+import org.disrupted.rumble.database.statistics.metrics.MetricRegistry;
+import org.disrupted.rumble.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * StatusFlagTracker collects the flags set by the user on the statuses (read, liked, saved)
+ * and writes them to the database in batch.
+ *
+ * Every status that is displayed for the first time is marked as read, scrolling through
+ * a long list would thus issue one full-row update (and one StatusUpdatedEvent) per status.
+ * Instead, the marks are kept in memory and flushed every FLUSH_WINDOW milliseconds as one
+ * UPDATE ... WHERE _id IN (...) per flag on the DatabaseExecutor, followed by a single
+ * StatusFlagsUpdatedEvent. The flush is scheduled on the main looper as it only hands the
+ * batch over to the DatabaseExecutor.
+ */
+public class StatusFlagTracker {
+
+    private static final String TAG = "StatusFlagTracker";
+
+    public static final long FLUSH_WINDOW = 500;
+
+    private static final Object lock = new Object();
+    private static StatusFlagTracker instance;
+
+    private final Map<String, Set<Long>> pending;
+    private final Handler handler;
+    private boolean scheduled;
+
+    private static final Counter flushedRows = MetricRegistry.getInstance()
+            .counter(MetricRegistry.STATUS_FLAGS_FLUSHED);
+
+    public static StatusFlagTracker getInstance() {
+        synchronized (lock) {
+            if(instance == null)
+                instance = new StatusFlagTracker();
+            return instance;
+        }
+    }
+
+    private StatusFlagTracker() {
+        pending = new HashMap<String, Set<Long>>();
+        handler = new Handler(Looper.getMainLooper());
+        scheduled = false;
+    }
+
+    public void markRead(PushStatus status) {
+        status.setUserRead(true);
+        mark(PushStatusDatabase.USERREAD, status);
+    }
+
+    public void markLiked(PushStatus status) {
+        status.setUserLike(true);
+        mark(PushStatusDatabase.USERLIKED, status);
+    }
+
+    public void markSaved(PushStatus status) {
+        status.setUserSaved(true);
+        mark(PushStatusDatabase.USERSAVED, status);
+    }
+
+    private void mark(String flag, PushStatus status) {
+        if(status.getdbId() < 0)
+            return;
+        synchronized (lock) {
+            Set<Long> set = pending.get(flag);
+            if(set == null) {
+                set = new LinkedHashSet<Long>();
+                pending.put(flag, set);
+            }
+            set.add(status.getdbId());
+            if(scheduled)
+                return;
+            scheduled = true;
+        }
+        handler.postDelayed(scheduledFlush, FLUSH_WINDOW);
+    }
+
+    private final Runnable scheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /*
+     * hands the pending flags over to the DatabaseExecutor, may be called directly by
+     * anyone who needs the database to be up to date (PushStatusDatabase does so before
+     * a query on FILTER_READ)
+     */
+    public void flush() {
+        final Map<String, Set<Long>> batch;
+        synchronized (lock) {
+            scheduled = false;
+            if(pending.isEmpty())
+                return;
+            batch = new HashMap<String, Set<Long>>(pending);
+            pending.clear();
+        }
+
+        DatabaseFactory.getDatabaseExecutor(RumbleApplication.getContext()).addQuery(
+                new DatabaseExecutor.WritableQuery() {
+                    @Override
+                    public boolean write() {
+                        PushStatusDatabase database = DatabaseFactory
+                                .getPushStatusDatabase(RumbleApplication.getContext());
+                        for (Map.Entry<String, Set<Long>> entry : batch.entrySet()) {
+                            int count = database.updateStatusFlag(entry.getKey(), entry.getValue());
+                            flushedRows.add(count);
+                            Log.d(TAG, "[+] " + entry.getKey() + " set on " + count + " statuses");
+                            if (count > 0)
+                                EventBus.getDefault().post(new StatusFlagsUpdatedEvent(
+                                        entry.getKey(), new ArrayList<Long>(entry.getValue())));
+                        }
+                        return true;
+                    }
+                }, null);
+    }
+}
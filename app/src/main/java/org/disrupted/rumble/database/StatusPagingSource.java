@@ -0,0 +1,181 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.disrupted.rumble.database;
+
+import android.content.Context;
+
+import org.disrupted.rumble.database.objects.PushStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * StatusPagingSource loads a timeline of statuses (most recent first) page by page.
+ *
+ * Pages are fetched with a keyset, that is the (time_of_arrival, dbid) of the last status
+ * loaded, instead of an offset so that every page costs the same whatever the depth and so
+ * that no status is skipped or loaded twice when several statuses arrived at the same time.
+ * The next page is requested as soon as the user is less than prefetchDistance items away
+ * from the end of the list, so that it is usually already there when it is reached.
+ *
+ * The filters (group, author, hashtags) are provided by the QueryBuilder every time a page
+ * is requested.
+ */
+public class StatusPagingSource {
+
+    public static final int DEFAULT_PAGE_SIZE         = 30;
+    public static final int DEFAULT_PREFETCH_DISTANCE = 15;
+
+    public interface QueryBuilder {
+        public PushStatusDatabase.StatusQueryOption newQuery();
+    }
+
+    public interface Callback {
+        /*
+         * refresh is true if the page is the first one (the list must be replaced)
+         * and false if it must be appended to the list. In the former case, no other page
+         * is loaded until onRefreshApplied() is called
+         */
+        public void onPageLoaded(List<PushStatus> page, boolean refresh);
+    }
+
+    private final Context      context;
+    private final QueryBuilder builder;
+    private final Callback     callback;
+    private final int          pageSize;
+    private final int          prefetchDistance;
+
+    private final Object lock = new Object();
+    private boolean loading;
+    private boolean exhausted;
+    private long    keyToa;
+    private long    keyDbid;
+    private int     generation;
+
+    public StatusPagingSource(Context context, QueryBuilder builder, Callback callback) {
+        this(context, builder, callback, DEFAULT_PAGE_SIZE, DEFAULT_PREFETCH_DISTANCE);
+    }
+
+    public StatusPagingSource(Context context, QueryBuilder builder, Callback callback,
+                              int pageSize, int prefetchDistance) {
+        this.context          = context;
+        this.builder          = builder;
+        this.callback         = callback;
+        this.pageSize         = pageSize;
+        this.prefetchDistance = prefetchDistance;
+        this.loading          = false;
+        this.exhausted        = false;
+        this.generation       = 0;
+    }
+
+    /*
+     * reload the first page. Any page being loaded is ignored when it arrives
+     */
+    public void refresh() {
+        final int requested;
+        synchronized (lock) {
+            generation++;
+            requested = generation;
+            loading   = true;
+            exhausted = false;
+        }
+        load(requested, true, 0, 0);
+    }
+
+    /*
+     * to be called whenever the list is scrolled
+     */
+    public void onScrolled(int lastVisiblePosition, int itemCount) {
+        if(itemCount - 1 - lastVisiblePosition > prefetchDistance)
+            return;
+        loadNextPage();
+    }
+
+    public void loadNextPage() {
+        final int requested;
+        final long toa;
+        final long dbid;
+        synchronized (lock) {
+            if(loading || exhausted || (keyToa <= 0))
+                return;
+            loading   = true;
+            requested = generation;
+            toa       = keyToa;
+            dbid      = keyDbid;
+        }
+        load(requested, false, toa, dbid);
+    }
+
+    /*
+     * the first page has replaced the list, the next ones may be appended to it
+     */
+    public void onRefreshApplied() {
+        synchronized (lock) {
+            loading = false;
+        }
+    }
+
+    public boolean isLoading() {
+        synchronized (lock) {
+            return loading;
+        }
+    }
+
+    private void load(final int requested, final boolean refresh, long toa, long dbid) {
+        PushStatusDatabase.StatusQueryOption options = builder.newQuery();
+        options.answerLimit  = pageSize;
+        options.query_result = PushStatusDatabase.StatusQueryOption.QUERY_RESULT.LIST_OF_MESSAGE;
+        options.order_by     = PushStatusDatabase.StatusQueryOption.ORDER_BY.TIME_OF_ARRIVAL;
+        if(!refresh) {
+            options.filterFlags    |= PushStatusDatabase.StatusQueryOption.FILTER_BEFORE_KEY;
+            options.before_key_toa  = toa;
+            options.before_key_dbid = dbid;
+        }
+
+        boolean queued = DatabaseFactory.getPushStatusDatabase(context).getStatuses(options,
+                new DatabaseExecutor.ReadableQueryCallback() {
+                    @Override
+                    public void onReadableQueryFinished(Object result) {
+                        List<PushStatus> page = (result == null) ?
+                                new ArrayList<PushStatus>() : (ArrayList<PushStatus>) result;
+                        synchronized (lock) {
+                            if (requested != generation)
+                                return;
+                            loading = refresh;
+                            if (page.size() < pageSize)
+                                exhausted = true;
+                            if (page.size() > 0) {
+                                PushStatus last = page.get(page.size() - 1);
+                                keyToa  = last.getTimeOfArrival();
+                                keyDbid = last.getdbId();
+                            } else if (refresh) {
+                                keyToa  = 0;
+                                keyDbid = 0;
+                            }
+                        }
+                        callback.onPageLoaded(page, refresh);
+                    }
+                });
+        if(!queued) {
+            synchronized (lock) {
+                if(requested == generation)
+                    loading = false;
+            }
+        }
+    }
+}
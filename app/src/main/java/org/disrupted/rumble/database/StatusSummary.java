@@ -0,0 +1,131 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * StatusSummary maintains a 32 bits digest of the set of statuses stored in the database.
+ *
+ * The digest is the XOR of a hash of every status UUID so that it does not depend on the
+ * order of insertion and can be updated in O(1) by the PushStatusDatabase every time a status
+ * is inserted or deleted. It is loaded once when the CacheManager starts.
+ *
+ * Two devices advertising the same digest most probably hold the same statuses and have
+ * nothing to exchange (see RumbleUDPMulticastScanner).
+ */
+public class StatusSummary {
+
+    private static final String TAG = "StatusSummary";
+
+    private static final Object lock = new Object();
+    private static StatusSummary instance;
+
+    private boolean loaded;
+    private int digest;
+    private int count;
+
+    public static StatusSummary getInstance() {
+        synchronized (lock) {
+            if(instance == null)
+                instance = new StatusSummary();
+            return instance;
+        }
+    }
+
+    private StatusSummary() {
+        loaded = false;
+        digest = 0;
+        count  = 0;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if(loaded)
+                return;
+        }
+        PushStatusDatabase.StatusQueryOption options = new PushStatusDatabase.StatusQueryOption();
+        options.query_result = PushStatusDatabase.StatusQueryOption.QUERY_RESULT.LIST_OF_UUIDS;
+        DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatuses(options,
+                new DatabaseExecutor.ReadableQueryCallback() {
+                    @Override
+                    public void onReadableQueryFinished(Object object) {
+                        if (object == null)
+                            return;
+                        ArrayList<String> uuids = (ArrayList<String>) object;
+                        int value = 0;
+                        for (String uuid : uuids)
+                            value ^= hash(uuid);
+                        synchronized (lock) {
+                            digest = value;
+                            count = uuids.size();
+                            loaded = true;
+                        }
+                        Log.d(TAG, "[+] " + count + " statuses, digest " + Integer.toHexString(value));
+                    }
+                });
+    }
+
+    /*
+     * 0 is returned until the digest has been loaded
+     */
+    public int getDigest() {
+        synchronized (lock) {
+            return digest;
+        }
+    }
+
+    public int getCount() {
+        synchronized (lock) {
+            return count;
+        }
+    }
+
+    /* to be called by the PushStatusDatabase only */
+    void statusAdded(String uuid) {
+        toggle(uuid, 1);
+    }
+
+    /* to be called by the PushStatusDatabase only */
+    void statusRemoved(String uuid) {
+        toggle(uuid, -1);
+    }
+
+    private void toggle(String uuid, int delta) {
+        synchronized (lock) {
+            /* until the digest is loaded, the database already accounts for the change */
+            if(!loaded || (uuid == null))
+                return;
+            digest ^= hash(uuid);
+            count  += delta;
+        }
+    }
+
+    /* String.hashCode() followed by the murmur3 finalizer to spread the bits */
+    private static int hash(String uuid) {
+        int h = uuid.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.disrupted.rumble.database;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+
+import org.disrupted.rumble.app.EventDispatcher;
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.util.FileUtil;
+import org.disrupted.rumble.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ThumbnailCache keeps a small square thumbnail of every attached image, keyed by the uuid
+ * of the status (or chat message) it is attached to.
+ *
+ * The thumbnail is generated once, when the CacheManager saves the image, so that the lists
+ * only have to load a few KB instead of decoding a full image for every bind. Thumbnails are
+ * stored in the private cache directory of the application, the oldest ones being deleted
+ * when the cache grows over MAX_CACHE_SIZE. A missing thumbnail (older attachments, chat
+ * messages) is generated in background the first time it is requested.
+ *
+ * The presence of a thumbnail is known from memory so the UI thread never touches the disk,
+ * the album directory is also resolved only once. The disk work runs on the GROUP_IMAGES
+ * of the EventDispatcher, one task at a time and with at most one task pending in the group.
+ */
+public class ThumbnailCache {
+
+    private static final String TAG = "ThumbnailCache";
+
+    public static final int  THUMBNAIL_SIZE_PX = 96;
+    private static final int THUMBNAIL_QUALITY = 85;
+    private static final long MAX_CACHE_SIZE   = 4 * 1024 * 1024;
+    private static final String THUMBNAIL_DIR  = "thumbnails";
+
+    private static final Object lock = new Object();
+    private static ThumbnailCache instance;
+
+    private final File directory;
+
+    /* tasks run one after the other by the worker, see execute() */
+    private final ArrayDeque<Runnable> tasks;
+    private boolean draining;
+
+    /*
+     * the keys are the cleaned uuids (see FileUtil.cleanBase64) which are also the file names.
+     * index maps every key to the size of its thumbnail, in generation order, and is only
+     * accessed by the worker
+     */
+    private final LinkedHashMap<String, Long> index;
+    private final Map<String, File> available;
+    private final Map<String, Boolean> requested;
+    private long cacheSize;
+
+    private volatile File albumDir;
+
+    public static ThumbnailCache getInstance() {
+        synchronized (lock) {
+            if(instance == null)
+                instance = new ThumbnailCache();
+            return instance;
+        }
+    }
+
+    private ThumbnailCache() {
+        directory = new File(RumbleApplication.getContext().getCacheDir(), THUMBNAIL_DIR);
+        index     = new LinkedHashMap<String, Long>();
+        available = new ConcurrentHashMap<String, File>();
+        requested = new ConcurrentHashMap<String, Boolean>();
+        cacheSize = 0;
+        albumDir  = null;
+        tasks     = new ArrayDeque<Runnable>();
+        draining  = false;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                loadIndex();
+            }
+        });
+    }
+
+    /*
+     * the worker is a single task of the GROUP_IMAGES that runs the queued tasks until
+     * there is none left, so the tasks never run concurrently
+     */
+    private void execute(Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+            if(draining)
+                return;
+            draining = true;
+        }
+        EventDispatcher.getInstance().dispatch(EventDispatcher.GROUP_IMAGES, worker);
+    }
+
+    private final Runnable worker = new Runnable() {
+        @Override
+        public void run() {
+            while(true) {
+                Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if(task == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "[!] thumbnail task failed", e);
+                }
+            }
+        }
+    };
+
+    /*
+     * the album directory where the attached files are stored, null if not readable
+     */
+    public File getAlbumDir() {
+        File dir = albumDir;
+        if(dir == null) {
+            try {
+                dir = FileUtil.getReadableAlbumStorageDir();
+                albumDir = dir;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return dir;
+    }
+
+    /*
+     * returns the thumbnail if it exists, otherwise schedules its generation from the
+     * attached file and returns null. Does not access the disk.
+     */
+    public File getThumbnail(final String uuid, final String attachedFile) {
+        final String key = FileUtil.cleanBase64(uuid);
+        File thumbnail = available.get(key);
+        if(thumbnail != null)
+            return thumbnail;
+        if(requested.put(key, true) == null) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    // it may have been found by loadIndex() in the meantime
+                    if(available.containsKey(key))
+                        return;
+                    File dir = getAlbumDir();
+                    if(dir != null)
+                        generate(uuid, new File(dir, attachedFile));
+                }
+            });
+        }
+        return null;
+    }
+
+    /*
+     * generates the thumbnail of an image, to be called from a background thread
+     */
+    public boolean generate(String uuid, File image) {
+        final String key = FileUtil.cleanBase64(uuid);
+        if(!image.isFile())
+            return false;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getAbsolutePath(), options);
+        if((options.outWidth <= 0) || (options.outHeight <= 0))
+            return false;
+
+        int sampleSize = 1;
+        while(Math.min(options.outWidth, options.outHeight) / (sampleSize*2) >= THUMBNAIL_SIZE_PX)
+            sampleSize *= 2;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap decoded = BitmapFactory.decodeFile(image.getAbsolutePath(), options);
+        if(decoded == null)
+            return false;
+        Bitmap thumbnail = ThumbnailUtils.extractThumbnail(decoded, THUMBNAIL_SIZE_PX,
+                THUMBNAIL_SIZE_PX, ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+
+        File file = getFile(key);
+        OutputStream out = null;
+        try {
+            if(!directory.exists() && !directory.mkdirs())
+                throw new IOException("could not create directory "+directory.getAbsolutePath());
+            out = new FileOutputStream(file);
+            thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+        } catch (IOException e) {
+            Log.d(TAG, "[!] cannot save thumbnail: "+e.getMessage());
+            file.delete();
+            return false;
+        } finally {
+            thumbnail.recycle();
+            if(out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        final File finalFile = file;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                add(key, finalFile);
+            }
+        });
+        available.put(key, file);
+        return true;
+    }
+
+    public void delete(String uuid) {
+        final String key = FileUtil.cleanBase64(uuid);
+        available.remove(key);
+        requested.remove(key);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                Long size = index.remove(key);
+                if(size != null)
+                    cacheSize -= size;
+                getFile(key).delete();
+            }
+        });
+    }
+
+    public void wipe() {
+        available.clear();
+        requested.clear();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                index.clear();
+                cacheSize = 0;
+                File[] files = directory.listFiles();
+                if(files != null) {
+                    for (File file : files)
+                        file.delete();
+                }
+            }
+        });
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + ".jpg");
+    }
+
+    private void add(String key, File file) {
+        Long previous = index.remove(key);
+        if(previous != null)
+            cacheSize -= previous;
+        long size = file.length();
+        index.put(key, size);
+        cacheSize += size;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while((cacheSize > MAX_CACHE_SIZE) && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            available.remove(eldest.getKey());
+            requested.remove(eldest.getKey());
+            getFile(eldest.getKey()).delete();
+            cacheSize -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    /*
+     * the thumbnails are named after their key, the oldest are the first to be evicted
+     */
+    private void loadIndex() {
+        File[] files = directory.listFiles();
+        if(files == null)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+            }
+        });
+        for(File file : files) {
+            String name = file.getName();
+            if(!name.endsWith(".jpg"))
+                continue;
+            String key = name.substring(0, name.length() - 4);
+            index.put(key, file.length());
+            available.put(key, file);
+            cacheSize += file.length();
+        }
+        trim();
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database.events;
+
+/**
+ * Thrown by the ChatUnreadCounter every time the number of unread chat messages changes
+ */
+public class ChatUnreadCountChanged extends DatabaseEvent {
+
+    public final int count;
+
+    public ChatUnreadCountChanged(int count) {
+        this.count = count;
+    }
+
+    @Override
+    public String shortDescription() {
+        return "unread: "+count;
+    }
+}
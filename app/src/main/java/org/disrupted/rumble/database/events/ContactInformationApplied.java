@@ -0,0 +1,49 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database.events;
+
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.network.protocols.ProtocolChannel;
+
+/**
+ * Thrown by the CacheManager once a versioned contact information has been processed.
+ * version is the version received and appliedVersion the version of the information of this
+ * contact now held in the database (0 if none can be used as the base of a delta), both are
+ * acknowledged to the contact over the channel the information was received on.
+ */
+public class ContactInformationApplied extends DatabaseEvent {
+
+    public final Contact         contact;
+    public final ProtocolChannel channel;
+    public final long            version;
+    public final long            appliedVersion;
+
+    public ContactInformationApplied(Contact contact, ProtocolChannel channel, long version, long appliedVersion) {
+        this.contact = contact;
+        this.channel = channel;
+        this.version = version;
+        this.appliedVersion = appliedVersion;
+    }
+
+    @Override
+    public String shortDescription() {
+        if(contact != null)
+            return contact.getName()+" ("+contact.getUid()+") version "+version+" applied "+appliedVersion;
+        else
+            return "";
+    }
+}
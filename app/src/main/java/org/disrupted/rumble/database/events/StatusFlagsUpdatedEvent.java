@@ -0,0 +1,40 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.disrupted.rumble.database.events;
+
+import java.util.List;
+
+/**
+ * Thrown once for every batch of user flags (read, liked, saved) written by the
+ * StatusFlagTracker, instead of one StatusUpdatedEvent per status.
+ */
+public class StatusFlagsUpdatedEvent extends StatusDatabaseEvent {
+
+    public final String     flag;
+    public final List<Long> dbIds;
+
+    public StatusFlagsUpdatedEvent(String flag, List<Long> dbIds){
+        this.flag  = flag;
+        this.dbIds = dbIds;
+    }
+
+    @Override
+    public String shortDescription() {
+        return flag+" ("+dbIds.size()+")";
+    }
+}
@@ -28,6 +28,7 @@ public class ChatMessage {
     public static final int MSG_ID_RAW_SIZE      = 16;
     public static final int MSG_HASHTAG_MAX_SIZE = 50;
 
+    protected long        dbid;
     protected Contact     contact;
     protected String      uuid;
     protected String      message;
@@ -47,6 +48,7 @@ public class ChatMessage {
         this.timestamp = timestamp;
         this.protocolID = protocolID;
 
+        this.dbid = -1;
         this.read = false;
         this.attachedFile = "";
         this.fileSize = 0;
@@ -61,12 +63,14 @@ public class ChatMessage {
         this.uuid = message.uuid;
         this.protocolID = message.protocolID;
 
+        this.dbid = message.dbid;
         this.read = message.read;
         this.attachedFile = message.attachedFile;
         this.fileSize = message.fileSize;
         this.nbRecipients = message.nbRecipients;
     }
 
+    public long    getdbId() {            return dbid;                     }
     public String  getUUID() {            return uuid;                     }
     public Contact getAuthor() {          return contact;                  }
     public String  getMessage() {         return message;                  }
@@ -79,6 +83,7 @@ public class ChatMessage {
     public String  getProtocolID() {      return protocolID;               }
     public int     getNbRecipients() {    return nbRecipients;                }
 
+    public void setdbId(long dbid) {                   this.dbid = dbid;                 }
     public void setUUID(String UUID) {                 this.uuid = UUID;                 }
     public void setFileSize(long fileSize) {           this.fileSize = fileSize;         }
     public void setAttachedFile(String attachedFile) { this.attachedFile = attachedFile; }
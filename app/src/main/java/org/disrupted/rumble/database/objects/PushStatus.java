@@ -45,6 +45,7 @@ public class PushStatus {
     protected Group       group;
     protected String      status;
     protected Set<String> hashtagSet;
+    protected int[]       spans;  // hashtags and links offsets, see SpanUtil
     protected String      attachedFile;
     protected long        fileSize; // firechat only
     protected long        timeOfCreation;
@@ -74,6 +75,7 @@ public class PushStatus {
             this.hashtagSet  = new HashSet<String>(message.hashtagSet);
         else
             this.hashtagSet   = new HashSet<String>();
+        this.spans            = message.spans;
         this.attachedFile     = message.attachedFile;
         this.fileSize         = message.fileSize;
         this.timeOfArrival    = message.timeOfArrival;
@@ -104,6 +106,7 @@ public class PushStatus {
             hashtagSet.add(hashtagMatcher.group(0));
         }
 
+        spans          = null;
         attachedFile   = "";
         fileSize       = 0;
         this.timeOfCreation = timeOfCreation;
@@ -125,6 +128,7 @@ public class PushStatus {
     public Group   getGroup()  {            return this.group;                 }
     public String  getPost(){               return this.status;                }
     public Set<String> getHashtagSet(){     return this.hashtagSet;            }
+    public int[]   getSpans(){              return this.spans;                 }
     public long    getTimeOfCreation(){     return this.timeOfCreation;        }
     public long    getTimeOfArrival(){      return this.timeOfArrival;         }
     public long    getTTL(){                return this.ttl;                   }
@@ -146,6 +150,7 @@ public class PushStatus {
     
     public void setdbId(long dbid) {              this.dbid             = dbid;     }
     public void setFileName(String name){         this.attachedFile     = name;     }
+    public void setSpans(int[] spans){            this.spans            = spans;    }
     public void setFileSize(long fileSize) {      this.fileSize = fileSize;         }
     public void setTimeOfCreation(long toc){      this.timeOfCreation   = toc;      }
     public void setTimeOfArrival(long toa){       this.timeOfArrival    = toa;      }
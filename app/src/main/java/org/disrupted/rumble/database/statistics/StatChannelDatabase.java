@@ -19,6 +19,7 @@ package org.disrupted.rumble.database.statistics;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteOpenHelper;
 
 /**
@@ -86,6 +87,47 @@ public class StatChannelDatabase extends StatisticDatabase {
         return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, contentValues);
     }
 
+    /*
+     * summary of the last connections with an interface, used to rank the peers and to
+     * initialise their backoff (see ConnectionScheduler)
+     */
+    public static class ChannelHistory {
+        public int  connections;     // number of connections considered
+        public int  failures;        // last consecutive connections that did not receive a byte
+        public int  statusReceived;  // number of statuses received over these connections
+        public long lastDisconnected; // System.nanoTime() of the last disconnection, 0 if none
+    }
+
+    public ChannelHistory getChannelHistory(String macAddress, int limit) {
+        ChannelHistory history = new ChannelHistory();
+        Cursor cursor = null;
+        try {
+            cursor = databaseHelper.getReadableDatabase().rawQuery(
+                    "SELECT " + BYTES_RECEIVED + ", " + STATUS_RECEIVED + ", " + DISCONNECTED
+                    + " FROM " + TABLE_NAME
+                    + " WHERE " + IFACE_DBID + " = (SELECT " + StatInterfaceDatabase.ID
+                    + " FROM " + StatInterfaceDatabase.TABLE_NAME
+                    + " WHERE " + StatInterfaceDatabase.MACADDRESS + " = ?)"
+                    + " ORDER BY " + ID + " DESC LIMIT ?",
+                    new String[]{macAddress, Integer.toString(limit)});
+            if(cursor == null)
+                return history;
+            boolean failing = true;
+            for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                history.connections++;
+                failing = failing && (cursor.getLong(0) == 0);
+                if(failing)
+                    history.failures++;
+                history.statusReceived += cursor.getInt(1);
+                history.lastDisconnected = Math.max(history.lastDisconnected, cursor.getLong(2));
+            }
+        } finally {
+            if(cursor != null)
+                cursor.close();
+        }
+        return history;
+    }
+
     public void clean() {
         databaseHelper.getWritableDatabase().delete(TABLE_NAME,null,null);
     }
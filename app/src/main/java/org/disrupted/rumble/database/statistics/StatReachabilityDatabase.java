@@ -19,6 +19,7 @@ package org.disrupted.rumble.database.statistics;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import org.disrupted.rumble.database.Database;
@@ -37,6 +38,7 @@ public class StatReachabilityDatabase extends StatisticDatabase {
     public  static final String REACHABLE   = "reachable";
     public  static final String UNREACHABLE = "unreachable";
     public  static final String DURATION    = "encounter_duration";
+    public  static final String WALLCLOCK   = "wallclock";   // System.currentTimeMillis()
 
     public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME +
             " (" + ID     + " INTEGER PRIMARY KEY, "
@@ -45,9 +47,13 @@ public class StatReachabilityDatabase extends StatisticDatabase {
             + REACHABLE   + " INTEGER, "
             + UNREACHABLE + " INTEGER, "
             + DURATION    + " INTEGER, "
+            + WALLCLOCK   + " INTEGER, "
             + " FOREIGN KEY ( "+ IFACED_BID + " ) REFERENCES " + StatInterfaceDatabase.TABLE_NAME  + " ( " + StatInterfaceDatabase.ID  + " ) "
             + " );";
 
+    public static final String ADD_COLUMN_WALLCLOCK =
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + WALLCLOCK + " INTEGER;";
+
     public StatReachabilityDatabase(Context context, SQLiteOpenHelper databaseHelper) {
         super(context, databaseHelper);
     }
@@ -64,9 +70,40 @@ public class StatReachabilityDatabase extends StatisticDatabase {
         contentValues.put(REACHABLE,   reachable);
         contentValues.put(UNREACHABLE, !reachable);
         contentValues.put(DURATION,    duration);
+        contentValues.put(WALLCLOCK,   System.currentTimeMillis());
         return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, contentValues);
     }
 
+    /*
+     * average number of bluetooth neighbours that became reachable during the given hour of
+     * the day, over the days with at least one bluetooth encounter since the given time
+     * (milliseconds). Returns -1 if there is no such day.
+     */
+    public double getBluetoothArrivalRate(int hourOfDay, long since) {
+        String localtime = WALLCLOCK + "/1000, 'unixepoch', 'localtime'";
+        Cursor cursor = null;
+        try {
+            cursor = databaseHelper.getReadableDatabase().rawQuery(
+                    "SELECT COUNT(DISTINCT strftime('%Y-%m-%d', " + localtime + ")), "
+                    + "SUM(CASE WHEN CAST(strftime('%H', " + localtime + ") AS INTEGER) = " + hourOfDay
+                    + " THEN 1 ELSE 0 END)"
+                    + " FROM " + TABLE_NAME + " r JOIN " + StatInterfaceDatabase.TABLE_NAME + " i"
+                    + " ON r." + IFACED_BID + " = i." + StatInterfaceDatabase.ID
+                    + " WHERE r." + REACHABLE + " = 1 AND i." + StatInterfaceDatabase.BLUETOOTH + " = 1"
+                    + " AND r." + WALLCLOCK + " >= " + since,
+                    null);
+            if((cursor == null) || !cursor.moveToFirst())
+                return -1;
+            int days = cursor.getInt(0);
+            if(days == 0)
+                return -1;
+            return (double)cursor.getInt(1) / days;
+        } finally {
+            if(cursor != null)
+                cursor.close();
+        }
+    }
+
     public void clean() {
         databaseHelper.getWritableDatabase().delete(TABLE_NAME, null, null);
     }
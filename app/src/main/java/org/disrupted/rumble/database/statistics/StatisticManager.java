@@ -21,9 +21,11 @@ import android.database.Cursor;
 import android.os.Build;
 import org.disrupted.rumble.util.Log;
 
+import org.disrupted.rumble.app.EventDispatcher;
 import org.disrupted.rumble.app.RumbleApplication;
 import org.disrupted.rumble.database.DatabaseFactory;
 import org.disrupted.rumble.database.events.StatusDuplicate;
+import org.disrupted.rumble.database.statistics.metrics.MetricRegistry;
 import org.disrupted.rumble.network.events.ChannelDisconnected;
 import org.disrupted.rumble.network.events.NeighbourReachable;
 import org.disrupted.rumble.network.events.NeighbourUnreachable;
@@ -48,6 +50,9 @@ import java.net.URL;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -99,6 +104,10 @@ public class StatisticManager {
         }
     }
 
+    public MetricRegistry getMetricRegistry() {
+        return MetricRegistry.getInstance();
+    }
+
     public void onEventAsync(LinkLayerStarted event) {
         if(!event.linkLayerIdentifier.equals(WifiLinkLayerAdapter.LinkLayerIdentifier))
             return;
@@ -160,80 +169,138 @@ public class StatisticManager {
             }
         }
     }
-    public void onEvent(LinkLayerStopped event) {
-        // then the statistic
-        DatabaseFactory.getStatLinkLayerDatabase(RumbleApplication.getContext())
-                .insertLinkLayerStat(event.linkLayerIdentifier, event.started_time_nano, event.stopped_time_nano);
+    /*
+     * the following events are mostly posted by the network threads, the statistics are thus
+     * written to the database by the GROUP_STATISTICS executor and never on the posting thread.
+     * Nothing is dropped: the rows to insert are queued, the message counters are summed in
+     * memory and a single flush task writes everything, so that at most one task is pending
+     * in the executor however fast the events arrive.
+     */
+    private final ConcurrentLinkedQueue<Runnable> pendingRows = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicLong    pendingReceived  = new AtomicLong(0);
+    private final AtomicLong    pendingSent      = new AtomicLong(0);
+    private final AtomicLong    pendingDuplicate = new AtomicLong(0);
+    private final AtomicBoolean flushScheduled   = new AtomicBoolean(false);
+
+    private void record(Runnable row) {
+        pendingRows.add(row);
+        scheduleFlush();
     }
-    public void onEvent(NeighbourReachable event) {
-        String mac = event.neighbour.getLinkLayerAddress();
-        // first we add the Interface if needed
-        long rowId = DatabaseFactory.getStatInterfaceDatabase(RumbleApplication.getContext())
-                .getInterfaceDBIDFromMac(mac);
-        if(rowId < 0) {
-            rowId = DatabaseFactory.getStatInterfaceDatabase(RumbleApplication.getContext())
-                    .insertInterface(mac,event.neighbour.getLinkLayerIdentifier().equals(BluetoothLinkLayerAdapter.LinkLayerIdentifier));
-        }
-        // then the statistic
-        DatabaseFactory.getStatReachabilityDatabase(RumbleApplication.getContext())
-                .insertReachability(rowId, event.reachable_time_nano, true, 0);
-    }
-    public void onEvent(NeighbourUnreachable event) {
-        String mac = event.neighbour.getLinkLayerAddress();
-        // first we add the Interface if needed
-        long rowId = DatabaseFactory.getStatInterfaceDatabase(RumbleApplication.getContext())
-                .getInterfaceDBIDFromMac(mac);
-        if(rowId < 0) {
-            rowId = DatabaseFactory.getStatInterfaceDatabase(RumbleApplication.getContext())
-                    .insertInterface(mac,event.neighbour.getLinkLayerIdentifier().equals(BluetoothLinkLayerAdapter.LinkLayerIdentifier));
-        }
-        // then the statistic
-        DatabaseFactory.getStatReachabilityDatabase(RumbleApplication.getContext())
-                .insertReachability(rowId, event.unreachable_time_nano, false, event.unreachable_time_nano - event.reachable_time_nano);
+
+    private void scheduleFlush() {
+        if(flushScheduled.compareAndSet(false, true))
+            EventDispatcher.getInstance().dispatch(EventDispatcher.GROUP_STATISTICS, flush);
     }
-    public void onEvent(ChannelDisconnected event) {
-        String mac;
-        try {
-            mac = event.neighbour.getLinkLayerMacAddress();
-        } catch (NetUtil.NoMacAddressException ie) {
-            return;
-        }
-        // first we add the Interface if needed
-        long rowId = DatabaseFactory.getStatInterfaceDatabase(RumbleApplication.getContext())
-                .getInterfaceDBIDFromMac(mac);
-        if(rowId < 0) {
-            rowId = DatabaseFactory.getStatInterfaceDatabase(RumbleApplication.getContext())
-                    .insertInterface(mac,event.neighbour.getLinkLayerIdentifier().equals(BluetoothLinkLayerAdapter.LinkLayerIdentifier));
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            Runnable row;
+            while((row = pendingRows.poll()) != null)
+                row.run();
+            addToValue(KEY_MESSAGE_RECEIVED,  pendingReceived.getAndSet(0));
+            addToValue(KEY_MESSAGE_SENT,      pendingSent.getAndSet(0));
+            addToValue(KEY_MESSAGE_DUPLICATE, pendingDuplicate.getAndSet(0));
         }
-        // then the statistic
-        if(event.channel.connection_end_time - event.channel.connection_start_time == 0)
+    };
+
+    private void addToValue(String key, long delta) {
+        if(delta == 0)
             return;
-        DatabaseFactory.getStatChannelDatabase(RumbleApplication.getContext())
-                .insertChannelStat(rowId, event.channel.getLinkLayerIdentifier(),
-                        event.channel.connection_start_time, event.channel.connection_end_time,
-                        event.channel.getProtocolIdentifier(), event.channel.bytes_received,
-                        event.channel.in_transmission_time, event.channel.bytes_sent,
-                        event.channel.out_transmission_time, event.channel.status_received,
-                        event.channel.status_sent);
-    }
-    public void onEventAsync(PushStatusReceived event) {
         long nb = DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext())
-                .getValue(KEY_MESSAGE_RECEIVED, 0);
+                .getValue(key, 0);
         DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext())
-                .updateValue(KEY_MESSAGE_RECEIVED, nb+1);
+                .updateValue(key, nb+delta);
+    }
 
+    public void onEvent(final LinkLayerStopped event) {
+        record(new Runnable() {
+            @Override
+            public void run() {
+                // then the statistic
+                DatabaseFactory.getStatLinkLayerDatabase(RumbleApplication.getContext())
+                        .insertLinkLayerStat(event.linkLayerIdentifier, event.started_time_nano, event.stopped_time_nano);
+            }
+        });
     }
-    public void onEventAsync(PushStatusSent event) {
-        long nb = DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext())
-                .getValue(KEY_MESSAGE_SENT, 0);
-        DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext())
-                .updateValue(KEY_MESSAGE_SENT, nb+1);
+    public void onEvent(final NeighbourReachable event) {
+        record(new Runnable() {
+            @Override
+            public void run() {
+                String mac = event.neighbour.getLinkLayerAddress();
+                // first we add the Interface if needed
+                long rowId = DatabaseFactory.getStatInterfaceDatabase(RumbleApplication.getContext())
+                        .getInterfaceDBIDFromMac(mac);
+                if(rowId < 0) {
+                    rowId = DatabaseFactory.getStatInterfaceDatabase(RumbleApplication.getContext())
+                            .insertInterface(mac,event.neighbour.getLinkLayerIdentifier().equals(BluetoothLinkLayerAdapter.LinkLayerIdentifier));
+                }
+                // then the statistic
+                DatabaseFactory.getStatReachabilityDatabase(RumbleApplication.getContext())
+                        .insertReachability(rowId, event.reachable_time_nano, true, 0);
+            }
+        });
     }
-    public void onEvent(StatusDuplicate event) {
-        long nb = DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext())
-                .getValue(KEY_MESSAGE_DUPLICATE, 0);
-        DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext())
-                .updateValue(KEY_MESSAGE_DUPLICATE, nb+1);
+    public void onEvent(final NeighbourUnreachable event) {
+        record(new Runnable() {
+            @Override
+            public void run() {
+                String mac = event.neighbour.getLinkLayerAddress();
+                // first we add the Interface if needed
+                long rowId = DatabaseFactory.getStatInterfaceDatabase(RumbleApplication.getContext())
+                        .getInterfaceDBIDFromMac(mac);
+                if(rowId < 0) {
+                    rowId = DatabaseFactory.getStatInterfaceDatabase(RumbleApplication.getContext())
+                            .insertInterface(mac,event.neighbour.getLinkLayerIdentifier().equals(BluetoothLinkLayerAdapter.LinkLayerIdentifier));
+                }
+                // then the statistic
+                DatabaseFactory.getStatReachabilityDatabase(RumbleApplication.getContext())
+                        .insertReachability(rowId, event.unreachable_time_nano, false, event.unreachable_time_nano - event.reachable_time_nano);
+            }
+        });
+    }
+    public void onEvent(final ChannelDisconnected event) {
+        record(new Runnable() {
+            @Override
+            public void run() {
+                String mac;
+                try {
+                    mac = event.neighbour.getLinkLayerMacAddress();
+                } catch (NetUtil.NoMacAddressException ie) {
+                    return;
+                }
+                // first we add the Interface if needed
+                long rowId = DatabaseFactory.getStatInterfaceDatabase(RumbleApplication.getContext())
+                        .getInterfaceDBIDFromMac(mac);
+                if(rowId < 0) {
+                    rowId = DatabaseFactory.getStatInterfaceDatabase(RumbleApplication.getContext())
+                            .insertInterface(mac,event.neighbour.getLinkLayerIdentifier().equals(BluetoothLinkLayerAdapter.LinkLayerIdentifier));
+                }
+                // then the statistic
+                if(event.channel.connection_end_time - event.channel.connection_start_time == 0)
+                    return;
+                DatabaseFactory.getStatChannelDatabase(RumbleApplication.getContext())
+                        .insertChannelStat(rowId, event.channel.getLinkLayerIdentifier(),
+                                event.channel.connection_start_time, event.channel.connection_end_time,
+                                event.channel.getProtocolIdentifier(), event.channel.bytes_received,
+                                event.channel.in_transmission_time, event.channel.bytes_sent,
+                                event.channel.out_transmission_time, event.channel.status_received,
+                                event.channel.status_sent);
+            }
+        });
+    }
+    public void onEvent(final PushStatusReceived event) {
+        pendingReceived.incrementAndGet();
+        scheduleFlush();
+    }
+    public void onEvent(final PushStatusSent event) {
+        pendingSent.addAndGet(event.statuses.size());
+        scheduleFlush();
+    }
+    public void onEvent(final StatusDuplicate event) {
+        pendingDuplicate.incrementAndGet();
+        scheduleFlush();
     }
 
     public JSONObject generateStatJSON() throws JSONException{
@@ -297,6 +364,8 @@ public class StatisticManager {
                 fileSize));
         json.put("db",resultSet);
 
+        json.put("metrics", getMetricRegistry().toJSON());
+
         return json;
     }
 
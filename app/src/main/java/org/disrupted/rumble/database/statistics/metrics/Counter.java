@@ -0,0 +1,64 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database.statistics.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Counter is a monotonic value that is incremented from the hot path (network threads,
+ * database executor, dispatchers). To avoid every thread fighting over the same cache line,
+ * the value is striped over several slots indexed by the calling thread and is only summed
+ * up when read.
+ */
+public class Counter {
+
+    private static final int STRIPES = 8;
+    private static final int PADDING = 8; // one stripe every 64 bytes
+
+    private final String name;
+    private final AtomicLongArray cells;
+
+    Counter(String name) {
+        this.name  = name;
+        this.cells = new AtomicLongArray(STRIPES * PADDING);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void inc() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        int stripe = (int)(Thread.currentThread().getId() & (STRIPES - 1));
+        cells.addAndGet(stripe * PADDING, delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for(int i = 0; i < STRIPES; i++)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    public void reset() {
+        for(int i = 0; i < STRIPES; i++)
+            cells.set(i * PADDING, 0);
+    }
+}
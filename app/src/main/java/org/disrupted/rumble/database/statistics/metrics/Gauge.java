@@ -0,0 +1,53 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database.statistics.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Gauge holds an instantaneous value such as a queue size or a number of open channels.
+ */
+public class Gauge {
+
+    private final String name;
+    private final AtomicLong value;
+
+    Gauge(String name) {
+        this.name  = name;
+        this.value = new AtomicLong(0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void set(long value) {
+        this.value.set(value);
+    }
+
+    public void inc() {
+        this.value.incrementAndGet();
+    }
+
+    public void dec() {
+        this.value.decrementAndGet();
+    }
+
+    public long get() {
+        return value.get();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database.statistics.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A LatencyHistogram records durations (in nanoseconds) into log-linear buckets, the same way
+ * an HDR histogram does: every power of two is split into SUB_BUCKETS linear buckets so that
+ * any recorded value is known with a relative error below 1/SUB_BUCKETS (12.5%).
+ *
+ * Recording is lock-free (one atomic increment per bucket, one CAS for the max) so it can be
+ * called from the network receive loop without slowing it down.
+ *
+ *    bucket index:   0 .. 7   |  8 .. 15  | 16 .. 23  | 24 .. 31  |  ...
+ *    value range :   0 .. 7   |  8 .. 15  | 16 .. 31  | 32 .. 63  |  ...
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS         = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    LatencyHistogram(String name) {
+        this.name    = name;
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.count   = new AtomicLong(0);
+        this.sum     = new AtomicLong(0);
+        this.max     = new AtomicLong(0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /*
+     * convenience method to be used as such:
+     *     long start = System.nanoTime();
+     *     [...]
+     *     histogram.recordSince(start);
+     *
+     * it returns the time at which the value was recorded so that consecutive steps
+     * can be timed without calling System.nanoTime() twice.
+     */
+    public long recordSince(long startNano) {
+        long now = System.nanoTime();
+        record(now - startNano);
+        return now;
+    }
+
+    public void record(long valueNano) {
+        if(valueNano < 0)
+            valueNano = 0;
+        buckets.incrementAndGet(bucketIndex(valueNano));
+        count.incrementAndGet();
+        sum.addAndGet(valueNano);
+        long currentMax = max.get();
+        while((valueNano > currentMax) && !max.compareAndSet(currentMax, valueNano))
+            currentMax = max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long n = count.get();
+        if(n == 0)
+            return 0;
+        return sum.get() / n;
+    }
+
+    /*
+     * returns the upper bound of the bucket holding the requested percentile (0 < p <= 100)
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if(n == 0)
+            return 0;
+        long rank = (long)Math.ceil((percentile / 100.0) * n);
+        if(rank < 1)
+            rank = 1;
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if(seen >= rank)
+                return Math.min(bucketUpperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for(int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    private static int bucketIndex(long value) {
+        if(value < SUB_BUCKETS)
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if(index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        if(shift >= 63 - SUB_BUCKET_BITS)
+            return Long.MAX_VALUE;
+        long lower = ((long)(SUB_BUCKETS + sub)) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database.statistics.metrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * The MetricRegistry keeps the runtime performance metrics of Rumble in memory. Unlike the
+ * statistic databases that are only written once a channel or a link layer is closed, those
+ * metrics are updated live from the hot paths (block encoding/decoding, database executor,
+ * push dispatcher, event dispatching, per-link throughput) and can be read at any time.
+ *
+ * Metrics are created lazily the first time they are requested and are never removed so that
+ * callers may keep a reference to it (typically in a static field).
+ */
+public class MetricRegistry {
+
+    private static final String TAG = "MetricRegistry";
+
+    /* metric names shared by the instrumented components */
+    public static final String BLOCK_ENCODE_PREFIX   = "block.encode.";
+    public static final String BLOCK_DECODE_PREFIX   = "block.decode.";
+    public static final String DB_QUERY_PREFIX       = "db.query.";
+    public static final String DB_QUEUE_WAIT         = "db.queue_wait";
+    public static final String DB_QUEUE_SIZE         = "db.queue_size";
+    public static final String DISPATCHER_PICK       = "push.dispatcher.pick";
+    public static final String EVENTBUS_DISPATCH     = "eventbus.dispatch";
+    public static final String DISPATCH_PREFIX       = "dispatch.";
+    public static final String COMPRESSION_RAW       = "compression.raw_bytes";
+    public static final String COMPRESSION_WIRE      = "compression.wire_bytes";
+    public static final String STATUS_FLAGS_FLUSHED  = "db.status_flags_flushed";
+    public static final String LINK_PREFIX           = "link.";
+    public static final String LINK_BYTES_IN         = ".bytes_in";
+    public static final String LINK_BYTES_OUT        = ".bytes_out";
+    public static final String LINK_TIME_IN          = ".time_in_nano";
+    public static final String LINK_TIME_OUT         = ".time_out_nano";
+    public static final String RUMBLE_STATE_PREFIX   = "rumble.state.";
+    public static final String RUMBLE_STATE_REAPED   = "rumble.state_reaped";
+    public static final String MULTICAST_DATAGRAMS   = "multicast.datagrams_sent";
+    public static final String MULTICAST_DEDUP       = "multicast.statuses_deduplicated";
+    public static final String MULTICAST_REPAIRED    = "multicast.fec_repaired";
+    public static final String MULTICAST_NACK_SENT   = "multicast.nack_sent";
+    public static final String MULTICAST_RESENT      = "multicast.retransmitted";
+    public static final String MULTICAST_ACK_SENT    = "multicast.ack_sent";
+    public static final String MULTICAST_ACKED       = "multicast.acknowledged";
+    public static final String COMMAND_QUEUE_WAIT    = "command.queue_wait";
+    public static final String COMMAND_QUEUE_SIZE    = "command.queue_size";
+    public static final String COMMAND_DROPPED       = "command.dropped";
+
+    private static final Object lock = new Object();
+    private static MetricRegistry instance;
+
+    private final ConcurrentMap<String, Counter>          counters;
+    private final ConcurrentMap<String, Gauge>            gauges;
+    private final ConcurrentMap<String, LatencyHistogram> histograms;
+
+    public static MetricRegistry getInstance() {
+        synchronized (lock) {
+            if (instance == null)
+                instance = new MetricRegistry();
+
+            return instance;
+        }
+    }
+
+    private MetricRegistry() {
+        counters   = new ConcurrentHashMap<String, Counter>();
+        gauges     = new ConcurrentHashMap<String, Gauge>();
+        histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    }
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if(counter == null) {
+            counter = new Counter(name);
+            Counter previous = counters.putIfAbsent(name, counter);
+            if(previous != null)
+                counter = previous;
+        }
+        return counter;
+    }
+
+    public Gauge gauge(String name) {
+        Gauge gauge = gauges.get(name);
+        if(gauge == null) {
+            gauge = new Gauge(name);
+            Gauge previous = gauges.putIfAbsent(name, gauge);
+            if(previous != null)
+                gauge = previous;
+        }
+        return gauge;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if(histogram == null) {
+            histogram = new LatencyHistogram(name);
+            LatencyHistogram previous = histograms.putIfAbsent(name, histogram);
+            if(previous != null)
+                histogram = previous;
+        }
+        return histogram;
+    }
+
+    /*
+     * per link-layer throughput, to be called by the ProtocolChannel every time
+     * a block has been received or a command has been sent
+     */
+    public void linkReceived(String linkLayerIdentifier, long bytes, long timeNano) {
+        counter(LINK_PREFIX + linkLayerIdentifier + LINK_BYTES_IN).add(bytes);
+        counter(LINK_PREFIX + linkLayerIdentifier + LINK_TIME_IN).add(timeNano);
+    }
+
+    public void linkSent(String linkLayerIdentifier, long bytes, long timeNano) {
+        counter(LINK_PREFIX + linkLayerIdentifier + LINK_BYTES_OUT).add(bytes);
+        counter(LINK_PREFIX + linkLayerIdentifier + LINK_TIME_OUT).add(timeNano);
+    }
+
+    /*
+     * returns the throughput (in bytes per second) observed while actually transmitting
+     * over the given link layer, or 0 if nothing was transmitted yet
+     */
+    public long getLinkThroughputIn(String linkLayerIdentifier) {
+        return throughput(counter(LINK_PREFIX + linkLayerIdentifier + LINK_BYTES_IN).get(),
+                counter(LINK_PREFIX + linkLayerIdentifier + LINK_TIME_IN).get());
+    }
+
+    public long getLinkThroughputOut(String linkLayerIdentifier) {
+        return throughput(counter(LINK_PREFIX + linkLayerIdentifier + LINK_BYTES_OUT).get(),
+                counter(LINK_PREFIX + linkLayerIdentifier + LINK_TIME_OUT).get());
+    }
+
+    /*
+     * to be called for every payload that was big enough to be compressed, whether or not
+     * the compression was actually used (in which case wireBytes equals rawBytes)
+     */
+    public void payloadCompressed(long rawBytes, long wireBytes) {
+        counter(COMPRESSION_RAW).add(rawBytes);
+        counter(COMPRESSION_WIRE).add(wireBytes);
+    }
+
+    /*
+     * returns the size of the compressed payloads in percent of their original size,
+     * or 100 if nothing was compressed yet
+     */
+    public long getCompressionRatio() {
+        long raw = counter(COMPRESSION_RAW).get();
+        if(raw <= 0)
+            return 100;
+        return (counter(COMPRESSION_WIRE).get() * 100) / raw;
+    }
+
+    private static long throughput(long bytes, long timeNano) {
+        if(timeNano <= 0)
+            return 0;
+        return (bytes * 1000000000L) / timeNano;
+    }
+
+    private Set<String> getLinkLayerIdentifiers() {
+        Set<String> links = new HashSet<String>();
+        for(String name : counters.keySet()) {
+            if(name.startsWith(LINK_PREFIX) && name.endsWith(LINK_BYTES_IN))
+                links.add(name.substring(LINK_PREFIX.length(), name.length() - LINK_BYTES_IN.length()));
+            else if(name.startsWith(LINK_PREFIX) && name.endsWith(LINK_BYTES_OUT))
+                links.add(name.substring(LINK_PREFIX.length(), name.length() - LINK_BYTES_OUT.length()));
+        }
+        return links;
+    }
+
+    /*
+     * EventBus delivers the event synchronously to every onEvent() subscriber on the posting
+     * thread, so this measures how long the network thread is held by the subscribers.
+     */
+    public void timedPost(Object event) {
+        long start = System.nanoTime();
+        EventBus.getDefault().post(event);
+        histogram(EVENTBUS_DISPATCH).recordSince(start);
+    }
+
+    public void reset() {
+        for(Counter counter : counters.values())
+            counter.reset();
+        for(LatencyHistogram histogram : histograms.values())
+            histogram.reset();
+    }
+
+    /*
+     * JSON representation, histograms values are expressed in microseconds
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+
+        JSONObject jsonCounters = new JSONObject();
+        for(Map.Entry<String, Counter> entry : counters.entrySet())
+            jsonCounters.put(entry.getKey(), entry.getValue().get());
+        json.put("counters", jsonCounters);
+
+        JSONObject jsonGauges = new JSONObject();
+        for(Map.Entry<String, Gauge> entry : gauges.entrySet())
+            jsonGauges.put(entry.getKey(), entry.getValue().get());
+        json.put("gauges", jsonGauges);
+
+        JSONObject jsonHistograms = new JSONObject();
+        for(Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            JSONObject jsonHistogram = new JSONObject();
+            jsonHistogram.put("count",   histogram.getCount());
+            jsonHistogram.put("mean_us", histogram.getMean() / 1000);
+            jsonHistogram.put("p50_us",  histogram.getPercentile(50) / 1000);
+            jsonHistogram.put("p90_us",  histogram.getPercentile(90) / 1000);
+            jsonHistogram.put("p99_us",  histogram.getPercentile(99) / 1000);
+            jsonHistogram.put("max_us",  histogram.getMax() / 1000);
+            jsonHistograms.put(entry.getKey(), jsonHistogram);
+        }
+        json.put("histograms", jsonHistograms);
+
+        JSONObject jsonThroughput = new JSONObject();
+        for(String link : getLinkLayerIdentifiers()) {
+            JSONObject jsonLink = new JSONObject();
+            jsonLink.put("in_bps",  getLinkThroughputIn(link));
+            jsonLink.put("out_bps", getLinkThroughputOut(link));
+            jsonThroughput.put(link, jsonLink);
+        }
+        json.put("throughput", jsonThroughput);
+        json.put("compression_ratio", getCompressionRatio());
+
+        return json;
+    }
+
+    /*
+     * human readable representation, one metric per line sorted by name
+     */
+    public List<String> dump() {
+        List<String> lines = new ArrayList<String>();
+        for(Map.Entry<String, Counter> entry : counters.entrySet())
+            lines.add(entry.getKey() + ": " + entry.getValue().get());
+        for(Map.Entry<String, Gauge> entry : gauges.entrySet())
+            lines.add(entry.getKey() + ": " + entry.getValue().get());
+        for(Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if(histogram.getCount() == 0)
+                continue;
+            lines.add(entry.getKey()
+                    + ": n=" + histogram.getCount()
+                    + " p50=" + histogram.getPercentile(50) / 1000 + "us"
+                    + " p99=" + histogram.getPercentile(99) / 1000 + "us"
+                    + " max=" + histogram.getMax() / 1000 + "us");
+        }
+        for(String link : getLinkLayerIdentifiers()) {
+            lines.add(LINK_PREFIX + link + ".throughput: in="
+                    + getLinkThroughputIn(link) + "B/s out=" + getLinkThroughputOut(link) + "B/s");
+        }
+        lines.add("compression.ratio: " + getCompressionRatio() + "%");
+        Collections.sort(lines);
+        return lines;
+    }
+}
@@ -40,13 +40,15 @@ import org.disrupted.rumble.network.protocols.events.ContactInformationReceived;
 import org.disrupted.rumble.network.protocols.rumble.RumbleProtocol;
 import org.disrupted.rumble.util.NetUtil;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.greenrobot.event.EventBus;
 
@@ -62,6 +64,12 @@ import de.greenrobot.event.EventBus;
  * NeighbourManager is also the only one to throw a ContactDisconnected event which is thrown
  * whenever a NeighbourDisconnected (for instance a bluetooth connection ended) and no other
  * channels exists to reach the given Contact.
+ *
+ * Every modification is done under the managerLock by the event handlers, which also maintain
+ * reverse indexes (channel -> contact, channel -> neighbour). The readers (the MessageDispatchers
+ * calling chooseBestChannel and the UI calling getNeighbourList) never take the lock, they
+ * read immutable views from concurrent maps in which an event only replaces the views of the
+ * contacts and neighbours it touched.
  */
 public class NeighbourManager {
 
@@ -80,12 +88,82 @@ public class NeighbourManager {
         }
     }
 
+    /* immutable view of a contact, replaced (never modified) when its channels change */
+    private static class ContactView {
+        public final ProtocolChannel       bestChannel;
+        public final List<ProtocolChannel> channels;
+        public final ContactNeighbour      neighbour;
+
+        public ContactView(ProtocolChannel bestChannel, List<ProtocolChannel> channels,
+                           ContactNeighbour neighbour) {
+            this.bestChannel = bestChannel;
+            this.channels    = channels;
+            this.neighbour   = neighbour;
+        }
+    }
+
+    /* guarded by managerLock */
     private  Map<LinkLayerNeighbour, NeighbourDetail> neighborhood;
     private  Map<Contact, Set<ProtocolChannel>>   contacts;
+    private  Map<ProtocolChannel, Contact>        channelToContact;
+    private  Map<ProtocolChannel, LinkLayerNeighbour> channelToNeighbour;
+
+    /* written under managerLock, read without it */
+    private final Map<Contact, ContactView>                  contactViews;
+    private final Map<LinkLayerNeighbour, UnknowNeighbour>   unknownNeighbours;
 
     public NeighbourManager() {
         this.neighborhood = new HashMap<>();
         this.contacts = new HashMap<>();
+        this.channelToContact = new HashMap<>();
+        this.channelToNeighbour = new HashMap<>();
+        this.contactViews = new ConcurrentHashMap<>();
+        this.unknownNeighbours = new ConcurrentHashMap<>();
+    }
+
+    /*
+     * must be called with managerLock held, whenever the channels of a contact have changed
+     */
+    private void updateContact(Contact contact) {
+        Set<ProtocolChannel> channels = contacts.get(contact);
+        if((channels == null) || channels.isEmpty()) {
+            contactViews.remove(contact);
+            return;
+        }
+        ProtocolChannel best = null;
+        int bestPriority = 0;
+        for (ProtocolChannel channel : channels) {
+            int priority = channel.getChannelPriority();
+            if ((best == null) || (priority > bestPriority)) {
+                best = channel;
+                bestPriority = priority;
+            }
+        }
+        contactViews.put(contact, new ContactView(best,
+                Collections.unmodifiableList(new ArrayList<ProtocolChannel>(channels)),
+                new ContactNeighbour(contact, channels)));
+    }
+
+    /*
+     * must be called with managerLock held, whenever a neighbour or the contact bound to one
+     * of its channels has changed. A linklayerneighbour is only listed if no contact is bound
+     * to any of its channels
+     */
+    private void updateNeighbour(LinkLayerNeighbour neighbour) {
+        if(neighbour == null)
+            return;
+        NeighbourDetail detail = neighborhood.get(neighbour);
+        if(detail == null) {
+            unknownNeighbours.remove(neighbour);
+            return;
+        }
+        for(ProtocolChannel channel : detail.channels) {
+            if(channelToContact.containsKey(channel)) {
+                unknownNeighbours.remove(neighbour);
+                return;
+            }
+        }
+        unknownNeighbours.put(neighbour, new UnknowNeighbour(neighbour, detail.channels));
     }
 
     /*
@@ -102,6 +180,10 @@ public class NeighbourManager {
 
             neighborhood.clear();
             contacts.clear();
+            channelToContact.clear();
+            channelToNeighbour.clear();
+            contactViews.clear();
+            unknownNeighbours.clear();
         }
     }
 
@@ -117,6 +199,7 @@ public class NeighbourManager {
                             detail.reachable_time_nano,
                             System.nanoTime()));
                     it.remove();
+                    updateNeighbour(neighbour);
                 }
             }
         }
@@ -136,6 +219,7 @@ public class NeighbourManager {
                 return;
             detail = new NeighbourDetail();
             neighborhood.put(event.neighbour, detail);
+            updateNeighbour(event.neighbour);
         }
         EventBus.getDefault().post(new NeighbourReachable(event.neighbour, detail.reachable_time_nano));
         EventBus.getDefault().post(new NeighborhoodChanged());
@@ -152,6 +236,7 @@ public class NeighbourManager {
             if (!detail.channels.isEmpty())
                 return;
             neighborhood.remove(event.neighbour);
+            updateNeighbour(event.neighbour);
         }
         EventBus.getDefault().post(new NeighbourUnreachable(event.neighbour,
                 detail.reachable_time_nano, System.nanoTime()));
@@ -172,56 +257,74 @@ public class NeighbourManager {
                 neighborhood.put(event.neighbour, detail);
             }
             detail.channels.add(event.channel);
+            channelToNeighbour.put(event.channel, event.neighbour);
+            updateNeighbour(event.neighbour);
         }
         EventBus.getDefault().post(new NeighborhoodChanged());
     }
 
     public void onEvent(ChannelDisconnected event) {
         synchronized (managerLock) {
-            NeighbourDetail detail = neighborhood.get(event.neighbour);
-            if(detail == null)
-                return;
-            detail.channels.remove(event.channel);
-
             // throw ContactDisconnected event if a Contact doesn't have any channel left
-            Iterator<Map.Entry<Contact, Set<ProtocolChannel>>> it = contacts.entrySet().iterator();
-            while(it.hasNext()) {
-                Map.Entry<Contact, Set<ProtocolChannel>> contactEntry = it.next();
-                if(contactEntry.getValue().contains(event.channel)) {
-                    contactEntry.getValue().remove(event.channel);
-                    if(contactEntry.getValue().isEmpty()) {
-                        EventBus.getDefault().post(new ContactDisconnected(contactEntry.getKey()));
-                        it.remove();
-                    }
-                }
-            }
+            Contact contact = channelToContact.remove(event.channel);
+            if(contact != null)
+                removeContactChannel(contact, event.channel);
+            channelToNeighbour.remove(event.channel);
 
-            /*
-             * It is conceptually wrong to remove a neighbour from the neighborhood once the
-             * connection has disconnected. But this is only to force a NeighbourReachable
-             * Next time it is discover because we don't have yet a ConnectionManager
-             */
-            if (detail.channels.isEmpty()) {
-                neighborhood.remove(event.neighbour);
-                EventBus.getDefault().post(new NeighbourUnreachable(event.neighbour,
-                        detail.reachable_time_nano,
-                        System.nanoTime()));
+            NeighbourDetail detail = neighborhood.get(event.neighbour);
+            if(detail != null) {
+                detail.channels.remove(event.channel);
+
+                /*
+                 * It is conceptually wrong to remove a neighbour from the neighborhood once the
+                 * connection has disconnected. But this is only to force a NeighbourReachable
+                 * Next time it is discover because we don't have yet a ConnectionManager
+                 */
+                if (detail.channels.isEmpty()) {
+                    neighborhood.remove(event.neighbour);
+                    EventBus.getDefault().post(new NeighbourUnreachable(event.neighbour,
+                            detail.reachable_time_nano,
+                            System.nanoTime()));
+                }
             }
+            updateNeighbour(event.neighbour);
         }
         EventBus.getDefault().post(new NeighborhoodChanged());
     }
 
+    /*
+     * must be called with managerLock held
+     */
+    private void removeContactChannel(Contact contact, ProtocolChannel channel) {
+        Set<ProtocolChannel> channels = contacts.get(contact);
+        if(channels == null)
+            return;
+        channels.remove(channel);
+        if(channels.isEmpty()) {
+            contacts.remove(contact);
+            EventBus.getDefault().post(new ContactDisconnected(contact));
+        }
+        updateContact(contact);
+    }
+
     public void onEvent(ContactInformationReceived event) {
         boolean connected = false;
         synchronized (managerLock) {
+            // the channel may have been bound to another contact before
+            Contact previous = channelToContact.put(event.channel, event.contact);
+            if((previous != null) && !previous.equals(event.contact))
+                removeContactChannel(previous, event.channel);
+
             Set<ProtocolChannel> channels = contacts.get(event.contact);
             if (channels == null) {
                 channels = new HashSet<>();
                 contacts.put(event.contact, channels);
                 connected = true;
             }
-            if (!channels.contains(event.channel))
-                channels.add(event.channel);
+            if (channels.add(event.channel) || connected)
+                updateContact(event.contact);
+            if(previous == null)
+                updateNeighbour(channelToNeighbour.get(event.channel));
         }
         if(connected)
             EventBus.getDefault().post(new ContactConnected(event.contact, event.channel));
@@ -330,66 +433,37 @@ public class NeighbourManager {
 
     public Set<Neighbour> getNeighbourList(boolean everybody) {
         Set<Neighbour> ret = new HashSet<Neighbour>();
-
-        synchronized (managerLock) {
-
-            for(Map.Entry<Contact, Set<ProtocolChannel>> mapEntry : contacts.entrySet()) {
-                Contact contact = mapEntry.getKey();
-                Set<ProtocolChannel> channels = mapEntry.getValue();
-                ret.add(new ContactNeighbour(contact, channels));
-            }
-
-            for(Map.Entry<LinkLayerNeighbour, NeighbourDetail> mapEntry : neighborhood.entrySet()) {
-                LinkLayerNeighbour neighbour = mapEntry.getKey();
-                NeighbourDetail detail = mapEntry.getValue();
-                boolean found = false;
-
-                // we only add this linklayerneighbour if no contact is bound to it
-                outer:
-                for(ProtocolChannel channel : detail.channels) {
-                    Iterator<Map.Entry<Contact,Set<ProtocolChannel>>> it = contacts.entrySet().iterator();
-                    while(it.hasNext()) {
-                        Map.Entry<Contact,Set<ProtocolChannel>> entry = it.next();
-                        Set<ProtocolChannel> contactChannels = entry.getValue();
-                        if(contactChannels.contains(channel)) {
-                            found = true;
-                            break outer;
-                        }
-                    }
-                }
-                if(!found) {
-                    if(!everybody) {
-                        if (neighbour instanceof BluetoothNeighbour) {
-                            BluetoothNeighbour btn = (BluetoothNeighbour) neighbour;
-                            if (btn.getBluetoothDeviceName() == null)
-                                continue;
-                            if (!btn.getBluetoothDeviceName().startsWith(RumbleProtocol.RUMBLE_BLUETOOTH_PREFIX))
-                                continue;
-                        }
-                    }
-                    ret.add(new UnknowNeighbour(neighbour, detail.channels));
+        for(ContactView view : contactViews.values())
+            ret.add(view.neighbour);
+        for(UnknowNeighbour unknown : unknownNeighbours.values()) {
+            if(!everybody) {
+                if (unknown.neighbour instanceof BluetoothNeighbour) {
+                    BluetoothNeighbour btn = (BluetoothNeighbour) unknown.neighbour;
+                    if (btn.getBluetoothDeviceName() == null)
+                        continue;
+                    if (!btn.getBluetoothDeviceName().startsWith(RumbleProtocol.RUMBLE_BLUETOOTH_PREFIX))
+                        continue;
                 }
             }
+            ret.add(unknown);
         }
-
         return ret;
     }
 
     public ProtocolChannel chooseBestChannel(Contact contact) {
-        ProtocolChannel ret = null;
-        synchronized (managerLock) {
-            Set<ProtocolChannel> channels = contacts.get(contact);
-            if(channels == null)
-                return null;
-
-            for (ProtocolChannel channel : channels) {
-                if (ret == null)
-                    ret = channel;
-                else
-                    ret = (ret.getChannelPriority() >
-                            channel.getChannelPriority() ? ret : channel);
-            }
-        }
-        return ret;
+        ContactView view = contactViews.get(contact);
+        if(view == null)
+            return null;
+        return view.bestChannel;
+    }
+
+    /*
+     * every channel currently open to this contact (see PushService striping)
+     */
+    public List<ProtocolChannel> getChannels(Contact contact) {
+        ContactView view = contactViews.get(contact);
+        if(view == null)
+            return Collections.emptyList();
+        return view.channels;
     }
 }
@@ -36,6 +36,8 @@ import org.disrupted.rumble.userinterface.activity.RoutingActivity;
 import org.disrupted.rumble.network.linklayer.Scanner;
 import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothLinkLayerAdapter;
 import org.disrupted.rumble.network.linklayer.LinkLayerAdapter;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackLinkLayerAdapter;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackNetwork;
 import org.disrupted.rumble.network.linklayer.wifi.WifiLinkLayerAdapter;
 import org.disrupted.rumble.network.protocols.Protocol;
 import org.disrupted.rumble.network.protocols.rumble.RumbleProtocol;
@@ -114,6 +116,11 @@ public class NetworkCoordinator extends Service {
                     WifiLinkLayerAdapter wifiAdapter = new WifiLinkLayerAdapter();
                     adapters.add(wifiAdapter);
                     workerPools.put(wifiAdapter.getLinkLayerIdentifier(), new WorkerPool(10));
+                    // in-memory network used for testing and benchmarking only
+                    if(LoopbackNetwork.getInstance().isEnabled()) {
+                        adapters.add(new LoopbackLinkLayerAdapter());
+                        workerPools.put(LoopbackLinkLayerAdapter.LinkLayerIdentifier, new WorkerPool(10));
+                    }
 
                     // register protocols
                     protocols = new LinkedList<Protocol>();
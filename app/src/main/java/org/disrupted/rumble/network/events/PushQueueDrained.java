@@ -0,0 +1,43 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.events;
+
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.network.protocols.ProtocolChannel;
+
+/**
+ * This event is sent by the PushService once every status a contact was waiting for has been
+ * sent over a channel, an exchange interrupted before that is not a complete one
+ */
+public class PushQueueDrained extends NetworkEvent {
+
+    public final Contact         contact;
+    public final ProtocolChannel channel;
+
+    public PushQueueDrained(Contact contact, ProtocolChannel channel) {
+        this.contact = contact;
+        this.channel = channel;
+    }
+
+    @Override
+    public String shortDescription() {
+        if((channel != null) && (contact != null))
+            return channel.getWorkerIdentifier() + "("+contact.getName()+")";
+        else
+            return "";
+    }
+}
@@ -21,23 +21,16 @@ package org.disrupted.rumble.network.linklayer.bluetooth;
 
 import android.bluetooth.BluetoothDevice;
 import android.content.IntentFilter;
-import android.os.SystemClock;
 
 import org.disrupted.rumble.app.RumbleApplication;
-import org.disrupted.rumble.network.linklayer.events.BluetoothScanEnded;
 import org.disrupted.rumble.network.linklayer.exception.ConnectionFailedException;
 import org.disrupted.rumble.network.linklayer.exception.InputOutputStreamException;
-import org.disrupted.rumble.network.linklayer.exception.InterruptedLinkLayerConnection;
 import org.disrupted.rumble.network.linklayer.exception.LinkLayerConnectionException;
 import org.disrupted.rumble.network.linklayer.exception.NoRemoteBluetoothDevice;
 import org.disrupted.rumble.network.linklayer.exception.NullSocketException;
 
 import java.io.IOException;
-import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
-
-import de.greenrobot.event.EventBus;
 
 /**
  * BluetoothClient tries to establish a connection with a remote Bluetooth Device
@@ -51,8 +44,6 @@ public class BluetoothClientConnection extends BluetoothConnection {
     protected UUID   bt_service_uuid;
     protected String bt_service_name;
 
-    private final CountDownLatch latch = new CountDownLatch(1);
-
     public BluetoothClientConnection(String remoteMacAddress, UUID uuid, String name, boolean secure){
         super(remoteMacAddress);
         this.bt_service_uuid = uuid;
@@ -67,25 +58,6 @@ public class BluetoothClientConnection extends BluetoothConnection {
     }
 
 
-    /*
-     * If the BluetoothAdapter is performing a scan procedure, it should wait for it to finish
-     * in order to avoid connection issue.
-     */
-    public void waitScannerToStop() throws LinkLayerConnectionException{
-        if (BluetoothUtil.getBluetoothAdapter(RumbleApplication.getContext()).isDiscovering()) {
-            EventBus.getDefault().register(this);
-            try {
-                latch.await();
-                Random random = new Random();
-                SystemClock.sleep(random.nextInt(2) * 1000);
-            } catch(InterruptedException e) {
-                throw new InterruptedLinkLayerConnection();
-            }
-            EventBus.getDefault().unregister(this);
-        }
-    }
-
-
     @Override
     public void connect() throws LinkLayerConnectionException {
         mmBluetoothDevice = BluetoothUtil.getBluetoothAdapter(RumbleApplication.getContext()).getRemoteDevice(this.remoteMacAddress);
@@ -118,14 +90,4 @@ public class BluetoothClientConnection extends BluetoothConnection {
         registered = true;
     }
 
-    /*
-     * todo: it is possible that if the user stops everything it may keep a locking state
-     * we don't want to connect while we are discovering cause it mess with the bluetooth
-     * This one unlock the latch locked when trying to connect
-     */
-    public void onEvent(BluetoothScanEnded scanEnded) {
-        latch.countDown();
-    }
-
-
 }
@@ -0,0 +1,184 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.linklayer.bluetooth;
+
+import org.disrupted.rumble.app.EventDispatcher;
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.DatabaseFactory;
+import org.disrupted.rumble.database.statistics.metrics.MetricRegistry;
+import org.disrupted.rumble.util.Log;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BluetoothScanScheduler decides when the BluetoothScanner starts its next discovery.
+ *
+ * A discovery lasts about SCANNING_TIME during which the RFCOMM transfers slow down and no
+ * new connection can be opened. On the other hand, a neighbour arriving right after a scan
+ * waits for the next one to be discovered. With neighbours arriving at a rate r, scanning
+ * every T costs cost/T and the arrivals wait rT/2 on average, which is minimal for
+ *
+ *          T = sqrt(2 * cost / r)
+ *
+ * r is the largest of the arrival rate recorded by the StatReachabilityDatabase for this hour
+ * of the day and of the rate at which the recent scans found new neighbours (the yield).
+ * A scan costs more when a bluetooth channel is open, and it is postponed while a transfer
+ * is going on (for at most MAX_SUPPRESSION so that we still discover new neighbours).
+ *
+ * Not thread-safe, every method is called by the BluetoothScanner with its lock held.
+ */
+public class BluetoothScanScheduler {
+
+    private static final String TAG = "BluetoothScanScheduler";
+
+    private static final long   SCANNING_TIME      = 12000;       // typical discovery duration
+    private static final long   MIN_INTERVAL       = 10000;       // 10 seconds
+    private static final long   MAX_INTERVAL       = 960000;      // 16 minutes
+    private static final double IDLE_COST          = 1;
+    private static final double CONNECTED_COST     = 4;
+    private static final double MIN_ARRIVAL_RATE   = 0.5/3600000; // half a neighbour per hour (per ms)
+    private static final double YIELD_ALPHA        = 0.3;
+    private static final long   HISTORY_DAYS       = 28;
+    private static final long   HISTORY_REFRESH    = 900000;      // 15 minutes
+    private static final long   ACTIVITY_THRESHOLD = 8192;        // bytes per second
+    private static final long   ACTIVITY_WINDOW    = 2000;        // throughput sampling window
+    private static final long   SUPPRESSION_CHECK  = 10000;
+    private static final long   MAX_SUPPRESSION    = 300000;      // 5 minutes
+
+    private static final String BYTES_IN  = MetricRegistry.LINK_PREFIX
+            + BluetoothLinkLayerAdapter.LinkLayerIdentifier + MetricRegistry.LINK_BYTES_IN;
+    private static final String BYTES_OUT = MetricRegistry.LINK_PREFIX
+            + BluetoothLinkLayerAdapter.LinkLayerIdentifier + MetricRegistry.LINK_BYTES_OUT;
+
+    // arrival rates in neighbours per millisecond, -1 if unknown
+    private volatile double historicalRate;
+    private long   historyLoaded;   // System.nanoTime(), 0 if never
+    private int    historyHour;
+    private double observedRate;
+    private long   lastScanEnded;   // System.nanoTime(), 0 if never
+
+    private long   lastActivityCheck;
+    private long   lastActivityBytes;
+    private long   suppressedSince; // System.nanoTime(), 0 if the scan is not suppressed
+
+    private final MetricRegistry metrics;
+
+    public BluetoothScanScheduler() {
+        this.metrics = MetricRegistry.getInstance();
+        reset();
+    }
+
+    public void reset() {
+        historicalRate = -1;
+        historyLoaded = 0;
+        historyHour = -1;
+        observedRate = -1;
+        lastScanEnded = 0;
+        lastActivityCheck = 0;
+        lastActivityBytes = 0;
+        suppressedSince = 0;
+    }
+
+    /*
+     * to be called at the end of every scan with the number of neighbours that were not
+     * there during the previous one
+     */
+    public void scanEnded(int newNeighbours) {
+        long now = System.nanoTime();
+        if(lastScanEnded != 0) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(now - lastScanEnded);
+            if(elapsed > 0) {
+                double sample = (double)newNeighbours / elapsed;
+                observedRate = (observedRate < 0) ? sample
+                        : YIELD_ALPHA * sample + (1 - YIELD_ALPHA) * observedRate;
+            }
+        }
+        lastScanEnded = now;
+        refreshHistory();
+    }
+
+    /*
+     * time to wait (milliseconds) until the next scan
+     */
+    public long nextScanDelay(boolean connected) {
+        double rate = Math.max(MIN_ARRIVAL_RATE, Math.max(historicalRate, observedRate));
+        double cost = SCANNING_TIME * (connected ? CONNECTED_COST : IDLE_COST);
+        long delay = (long)Math.sqrt(2 * cost / rate);
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, delay));
+    }
+
+    /*
+     * returns 0 if the scheduled scan may start now or the time to wait (milliseconds) before
+     * checking again if the bluetooth link is busy transferring
+     *
+     * The throughput is measured since the previous check only if it is recent (the scan was
+     * already postponed), otherwise the previous check may be minutes old and would average
+     * a transfer that has just started away. A baseline is then taken and the decision is
+     * made ACTIVITY_WINDOW later.
+     */
+    public long suppressScan() {
+        long now = System.nanoTime();
+        long bytes = metrics.counter(BYTES_IN).get() + metrics.counter(BYTES_OUT).get();
+        long elapsed = now - lastActivityCheck;
+        if((lastActivityCheck == 0) || (elapsed <= 0)
+                || (elapsed > TimeUnit.MILLISECONDS.toNanos(2 * SUPPRESSION_CHECK))) {
+            lastActivityCheck = now;
+            lastActivityBytes = bytes;
+            return ACTIVITY_WINDOW;
+        }
+        boolean active = ((bytes - lastActivityBytes) * 1000000000L / elapsed > ACTIVITY_THRESHOLD);
+        lastActivityCheck = now;
+        lastActivityBytes = bytes;
+
+        if(!active) {
+            suppressedSince = 0;
+            return 0;
+        }
+        if(suppressedSince == 0)
+            suppressedSince = now;
+        if(now - suppressedSince > TimeUnit.MILLISECONDS.toNanos(MAX_SUPPRESSION)) {
+            suppressedSince = 0;
+            return 0;
+        }
+        Log.d(TAG, "[-] transfer in progress, scan postponed");
+        return SUPPRESSION_CHECK;
+    }
+
+    /*
+     * the arrival rate of the current hour of the day is loaded from the database off the
+     * scanner thread, the previous value is used in the meantime
+     */
+    private void refreshHistory() {
+        final int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        long now = System.nanoTime();
+        if((hour == historyHour) && (historyLoaded != 0)
+                && (now - historyLoaded < TimeUnit.MILLISECONDS.toNanos(HISTORY_REFRESH)))
+            return;
+        historyHour = hour;
+        historyLoaded = now;
+        EventDispatcher.getInstance().dispatch(EventDispatcher.GROUP_ASYNC, new Runnable() {
+            @Override
+            public void run() {
+                long since = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(HISTORY_DAYS);
+                double arrivalsPerHour = DatabaseFactory.getStatReachabilityDatabase(RumbleApplication.getContext())
+                        .getBluetoothArrivalRate(hour, since);
+                historicalRate = (arrivalsPerHour < 0) ? -1 : arrivalsPerHour / 3600000;
+            }
+        });
+    }
+}
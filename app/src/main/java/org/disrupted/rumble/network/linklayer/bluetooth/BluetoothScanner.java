@@ -62,23 +62,10 @@ public class BluetoothScanner extends HandlerThread implements SensorEventListen
     private static int openedSocket;
 
     /*
-     * Scanning consumes a lot of  resources, especially  battery.
-     * in order  to save battery, the period  between two  successive
-     * scan follow the trickle algorithm defined in the RFC 6206:
-     *
-     *         http://tools.ietf.org/html/rfc6206
-     *
-     * The idea is to increase the non-scanning period if the
-     * neighborhood stay consistent between two scan.
-     *
-     * The trickle is increased first in a linear way, then in an exponential fashion
-     *    - Slow Start  mode: in which we increase linearly the trickle timer
-     *    - Exponential mode: in which we increase the timer exponentially
-     *    - Beta Mode: in which we only scan rarely when connected to a device
-     *
-     *  Whenever the neighborhood change between to scan, a change is the detection of a new
-     *  neighbour or a previous neighbour being unreachable. If the number of such inconsistency
-     *  is more than a certain threshold, we reset the trickle timer.
+     * Scanning consumes a lot of resources, especially battery, and it disrupts the
+     * ongoing connections. The period between two successive scans is decided by the
+     * BluetoothScanScheduler which trades the time spent discovering against the time
+     * the newly arrived neighbours wait before being discovered.
      */
     private enum ScanningState {
         SCANNING_OFF, SCANNING_IDLE, SCANNING_SCHEDULED, SCANNING_IN_PROGRESS
@@ -87,23 +74,17 @@ public class BluetoothScanner extends HandlerThread implements SensorEventListen
     private HashSet<BluetoothNeighbour>  btNeighborhood;
 
     private static final double SCANNING_TIMEOUT        = 15000; // max scanning time 15 seconds
-    private static final double START_TRICKLE_TIMER     = 10000; // 10 seconds
-    private static final double BETA_TRICKLE_TIMER      = 60000; // 1 minute
-    private static final double LINEAR_STEP             = 5000;  // 5 seconds
-    private static final double EXPONENTIAL_THRESHOLD   = 60000; // 1 minute
-    private static final double IMAX_TRICKLE_TIMER      = 4;     // 2^4 = 16 minutes
-    private static final int    INCONSISTENCY_THRESHOLD = 2;
 
-    private double              trickleTimer = START_TRICKLE_TIMER;
-    private HashSet<BluetoothNeighbour>  lastTrickleState;
-    private boolean             betamode;
+    private final BluetoothScanScheduler scheduler;
+    private long                nextScanDelay;
+    private HashSet<BluetoothNeighbour>  lastNeighborhood;
 
     private Handler             handler;
 
     /*
-     * reset the trickle timer when phone is moving only if the timer is already long enough
+     * scan again when phone is moving only if the next scan is far enough
      */
-    private static final double RESET_TRICKLE_THRESHOLD = 30000;
+    private static final double RESET_SCAN_THRESHOLD = 30000;
     private SensorManager       mSensorManager;
     private Sensor              mAccelerometer;
     private long                lastUpdate;
@@ -130,11 +111,11 @@ public class BluetoothScanner extends HandlerThread implements SensorEventListen
         super(TAG);
         super.start();
         btNeighborhood     = new HashSet<BluetoothNeighbour>();
-        lastTrickleState = new HashSet<BluetoothNeighbour>();
-        trickleTimer     = START_TRICKLE_TIMER;
+        lastNeighborhood = new HashSet<BluetoothNeighbour>();
+        scheduler        = new BluetoothScanScheduler();
+        nextScanDelay    = 0;
         scanningState    = ScanningState.SCANNING_OFF;
         registered   = false;
-        betamode     = false;
         openedSocket = 0;
 
         /*
@@ -224,7 +205,8 @@ public class BluetoothScanner extends HandlerThread implements SensorEventListen
             }
 
             btNeighborhood.clear();
-            resetTrickleTimer();
+            lastNeighborhood.clear();
+            scheduler.reset();
             /*
             if((mAccelerometer != null) && sensorregistered) {
                 mSensorManager.unregisterListener(this);
@@ -318,10 +300,7 @@ public class BluetoothScanner extends HandlerThread implements SensorEventListen
 
                 EventBus.getDefault().post(new BluetoothScanEnded());
 
-                recomputeTrickleTimer();
-
-                handler.postDelayed(scanScheduleFires, (long) trickleTimer);
-                scanningState = ScanningState.SCANNING_SCHEDULED;
+                scheduleNextScan(neighborhoodChanged());
 
             } finally {
                 lock.unlock();
@@ -340,13 +319,21 @@ public class BluetoothScanner extends HandlerThread implements SensorEventListen
                     case SCANNING_IN_PROGRESS:
                         return;
                     case SCANNING_SCHEDULED:
-                        scanningState = ScanningState.SCANNING_IDLE;
+                        break;
                 }
                 /*
                  * just in case a neighbour connect while we were in this critical section
                  * in which case the state would be SCANNING_SCHEDULE with the callback attached
                  */
                 handler.removeCallbacks(scanScheduleFires);
+
+                // we do not interrupt a transfer to scan, unless it lasts for too long
+                long wait = scheduler.suppressScan();
+                if(wait > 0) {
+                    handler.postDelayed(scanScheduleFires, wait);
+                    return;
+                }
+                scanningState = ScanningState.SCANNING_IDLE;
             } finally {
                 lock.unlock();
             }
@@ -356,58 +343,42 @@ public class BluetoothScanner extends HandlerThread implements SensorEventListen
 
     @Override
     public void forceDiscovery() {
-        resetTrickleTimer();
         performScan(true);
     }
 
     /*
-     * The trickle timer increase if the neighborhood is consistent
-     * It is resetted if the neighborhood is inconsistant
+     * compares the neighborhood found by the scan that just ended with the previous one,
+     * the neighbours that disappeared are timeouted. Returns the number of new neighbours.
      */
-    private void recomputeTrickleTimer() {
-        int inconsistency = 0;
+    private int neighborhoodChanged() {
+        int newNeighbours = 0;
         HashSet<BluetoothNeighbour> tmp = new HashSet<BluetoothNeighbour>();
 
-        /*
-         * first we detect for new neighbour inconsistency
-         */
         for (BluetoothNeighbour neighbor : btNeighborhood) {
             tmp.add(neighbor);
             // the neighbour reachable event has already been sent ACTION_DEVICE_FOUND
-            if (!lastTrickleState.remove(neighbor))
-                inconsistency++;
+            if (!lastNeighborhood.remove(neighbor))
+                newNeighbours++;
         }
 
-        /*
-         * Then we detect for neighbour that disappeared inconsistency
-         */
-        for (BluetoothNeighbour neighbor : lastTrickleState) {
+        for (BluetoothNeighbour neighbor : lastNeighborhood) {
             EventBus.getDefault().post(new ScannerNeighbourTimeout(neighbor));
-            inconsistency++;
         }
 
-        /*
-         * then we save the state for the next trickle recomputation
-         */
-        lastTrickleState.clear();
-        lastTrickleState = tmp;
-
-        if(betamode) {
-            trickleTimer = BETA_TRICKLE_TIMER;
-        } else {
-            if (inconsistency < INCONSISTENCY_THRESHOLD) {
-                if (trickleTimer > EXPONENTIAL_THRESHOLD)
-                    trickleTimer = (((trickleTimer * 2) > (START_TRICKLE_TIMER * (Math.pow(2, IMAX_TRICKLE_TIMER)))) ? Math.pow(2, IMAX_TRICKLE_TIMER) : (trickleTimer * 2));
-                else
-                    trickleTimer += LINEAR_STEP;
-            } else {
-                trickleTimer = START_TRICKLE_TIMER;
-            }
-        }
+        lastNeighborhood.clear();
+        lastNeighborhood = tmp;
+        return newNeighbours;
     }
-    private void resetTrickleTimer() {
-        lastTrickleState.clear();
-        trickleTimer = START_TRICKLE_TIMER;
+
+    /*
+     * must be called with the lock held, once the scan has ended
+     */
+    private void scheduleNextScan(int newNeighbours) {
+        scheduler.scanEnded(newNeighbours);
+        nextScanDelay = scheduler.nextScanDelay(openedSocket > 0);
+        handler.postDelayed(scanScheduleFires, nextScanDelay);
+        scanningState = ScanningState.SCANNING_SCHEDULED;
+        Log.d(TAG, "[->] next scan in: "+nextScanDelay/1000L+" seconds");
     }
 
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
@@ -480,10 +451,7 @@ public class BluetoothScanner extends HandlerThread implements SensorEventListen
                     handler.removeCallbacks(scanTimeoutFires);
                     EventBus.getDefault().post(new BluetoothScanEnded());
 
-                    recomputeTrickleTimer();
-                    handler.postDelayed(scanScheduleFires, (long) trickleTimer);
-                    scanningState = ScanningState.SCANNING_SCHEDULED;
-                    Log.d(TAG, "[->] next scan in: "+trickleTimer/1000L+" seconds");
+                    scheduleNextScan(neighborhoodChanged());
                 } finally {
                     lock.unlock();
                 }
@@ -516,8 +484,8 @@ public class BluetoothScanner extends HandlerThread implements SensorEventListen
             float speed = Math.abs(x+y+z-linear_acceleration[0]-linear_acceleration[1]-linear_acceleration[2]);
 
             if(speed > 2) {
-                if(trickleTimer > RESET_TRICKLE_THRESHOLD) {
-                    Log.d(TAG, "[!] phone moved, reset trickle timer");
+                if(nextScanDelay > RESET_SCAN_THRESHOLD) {
+                    Log.d(TAG, "[!] phone moved, scan now");
                     forceDiscovery();
                 }
             }
@@ -553,7 +521,7 @@ public class BluetoothScanner extends HandlerThread implements SensorEventListen
 
     /*
      * discovering node disrupt connections...
-     * when a neighbour is connected,  we scan much less
+     * when a neighbour is connected, a scan costs more and we thus scan less
      */
     public void onEvent(ChannelConnected event) {
         if (!event.neighbour.getLinkLayerIdentifier().equals(BluetoothLinkLayerAdapter.LinkLayerIdentifier))
@@ -563,8 +531,7 @@ public class BluetoothScanner extends HandlerThread implements SensorEventListen
             openedSocket++;
 
             if(openedSocket == 1) {
-                Log.d(TAG, "[+] entering slow scan mode ");
-                betamode = true;
+                Log.d(TAG, "[+] entering connected scan mode ");
 
                 switch (scanningState) {
                     case SCANNING_OFF:
@@ -589,8 +556,9 @@ public class BluetoothScanner extends HandlerThread implements SensorEventListen
                         break;
                 }
 
-                handler.postDelayed(scanScheduleFires, (long) BETA_TRICKLE_TIMER);
-                Log.d(TAG, "[->] next scan in: "+BETA_TRICKLE_TIMER/1000L+" seconds");
+                nextScanDelay = scheduler.nextScanDelay(true);
+                handler.postDelayed(scanScheduleFires, nextScanDelay);
+                Log.d(TAG, "[->] next scan in: "+nextScanDelay/1000L+" seconds");
                 scanningState = ScanningState.SCANNING_SCHEDULED;
             }
         } finally {
@@ -611,24 +579,23 @@ public class BluetoothScanner extends HandlerThread implements SensorEventListen
             }
 
             if (openedSocket == 0) {
-                Log.d(TAG, "[+] leaving slow scan mode, entering trickle strategy ");
-                betamode = false;
+                Log.d(TAG, "[+] leaving connected scan mode ");
 
                 switch (scanningState) {
                     case SCANNING_OFF:         // we do nothing
                     case SCANNING_IDLE:        // most probably a scan will start shortly
                     case SCANNING_IN_PROGRESS: // it will reschedule a new scan by itself
                         return;
-                    case SCANNING_SCHEDULED:   // that is the slow scan mode scheduled
+                    case SCANNING_SCHEDULED:   // that is the connected scan mode scheduled
                         handler.removeCallbacks(scanScheduleFires);
                         Log.d(TAG, "[-] cancelling previous scan scheduling");
                         break;
                 }
 
-                resetTrickleTimer();
-                handler.postDelayed(scanScheduleFires, (long) trickleTimer);
+                nextScanDelay = scheduler.nextScanDelay(false);
+                handler.postDelayed(scanScheduleFires, nextScanDelay);
                 scanningState = ScanningState.SCANNING_SCHEDULED;
-                Log.d(TAG, "[->] next scan in: "+trickleTimer/1000L+" seconds");
+                Log.d(TAG, "[->] next scan in: "+nextScanDelay/1000L+" seconds");
                 /*
                     if((mAccelerometer != null) && !sensorregistered) {
                         mSensorManager.registerListener(this, mAccelerometer, SensorManager.SENSOR_DELAY_NORMAL);
@@ -0,0 +1,40 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.linklayer.loopback;
+
+import org.disrupted.rumble.network.linklayer.exception.LinkLayerConnectionException;
+
+public class LoopbackClientConnection extends LoopbackConnection {
+
+    private static final String TAG = "LoopbackClient";
+
+    public LoopbackClientConnection(String localAddress, String remoteAddress) {
+        super(localAddress, remoteAddress);
+    }
+
+    @Override
+    public String getConnectionID() {
+        return "Loopback ClientConnection: "+remoteAddress;
+    }
+
+    @Override
+    public void connect() throws LinkLayerConnectionException {
+        link = LoopbackNetwork.getInstance().connect(localAddress, remoteAddress);
+        inputStream  = link.toClient.getInputStream();
+        outputStream = link.toServer.getOutputStream();
+    }
+}
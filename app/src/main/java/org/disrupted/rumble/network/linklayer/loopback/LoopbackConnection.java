@@ -0,0 +1,84 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.linklayer.loopback;
+
+import org.disrupted.rumble.network.linklayer.LinkLayerNeighbour;
+import org.disrupted.rumble.network.linklayer.UnicastConnection;
+import org.disrupted.rumble.network.linklayer.exception.InputOutputStreamException;
+import org.disrupted.rumble.network.linklayer.exception.LinkLayerConnectionException;
+import org.disrupted.rumble.network.linklayer.exception.NullSocketException;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public abstract class LoopbackConnection implements UnicastConnection {
+
+    private static final String TAG = "LoopbackConnection";
+
+    protected String       localAddress;
+    protected String       remoteAddress;
+    protected LoopbackLink link;
+    protected InputStream  inputStream;
+    protected OutputStream outputStream;
+
+    public LoopbackConnection(String localAddress, String remoteAddress) {
+        this.localAddress = localAddress;
+        this.remoteAddress = remoteAddress;
+        this.link = null;
+    }
+
+    @Override
+    public String getLinkLayerIdentifier() {
+        return LoopbackLinkLayerAdapter.LinkLayerIdentifier;
+    }
+
+    @Override
+    public int getLinkLayerPriority() {
+        return LINK_LAYER_MIDDLE_PRIORITY;
+    }
+
+    @Override
+    public String getRemoteLinkLayerAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public LinkLayerNeighbour getLinkLayerNeighbour() {
+        return new LoopbackNeighbour(remoteAddress);
+    }
+
+    @Override
+    public InputStream getInputStream() throws InputOutputStreamException {
+        if(inputStream == null)
+            throw new InputOutputStreamException();
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws InputOutputStreamException {
+        if(outputStream == null)
+            throw new InputOutputStreamException();
+        return outputStream;
+    }
+
+    @Override
+    public void disconnect() throws LinkLayerConnectionException {
+        if(link == null)
+            throw new NullSocketException();
+        link.close();
+    }
+}
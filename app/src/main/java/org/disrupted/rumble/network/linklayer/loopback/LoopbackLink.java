@@ -0,0 +1,65 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.linklayer.loopback;
+
+import java.util.Random;
+
+/**
+ * LoopbackLink is a full-duplex connection between two nodes of the LoopbackNetwork,
+ * made of one LoopbackPipe per direction. Closing the link closes both pipes.
+ */
+class LoopbackLink {
+
+    private final LoopbackNetwork network;
+
+    final String clientAddress;
+    final String serverAddress;
+    final LoopbackPipe toServer;
+    final LoopbackPipe toClient;
+
+    private boolean closed;
+
+    LoopbackLink(LoopbackNetwork network, String clientAddress, String serverAddress,
+                 LoopbackNetwork.LinkProfile profile, Random random) {
+        this.network = network;
+        this.clientAddress = clientAddress;
+        this.serverAddress = serverAddress;
+        this.toServer = new LoopbackPipe(this, profile, random);
+        this.toClient = new LoopbackPipe(this, profile, random);
+        this.closed = false;
+    }
+
+    boolean connects(String address1, String address2) {
+        return (clientAddress.equals(address1) && serverAddress.equals(address2))
+                || (clientAddress.equals(address2) && serverAddress.equals(address1));
+    }
+
+    boolean involves(String address) {
+        return clientAddress.equals(address) || serverAddress.equals(address);
+    }
+
+    void close() {
+        synchronized (this) {
+            if(closed)
+                return;
+            closed = true;
+        }
+        toServer.close();
+        toClient.close();
+        network.linkClosed(this);
+    }
+}
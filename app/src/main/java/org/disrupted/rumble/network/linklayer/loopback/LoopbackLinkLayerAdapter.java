@@ -0,0 +1,78 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.linklayer.loopback;
+
+import org.disrupted.rumble.network.linklayer.LinkLayerAdapter;
+import org.disrupted.rumble.network.linklayer.events.LinkLayerStarted;
+import org.disrupted.rumble.network.linklayer.events.LinkLayerStopped;
+import org.disrupted.rumble.util.Log;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * LoopbackLinkLayerAdapter attaches the local node to the LoopbackNetwork. It is only
+ * registered by the NetworkCoordinator when the LoopbackNetwork has been enabled.
+ */
+public class LoopbackLinkLayerAdapter implements LinkLayerAdapter {
+
+    private static final String TAG = "LoopbackLinkLayerAdapter";
+
+    public static final String LinkLayerIdentifier = "LOOPBACK";
+
+    private long    started_time_nano;
+    private boolean activated;
+
+    public LoopbackLinkLayerAdapter() {
+        activated = false;
+    }
+
+    @Override
+    public boolean isActivated() {
+        return activated;
+    }
+
+    @Override
+    public String getLinkLayerIdentifier() {
+        return LinkLayerIdentifier;
+    }
+
+    @Override
+    public void linkStart() {
+        if(activated)
+            return;
+        LoopbackNetwork network = LoopbackNetwork.getInstance();
+        if(!network.isEnabled())
+            return;
+        activated = true;
+        Log.d(TAG, "[+] Loopback Activated");
+        network.attach(network.getLocalAddress());
+        started_time_nano = System.nanoTime();
+        EventBus.getDefault().post(new LinkLayerStarted(getLinkLayerIdentifier()));
+    }
+
+    @Override
+    public void linkStop() {
+        if(!activated)
+            return;
+        activated = false;
+        Log.d(TAG, "[-] Loopback De-activated");
+        LoopbackNetwork network = LoopbackNetwork.getInstance();
+        network.detach(network.getLocalAddress());
+        EventBus.getDefault().post(new LinkLayerStopped(getLinkLayerIdentifier(),
+                started_time_nano, System.nanoTime()));
+    }
+}
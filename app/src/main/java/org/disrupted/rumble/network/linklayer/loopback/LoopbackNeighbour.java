@@ -0,0 +1,70 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.linklayer.loopback;
+
+import org.disrupted.rumble.network.linklayer.LinkLayerNeighbour;
+import org.disrupted.rumble.util.NetUtil;
+
+/**
+ * A LoopbackNeighbour has no MAC address, its address on the LoopbackNetwork is used instead.
+ */
+public class LoopbackNeighbour implements LinkLayerNeighbour {
+
+    private final String address;
+
+    public LoopbackNeighbour(String address) {
+        this.address = address;
+    }
+
+    @Override
+    public boolean isLocal() {
+        return address.equals(LoopbackNetwork.getInstance().getLocalAddress());
+    }
+
+    @Override
+    public String getLinkLayerIdentifier() {
+        return LoopbackLinkLayerAdapter.LinkLayerIdentifier;
+    }
+
+    @Override
+    public String getLinkLayerAddress() {
+        return address;
+    }
+
+    @Override
+    public String getLinkLayerMacAddress() throws NetUtil.NoMacAddressException {
+        return address;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(o == null)
+            return false;
+
+        if(o instanceof LoopbackNeighbour) {
+            LoopbackNeighbour neighbour = (LoopbackNeighbour) o;
+            return address.equals(neighbour.address);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return address.hashCode();
+    }
+}
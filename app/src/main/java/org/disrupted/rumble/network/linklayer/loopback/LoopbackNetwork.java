@@ -0,0 +1,296 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.linklayer.loopback;
+
+import org.disrupted.rumble.network.linklayer.exception.ConnectionFailedException;
+import org.disrupted.rumble.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * LoopbackNetwork is an in-memory network used to run the protocol stack without any radio,
+ * for instance to load-test or benchmark it in an instrumentation test (the stack still needs
+ * Android for its Handlers and databases). It hosts any number of virtual nodes, each one
+ * identified by an address (any string).
+ *
+ * The network is disabled by default and the NetworkCoordinator only registers the
+ * LoopbackLinkLayerAdapter if the harness called enable() with the address of the local node
+ * before networking starts. Only the local node runs the Rumble stack, the other virtual nodes
+ * are attached by the harness and are driven directly with LoopbackClientConnection and
+ * accept(), see LoopbackNetworkTest.
+ *
+ * Every link between two nodes is shaped by a LinkProfile (bandwidth, latency, loss, forced
+ * disconnection), the default one or the one set for this pair of nodes. Two attached nodes
+ * are in range of each other unless setReachable(a, b, false) has been called, which also drops
+ * every link between them. The random generator used for loss can be seeded so that a run
+ * can be replayed.
+ */
+public class LoopbackNetwork {
+
+    private static final String TAG = "LoopbackNetwork";
+
+    private static final int BACKLOG = 16;
+
+    public static class LinkProfile {
+        public final long   bandwidth;            // bytes per second, 0 is unlimited
+        public final long   latency;              // milliseconds
+        public final double loss;                 // probability that a chunk is lost
+        public final long   disconnectAfterBytes; // 0 is never
+
+        public LinkProfile(long bandwidth, long latency, double loss, long disconnectAfterBytes) {
+            this.bandwidth = bandwidth;
+            this.latency = latency;
+            this.loss = loss;
+            this.disconnectAfterBytes = disconnectAfterBytes;
+        }
+
+        public static final LinkProfile PERFECT = new LinkProfile(0, 0, 0, 0);
+    }
+
+    private static class Node {
+        final LinkedList<LoopbackServerConnection> backlog = new LinkedList<LoopbackServerConnection>();
+        boolean listening = false;
+        boolean detached  = false;
+    }
+
+    private static final Object lock = new Object();
+    private static LoopbackNetwork instance;
+
+    private final Map<String, Node>        nodes;
+    private final Map<String, LinkProfile> profiles;
+    private final Set<String>              partitions;
+    private final List<LoopbackLink>       links;
+    private final Random  random;
+    private LinkProfile   defaultProfile;
+    private String        localAddress;
+
+    public static LoopbackNetwork getInstance() {
+        synchronized (lock) {
+            if (instance == null)
+                instance = new LoopbackNetwork();
+
+            return instance;
+        }
+    }
+
+    private LoopbackNetwork() {
+        nodes = new HashMap<String, Node>();
+        profiles = new HashMap<String, LinkProfile>();
+        partitions = new HashSet<String>();
+        links = new LinkedList<LoopbackLink>();
+        random = new Random();
+        defaultProfile = LinkProfile.PERFECT;
+        localAddress = null;
+    }
+
+    /*
+     * the key of an unordered pair of nodes
+     */
+    private static String pair(String address1, String address2) {
+        if(address1.compareTo(address2) < 0)
+            return address1+"|"+address2;
+        else
+            return address2+"|"+address1;
+    }
+
+    public synchronized void enable(String localAddress) {
+        this.localAddress = localAddress;
+    }
+
+    public synchronized boolean isEnabled() {
+        return (localAddress != null);
+    }
+
+    public synchronized String getLocalAddress() {
+        return localAddress;
+    }
+
+    public void setSeed(long seed) {
+        synchronized (random) {
+            random.setSeed(seed);
+        }
+    }
+
+    public synchronized void setDefaultProfile(LinkProfile profile) {
+        this.defaultProfile = profile;
+    }
+
+    /*
+     * only applies to the links opened afterwards
+     */
+    public synchronized void setProfile(String address1, String address2, LinkProfile profile) {
+        profiles.put(pair(address1, address2), profile);
+    }
+
+    public synchronized void attach(String address) {
+        if(nodes.containsKey(address))
+            return;
+        Log.d(TAG, "[+] node "+address+" attached");
+        nodes.put(address, new Node());
+    }
+
+    public void detach(String address) {
+        Node node;
+        synchronized (this) {
+            node = nodes.remove(address);
+        }
+        if(node == null)
+            return;
+        Log.d(TAG, "[-] node "+address+" detached");
+        synchronized (node) {
+            node.detached = true;
+            node.backlog.clear();
+            node.notifyAll();
+        }
+        closeLinks(address, null);
+    }
+
+    public void setReachable(String address1, String address2, boolean reachable) {
+        synchronized (this) {
+            if(reachable)
+                partitions.remove(pair(address1, address2));
+            else
+                partitions.add(pair(address1, address2));
+        }
+        if(!reachable)
+            closeLinks(address1, address2);
+    }
+
+    public synchronized boolean isReachable(String address1, String address2) {
+        return !address1.equals(address2)
+                && nodes.containsKey(address1)
+                && nodes.containsKey(address2)
+                && !partitions.contains(pair(address1, address2));
+    }
+
+    public synchronized Set<String> getReachableNodes(String address) {
+        Set<String> ret = new HashSet<String>();
+        for(String other : nodes.keySet()) {
+            if(isReachable(address, other))
+                ret.add(other);
+        }
+        return ret;
+    }
+
+    /*
+     * drops every link between those two nodes, the nodes stay in range
+     */
+    public void disconnect(String address1, String address2) {
+        closeLinks(address1, address2);
+    }
+
+    private void closeLinks(String address1, String address2) {
+        List<LoopbackLink> dropped = new LinkedList<LoopbackLink>();
+        synchronized (this) {
+            for(LoopbackLink link : links) {
+                if((address2 == null) ? link.involves(address1) : link.connects(address1, address2))
+                    dropped.add(link);
+            }
+        }
+        for(LoopbackLink link : dropped)
+            link.close();
+    }
+
+    synchronized void linkClosed(LoopbackLink link) {
+        links.remove(link);
+    }
+
+    /*
+     * opens a link from a node to another one, fails if the remote node is out of range,
+     * is not listening or has too many pending connections
+     */
+    LoopbackLink connect(String from, String to) throws ConnectionFailedException {
+        LoopbackLink link;
+        Node node;
+        synchronized (this) {
+            node = nodes.get(to);
+            if(!isReachable(from, to) || (node == null))
+                throw new ConnectionFailedException(from+" -> "+to);
+            LinkProfile profile = profiles.get(pair(from, to));
+            link = new LoopbackLink(this, from, to,
+                    (profile == null) ? defaultProfile : profile, random);
+            links.add(link);
+        }
+        synchronized (node) {
+            if(!node.listening || node.detached || (node.backlog.size() >= BACKLOG)) {
+                link.close();
+                throw new ConnectionFailedException(from+" -> "+to);
+            }
+            node.backlog.add(new LoopbackServerConnection(link));
+            node.notifyAll();
+        }
+        return link;
+    }
+
+    public void listen(String address) throws IOException {
+        Node node;
+        synchronized (this) {
+            node = nodes.get(address);
+        }
+        if(node == null)
+            throw new IOException("node "+address+" is not attached");
+        synchronized (node) {
+            node.listening = true;
+        }
+    }
+
+    public void unlisten(String address) {
+        Node node;
+        synchronized (this) {
+            node = nodes.get(address);
+        }
+        if(node == null)
+            return;
+        synchronized (node) {
+            node.listening = false;
+            for(LoopbackServerConnection con : node.backlog)
+                con.link.close();
+            node.backlog.clear();
+            node.notifyAll();
+        }
+    }
+
+    /*
+     * blocks until a node connects to this one, like ServerSocket.accept()
+     */
+    public LoopbackServerConnection accept(String address) throws IOException {
+        Node node;
+        synchronized (this) {
+            node = nodes.get(address);
+        }
+        if(node == null)
+            throw new IOException("node "+address+" is not attached");
+        synchronized (node) {
+            try {
+                while (node.listening && !node.detached && node.backlog.isEmpty())
+                    node.wait();
+            } catch(InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+            if(!node.listening || node.detached)
+                throw new IOException("node "+address+" is not listening");
+            return node.backlog.removeFirst();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.linklayer.loopback;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LoopbackPipe is one direction of a LoopbackLink: an in-memory byte stream shaped by the
+ * LinkProfile of the link.
+ *
+ * - bandwidth: the writer is paced so that no more than profile.bandwidth bytes per second
+ *   leave it, like a real radio would.
+ * - latency: a chunk becomes readable profile.latency milliseconds after it has been written.
+ * - loss: the link is reliable (like RFCOMM or TCP) so a lost chunk is not missing from the
+ *   stream, it is delivered after a retransmission timeout and delays every chunk behind it.
+ * - disconnect: the link drops once profile.disconnectAfterBytes have been written on this pipe.
+ *
+ * The pipe buffers at most BUFFER_SIZE bytes, a writer faster than its reader blocks.
+ */
+class LoopbackPipe {
+
+    private static final int  CHUNK_SIZE  = 1024;
+    private static final int  BUFFER_SIZE = 64*1024;
+    private static final long MIN_RETRANSMIT_TIMEOUT = 200; // milliseconds
+
+    private final LoopbackLink link;
+    private final LoopbackNetwork.LinkProfile profile;
+    private final Random random;
+
+    private final LinkedList<Chunk> chunks;
+    private int     buffered;
+    private long    wireFree;
+    private long    written;
+    private boolean closed;
+
+    private final InputStream  input;
+    private final OutputStream output;
+
+    private static class Chunk {
+        final byte[] data;
+        final long   deliverAt;
+        int          offset;
+
+        Chunk(byte[] data, long deliverAt) {
+            this.data = data;
+            this.deliverAt = deliverAt;
+            this.offset = 0;
+        }
+    }
+
+    LoopbackPipe(LoopbackLink link, LoopbackNetwork.LinkProfile profile, Random random) {
+        this.link = link;
+        this.profile = profile;
+        this.random = random;
+        this.chunks = new LinkedList<Chunk>();
+        this.buffered = 0;
+        this.wireFree = 0;
+        this.written = 0;
+        this.closed = false;
+        this.input = new PipeInputStream();
+        this.output = new PipeOutputStream();
+    }
+
+    InputStream getInputStream() {
+        return input;
+    }
+
+    OutputStream getOutputStream() {
+        return output;
+    }
+
+    /*
+     * a dropped link loses whatever was still in flight
+     */
+    synchronized void close() {
+        closed = true;
+        chunks.clear();
+        buffered = 0;
+        notifyAll();
+    }
+
+    private void send(byte[] buffer, int offset, int length) throws IOException {
+        while(length > 0) {
+            int size = Math.min(length, CHUNK_SIZE);
+            byte[] data = new byte[size];
+            System.arraycopy(buffer, offset, data, 0, size);
+            sendChunk(data);
+            offset += size;
+            length -= size;
+        }
+    }
+
+    private void sendChunk(byte[] data) throws IOException {
+        boolean disconnect;
+        try {
+            long deliverAt;
+            synchronized (this) {
+                if(closed)
+                    throw new IOException("link closed");
+                long start = Math.max(System.nanoTime(), wireFree);
+                if(profile.bandwidth > 0)
+                    wireFree = start + data.length * 1000000000L / profile.bandwidth;
+                else
+                    wireFree = start;
+                deliverAt = wireFree + TimeUnit.MILLISECONDS.toNanos(profile.latency);
+            }
+
+            long pace = wireFree - System.nanoTime();
+            if(pace > 0)
+                TimeUnit.NANOSECONDS.sleep(pace);
+
+            if(isLost())
+                deliverAt += TimeUnit.MILLISECONDS.toNanos(
+                        Math.max(MIN_RETRANSMIT_TIMEOUT, 2 * profile.latency));
+
+            synchronized (this) {
+                while(!closed && (buffered + data.length > BUFFER_SIZE))
+                    wait();
+                if(closed)
+                    throw new IOException("link closed");
+                chunks.addLast(new Chunk(data, deliverAt));
+                buffered += data.length;
+                written  += data.length;
+                disconnect = (profile.disconnectAfterBytes > 0)
+                        && (written >= profile.disconnectAfterBytes);
+                notifyAll();
+            }
+        } catch(InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+
+        if(disconnect)
+            link.close();
+    }
+
+    private boolean isLost() {
+        if(profile.loss <= 0)
+            return false;
+        synchronized (random) {
+            return random.nextDouble() < profile.loss;
+        }
+    }
+
+    private synchronized int receive(byte[] buffer, int offset, int length) throws IOException {
+        if(length == 0)
+            return 0;
+        try {
+            while(true) {
+                if(closed)
+                    return -1;
+                if(chunks.isEmpty()) {
+                    wait();
+                    continue;
+                }
+                Chunk head = chunks.getFirst();
+                long delay = head.deliverAt - System.nanoTime();
+                if(delay > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, delay);
+                    continue;
+                }
+                int size = Math.min(length, head.data.length - head.offset);
+                System.arraycopy(head.data, head.offset, buffer, offset, size);
+                head.offset += size;
+                if(head.offset == head.data.length)
+                    chunks.removeFirst();
+                buffered -= size;
+                notifyAll();
+                return size;
+            }
+        } catch(InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private synchronized int readable() {
+        if(closed || chunks.isEmpty())
+            return 0;
+        Chunk head = chunks.getFirst();
+        if(head.deliverAt > System.nanoTime())
+            return 0;
+        return head.data.length - head.offset;
+    }
+
+    private class PipeInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int read = receive(one, 0, 1);
+            if(read < 0)
+                return -1;
+            return one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return receive(buffer, offset, length);
+        }
+
+        @Override
+        public int available() {
+            return readable();
+        }
+
+        @Override
+        public void close() {
+            link.close();
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            send(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            send(buffer, offset, length);
+        }
+
+        @Override
+        public void close() {
+            link.close();
+        }
+    }
+}
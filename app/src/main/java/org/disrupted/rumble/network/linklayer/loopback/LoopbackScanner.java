@@ -0,0 +1,124 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.linklayer.loopback;
+
+import org.disrupted.rumble.network.events.ScannerNeighbourSensed;
+import org.disrupted.rumble.network.events.ScannerNeighbourTimeout;
+import org.disrupted.rumble.network.linklayer.LinkLayerNeighbour;
+import org.disrupted.rumble.network.linklayer.Scanner;
+import org.disrupted.rumble.util.HashedWheelTimer;
+import org.disrupted.rumble.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * LoopbackScanner polls the LoopbackNetwork every SCAN_PERIOD for the nodes in range of
+ * the local node and reports the changes like the other scanners do, with a
+ * ScannerNeighbourSensed or a ScannerNeighbourTimeout.
+ */
+public class LoopbackScanner implements Scanner {
+
+    private static final String TAG = "LoopbackScanner";
+
+    private static final long SCAN_PERIOD = 2000; // milliseconds
+
+    private final String localAddress;
+    private final HashSet<LinkLayerNeighbour> neighbours;
+    private HashedWheelTimer.Timeout scanTimeout;
+    private boolean started;
+
+    public LoopbackScanner(String localAddress) {
+        this.localAddress = localAddress;
+        this.neighbours = new HashSet<LinkLayerNeighbour>();
+        this.scanTimeout = null;
+        this.started = false;
+    }
+
+    @Override
+    public synchronized void startScanner() {
+        if(started)
+            return;
+        started = true;
+        Log.d(TAG, "[+] Loopback scanner started");
+        scan();
+    }
+
+    @Override
+    public boolean isScanning() {
+        return false;
+    }
+
+    @Override
+    public synchronized void stopScanner() {
+        if(!started)
+            return;
+        started = false;
+        Log.d(TAG, "[-] Loopback scanner stopped");
+        if(scanTimeout != null)
+            scanTimeout.cancel();
+        scanTimeout = null;
+        for(LinkLayerNeighbour neighbour : neighbours)
+            EventBus.getDefault().post(new ScannerNeighbourTimeout(neighbour));
+        neighbours.clear();
+    }
+
+    @Override
+    public synchronized void forceDiscovery() {
+        if(!started)
+            return;
+        if(scanTimeout != null)
+            scanTimeout.cancel();
+        scan();
+    }
+
+    @Override
+    public synchronized HashSet<LinkLayerNeighbour> getNeighbourList() {
+        return new HashSet<LinkLayerNeighbour>(neighbours);
+    }
+
+    private final Runnable scanFires = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (LoopbackScanner.this) {
+                if(started)
+                    scan();
+            }
+        }
+    };
+
+    private void scan() {
+        Set<LinkLayerNeighbour> inRange = new HashSet<LinkLayerNeighbour>();
+        for(String address : LoopbackNetwork.getInstance().getReachableNodes(localAddress))
+            inRange.add(new LoopbackNeighbour(address));
+
+        for(LinkLayerNeighbour neighbour : inRange) {
+            if(neighbours.add(neighbour))
+                EventBus.getDefault().post(new ScannerNeighbourSensed(neighbour));
+        }
+        Set<LinkLayerNeighbour> gone = new HashSet<LinkLayerNeighbour>(neighbours);
+        gone.removeAll(inRange);
+        for(LinkLayerNeighbour neighbour : gone) {
+            neighbours.remove(neighbour);
+            EventBus.getDefault().post(new ScannerNeighbourTimeout(neighbour));
+        }
+
+        scanTimeout = HashedWheelTimer.getInstance().schedule(scanFires, SCAN_PERIOD);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.linklayer.loopback;
+
+import org.disrupted.rumble.network.Worker;
+import org.disrupted.rumble.network.events.ScannerNeighbourSensed;
+import org.disrupted.rumble.util.Log;
+
+import java.io.IOException;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * LoopbackServer is the LoopbackNetwork counterpart of the TCPServer. Whenever a node
+ * connects, the abstract method onClientConnected is called with the server side of the
+ * connection as a parameter.
+ */
+public abstract class LoopbackServer implements Worker {
+
+    private static final String TAG = "LoopbackServer";
+
+    protected final String localAddress;
+    private boolean working;
+
+    public LoopbackServer(String localAddress) {
+        this.localAddress = localAddress;
+        this.working = false;
+    }
+
+    @Override
+    public String getLinkLayerIdentifier() {
+        return LoopbackLinkLayerAdapter.LinkLayerIdentifier;
+    }
+
+    @Override
+    public String getWorkerIdentifier() {
+        return "LoopbackServer";
+    }
+
+    @Override
+    public boolean isWorking() {
+        return working;
+    }
+
+    @Override
+    public void cancelWorker() {
+        if(working) {
+            Log.d(TAG, "[!] should not call cancelWorker() on a working Worker, call stopWorker() instead !");
+            stopWorker();
+        }
+    }
+
+    @Override
+    public void startWorker() {
+        if(working)
+            return;
+        working = true;
+
+        LoopbackNetwork network = LoopbackNetwork.getInstance();
+        try {
+            network.listen(localAddress);
+            while(true) {
+                LoopbackServerConnection con = network.accept(localAddress);
+                Log.d(TAG, "[+] Client connected");
+                onClientConnected(con);
+                EventBus.getDefault().post(new ScannerNeighbourSensed(con.getLinkLayerNeighbour()));
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "[-] ENDED "+getWorkerIdentifier());
+        } finally {
+            stopWorker();
+        }
+    }
+
+    abstract protected void onClientConnected(LoopbackServerConnection con);
+
+    @Override
+    public void stopWorker() {
+        if(!working)
+            return;
+        working = false;
+        LoopbackNetwork.getInstance().unlisten(localAddress);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.linklayer.loopback;
+
+import org.disrupted.rumble.network.linklayer.exception.LinkLayerConnectionException;
+import org.disrupted.rumble.network.linklayer.exception.NullSocketException;
+
+public class LoopbackServerConnection extends LoopbackConnection {
+
+    private static final String TAG = "LoopbackServerConnection";
+
+    LoopbackServerConnection(LoopbackLink link) {
+        super(link.serverAddress, link.clientAddress);
+        this.link = link;
+    }
+
+    @Override
+    public String getConnectionID() {
+        return "Loopback ServerConnection: "+remoteAddress;
+    }
+
+    @Override
+    public void connect() throws LinkLayerConnectionException {
+        if(link == null)
+            throw new NullSocketException();
+        inputStream  = link.toServer.getInputStream();
+        outputStream = link.toClient.getOutputStream();
+    }
+}
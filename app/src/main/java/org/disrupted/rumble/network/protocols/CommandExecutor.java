@@ -0,0 +1,280 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols;
+
+import org.disrupted.rumble.database.statistics.metrics.Counter;
+import org.disrupted.rumble.database.statistics.metrics.Gauge;
+import org.disrupted.rumble.database.statistics.metrics.LatencyHistogram;
+import org.disrupted.rumble.database.statistics.metrics.MetricRegistry;
+import org.disrupted.rumble.network.protocols.command.Command;
+import org.disrupted.rumble.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * CommandExecutor runs the commands sent with executeNonBlocking on every ProtocolChannel
+ * with a small set of threads shared by all the channels, so that the number of threads
+ * no longer grows with the number of neighbours.
+ *
+ * Every channel owns an Outbox made of three bounded lanes (control, chat, push). A channel
+ * with pending commands waits in a ready list and the threads serve the ready channels
+ * round-robin, one command at a time, always taking the command of the highest priority
+ * lane first. A channel is never served by two threads at the same time so the commands of
+ * a channel are still executed one after the other.
+ *
+ * A push command (a status or a file) may take minutes to send, at most THREADS-1 threads
+ * are thus allowed to send push commands at the same time so that control and chat messages
+ * always find a thread. A write to a stalled peer does not hold a thread for long either,
+ * the channel bounds the time a write may go without progress and tears itself down when
+ * it is exceeded (see RumbleUnicastChannel).
+ *
+ * A command offered to a full lane is dropped and offer returns false, the caller decides
+ * whether to retry (see ProtocolChannel.executeWithRetry).
+ */
+public class CommandExecutor {
+
+    private static final String TAG = "CommandExecutor";
+
+    private static final int THREADS          = 3;
+    private static final int MAX_PUSH_RUNNING = THREADS - 1;
+    private static final int[] LANE_CAPACITY  = {16, 64, 8};
+
+    private static final Object lock = new Object();
+    private static CommandExecutor instance;
+
+    private final LinkedList<Outbox> ready;
+    private int     pushRunning;
+    private boolean started;
+
+    private final LatencyHistogram queueWait;
+    private final Gauge            queueSize;
+    private final Counter          dropped;
+
+    public static CommandExecutor getInstance() {
+        synchronized (lock) {
+            if (instance == null)
+                instance = new CommandExecutor();
+
+            return instance;
+        }
+    }
+
+    private CommandExecutor() {
+        ready = new LinkedList<Outbox>();
+        pushRunning = 0;
+        started = false;
+        MetricRegistry metrics = MetricRegistry.getInstance();
+        queueWait = metrics.histogram(MetricRegistry.COMMAND_QUEUE_WAIT);
+        queueSize = metrics.gauge(MetricRegistry.COMMAND_QUEUE_SIZE);
+        dropped   = metrics.counter(MetricRegistry.COMMAND_DROPPED);
+    }
+
+    public Outbox newOutbox(ProtocolChannel channel, ReentrantLock channelLock) {
+        return new Outbox(channel, channelLock);
+    }
+
+    /*
+     * must be called while holding the monitor
+     */
+    private void schedule(Outbox outbox) {
+        outbox.scheduled = true;
+        ready.addLast(outbox);
+        if(!started) {
+            started = true;
+            for (int i = 0; i < THREADS; i++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        processOutboxes();
+                    }
+                }, "CommandExecutor-"+i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        notifyAll();
+    }
+
+    /*
+     * the first ready outbox (round-robin) whose next command may run right now,
+     * must be called while holding the monitor
+     */
+    private Outbox nextOutbox() {
+        Iterator<Outbox> it = ready.iterator();
+        while(it.hasNext()) {
+            Outbox outbox = it.next();
+            if((outbox.nextLane() < Command.PRIORITY_PUSH) || (pushRunning < MAX_PUSH_RUNNING)) {
+                it.remove();
+                return outbox;
+            }
+        }
+        return null;
+    }
+
+    private void processOutboxes() {
+        Log.d(TAG, "[+] "+Thread.currentThread().getName()+" started");
+        try {
+            while(true) {
+                Outbox  outbox;
+                Pending pending;
+                synchronized (this) {
+                    while((outbox = nextOutbox()) == null)
+                        wait();
+                    pending = outbox.poll();
+                    if(pending.command.getPriority() == Command.PRIORITY_PUSH)
+                        pushRunning++;
+                }
+
+                queueWait.recordSince(pending.queued);
+                outbox.run(pending.command);
+
+                synchronized (this) {
+                    if(pending.command.getPriority() == Command.PRIORITY_PUSH)
+                        pushRunning--;
+                    if(outbox.open && !outbox.isEmpty())
+                        ready.addLast(outbox);
+                    else
+                        outbox.scheduled = false;
+                    notifyAll();
+                }
+            }
+        } catch(InterruptedException e) {
+            Log.d(TAG, "[!] "+Thread.currentThread().getName()+" has stopped");
+        }
+    }
+
+    private static class Pending {
+        final Command command;
+        final long    queued;
+
+        Pending(Command command) {
+            this.command = command;
+            this.queued = System.nanoTime();
+        }
+    }
+
+    /*
+     * The outbox of a channel, every field is guarded by the CommandExecutor monitor.
+     * Commands may be offered before the channel is connected, they are sent once the
+     * channel opens its outbox. Once closed, the outbox refuses every command.
+     */
+    public class Outbox {
+
+        private final ProtocolChannel channel;
+        private final ReentrantLock   channelLock;
+        private final ArrayDeque<Pending>[] lanes;
+        private boolean open;
+        private boolean closed;
+        private boolean scheduled;
+
+        @SuppressWarnings("unchecked")
+        private Outbox(ProtocolChannel channel, ReentrantLock channelLock) {
+            this.channel = channel;
+            this.channelLock = channelLock;
+            this.lanes = new ArrayDeque[LANE_CAPACITY.length];
+            for (int i = 0; i < lanes.length; i++)
+                lanes[i] = new ArrayDeque<Pending>(LANE_CAPACITY[i]);
+            this.open = false;
+            this.closed = false;
+            this.scheduled = false;
+        }
+
+        /*
+         * returns false if the outbox is closed or if the lane of this command is full
+         */
+        public boolean offer(Command command) {
+            synchronized (CommandExecutor.this) {
+                if(closed)
+                    return false;
+                int lane = command.getPriority();
+                if(lanes[lane].size() >= LANE_CAPACITY[lane]) {
+                    Log.d(TAG, "[!] outbox of "+channel+" is full, dropping "+command.getCommandID());
+                    dropped.inc();
+                    return false;
+                }
+                lanes[lane].addLast(new Pending(command));
+                queueSize.inc();
+                if(open && !scheduled)
+                    schedule(this);
+                return true;
+            }
+        }
+
+        public boolean isClosed() {
+            synchronized (CommandExecutor.this) {
+                return closed;
+            }
+        }
+
+        public void open() {
+            synchronized (CommandExecutor.this) {
+                if(closed || open)
+                    return;
+                open = true;
+                if(!isEmpty() && !scheduled)
+                    schedule(this);
+            }
+        }
+
+        public void close() {
+            synchronized (CommandExecutor.this) {
+                if(closed)
+                    return;
+                closed = true;
+                open = false;
+                for (ArrayDeque<Pending> lane : lanes) {
+                    for (int i = 0; i < lane.size(); i++)
+                        queueSize.dec();
+                    lane.clear();
+                }
+                if(ready.remove(this))
+                    scheduled = false;
+            }
+        }
+
+        private boolean isEmpty() {
+            return (nextLane() < 0);
+        }
+
+        private int nextLane() {
+            for (int i = 0; i < lanes.length; i++) {
+                if(!lanes[i].isEmpty())
+                    return i;
+            }
+            return -1;
+        }
+
+        private Pending poll() {
+            queueSize.dec();
+            return lanes[nextLane()].pollFirst();
+        }
+
+        private void run(Command command) {
+            channelLock.lock();
+            try {
+                channel.onCommandReceived(command);
+            } catch(RuntimeException e) {
+                Log.e(TAG, "[!] "+command.getCommandID()+" failed on "+channel, e);
+            } finally {
+                channelLock.unlock();
+            }
+        }
+    }
+}
@@ -26,10 +26,10 @@ import org.disrupted.rumble.network.NetworkCoordinator;
 import org.disrupted.rumble.network.linklayer.LinkLayerConnection;
 import org.disrupted.rumble.network.Worker;
 import org.disrupted.rumble.network.protocols.command.Command;
+import org.disrupted.rumble.util.HashedWheelTimer;
+import org.disrupted.rumble.util.Log;
 
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.ReentrantLock;
 
 import de.greenrobot.event.EventBus;
@@ -37,20 +37,24 @@ import de.greenrobot.event.EventBus;
 
 /**
  * The GenericProtocol implements a generic protocol where one thread takes care
- * of receiving and processing packet from the network while another one takes
- * care of receiving and processing command from the upper layer.
+ * of receiving and processing packet from the network while the commands from the
+ * upper layer are either executed by the calling thread (execute) or queued in the
+ * channel outbox and sent by the shared CommandExecutor (executeNonBlocking).
  * @author Lucien Loiseau
  */
 public abstract class ProtocolChannel implements Worker {
 
     private static final String TAG = "ProtocolWorker";
 
-    private BlockingQueue<Command> commandQueue;
+    private static final long THROUGHPUT_MIN_BYTES = 16*1024;
+    private static final long RETRY_DELAY     = 250;  // ms, doubled after every attempt
+    private static final long RETRY_MAX_DELAY = 8000; // ms
+
     private final ReentrantLock lock = new ReentrantLock();
+    private final CommandExecutor.Outbox outbox;
 
     protected Protocol protocol;
     protected LinkLayerConnection con;
-    protected Thread processingCommandFromQueue;
     protected boolean error;
 
     // statistics
@@ -78,27 +82,7 @@ public abstract class ProtocolChannel implements Worker {
         this.in_transmission_time = 0;
         this.out_transmission_time = 0;
 
-        // starting network receiving thread + command thread
-        commandQueue = new LinkedBlockingQueue<Command>();
-        this.processingCommandFromQueue = new Thread("CommandThread for "+con.getConnectionID()) {
-            @Override
-            public synchronized void run() {
-                try {
-                    while (true) {
-                        Command command = commandQueue.take();
-                        try {
-                            lock.lock();
-                            onCommandReceived(command);
-                        } finally {
-                            lock.unlock();
-                        }
-                    }
-                }
-                catch(InterruptedException e) {
-                    commandQueue.clear();
-                }
-            }
-        };
+        this.outbox = CommandExecutor.getInstance().newOutbox(this, lock);
     }
 
     public LinkLayerConnection getLinkLayerConnection() {
@@ -138,11 +122,11 @@ public abstract class ProtocolChannel implements Worker {
      */
     protected final void onChannelConnected() {
         connection_start_time = System.nanoTime();
-        processingCommandFromQueue.start();
+        outbox.open();
         try {
             processingPacketFromNetwork();
         }finally {
-            processingCommandFromQueue.interrupt();
+            outbox.close();
             connection_end_time = System.nanoTime();
         }
     }
@@ -156,13 +140,42 @@ public abstract class ProtocolChannel implements Worker {
         }
     }
 
+    /*
+     * returns false if the channel is closed or if the outbox lane of this command is full
+     */
     public final boolean executeNonBlocking(Command command){
-        try {
-            commandQueue.put(command);
-            return true;
-        } catch (InterruptedException ignore) {
-            return false;
-        }
+        return outbox.offer(command);
+    }
+
+    /*
+     * for the commands that must not be lost (chat messages, contact information, requested
+     * files): a command refused by a full outbox lane is offered again from the timer, with a
+     * growing delay, until it is accepted or the channel is closed
+     */
+    public final void executeWithRetry(Command command){
+        executeWithRetry(command, RETRY_DELAY);
+    }
+
+    private void executeWithRetry(final Command command, final long delay){
+        if(outbox.offer(command) || outbox.isClosed())
+            return;
+        Log.d(TAG, "[!] "+command.getCommandID()+" refused, retrying in "+delay+"ms");
+        HashedWheelTimer.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                executeWithRetry(command, Math.min(delay * 2, RETRY_MAX_DELAY));
+            }
+        }, delay);
+    }
+
+    /*
+     * bytes per second measured over what has been sent so far on this channel,
+     * -1 if too little has been sent to tell
+     */
+    public long getOutThroughput() {
+        if((bytes_sent < THROUGHPUT_MIN_BYTES) || (out_transmission_time <= 0))
+            return -1;
+        return bytes_sent * 1000000000L / out_transmission_time;
     }
 
     public int getChannelPriority() {
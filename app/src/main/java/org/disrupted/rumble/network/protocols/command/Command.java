@@ -26,13 +26,37 @@ public abstract class Command {
 
     public enum CommandID {
         SEND_PUSH_STATUS,
+        SEND_PUSH_STATUS_BATCH,
         SEND_LOCAL_INFORMATION,
         SEND_CHAT_MESSAGE,
-        SEND_KEEP_ALIVE
+        SEND_KEEP_ALIVE,
+        SEND_FILE_REQUEST,
+        SEND_FILE
     }
 
+    /*
+     * lanes of a channel outbox, a command is only sent once every command of a
+     * lane with a lower number has been sent
+     */
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_CHAT    = 1;
+    public static final int PRIORITY_PUSH    = 2;
+
     abstract public CommandID getCommandID();
 
+    public int getPriority() {
+        switch (getCommandID()) {
+            case SEND_LOCAL_INFORMATION:
+            case SEND_KEEP_ALIVE:
+            case SEND_FILE_REQUEST:
+                return PRIORITY_CONTROL;
+            case SEND_CHAT_MESSAGE:
+                return PRIORITY_CHAT;
+            default:
+                return PRIORITY_PUSH;
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if(o == null)
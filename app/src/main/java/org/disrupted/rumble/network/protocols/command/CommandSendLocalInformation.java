@@ -15,11 +15,28 @@
  * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+
 package org.disrupted.rumble.network.protocols.command;
 
 import org.disrupted.rumble.database.objects.Contact;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 /**
+ * CommandSendLocalInformation sends the local contact information (groups and hashtag
+ * interests) to the neighbour.
+ *
+ * Every local information sent is identified by a version number. If the neighbour already
+ * acknowledged a previous version (base version), only the difference between that version
+ * and the current one is sent (delta), otherwise the whole information is sent (snapshot).
+ *
+ * The receiver answers every versioned information with a CommandSendLocalInformation that
+ * carries no information but the answered version and the version it now holds (see
+ * acknowledge()), the sender only uses an acknowledged version as the base of its deltas.
+ *
  * @author Lucien Loiseau
  */
 public class CommandSendLocalInformation extends Command {
@@ -27,9 +44,79 @@ public class CommandSendLocalInformation extends Command {
     private Contact local;
     private int     flags;
 
+    private long    version;
+    private long    baseVersion;
+
+    /*
+     * version of the neighbour information answered and version of the neighbour information
+     * held by the local node once it has been processed, -1 if not an ack
+     */
+    private long    answeredVersion;
+    private long    acknowledgedVersion;
+
+    /* delta from the base version, only relevant if isDelta() */
+    private Set<String>          addedGroupIDs;
+    private Set<String>          removedGroupIDs;
+    private Map<String, Integer> updatedHashtags;
+    private Set<String>          removedHashtags;
+
     public CommandSendLocalInformation(Contact local, int flags){
+        this(local, flags, 0);
+    }
+
+    public CommandSendLocalInformation(Contact local, int flags, long version){
         this.local = local;
         this.flags = flags;
+        this.version = version;
+        this.baseVersion = 0;
+        this.answeredVersion = -1;
+        this.acknowledgedVersion = -1;
+        this.addedGroupIDs   = new HashSet<String>();
+        this.removedGroupIDs = new HashSet<String>();
+        this.updatedHashtags = new HashMap<String, Integer>();
+        this.removedHashtags = new HashSet<String>();
+    }
+
+    /*
+     * computes the delta between the version acknowledged by the neighbour (base) and
+     * the current local information.
+     */
+    public CommandSendLocalInformation(Contact local, int flags, long version, Contact base, long baseVersion){
+        this(local, flags, version);
+        this.baseVersion = baseVersion;
+
+        if((flags & Contact.FLAG_GROUP_LIST) == Contact.FLAG_GROUP_LIST) {
+            for (String gid : local.getJoinedGroupIDs()) {
+                if (!base.getJoinedGroupIDs().contains(gid))
+                    addedGroupIDs.add(gid);
+            }
+            for (String gid : base.getJoinedGroupIDs()) {
+                if (!local.getJoinedGroupIDs().contains(gid))
+                    removedGroupIDs.add(gid);
+            }
+        }
+        if((flags & Contact.FLAG_TAG_INTEREST) == Contact.FLAG_TAG_INTEREST) {
+            for (Map.Entry<String, Integer> entry : local.getHashtagInterests().entrySet()) {
+                if (!entry.getValue().equals(base.getHashtagInterests().get(entry.getKey())))
+                    updatedHashtags.put(entry.getKey(), entry.getValue());
+            }
+            for (String hashtag : base.getHashtagInterests().keySet()) {
+                if (!local.getHashtagInterests().containsKey(hashtag))
+                    removedHashtags.add(hashtag);
+            }
+        }
+    }
+
+    /*
+     * answers a version of the neighbour information, acknowledgedVersion is the version held
+     * once it has been processed: the answered version if it was applied, an older one if it
+     * was rejected, 0 if the local node does not hold any usable version (snapshot needed)
+     */
+    public static CommandSendLocalInformation acknowledge(Contact local, long answeredVersion, long acknowledgedVersion) {
+        CommandSendLocalInformation command = new CommandSendLocalInformation(local, 0);
+        command.answeredVersion = answeredVersion;
+        command.acknowledgedVersion = acknowledgedVersion;
+        return command;
     }
 
     public Contact getContact() {
@@ -40,6 +127,48 @@ public class CommandSendLocalInformation extends Command {
         return flags;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    public boolean isDelta() {
+        return baseVersion > 0;
+    }
+
+    public long getAnsweredVersion() {
+        return answeredVersion;
+    }
+
+    public long getAcknowledgedVersion() {
+        return acknowledgedVersion;
+    }
+
+    public boolean isEmptyDelta() {
+        return isDelta()
+                && addedGroupIDs.isEmpty() && removedGroupIDs.isEmpty()
+                && updatedHashtags.isEmpty() && removedHashtags.isEmpty();
+    }
+
+    public Set<String> getAddedGroupIDs() {
+        return addedGroupIDs;
+    }
+
+    public Set<String> getRemovedGroupIDs() {
+        return removedGroupIDs;
+    }
+
+    public Map<String, Integer> getUpdatedHashtags() {
+        return updatedHashtags;
+    }
+
+    public Set<String> getRemovedHashtags() {
+        return removedHashtags;
+    }
+
     @Override
     public CommandID getCommandID() {
         return CommandID.SEND_LOCAL_INFORMATION;
@@ -0,0 +1,45 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.command;
+
+import org.disrupted.rumble.database.objects.PushStatus;
+
+import java.util.List;
+
+/**
+ * CommandSendPushStatusBatch sends several statuses of the same group within a single bundle
+ * so that the cipher context (for private group) and the transmission event are shared
+ * by all the statuses.
+ */
+public class CommandSendPushStatusBatch extends Command {
+
+    private List<PushStatus> statuses;
+
+    public CommandSendPushStatusBatch(List<PushStatus> statuses){
+        this.statuses = statuses;
+    }
+
+    public List<PushStatus> getStatuses() {
+        return statuses;
+    }
+
+    @Override
+    public CommandID getCommandID() {
+        return CommandID.SEND_PUSH_STATUS_BATCH;
+    }
+
+}
@@ -22,7 +22,9 @@ import org.disrupted.rumble.network.events.NetworkEvent;
 import org.disrupted.rumble.network.linklayer.LinkLayerNeighbour;
 import org.disrupted.rumble.network.protocols.ProtocolChannel;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * @author Lucien Loiseau
@@ -35,12 +37,40 @@ public class ContactInformationReceived extends NetworkEvent{
     public LinkLayerNeighbour neighbour;
     public boolean authenticated;
 
+    /*
+     * version of the contact information, 0 if the neighbour does not version it.
+     * If baseVersion is not 0, the contact only holds the groups joined and the interests
+     * updated since baseVersion, the removed ones are in removedGroupIDs and removedHashtags.
+     */
+    public long        version;
+    public long        baseVersion;
+    public Set<String> removedGroupIDs;
+    public Set<String> removedHashtags;
+
+    /*
+     * answer of the neighbour to a version of the local information: the version answered
+     * and the version it holds since then (0 if it asks for a snapshot), -1 if the block did
+     * not carry any acknowledgement
+     */
+    public long        answeredVersion;
+    public long        acknowledgedVersion;
+
     public ContactInformationReceived(Contact contact, int flags, ProtocolChannel channel, LinkLayerNeighbour neighbour) {
         this.contact = contact;
         this.flags = flags;
         this.channel = channel;
         this.neighbour = neighbour;
         this.authenticated = false;
+        this.version = 0;
+        this.baseVersion = 0;
+        this.answeredVersion = -1;
+        this.acknowledgedVersion = -1;
+        this.removedGroupIDs = new HashSet<String>();
+        this.removedHashtags = new HashSet<String>();
+    }
+
+    public boolean isDelta() {
+        return baseVersion > 0;
     }
 
     @Override
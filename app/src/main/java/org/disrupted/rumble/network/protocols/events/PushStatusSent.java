@@ -23,13 +23,15 @@ import org.disrupted.rumble.database.objects.Contact;
 import org.disrupted.rumble.database.objects.PushStatus;
 import org.disrupted.rumble.network.events.NetworkEvent;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 /**
  * This event holds every information known on a transmission that happened successfully. These
  * information includes:
  *
- * - The sent status (as it was sent)
+ * - The sent status (as it was sent), or every statuses if several were sent in one bundle
  * - The receiver(s) (or an estimation of it in the case of Multicast IP)
  * - The protocol used to transmit this status (rumble, firechat)
  * - The link layer used (bluetooth, wifi)
@@ -46,12 +48,24 @@ import java.util.Set;
 public class PushStatusSent extends NetworkEvent {
 
     public PushStatus status;
+    public List<PushStatus> statuses;
     public Set<Contact> recipients;
     public String protocolID;
     public String linkLayerIdentifier;
 
     public PushStatusSent(PushStatus status, Set<Contact> recipients, String protocolID, String linkLayerIdentifier) {
         this.status = status;
+        this.statuses = new ArrayList<PushStatus>(1);
+        if(status != null)
+            this.statuses.add(status);
+        this.recipients = recipients;
+        this.protocolID = protocolID;
+        this.linkLayerIdentifier = linkLayerIdentifier;
+    }
+
+    public PushStatusSent(List<PushStatus> statuses, Set<Contact> recipients, String protocolID, String linkLayerIdentifier) {
+        this.status = statuses.isEmpty() ? null : statuses.get(0);
+        this.statuses = statuses;
         this.recipients = recipients;
         this.protocolID = protocolID;
         this.linkLayerIdentifier = linkLayerIdentifier;
@@ -59,6 +73,8 @@ public class PushStatusSent extends NetworkEvent {
 
     @Override
     public String shortDescription() {
+        if(statuses.size() > 1)
+            return statuses.size()+" statuses";
         if(status != null)
             return status.getPost()+" ("+status.getAuthor()+")";
         else
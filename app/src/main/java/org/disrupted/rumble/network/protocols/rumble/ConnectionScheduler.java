@@ -0,0 +1,445 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.rumble;
+
+import android.os.Handler;
+
+import org.disrupted.rumble.app.EventDispatcher;
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.DatabaseFactory;
+import org.disrupted.rumble.database.statistics.StatChannelDatabase;
+import org.disrupted.rumble.network.NetworkCoordinator;
+import org.disrupted.rumble.network.Worker;
+import org.disrupted.rumble.network.linklayer.LinkLayerNeighbour;
+import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothClientConnection;
+import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothConnection;
+import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothLinkLayerAdapter;
+import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothNeighbour;
+import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothUtil;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackClientConnection;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackNetwork;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackNeighbour;
+import org.disrupted.rumble.network.linklayer.wifi.TCP.TCPClientConnection;
+import org.disrupted.rumble.network.linklayer.wifi.TCP.TCPConnection;
+import org.disrupted.rumble.network.linklayer.wifi.WifiNeighbour;
+import org.disrupted.rumble.network.protocols.rumble.workers.RumbleBTServer;
+import org.disrupted.rumble.network.protocols.rumble.workers.RumbleTCPServer;
+import org.disrupted.rumble.network.protocols.rumble.workers.RumbleUnicastChannel;
+import org.disrupted.rumble.util.Log;
+import org.disrupted.rumble.util.NetUtil;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The ConnectionScheduler decides when the RumbleProtocol connects to a reachable neighbour.
+ *
+ * Instead of putting a worker on the pool every time a neighbour is reachable or a channel
+ * fails, the neighbours wait in an admission queue:
+ *   - a limited number of outgoing connections are in progress at the same time for every
+ *     link layer, so that a flapping neighbour cannot use every thread of the WorkerPool
+ *   - when a slot is free it goes to the pending neighbour with the best score, which grows
+ *     with the time since we last met it and with the number of statuses it sent us before
+ *   - after a failure, a neighbour waits for an exponential backoff with jitter before it is
+ *     admitted again. The backoff of a neighbour we meet for the first time since the start
+ *     is initialised from its history in the StatChannelDatabase.
+ *   - no Bluetooth connection is admitted while the Bluetooth adapter is discovering, the
+ *     queue is simply processed again when the scan ends, no worker is waiting meanwhile.
+ *
+ * Every method is executed on the NetworkCoordinator looper.
+ */
+public class ConnectionScheduler {
+
+    private static final String TAG = "ConnectionScheduler";
+
+    public static final int  BLUETOOTH_SLOTS  = 3;
+    public static final int  WIFI_SLOTS       = 6;
+    private static final long BACKOFF_BASE    = 2000;
+    private static final long BACKOFF_MAX     = 5 * 60 * 1000;
+    private static final long SCAN_END_JITTER = 1000;
+    private static final int  HISTORY_SIZE    = 10;
+
+    /* score: one point per minute since last met (up to an hour), 5 points per status received */
+    private static final long NEVER_MET_SCORE     = 60;
+    private static final long STATUS_RECEIVED_SCORE = 5;
+    private static final long MAX_STATUS_SCORE    = 100;
+
+    private static class Peer {
+        LinkLayerNeighbour neighbour;
+        boolean reachable;
+        boolean pending;
+        boolean inProgress;
+        int     failures;
+        long    nextAttempt;      // System.currentTimeMillis()
+        long    lastMet;          // System.nanoTime(), 0 if never met
+        int     statusReceived;
+        boolean historyLoaded;
+    }
+
+    private final RumbleProtocol     protocol;
+    private final NetworkCoordinator networkCoordinator;
+    private final Handler            handler;
+    private final Random             random;
+
+    private final Map<String, Peer>    peers;
+    private final Map<String, Integer> inProgress;
+    private boolean running;
+
+    public ConnectionScheduler(RumbleProtocol protocol, NetworkCoordinator networkCoordinator) {
+        this.protocol = protocol;
+        this.networkCoordinator = networkCoordinator;
+        this.handler  = new Handler(networkCoordinator.getServiceLooper());
+        this.random   = new Random();
+        this.peers    = new HashMap<String, Peer>();
+        this.inProgress = new HashMap<String, Integer>();
+        this.running  = false;
+    }
+
+    public void start() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                running = true;
+            }
+        });
+    }
+
+    public void stop() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                running = false;
+                handler.removeCallbacks(admit);
+                peers.clear();
+                inProgress.clear();
+            }
+        });
+    }
+
+    /*
+     * a neighbour is reachable (or was disconnected with an error), we would like to connect
+     */
+    public void connectionRequested(final LinkLayerNeighbour neighbour) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(!running)
+                    return;
+                Peer peer = getPeer(neighbour);
+                peer.neighbour = neighbour;
+                peer.reachable = true;
+                if(!peer.inProgress)
+                    peer.pending = true;
+                admit.run();
+            }
+        });
+    }
+
+    public void neighbourUnreachable(final String linkLayerAddress) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Peer peer = peers.get(linkLayerAddress);
+                if(peer == null)
+                    return;
+                peer.reachable = false;
+                peer.pending = false;
+            }
+        });
+    }
+
+    public void linkLayerStopped(final String linkLayerIdentifier) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for(Iterator<Peer> it = peers.values().iterator(); it.hasNext(); ) {
+                    Peer peer = it.next();
+                    if(peer.neighbour.getLinkLayerIdentifier().equals(linkLayerIdentifier))
+                        it.remove();
+                }
+                inProgress.remove(linkLayerIdentifier);
+            }
+        });
+    }
+
+    /*
+     * the connection we initiated succeeded, the slot is released and the neighbour
+     * starts again with a clean slate
+     */
+    public void connected(final String linkLayerAddress) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Peer peer = peers.get(linkLayerAddress);
+                if(peer == null)
+                    return;
+                release(peer);
+                peer.failures = 0;
+                peer.nextAttempt = 0;
+                peer.lastMet = System.nanoTime();
+                admit.run();
+            }
+        });
+    }
+
+    /*
+     * the connection we initiated did not go through (failed is false if another channel
+     * was already connected to this neighbour), the slot is released and if it failed, the
+     * neighbour is queued again once its backoff is over
+     */
+    public void connectionEnded(final String linkLayerAddress, final boolean failed) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Peer peer = peers.get(linkLayerAddress);
+                if((peer == null) || !peer.inProgress)
+                    return;
+                release(peer);
+                if(failed)
+                    backoff(peer);
+                admit.run();
+            }
+        });
+    }
+
+    /*
+     * an established channel was closed because of an error, we try to connect again
+     * once the backoff is over
+     */
+    public void channelFailed(final LinkLayerNeighbour neighbour) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(!running)
+                    return;
+                Peer peer = getPeer(neighbour);
+                peer.neighbour = neighbour;
+                peer.reachable = true;
+                peer.lastMet = System.nanoTime();
+                if(!peer.inProgress)
+                    backoff(peer);
+                admit.run();
+            }
+        });
+    }
+
+    /*
+     * the Bluetooth connections that were held back during the scan are admitted after a
+     * random delay, so that two devices do not connect to each other at the same time
+     */
+    public void bluetoothScanEnded() {
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                admit.run();
+            }
+        }, random.nextInt((int) SCAN_END_JITTER));
+    }
+
+    private final Runnable admit = new Runnable() {
+        @Override
+        public void run() {
+            handler.removeCallbacks(admit);
+            if(!running)
+                return;
+
+            long now = System.currentTimeMillis();
+            long wakeUp = Long.MAX_VALUE;
+            while(true) {
+                Peer best = null;
+                long bestScore = Long.MIN_VALUE;
+                for(Iterator<Peer> it = peers.values().iterator(); it.hasNext(); ) {
+                    Peer peer = it.next();
+                    if(!peer.pending)
+                        continue;
+                    if(peer.nextAttempt > now) {
+                        wakeUp = Math.min(wakeUp, peer.nextAttempt);
+                        continue;
+                    }
+                    if(!isSlotAvailable(peer.neighbour.getLinkLayerIdentifier()))
+                        continue;
+                    long score = score(peer);
+                    if(score > bestScore) {
+                        best = peer;
+                        bestScore = score;
+                    }
+                }
+                if(best == null)
+                    break;
+                best.pending = false;
+                if(openChannel(best.neighbour)) {
+                    best.inProgress = true;
+                    String linkLayer = best.neighbour.getLinkLayerIdentifier();
+                    inProgress.put(linkLayer, getInProgress(linkLayer) + 1);
+                }
+            }
+            if(wakeUp != Long.MAX_VALUE)
+                handler.postDelayed(admit, wakeUp - now);
+        }
+    };
+
+    private Peer getPeer(LinkLayerNeighbour neighbour) {
+        Peer peer = peers.get(neighbour.getLinkLayerAddress());
+        if(peer == null) {
+            peer = new Peer();
+            peer.neighbour = neighbour;
+            peers.put(neighbour.getLinkLayerAddress(), peer);
+            loadHistory(peer);
+        }
+        return peer;
+    }
+
+    private void loadHistory(final Peer peer) {
+        final String mac;
+        try {
+            mac = peer.neighbour.getLinkLayerMacAddress();
+        } catch(NetUtil.NoMacAddressException e) {
+            peer.historyLoaded = true;
+            return;
+        }
+        EventDispatcher.getInstance().dispatch(EventDispatcher.GROUP_ASYNC, new Runnable() {
+            @Override
+            public void run() {
+                final StatChannelDatabase.ChannelHistory history = DatabaseFactory
+                        .getStatChannelDatabase(RumbleApplication.getContext())
+                        .getChannelHistory(mac, HISTORY_SIZE);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(peer.historyLoaded)
+                            return;
+                        peer.historyLoaded = true;
+                        peer.statusReceived = history.statusReceived;
+                        if(peer.lastMet == 0)
+                            peer.lastMet = history.lastDisconnected;
+                        if((peer.failures == 0) && (history.failures > 0)) {
+                            peer.failures = history.failures;
+                            peer.nextAttempt = System.currentTimeMillis() + backoff(peer.failures);
+                        }
+                        admit.run();
+                    }
+                });
+            }
+        });
+    }
+
+    private void release(Peer peer) {
+        if(!peer.inProgress)
+            return;
+        peer.inProgress = false;
+        String linkLayer = peer.neighbour.getLinkLayerIdentifier();
+        inProgress.put(linkLayer, getInProgress(linkLayer) - 1);
+    }
+
+    private void backoff(Peer peer) {
+        peer.failures++;
+        long delay = backoff(peer.failures);
+        peer.nextAttempt = System.currentTimeMillis() + delay;
+        peer.pending = peer.reachable;
+        Log.d(TAG, "[-] " + peer.neighbour.getLinkLayerAddress() + " failed " + peer.failures
+                + " times, next attempt in " + delay + "ms");
+    }
+
+    private long backoff(int failures) {
+        long delay = BACKOFF_BASE << Math.min(failures - 1, 16);
+        delay = Math.min(delay, BACKOFF_MAX);
+        // jitter between 50% and 150% of the delay
+        return delay / 2 + (long)(random.nextDouble() * delay);
+    }
+
+    private long score(Peer peer) {
+        long score;
+        long now = System.nanoTime();
+        if((peer.lastMet == 0) || (peer.lastMet > now))
+            score = NEVER_MET_SCORE;
+        else
+            score = Math.min(NEVER_MET_SCORE, (now - peer.lastMet) / 60000000000L);
+        score += Math.min(MAX_STATUS_SCORE, peer.statusReceived * STATUS_RECEIVED_SCORE);
+        return score - peer.failures;
+    }
+
+    private int getInProgress(String linkLayer) {
+        Integer count = inProgress.get(linkLayer);
+        return (count == null) ? 0 : count;
+    }
+
+    private boolean isSlotAvailable(String linkLayer) {
+        if(linkLayer.equals(BluetoothLinkLayerAdapter.LinkLayerIdentifier)) {
+            if(BluetoothUtil.getBluetoothAdapter(RumbleApplication.getContext()).isDiscovering())
+                return false;
+            return getInProgress(linkLayer) < BLUETOOTH_SLOTS;
+        }
+        return getInProgress(linkLayer) < WIFI_SLOTS;
+    }
+
+    private boolean openChannel(LinkLayerNeighbour neighbour) {
+        if (neighbour instanceof BluetoothNeighbour) {
+            BluetoothNeighbour btn = (BluetoothNeighbour)neighbour;
+            if(btn.getBluetoothDeviceName() == null)
+                return false;
+            if(!btn.getBluetoothDeviceName().startsWith(RumbleProtocol.RUMBLE_BLUETOOTH_PREFIX))
+                return false;
+            try {
+                BluetoothConnection con = new BluetoothClientConnection(
+                        neighbour.getLinkLayerAddress(),
+                        UUID.fromString(RumbleBTServer.RUMBLE_BT_UUID_128_PREFIX+
+                                neighbour.getLinkLayerAddress().replaceAll(":","")),
+                        RumbleBTServer.RUMBLE_BT_STR,
+                        false);
+                Worker rumbleOverBluetooth = new RumbleUnicastChannel(protocol, con);
+                protocol.getState(neighbour.getLinkLayerAddress()).connectionScheduled(rumbleOverBluetooth.getWorkerIdentifier());
+                return networkCoordinator.addWorker(rumbleOverBluetooth);
+            } catch(RumbleStateMachine.StateException ignore) {
+                return false;
+            }
+        }
+
+        if (neighbour instanceof WifiNeighbour) {
+            try {
+                TCPConnection con = new TCPClientConnection(
+                        neighbour.getLinkLayerAddress(),
+                        RumbleTCPServer.RUMBLE_TCP_PORT
+                );
+                Worker rumbleOverTCP = new RumbleUnicastChannel(protocol, con);
+                protocol.getState(neighbour.getLinkLayerAddress()).connectionScheduled(rumbleOverTCP.getWorkerIdentifier());
+                return networkCoordinator.addWorker(rumbleOverTCP);
+            } catch(RumbleStateMachine.StateException ignore) {
+                return false;
+            }
+        }
+
+        if (neighbour instanceof LoopbackNeighbour) {
+            try {
+                LoopbackClientConnection con = new LoopbackClientConnection(
+                        LoopbackNetwork.getInstance().getLocalAddress(),
+                        neighbour.getLinkLayerAddress()
+                );
+                Worker rumbleOverLoopback = new RumbleUnicastChannel(protocol, con);
+                protocol.getState(neighbour.getLinkLayerAddress()).connectionScheduled(rumbleOverLoopback.getWorkerIdentifier());
+                return networkCoordinator.addWorker(rumbleOverLoopback);
+            } catch(RumbleStateMachine.StateException ignore) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
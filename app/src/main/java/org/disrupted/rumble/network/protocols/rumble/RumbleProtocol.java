@@ -19,33 +19,35 @@
 
 package org.disrupted.rumble.network.protocols.rumble;
 
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.network.linklayer.UnicastConnection;
 import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothUtil;
+import org.disrupted.rumble.network.linklayer.wifi.UDP.UDPMulticastConnection;
+import org.disrupted.rumble.network.protocols.ProtocolChannel;
 import org.disrupted.rumble.util.Log;
 
 import org.disrupted.rumble.network.NetworkCoordinator;
 import org.disrupted.rumble.network.events.ChannelDisconnected;
+import org.disrupted.rumble.network.linklayer.events.BluetoothScanEnded;
 import org.disrupted.rumble.network.linklayer.events.LinkLayerStarted;
 import org.disrupted.rumble.network.linklayer.events.LinkLayerStopped;
 import org.disrupted.rumble.network.events.NeighbourReachable;
 import org.disrupted.rumble.network.events.NeighbourUnreachable;
-import org.disrupted.rumble.network.linklayer.LinkLayerNeighbour;
-import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothClientConnection;
-import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothConnection;
 import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothLinkLayerAdapter;
-import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothNeighbour;
-import org.disrupted.rumble.network.linklayer.wifi.TCP.TCPClientConnection;
-import org.disrupted.rumble.network.linklayer.wifi.TCP.TCPConnection;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackLinkLayerAdapter;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackNetwork;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackScanner;
 import org.disrupted.rumble.network.linklayer.wifi.WifiLinkLayerAdapter;
 import org.disrupted.rumble.network.linklayer.wifi.WifiNeighbour;
 import org.disrupted.rumble.network.protocols.Protocol;
 import org.disrupted.rumble.network.Worker;
 import org.disrupted.rumble.network.protocols.rumble.workers.RumbleBTServer;
+import org.disrupted.rumble.network.protocols.rumble.workers.RumbleLoopbackServer;
+import org.disrupted.rumble.network.protocols.rumble.workers.RumbleOverUDPMulticast;
 import org.disrupted.rumble.network.protocols.rumble.workers.RumbleTCPServer;
 import org.disrupted.rumble.network.protocols.rumble.workers.RumbleUDPMulticastScanner;
-import org.disrupted.rumble.network.protocols.rumble.workers.RumbleUnicastChannel;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.UUID;
 
 import de.greenrobot.event.EventBus;
@@ -68,17 +70,47 @@ public class RumbleProtocol implements Protocol {
     // Scanner to discover peer whenever wifi is available
     RumbleUDPMulticastScanner scanner;
 
+    // Scanner of the in-memory LoopbackNetwork (only when it has been enabled)
+    LoopbackScanner loopbackScanner;
+
+    // one-to-many channel to disseminate the public statuses over wifi
+    private volatile RumbleOverUDPMulticast multicastChannel;
+
+    // decides when and in which order we connect to the reachable neighbours
+    private final ConnectionScheduler connectionScheduler;
+
     //conState holds the Connection State of Bluetooth and TCP connection
-    private Map<String, RumbleStateMachine> conState;
+    private final RumbleStateRegistry conState;
     public RumbleStateMachine getState(String linkLayerAddress) {
-        synchronized (lock) {
-            RumbleStateMachine state = conState.get(linkLayerAddress);
-            if (state == null) {
-                state = new RumbleStateMachine();
-                conState.put(linkLayerAddress, state);
-            }
-            return state;
-        }
+        return conState.get(linkLayerAddress);
+    }
+
+    public ConnectionScheduler getConnectionScheduler() {
+        return connectionScheduler;
+    }
+
+    public boolean listensToMulticast(String linkLayerAddress) {
+        RumbleUDPMulticastScanner udpScanner = scanner;
+        return (udpScanner != null) && udpScanner.listensToMulticast(linkLayerAddress);
+    }
+
+    /*
+     * returns the multicast channel if the statuses can be disseminated to every wifi
+     * neighbour at once instead of being sent over this unicast channel, null otherwise
+     */
+    public RumbleOverUDPMulticast getDisseminationChannel(ProtocolChannel unicast, List<PushStatus> statuses) {
+        RumbleOverUDPMulticast multicast = multicastChannel;
+        if((multicast == null) || !multicast.isWorking())
+            return null;
+        if(!unicast.getProtocolIdentifier().equals(protocolID)
+                || !unicast.getLinkLayerIdentifier().equals(WifiLinkLayerAdapter.LinkLayerIdentifier)
+                || !(unicast.getLinkLayerConnection() instanceof UnicastConnection))
+            return null;
+        String address = ((UnicastConnection)unicast.getLinkLayerConnection())
+                .getLinkLayerNeighbour().getLinkLayerAddress();
+        if(!listensToMulticast(address) || !RumbleOverUDPMulticast.canDisseminate(statuses))
+            return null;
+        return multicast;
     }
 
     @Override
@@ -96,7 +128,8 @@ public class RumbleProtocol implements Protocol {
 
     private RumbleProtocol(NetworkCoordinator networkCoordinator) {
         this.networkCoordinator = networkCoordinator;
-        conState = new HashMap<String, RumbleStateMachine>();
+        conState = new RumbleStateRegistry(this, networkCoordinator);
+        connectionScheduler = new ConnectionScheduler(this, networkCoordinator);
         started = false;
         scanner = null;
     }
@@ -119,6 +152,8 @@ public class RumbleProtocol implements Protocol {
 
         Log.d(TAG, "[+] Rumble Protocol started");
 
+        conState.start();
+        connectionScheduler.start();
         EventBus.getDefault().register(this);
     }
 
@@ -133,9 +168,12 @@ public class RumbleProtocol implements Protocol {
         if(EventBus.getDefault().isRegistered(this))
             EventBus.getDefault().unregister(this);
 
+        connectionScheduler.stop();
         networkCoordinator.stopWorkers(BluetoothLinkLayerAdapter.LinkLayerIdentifier, protocolID);
         networkCoordinator.stopWorkers(WifiLinkLayerAdapter.LinkLayerIdentifier, protocolID);
-        conState.clear();
+        networkCoordinator.stopWorkers(LoopbackLinkLayerAdapter.LinkLayerIdentifier, protocolID);
+        multicastChannel = null;
+        conState.stop();
     }
 
     @Override
@@ -167,9 +205,24 @@ public class RumbleProtocol implements Protocol {
             Worker TCPServer = new RumbleTCPServer(this, networkCoordinator);
             networkCoordinator.addWorker(TCPServer);
 
-            scanner = new RumbleUDPMulticastScanner();
+            scanner = new RumbleUDPMulticastScanner(this);
             scanner.startScanner();
             networkCoordinator.addScanner(scanner);
+
+            multicastChannel = new RumbleOverUDPMulticast(this, new UDPMulticastConnection(
+                    RumbleOverUDPMulticast.MULTICAST_UDP_PORT,
+                    RumbleOverUDPMulticast.MULTICAST_ADDRESS));
+            networkCoordinator.addWorker(multicastChannel);
+        }
+
+        if(event.linkLayerIdentifier.equals(LoopbackLinkLayerAdapter.LinkLayerIdentifier)) {
+            String localAddress = LoopbackNetwork.getInstance().getLocalAddress();
+            Worker loopbackServer = new RumbleLoopbackServer(this, networkCoordinator, localAddress);
+            networkCoordinator.addWorker(loopbackServer);
+
+            loopbackScanner = new LoopbackScanner(localAddress);
+            loopbackScanner.startScanner();
+            networkCoordinator.addScanner(loopbackScanner);
         }
     }
 
@@ -179,12 +232,21 @@ public class RumbleProtocol implements Protocol {
             return;
 
         networkCoordinator.stopWorkers(event.linkLayerIdentifier, protocolID);
+        connectionScheduler.linkLayerStopped(event.linkLayerIdentifier);
         if(event.linkLayerIdentifier.equals(WifiLinkLayerAdapter.LinkLayerIdentifier)) {
             if(scanner != null) {
                 networkCoordinator.delScanner(scanner);
                 scanner.stopScanner();
                 scanner = null;
             }
+            multicastChannel = null;
+        }
+        if(event.linkLayerIdentifier.equals(LoopbackLinkLayerAdapter.LinkLayerIdentifier)) {
+            if(loopbackScanner != null) {
+                networkCoordinator.delScanner(loopbackScanner);
+                loopbackScanner.stopScanner();
+                loopbackScanner = null;
+            }
         }
     }
 
@@ -194,56 +256,29 @@ public class RumbleProtocol implements Protocol {
             return;
         if(event.neighbour.isLocal())
             return;
-        openChannel(event.neighbour);
+        // the beacon tells us if this neighbour has anything new for us
+        RumbleUDPMulticastScanner udpScanner = scanner;
+        if((event.neighbour instanceof WifiNeighbour) && (udpScanner != null)
+                && !udpScanner.hasNewData(event.neighbour.getLinkLayerAddress()))
+            return;
+        connectionScheduler.connectionRequested(event.neighbour);
     }
 
     @Override
     public void onEvent(NeighbourUnreachable event) {
         if(!started)
             return;
+        connectionScheduler.neighbourUnreachable(event.neighbour.getLinkLayerAddress());
         conState.remove(event.neighbour.getLinkLayerAddress());
     }
 
     public void onEvent(ChannelDisconnected event) {
         if(event.channel.getProtocolIdentifier().equals(getProtocolIdentifier()) && event.error) {
-            openChannel(event.neighbour);
+            connectionScheduler.channelFailed(event.neighbour);
         }
     }
 
-    private void openChannel(LinkLayerNeighbour neighbour) {
-        if (neighbour instanceof BluetoothNeighbour) {
-            BluetoothNeighbour btn = (BluetoothNeighbour)neighbour;
-            if(btn.getBluetoothDeviceName() == null)
-                return;
-            if(!btn.getBluetoothDeviceName().startsWith(RUMBLE_BLUETOOTH_PREFIX))
-                return;
-            try {
-                BluetoothConnection con = new BluetoothClientConnection(
-                        neighbour.getLinkLayerAddress(),
-                        UUID.fromString(RumbleBTServer.RUMBLE_BT_UUID_128_PREFIX+
-                                neighbour.getLinkLayerAddress().replaceAll(":","")),
-                        RumbleBTServer.RUMBLE_BT_STR,
-                        false);
-                Worker rumbleOverBluetooth = new RumbleUnicastChannel(this, con);
-                getState(neighbour.getLinkLayerAddress()).connectionScheduled(rumbleOverBluetooth.getWorkerIdentifier());
-                networkCoordinator.addWorker(rumbleOverBluetooth);
-            } catch(RumbleStateMachine.StateException ignore) {
-                //Log.d(TAG, neighbour.getLinkLayerAddress() + " state is not disconnected: " + getBTState(neighbour.getLinkLayerAddress()).printState());
-            }
-        }
-
-        if (neighbour instanceof WifiNeighbour) {
-            try {
-                TCPConnection con = new TCPClientConnection(
-                        neighbour.getLinkLayerAddress(),
-                        RumbleTCPServer.RUMBLE_TCP_PORT
-                );
-                Worker rumbleOverTCP = new RumbleUnicastChannel(this, con);
-                getState(neighbour.getLinkLayerAddress()).connectionScheduled(rumbleOverTCP.getWorkerIdentifier());
-                networkCoordinator.addWorker(rumbleOverTCP);
-            } catch(RumbleStateMachine.StateException ignore) {
-                //Log.d(TAG, neighbour.getLinkLayerAddress() + " state is not disconnected: " + getBTState(neighbour.getLinkLayerAddress()).printState());
-            }
-        }
+    public void onEvent(BluetoothScanEnded event) {
+        connectionScheduler.bluetoothScanEnded();
     }
 }
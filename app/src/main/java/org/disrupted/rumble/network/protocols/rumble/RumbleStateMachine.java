@@ -21,7 +21,7 @@ package org.disrupted.rumble.network.protocols.rumble;
 
 import org.disrupted.rumble.util.Log;
 
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The RumbleStateMachine describe the different state possible when connecting to a peer
@@ -56,6 +56,10 @@ import java.util.concurrent.locks.ReentrantLock;
  *              +--------->|  CONNECTED  |<-------------+
  *                         +-------------+
  *
+ * The state and the worker that owns it are kept together in an immutable Snapshot and
+ * every transition is a compare-and-set on it, so that the servers and the channels never
+ * have to lock the state by hand. A transition that does not apply to the current
+ * snapshot throws a StateException.
  *
  * @author Lucien Loiseau
  */
@@ -67,16 +71,27 @@ public class RumbleStateMachine {
         NOT_CONNECTED, CONNECTION_SCHEDULED, CONNECTION_ACCEPTED, CONNECTED
     }
 
-    public  final ReentrantLock lock = new ReentrantLock();
-    private RumbleState state;
-    private String workerID;
+    public static class Snapshot {
+        public final RumbleState state;
+        public final String      workerID;
+        public final long        since;    // System.nanoTime() when the state was entered
+        final boolean            retired;  // removed from the registry, no transition allowed
+
+        Snapshot(RumbleState state, String workerID, boolean retired) {
+            this.state = state;
+            this.workerID = workerID;
+            this.since = System.nanoTime();
+            this.retired = retired;
+        }
+    }
+
+    private final AtomicReference<Snapshot> snapshot;
 
     public RumbleStateMachine() {
-        this.state = RumbleState.NOT_CONNECTED;
-        this.workerID = null;
+        this.snapshot = new AtomicReference<Snapshot>(new Snapshot(RumbleState.NOT_CONNECTED, null, false));
     }
 
-    public String printState() {
+    public static String printState(RumbleState state) {
         switch (state) {
             case NOT_CONNECTED: return "NOT CONNECTED";
             case CONNECTION_SCHEDULED: return "CONNECTION SCHEDULED";
@@ -86,88 +101,125 @@ public class RumbleStateMachine {
         }
     }
 
+    public String printState() {
+        return printState(getState());
+    }
+
     /*
      * goTo the CONNECTION SCHEDULED state which happens when we put a worker on the pool
      * The workerID is then stored as it may be cancelled under certain circumstances
      * It throws a StateException if previous state is different than NOT_CONNECTED
      */
     public void connectionScheduled(String workerID) throws StateException {
-        String previous = printState();
-        switch (state) {
-            case CONNECTED:
-            case CONNECTION_SCHEDULED:
-            case CONNECTION_ACCEPTED:
-                throw new StateException();
-            case NOT_CONNECTED:
-            default:
-                this.workerID = workerID;
-                state = RumbleState.CONNECTION_SCHEDULED;
-                Log.d(TAG, previous+" -> "+printState()+ " ("+this.workerID+")");
-        }
+        Snapshot current = snapshot.get();
+        if(current.retired || (current.state != RumbleState.NOT_CONNECTED))
+            throw new StateException();
+        if(!transition(current, RumbleState.CONNECTION_SCHEDULED, workerID))
+            throw new StateException();
     }
 
     /*
      * goTo the CONNECTION ACCEPTED state which happens when a Server receive
      * a connection (accept() returns). The workerID is then stored as it may be
      * cancelled under certain circumstances.
-     * It can only happen from the NOT_CONNECTED or CONNECTION_INITIATED state.
+     * It can only happen from the NOT_CONNECTED state, or from the CONNECTION_SCHEDULED
+     * state if the accepted connection wins the tie-break (preempt is true). In that case
+     * the workerID of the scheduled connection is returned so that it can be cancelled.
      * It throws a StateException otherwise
      */
-    public void connectionAccepted(String workerID) throws StateException {
-        String previous = printState();
-        switch (state) {
-            case CONNECTED:
-            case CONNECTION_ACCEPTED:
+    public String connectionAccepted(String workerID, boolean preempt) throws StateException {
+        while(true) {
+            Snapshot current = snapshot.get();
+            if(current.retired)
                 throw new StateException();
-            case CONNECTION_SCHEDULED:
-            case NOT_CONNECTED:
-            default:
-                this.workerID = workerID;
-                state = RumbleState.CONNECTION_ACCEPTED;
-                Log.d(TAG, previous+" -> "+printState()+ " ("+this.workerID+")");
+            switch (current.state) {
+                case CONNECTED:
+                case CONNECTION_ACCEPTED:
+                    throw new StateException();
+                case CONNECTION_SCHEDULED:
+                    if(!preempt)
+                        throw new StateException();
+                    if(transition(current, RumbleState.CONNECTION_ACCEPTED, workerID))
+                        return current.workerID;
+                    break;
+                case NOT_CONNECTED:
+                default:
+                    if(transition(current, RumbleState.CONNECTION_ACCEPTED, workerID))
+                        return null;
+            }
         }
     }
 
     /*
      * goTo the CONNECTED state which happens when a connection connect()
-     * It can only happen from an intermediary state like CONNECTION_INITIATED or
-     * CONNECTED_ACCEPTED. It throws a StateException otherwise
+     * It can only happen from an intermediary state like CONNECTION_SCHEDULED or
+     * CONNECTED_ACCEPTED owned by the same worker. It throws a StateException otherwise
      */
     public void connected(String workerID) throws StateException {
-        String previous = printState();
-        switch (state) {
-            case NOT_CONNECTED:
-            case CONNECTED:
-                throw new StateException();
-            case CONNECTION_SCHEDULED:
-            case CONNECTION_ACCEPTED:
-            default:
-                this.workerID = workerID;
-                state = RumbleState.CONNECTED;
-                Log.d(TAG, previous+" -> "+printState()+ " ("+this.workerID+")");
-        }
+        Snapshot current = snapshot.get();
+        if((current.state != RumbleState.CONNECTION_SCHEDULED)
+                && (current.state != RumbleState.CONNECTION_ACCEPTED))
+            throw new StateException();
+        if(!workerID.equals(current.workerID))
+            throw new StateException();
+        if(!transition(current, RumbleState.CONNECTED, workerID))
+            throw new StateException();
     }
 
     /*
      * goTo the NOT_CONNECTED state which can happen from any state
      *    - when a Connection disconnect()
      *    - when the intermediary state has been cancelled
+     * It only applies if the state is still owned by the given worker, a worker that has
+     * been preempted must not reset the state of the one that replaced it.
      */
-    public void notConnected() {
-        String previous = printState();
-        switch (state) {
-            default:
-                state = RumbleState.NOT_CONNECTED;
-                this.workerID = null;
-                Log.d(TAG, previous+" -> "+printState());
-        }
+    public void notConnected(String workerID) {
+        Snapshot current = snapshot.get();
+        if((current.workerID == null) || !current.workerID.equals(workerID))
+            return;
+        transition(current, RumbleState.NOT_CONNECTED, null);
+    }
+
+    /*
+     * reset the state if it has not changed since the snapshot was taken, this is used
+     * by the RumbleStateRegistry to reap the states that are stuck
+     */
+    boolean reset(Snapshot expected) {
+        if(expected.retired)
+            return false;
+        return transition(expected, RumbleState.NOT_CONNECTED, null);
     }
 
+    /*
+     * mark an idle state machine as retired before the RumbleStateRegistry drops it, so
+     * that a thread still holding a reference cannot start a connection with it
+     */
+    boolean retire(Snapshot expected) {
+        if(expected.retired || (expected.state != RumbleState.NOT_CONNECTED))
+            return false;
+        return snapshot.compareAndSet(expected, new Snapshot(RumbleState.NOT_CONNECTED, null, true));
+    }
+
+    boolean isRetired() {
+        return snapshot.get().retired;
+    }
+
+    private boolean transition(Snapshot expected, RumbleState state, String workerID) {
+        if(!snapshot.compareAndSet(expected, new Snapshot(state, workerID, false)))
+            return false;
+        Log.d(TAG, printState(expected.state)+" -> "+printState(state)
+                + (workerID == null ? "" : " ("+workerID+")"));
+        return true;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot.get();
+    }
     public RumbleState getState() {
-        return state;
+        return snapshot.get().state;
     }
-    public String getWorkerID()  throws StateException{
-        return this.workerID;
+    public String getWorkerID() {
+        return snapshot.get().workerID;
     }
     public static class StateException extends Exception {
     }
@@ -0,0 +1,185 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.rumble;
+
+import android.os.Handler;
+
+import org.disrupted.rumble.database.statistics.metrics.MetricRegistry;
+import org.disrupted.rumble.network.NetworkCoordinator;
+import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothLinkLayerAdapter;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackLinkLayerAdapter;
+import org.disrupted.rumble.network.linklayer.wifi.WifiLinkLayerAdapter;
+import org.disrupted.rumble.util.Log;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The RumbleStateRegistry holds the RumbleStateMachine of every neighbour, indexed by
+ * link layer address. Lookups do not take any lock and the state machines are created
+ * on demand.
+ *
+ * A reaper runs periodically on the NetworkCoordinator looper:
+ *   - a state stuck in CONNECTION_SCHEDULED or CONNECTION_ACCEPTED for too long (the worker
+ *     was cancelled or died without resetting it) is reset to NOT_CONNECTED and its worker
+ *     is stopped, otherwise we would never connect to this neighbour again
+ *   - a state that has been NOT_CONNECTED for a long time is removed
+ *   - the number of state machines in each state is published in the MetricRegistry
+ */
+public class RumbleStateRegistry {
+
+    private static final String TAG = "RumbleStateRegistry";
+
+    private static final long REAPER_PERIOD     = 30 * 1000;
+    private static final long SCHEDULED_TIMEOUT = TimeUnit.MINUTES.toNanos(2);
+    private static final long ACCEPTED_TIMEOUT  = TimeUnit.MINUTES.toNanos(1);
+    private static final long IDLE_TIMEOUT      = TimeUnit.MINUTES.toNanos(10);
+
+    private final RumbleProtocol     protocol;
+    private final NetworkCoordinator networkCoordinator;
+    private final Handler            handler;
+
+    private final ConcurrentMap<String, RumbleStateMachine> states;
+    private boolean running;
+
+    public RumbleStateRegistry(RumbleProtocol protocol, NetworkCoordinator networkCoordinator) {
+        this.protocol = protocol;
+        this.networkCoordinator = networkCoordinator;
+        this.handler = new Handler(networkCoordinator.getServiceLooper());
+        this.states  = new ConcurrentHashMap<String, RumbleStateMachine>();
+        this.running = false;
+    }
+
+    public void start() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(running)
+                    return;
+                running = true;
+                handler.postDelayed(reaper, REAPER_PERIOD);
+            }
+        });
+    }
+
+    public void stop() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                running = false;
+                handler.removeCallbacks(reaper);
+                states.clear();
+                publish();
+            }
+        });
+    }
+
+    public RumbleStateMachine get(String linkLayerAddress) {
+        while(true) {
+            RumbleStateMachine state = states.get(linkLayerAddress);
+            if (state == null) {
+                state = new RumbleStateMachine();
+                RumbleStateMachine previous = states.putIfAbsent(linkLayerAddress, state);
+                if (previous == null)
+                    return state;
+                state = previous;
+            }
+            if (!state.isRetired())
+                return state;
+            states.remove(linkLayerAddress, state);
+        }
+    }
+
+    /*
+     * the neighbour is gone, we forget its state unless a connection is still ongoing
+     */
+    public void remove(String linkLayerAddress) {
+        RumbleStateMachine state = states.get(linkLayerAddress);
+        if(state == null)
+            return;
+        if(state.retire(state.getSnapshot()))
+            states.remove(linkLayerAddress, state);
+    }
+
+    private final Runnable reaper = new Runnable() {
+        @Override
+        public void run() {
+            if(!running)
+                return;
+            reap();
+            publish();
+            handler.postDelayed(reaper, REAPER_PERIOD);
+        }
+    };
+
+    private void reap() {
+        long now = System.nanoTime();
+        for(Iterator<Map.Entry<String, RumbleStateMachine>> it = states.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, RumbleStateMachine> entry = it.next();
+            RumbleStateMachine state = entry.getValue();
+            RumbleStateMachine.Snapshot snapshot = state.getSnapshot();
+            long age = now - snapshot.since;
+            switch (snapshot.state) {
+                case CONNECTION_SCHEDULED:
+                    if((age > SCHEDULED_TIMEOUT) && state.reset(snapshot)) {
+                        Log.d(TAG, "[-] reaping stuck state of " + entry.getKey()
+                                + " (" + snapshot.workerID + ")");
+                        stopWorker(snapshot.workerID);
+                        protocol.getConnectionScheduler().connectionEnded(entry.getKey(), true);
+                        MetricRegistry.getInstance().counter(MetricRegistry.RUMBLE_STATE_REAPED).inc();
+                    }
+                    break;
+                case CONNECTION_ACCEPTED:
+                    if((age > ACCEPTED_TIMEOUT) && state.reset(snapshot)) {
+                        Log.d(TAG, "[-] reaping stuck state of " + entry.getKey()
+                                + " (" + snapshot.workerID + ")");
+                        stopWorker(snapshot.workerID);
+                        MetricRegistry.getInstance().counter(MetricRegistry.RUMBLE_STATE_REAPED).inc();
+                    }
+                    break;
+                case NOT_CONNECTED:
+                    if((age > IDLE_TIMEOUT) && state.retire(snapshot))
+                        it.remove();
+                    break;
+                case CONNECTED:
+                default:
+                    break;
+            }
+        }
+    }
+
+    /* the worker identifier does not tell which pool it belongs to */
+    private void stopWorker(String workerID) {
+        if(workerID == null)
+            return;
+        networkCoordinator.stopWorker(BluetoothLinkLayerAdapter.LinkLayerIdentifier, workerID);
+        networkCoordinator.stopWorker(WifiLinkLayerAdapter.LinkLayerIdentifier, workerID);
+        networkCoordinator.stopWorker(LoopbackLinkLayerAdapter.LinkLayerIdentifier, workerID);
+    }
+
+    private void publish() {
+        int[] count = new int[RumbleStateMachine.RumbleState.values().length];
+        for(RumbleStateMachine state : states.values())
+            count[state.getState().ordinal()]++;
+        for(RumbleStateMachine.RumbleState state : RumbleStateMachine.RumbleState.values())
+            MetricRegistry.getInstance().gauge(MetricRegistry.RUMBLE_STATE_PREFIX
+                    + state.name().toLowerCase()).set(count[state.ordinal()]);
+    }
+}
@@ -52,4 +52,21 @@ public abstract class Block {
 
     public abstract void dismiss();
 
+    /*
+     * a stream (a socket, a cipher stream) may return less bytes than asked for even though
+     * the rest of the block is on its way, so we read until the buffer is full. Returns the
+     * number of bytes read, which is less than length only if the end of stream has been
+     * reached, or -1 if it was reached before any byte.
+     */
+    static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int count = 0;
+        while(count < length) {
+            int read = in.read(buffer, count, length - count);
+            if(read < 0)
+                return (count == 0) ? -1 : count;
+            count += read;
+        }
+        return count;
+    }
+
 }
@@ -115,7 +115,7 @@ public class BlockChatMessage extends Block {
         /* read the block */
         long readleft = header.getBlockLength();
         byte[] blockBuffer = new byte[(int)header.getBlockLength()];
-        int count = in.read(blockBuffer, 0, (int)header.getBlockLength());
+        int count = readFully(in, blockBuffer, (int)header.getBlockLength());
         if (count < 0)
             throw new IOException("end of stream reached");
         if (count < (int)header.getBlockLength())
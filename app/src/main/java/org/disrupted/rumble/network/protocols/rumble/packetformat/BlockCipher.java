@@ -169,7 +169,7 @@ public class BlockCipher extends Block {
         /* read the entire block into a block buffer */
         long readleft = header.getBlockLength();
         byte[] blockBuffer = new byte[(int) header.getBlockLength()];
-        int count = in.read(blockBuffer, 0, (int) header.getBlockLength());
+        int count = readFully(in, blockBuffer, (int) header.getBlockLength());
         if (count < 0)
             throw new IOException("end of stream reached");
         if (count < (int) header.getBlockLength())
@@ -0,0 +1,121 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.rumble.packetformat;
+
+import org.disrupted.rumble.network.protocols.rumble.packetformat.exceptions.MalformedBlockPayload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * BlockCompression deflates the payload of a block before it is sent (and encrypted if the
+ * block belongs to a private group). A compressed block has its compressed flag set in the
+ * BlockHeader and the Block Length is the length of the compressed payload.
+ *
+ * Compression is only used once the peer has announced a version that supports it
+ * (see EncodingContext) and only for the blocks that carry text (status, contact, chat
+ * message). The BlockFile carries JPEG pictures that are already compressed and is thus
+ * never compressed. A payload smaller than COMPRESSION_THRESHOLD is sent as is, and so is
+ * any payload that would not get any smaller.
+ */
+public class BlockCompression {
+
+    public static final int COMPRESSION_THRESHOLD = 128;
+
+    /* upper bound of an inflated payload, each block still checks its own size afterward */
+    private static final int MAX_INFLATED_SIZE = 65536;
+
+    private BlockCompression() {
+    }
+
+    public static boolean isCompressible(int blockType) {
+        switch (blockType) {
+            case BlockHeader.BLOCKTYPE_PUSH_STATUS:
+            case BlockHeader.BLOCKTYPE_CONTACT:
+            case BlockHeader.BLOCKTYPE_CHAT_MESSAGE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * returns the deflated payload or null if it is not worth compressing it
+     */
+    public static byte[] deflate(byte[] buffer, int offset, int length) {
+        if(length < COMPRESSION_THRESHOLD)
+            return null;
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(buffer, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+            byte[] chunk = new byte[1024];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                out.write(chunk, 0, count);
+                if(out.size() >= length)
+                    return null;
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /*
+     * reads exactly compressedLength bytes from the stream and returns the inflated payload
+     */
+    public static byte[] inflate(InputStream in, int compressedLength) throws MalformedBlockPayload, IOException {
+        if((compressedLength <= 0) || (compressedLength > MAX_INFLATED_SIZE))
+            throw new MalformedBlockPayload("wrong compressed length parameter: "+compressedLength, 0);
+
+        byte[] compressed = new byte[compressedLength];
+        int count = 0;
+        while(count < compressedLength) {
+            int read = in.read(compressed, count, compressedLength - count);
+            if (read < 0)
+                throw new IOException("end of stream reached");
+            count += read;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressedLength * 4);
+            byte[] chunk = new byte[1024];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(chunk);
+                if((inflated == 0) && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new MalformedBlockPayload("truncated compressed payload", count);
+                out.write(chunk, 0, inflated);
+                if(out.size() > MAX_INFLATED_SIZE)
+                    throw new MalformedBlockPayload("inflated payload is too big", count);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new MalformedBlockPayload("corrupted compressed payload: "+e.getMessage(), count);
+        } finally {
+            inflater.end();
+        }
+    }
+}
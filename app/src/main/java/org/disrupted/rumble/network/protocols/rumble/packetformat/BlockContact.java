@@ -42,7 +42,9 @@ import java.nio.ReadOnlyBufferException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import de.greenrobot.event.EventBus;
 
@@ -90,6 +92,41 @@ import de.greenrobot.event.EventBus;
  * | KEY_TYPE |            KEY                 |
  * +----------+--------------------------------+
  *
+ * ENTRY TYPE VERSION
+ * +-------------------------------------------+
+ * |               Version                     |   8 byte
+ * +-------------------------------------------+
+ * |               Base Version                |   8 byte
+ * +-------------------------------------------+
+ *
+ * ENTRY TYPE GROUP REMOVED
+ * +-------------------------------------------+
+ * |               Group ID                    |   8 byte Group GID
+ * +-------------------------------------------+
+ *
+ * ENTRY TYPE TAG REMOVED
+ * +-------------------------------------------+
+ * |               hashtag                     |   hashtag
+ * +-------------------------------------------+
+ *
+ * ENTRY TYPE ACK
+ * +-------------------------------------------+
+ * |             Answered Version              |   8 byte
+ * +-------------------------------------------+
+ * |           Acknowledged Version            |   8 byte
+ * +-------------------------------------------+
+ *
+ * If the base version is 0, the block is a snapshot of the contact information and the
+ * GROUP and TAG entries are the complete lists. Otherwise it is a delta from the base version
+ * (that the receiver acknowledged) and GROUP and TAG entries are the groups joined and the
+ * interests updated since then, the removed ones being carried by the REMOVED entries.
+ * A block without VERSION entry is a snapshot sent by an older peer.
+ *
+ * The ACK entry answers a version of the receiver information and carries the version the
+ * sender of the block holds since then, the receiver uses it as the base of its next deltas.
+ * If they differ the answered version was rejected (a delta on another base) or outdated,
+ * an acknowledged version of 0 means that a snapshot is needed.
+ *
  * @author Lucien Loiseau
  */
 public class BlockContact extends Block {
@@ -111,8 +148,25 @@ public class BlockContact extends Block {
     public Contact contact;
     public int     flags;
 
+    /* versioning, see ENTRY TYPE VERSION */
+    public long        version;
+    public long        baseVersion;
+    public Set<String> removedGroupIDs;
+    public Set<String> removedHashtags;
+    public long        answeredVersion;
+    public long        acknowledgedVersion;
+
+    private CommandSendLocalInformation command;
+
     public BlockContact(BlockHeader header) {
         super(header);
+        this.version = 0;
+        this.baseVersion = 0;
+        this.removedGroupIDs = new HashSet<String>();
+        this.removedHashtags = new HashSet<String>();
+        this.answeredVersion = -1;
+        this.acknowledgedVersion = -1;
+        this.command = null;
     }
 
     public BlockContact(CommandSendLocalInformation command) {
@@ -120,6 +174,17 @@ public class BlockContact extends Block {
         header.setBlockType(BlockHeader.BLOCKTYPE_CONTACT);
         this.contact = command.getContact();
         this.flags   = command.getFlags();
+        this.version = command.getVersion();
+        this.baseVersion = command.getBaseVersion();
+        this.removedGroupIDs = command.getRemovedGroupIDs();
+        this.removedHashtags = command.getRemovedHashtags();
+        this.answeredVersion = command.getAnsweredVersion();
+        this.acknowledgedVersion = command.getAcknowledgedVersion();
+        this.command = command;
+    }
+
+    public boolean isDelta() {
+        return baseVersion > 0;
     }
 
     public void sanityCheck() throws MalformedBlockPayload {
@@ -137,7 +202,7 @@ public class BlockContact extends Block {
         /* read the block */
         long readleft = header.getBlockLength();
         byte[] blockBuffer = new byte[(int)header.getBlockLength()];
-        int count = in.read(blockBuffer, 0, (int)header.getBlockLength());
+        int count = readFully(in, blockBuffer, (int)header.getBlockLength());
         if (count < 0)
             throw new IOException("end of stream reached");
         if (count <  (int)header.getBlockLength())
@@ -190,6 +255,30 @@ public class BlockContact extends Block {
                         contact.addTagInterest(((TagInterestEntry)entry).hashtag, ((TagInterestEntry)entry).levelOfInterest);
                         this.flags |= Contact.FLAG_TAG_INTEREST;
                         break;
+                    case Entry.ENTRY_TYPE_VERSION:
+                        entry = new VersionEntry(entrySize);
+                        entry.read(byteBuffer);
+                        this.version = ((VersionEntry)entry).version;
+                        this.baseVersion = ((VersionEntry)entry).baseVersion;
+                        break;
+                    case Entry.ENTRY_TYPE_ACK:
+                        entry = new AckEntry(entrySize);
+                        entry.read(byteBuffer);
+                        this.answeredVersion = ((AckEntry)entry).answeredVersion;
+                        this.acknowledgedVersion = ((AckEntry)entry).acknowledgedVersion;
+                        break;
+                    case Entry.ENTRY_TYPE_GROUP_REMOVED:
+                        entry = new GroupEntry(Entry.ENTRY_TYPE_GROUP_REMOVED, entrySize);
+                        entry.read(byteBuffer);
+                        removedGroupIDs.add(((GroupEntry)entry).group_id_base64);
+                        this.flags |= Contact.FLAG_GROUP_LIST;
+                        break;
+                    case Entry.ENTRY_TYPE_TAG_REMOVED:
+                        entry = new TagRemovedEntry(entrySize);
+                        entry.read(byteBuffer);
+                        removedHashtags.add(((TagRemovedEntry)entry).hashtag);
+                        this.flags |= Contact.FLAG_TAG_INTEREST;
+                        break;
                     default:
                         entry = new NullEntry(entrySize);
                         entry.read(byteBuffer);
@@ -218,20 +307,33 @@ public class BlockContact extends Block {
         int buffersize = MIN_PAYLOAD_SIZE;
         buffersize += author_name.length;
 
+        if(version > 0)
+            entries.add(new VersionEntry(version, baseVersion));
+        if(acknowledgedVersion >= 0)
+            entries.add(new AckEntry(answeredVersion, acknowledgedVersion));
+
+        /* a delta only carries what changed since the base version */
+        Map<String, Integer> hashtags = isDelta() ? command.getUpdatedHashtags() : contact.getHashtagInterests();
+        Set<String>          groups   = isDelta() ? command.getAddedGroupIDs()   : contact.getJoinedGroupIDs();
+
         if((flags & Contact.FLAG_TAG_INTEREST) == Contact.FLAG_TAG_INTEREST) {
-            for (Map.Entry<String, Integer> entry : contact.getHashtagInterests().entrySet()) {
-                TagInterestEntry bufferEntry = new TagInterestEntry(entry.getKey(), entry.getValue().byteValue());
-                entries.add(bufferEntry);
-                buffersize += bufferEntry.getEntrySize();
+            for (Map.Entry<String, Integer> entry : hashtags.entrySet())
+                entries.add(new TagInterestEntry(entry.getKey(), entry.getValue().byteValue()));
+            if(isDelta()) {
+                for (String hashtag : removedHashtags)
+                    entries.add(new TagRemovedEntry(hashtag));
             }
         }
         if((flags & Contact.FLAG_GROUP_LIST) == Contact.FLAG_GROUP_LIST) {
-            for (String gid : contact.getJoinedGroupIDs()) {
-                GroupEntry bufferEntry = new GroupEntry(gid);
-                entries.add(bufferEntry);
-                buffersize += bufferEntry.getEntrySize();
+            for (String gid : groups)
+                entries.add(new GroupEntry(Entry.ENTRY_TYPE_GROUP, gid));
+            if(isDelta()) {
+                for (String gid : removedGroupIDs)
+                    entries.add(new GroupEntry(Entry.ENTRY_TYPE_GROUP_REMOVED, gid));
             }
         }
+        for( Entry entry : entries )
+            buffersize += entry.getEntrySize();
         header.setPayloadLength(buffersize);
 
         /* prepare the block payload buffer */
@@ -279,6 +381,10 @@ public class BlockContact extends Block {
         public static final int ENTRY_TYPE_GROUP   = 0x01;
         public static final int ENTRY_TYPE_TAG     = 0x02;
         public static final int ENTRY_TYPE_PUB_KEY = 0x03;
+        public static final int ENTRY_TYPE_VERSION = 0x04;
+        public static final int ENTRY_TYPE_GROUP_REMOVED = 0x05;
+        public static final int ENTRY_TYPE_TAG_REMOVED   = 0x06;
+        public static final int ENTRY_TYPE_ACK           = 0x07;
 
         /* Entry payload size (without EntryHeader) */
         int entrySize;
@@ -318,7 +424,7 @@ public class BlockContact extends Block {
 
 
     /*
-     * ENTRY TYPE GROUP: (Header + Payload)
+     * ENTRY TYPE GROUP and GROUP REMOVED: (Header + Payload)
      * +-------+--------+-------------------------------------------+
      * | TYPE  | length |        Group ID                           |
      * +-------+--------+-------------------------------------------+
@@ -326,17 +432,24 @@ public class BlockContact extends Block {
      */
     private class GroupEntry  extends Entry {
 
+        private int    type;
         private String group_id_base64;
 
         public GroupEntry(int entrySize) throws MalformedBlockPayload{
+            this(ENTRY_TYPE_GROUP, entrySize);
+        }
+
+        public GroupEntry(int type, int entrySize) throws MalformedBlockPayload{
             super(entrySize);
             if((entrySize < 0) || (entrySize > (Group.GROUP_GID_RAW_SIZE)))
                 throw new MalformedBlockPayload("wrong group entry size ",entrySize);
+            this.type = type;
             this.group_id_base64 = null;
         }
 
-        public GroupEntry(String gid){
+        public GroupEntry(int type, String gid){
             super(Group.GROUP_GID_RAW_SIZE);
+            this.type = type;
             this.group_id_base64 = gid;
         }
 
@@ -351,7 +464,7 @@ public class BlockContact extends Block {
         @Override
         public long write(ByteBuffer buffer) throws BufferOverflowException, ReadOnlyBufferException{
             /* write entry header */
-            buffer.put((byte)ENTRY_TYPE_GROUP);
+            buffer.put((byte)type);
             buffer.put((byte)entrySize);
 
             /* write entry payload */
@@ -415,4 +528,128 @@ public class BlockContact extends Block {
             return (HEADER_SIZE+TAG_INTEREST_SIZE+(byte)hashtagBytes.length);
         }
     }
+
+    /*
+     * ENTRY TYPE VERSION (Header + Payload)
+     * +-------+----------+------------------------+------------------------+
+     * | TYPE  |  length  |       Version          |     Base Version       |
+     * +-------+----------+------------------------+------------------------+
+     *     1       1                8                         8
+     */
+    private class VersionEntry extends Entry {
+        public static final int  VERSION_SIZE = 16;
+
+        private long version;
+        private long baseVersion;
+
+        public VersionEntry(int entrySize)  throws MalformedBlockPayload {
+            super(entrySize);
+            if(entrySize != VERSION_SIZE)
+                throw new MalformedBlockPayload("wrong Version entry size",entrySize);
+        }
+
+        public VersionEntry(long version, long baseVersion) {
+            super(VERSION_SIZE);
+            this.version = version;
+            this.baseVersion = baseVersion;
+        }
+
+        @Override
+        public long read(ByteBuffer buffer) throws IndexOutOfBoundsException, BufferUnderflowException, MalformedBlockPayload{
+            this.version = buffer.getLong();
+            this.baseVersion = buffer.getLong();
+            return VERSION_SIZE;
+        }
+
+        @Override
+        public long write(ByteBuffer buffer) throws BufferOverflowException, ReadOnlyBufferException{
+            buffer.put((byte)ENTRY_TYPE_VERSION);
+            buffer.put((byte)entrySize);
+            buffer.putLong(version);
+            buffer.putLong(baseVersion);
+            return (HEADER_SIZE+VERSION_SIZE);
+        }
+    }
+
+    /*
+     * ENTRY TYPE ACK (Header + Payload)
+     * +-------+----------+------------------------+------------------------+
+     * | TYPE  |  length  |    Answered Version    |  Acknowledged Version  |
+     * +-------+----------+------------------------+------------------------+
+     *     1       1                8                         8
+     */
+    private class AckEntry extends Entry {
+        public static final int  ACK_SIZE = 16;
+
+        private long answeredVersion;
+        private long acknowledgedVersion;
+
+        public AckEntry(int entrySize)  throws MalformedBlockPayload {
+            super(entrySize);
+            if(entrySize != ACK_SIZE)
+                throw new MalformedBlockPayload("wrong Ack entry size",entrySize);
+        }
+
+        public AckEntry(long answeredVersion, long acknowledgedVersion) {
+            super(ACK_SIZE);
+            this.answeredVersion = answeredVersion;
+            this.acknowledgedVersion = acknowledgedVersion;
+        }
+
+        @Override
+        public long read(ByteBuffer buffer) throws IndexOutOfBoundsException, BufferUnderflowException, MalformedBlockPayload{
+            this.answeredVersion = buffer.getLong();
+            this.acknowledgedVersion = buffer.getLong();
+            return ACK_SIZE;
+        }
+
+        @Override
+        public long write(ByteBuffer buffer) throws BufferOverflowException, ReadOnlyBufferException{
+            buffer.put((byte)ENTRY_TYPE_ACK);
+            buffer.put((byte)entrySize);
+            buffer.putLong(answeredVersion);
+            buffer.putLong(acknowledgedVersion);
+            return (HEADER_SIZE+ACK_SIZE);
+        }
+    }
+
+    /*
+     * ENTRY TYPE TAG REMOVED (Header + Payload)
+     * +-------+----------+-------------------------------------------+
+     * | TYPE  |  length  |                 hashtag                   |
+     * +-------+----------+-------------------------------------------+
+     *     1       1                    length
+     */
+    private class TagRemovedEntry extends Entry {
+
+        private String hashtag;
+
+        public TagRemovedEntry(int entrySize)  throws MalformedBlockPayload {
+            super(entrySize);
+            if((entrySize < 1) || (entrySize > PushStatus.STATUS_HASHTAG_MAX_SIZE))
+                throw new MalformedBlockPayload("wrong TagRemoved entry size",entrySize);
+            this.hashtag = null;
+        }
+
+        public TagRemovedEntry(String hashtag) {
+            super(hashtag.getBytes(Charset.forName("UTF-8")).length);
+            this.hashtag = hashtag;
+        }
+
+        @Override
+        public long read(ByteBuffer buffer) throws IndexOutOfBoundsException, BufferUnderflowException, MalformedBlockPayload{
+            byte[] hashtagBytes = new byte[entrySize];
+            buffer.get(hashtagBytes,0,entrySize);
+            this.hashtag = new String(hashtagBytes, Charset.forName("UTF-8"));
+            return entrySize;
+        }
+
+        @Override
+        public long write(ByteBuffer buffer) throws BufferOverflowException, ReadOnlyBufferException{
+            buffer.put((byte)ENTRY_TYPE_TAG_REMOVED);
+            buffer.put((byte)entrySize);
+            buffer.put(hashtag.getBytes(Charset.forName("UTF-8")), 0, entrySize);
+            return (HEADER_SIZE+entrySize);
+        }
+    }
 }
@@ -107,7 +107,7 @@ public class BlockFile extends Block {
         /* read the block pseudo header */
         long readleft = header.getBlockLength();
         byte[] pseudoHeaderBuffer = new byte[MIN_PAYLOAD_SIZE];
-        int count = in.read(pseudoHeaderBuffer, 0, MIN_PAYLOAD_SIZE);
+        int count = readFully(in, pseudoHeaderBuffer, MIN_PAYLOAD_SIZE);
         if (count < 0)
             throw new IOException("end of stream reached");
         if (count < MIN_PAYLOAD_SIZE)
@@ -0,0 +1,105 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.rumble.packetformat;
+
+import android.util.Base64;
+
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.network.linklayer.exception.InputOutputStreamException;
+import org.disrupted.rumble.network.protocols.command.CommandSendFileRequest;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.exceptions.MalformedBlockPayload;
+import org.disrupted.rumble.util.EncryptedOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Starting with BlockHeader.VERSION_ID_4, a status whose attached file is content-addressed
+ * (see AttachmentStore) is sent without its BlockFile: the filename carried by the
+ * BlockPushStatus is the offer. If the receiver does not have this file yet, it sends back
+ * a BlockFileRequest and the sender answers with the BlockFile alone (in a new bundle,
+ * encrypted if the group is private). A peer that already has the content never downloads
+ * it again.
+ *
+ * +-------------------------------------------+
+ * |            Attached Status                |  16 bytes
+ * |                 UID                       |
+ * +-------------------------------------------+
+ */
+public class BlockFileRequest extends Block {
+
+    public static final String TAG = "BlockFileRequest";
+
+    /* Field Byte size */
+    private static final int FIELD_STATUS_ID_SIZE = PushStatus.STATUS_ID_RAW_SIZE;
+
+    /* Block Attributes */
+    public String status_id_base64;
+
+    public BlockFileRequest(BlockHeader header) {
+        super(header);
+        status_id_base64 = null;
+    }
+
+    public BlockFileRequest(CommandSendFileRequest command) {
+        super(new BlockHeader());
+        header.setBlockType(BlockHeader.BLOCKTYPE_FILE_REQUEST);
+        header.setPayloadLength(FIELD_STATUS_ID_SIZE);
+        this.status_id_base64 = command.getStatusUuid();
+    }
+
+    public void sanityCheck() throws MalformedBlockPayload {
+        if(header.getBlockType() != BlockHeader.BLOCKTYPE_FILE_REQUEST)
+            throw new MalformedBlockPayload("Block type BLOCKTYPE_FILE_REQUEST expected", 0);
+        if(header.getBlockLength() != FIELD_STATUS_ID_SIZE)
+            throw new MalformedBlockPayload("wrong payload size: "+header.getBlockLength(), 0);
+    }
+
+    @Override
+    public long readBlock(InputStream in) throws MalformedBlockPayload, IOException, InputOutputStreamException {
+        sanityCheck();
+
+        byte[] uid = new byte[FIELD_STATUS_ID_SIZE];
+        int count = readFully(in, uid, FIELD_STATUS_ID_SIZE);
+        if (count < 0)
+            throw new IOException("end of stream reached");
+        if (count < FIELD_STATUS_ID_SIZE)
+            throw new MalformedBlockPayload("read less bytes than expected: "+count, count);
+
+        BlockDebug.d(TAG, "BlockFileRequest received (" + count + " bytes): " + Arrays.toString(uid));
+        status_id_base64 = Base64.encodeToString(uid, 0, FIELD_STATUS_ID_SIZE, Base64.NO_WRAP);
+        return count;
+    }
+
+    @Override
+    public long writeBlock(OutputStream out, EncryptedOutputStream eos) throws IOException, InputOutputStreamException {
+        byte[] uid = Base64.decode(status_id_base64, Base64.NO_WRAP);
+        if(uid.length != FIELD_STATUS_ID_SIZE)
+            throw new IOException("wrong status uid size: "+uid.length);
+
+        header.writeBlockHeader(out);
+        out.write(uid, 0, FIELD_STATUS_ID_SIZE);
+        BlockDebug.d(TAG, "BlockFileRequest sent (" + uid.length + " bytes): " + Arrays.toString(uid));
+        return BlockHeader.BLOCK_HEADER_LENGTH + FIELD_STATUS_ID_SIZE;
+    }
+
+    @Override
+    public void dismiss() {
+    }
+}
@@ -38,13 +38,19 @@ import java.util.Arrays;
  *     ____/                      \___________________
  *    /                                               \
  *    +-----------------------+--+--+--+--+--+--+--+--+
- *    |   Transaction Type    | R| R| R| R| R| R| R| R|
+ *    |   Transaction Type    | C| R| R| R| R| R| E| L|
  *    +-----------------------+--+--+--+--+--+--+--+--+
  *     0  1  2  3  4  5  6  7  8  9  1  1  1  1  1  1
  *                                   0  1  2  3  4  5
  *
+ * -- Version: the highest version supported by the sender, except for the blocks which
+ *              encoding depends on the version (BlockPushStatus) in which case it is the
+ *              version used to encode the block (see EncodingContext)
  * -- Type: the type of the current block
+ * -- C: the payload is compressed, Block Length is then the length of the compressed payload
  * -- R: Reserved
+ * -- E: the payload is encrypted
+ * -- L: last block of the bundle
  * -- Block Type: type of the payload
  * -- Block Length: the length of the Following Block
  *
@@ -53,7 +59,11 @@ import java.util.Arrays;
 public class BlockHeader {
 
     private static final String TAG = "BlockHeader";
-    private static final int VERSION_ID = 1;
+    public static final int VERSION_ID_1 = 1;
+    public static final int VERSION_ID_2 = 2; // compact BlockPushStatus encoding
+    public static final int VERSION_ID_3 = 3; // compressed payloads (see BlockCompression)
+    public static final int VERSION_ID_4 = 4; // content-addressed attached files (see BlockFileRequest)
+    public static final int VERSION_ID   = VERSION_ID_4;
 
     /* header field size */
     private static final int VERSION_BITSIZE     = 8;        // sizeof byte
@@ -93,6 +103,7 @@ public class BlockHeader {
     public static final int BLOCKTYPE_CONTACT       = 0x03;
     public static final int BLOCKTYPE_CHAT_MESSAGE  = 0x04;
     public static final int BLOCK_CIPHER            = 0x05;
+    public static final int BLOCKTYPE_FILE_REQUEST  = 0x06;
     public static final int BLOCK_NULL              = 0xff;
 
     public BlockHeader() {
@@ -114,7 +125,7 @@ public class BlockHeader {
         BlockHeader ret = new BlockHeader();
         byte[] headerBuffer = new byte[BLOCK_HEADER_LENGTH];
 
-        int count = in.read(headerBuffer, 0, BLOCK_HEADER_LENGTH);
+        int count = Block.readFully(in, headerBuffer, BLOCK_HEADER_LENGTH);
         if (count < 0)
             throw new IOException("end of stream reached");
         if (count < BLOCK_HEADER_LENGTH)
@@ -174,7 +185,7 @@ public class BlockHeader {
     public int getTransaction() {   return transaction_type; }
     public int getBlockType()   {   return block_type;   }
     public long getBlockLength() {   return payload_length; }
-    public boolean isReserved0() {   return reserved0; }
+    public boolean isCompressed() {  return reserved0; }
     public boolean isReserved1() {   return reserved1; }
     public boolean isReserved2() {   return reserved2; }
     public boolean isReserved3() {   return reserved3; }
@@ -186,7 +197,7 @@ public class BlockHeader {
     public void setVersion(int version)         {  this.version = version;  }
     public void setTransaction(int transaction_type)   {  this.transaction_type = transaction_type;   }
     public void setBlockType(int type)          {  this.block_type = type;   }
-    public void setReserved0(boolean reserved0) {  this.reserved0 = reserved0; }
+    public void setCompressed(boolean reserved0) { this.reserved0 = reserved0; }
     public void setReserved1(boolean reserved1) {  this.reserved1 = reserved1; }
     public void setReserved2(boolean reserved2) {  this.reserved2 = reserved2; }
     public void setReserved3(boolean reserved3) {  this.reserved3 = reserved3; }
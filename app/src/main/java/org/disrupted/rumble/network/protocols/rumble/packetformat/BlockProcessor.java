@@ -20,12 +20,16 @@ package org.disrupted.rumble.network.protocols.rumble.packetformat;
 import org.disrupted.rumble.util.Log;
 
 import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.AttachmentStore;
 import org.disrupted.rumble.database.DatabaseFactory;
 import org.disrupted.rumble.database.objects.Group;
 import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.database.statistics.metrics.MetricRegistry;
 import org.disrupted.rumble.network.linklayer.UnicastConnection;
 import org.disrupted.rumble.network.linklayer.exception.InputOutputStreamException;
 import org.disrupted.rumble.network.protocols.ProtocolChannel;
+import org.disrupted.rumble.network.protocols.command.CommandSendFile;
+import org.disrupted.rumble.network.protocols.command.CommandSendFileRequest;
 import org.disrupted.rumble.network.protocols.events.ChatMessageReceived;
 import org.disrupted.rumble.network.protocols.events.ContactInformationReceived;
 import org.disrupted.rumble.network.protocols.events.FileReceived;
@@ -34,11 +38,14 @@ import org.disrupted.rumble.network.protocols.rumble.RumbleProtocol;
 import org.disrupted.rumble.network.protocols.rumble.packetformat.exceptions.MalformedBlock;
 import org.disrupted.rumble.util.EncryptedInputStream;
 import org.disrupted.rumble.util.CryptoUtil;
+import org.disrupted.rumble.util.FileUtil;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-
-import de.greenrobot.event.EventBus;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * @author Lucien Loiseau
@@ -51,13 +58,27 @@ public class BlockProcessor {
     private InputStream in;
     private ProtocolChannel channel;
 
+    private MetricRegistry metrics;
+    private EncodingContext context;
+    private long wireLength;
+
+    /* content-addressed files requested on this connection, status uuid -> filename (see BlockFileRequest) */
+    private Map<String, String> requestedFiles;
+
     /* bundle context, reset at the end of every bundle (when last_block flag is set) */
     private EncryptedInputStream eis;
     private BlockPushStatus blockPushStatus;
 
     public BlockProcessor(InputStream in, ProtocolChannel channel) {
+        this(in, channel, new EncodingContext());
+    }
+
+    public BlockProcessor(InputStream in, ProtocolChannel channel, EncodingContext context) {
         this.in = in;
         this.channel = channel;
+        this.context = context;
+        this.metrics = MetricRegistry.getInstance();
+        this.requestedFiles = new HashMap<String, String>();
         resetContext();
     }
 
@@ -71,27 +92,82 @@ public class BlockProcessor {
         blockPushStatus = null;
     }
 
+    private void blockReceived(String type, long bytes, long timeToTransfer) {
+        /* a compressed block is accounted for the bytes that were actually received */
+        if(wireLength >= 0)
+            bytes = wireLength;
+        long elapsed = System.nanoTime() - timeToTransfer;
+        channel.bytes_received += bytes;
+        channel.in_transmission_time += elapsed;
+        metrics.histogram(MetricRegistry.BLOCK_DECODE_PREFIX+type).record(elapsed);
+        metrics.linkReceived(channel.getLinkLayerIdentifier(), bytes, elapsed);
+    }
+
+    /*
+     * the file offered along with a status is only requested if we belong to the group and
+     * do not already have the content
+     */
+    private void fileOffered(BlockPushStatus blockStatus) {
+        String filename = blockStatus.status.getFileName();
+        if(AttachmentStore.getInstance().contains(filename) || requestedFiles.containsValue(filename))
+            return;
+        Group group = DatabaseFactory.getGroupDatabase(RumbleApplication.getContext())
+                .getGroup(blockStatus.group_id_base64);
+        if(group == null)
+            return;
+        String uuid = blockStatus.status.getUuid();
+        requestedFiles.put(uuid, filename);
+        if(!channel.executeNonBlocking(new CommandSendFileRequest(uuid)))
+            requestedFiles.remove(uuid);
+    }
+
+    /*
+     * a file we did not request is dropped, otherwise any peer could attach a file to (or
+     * replace the attachment of) a status it does not own
+     */
+    private void discardFile(String filename) {
+        if((filename == null) || filename.equals(""))
+            return;
+        try {
+            File toDelete = new File(FileUtil.getWritableAlbumStorageDir(), filename);
+            toDelete.delete();
+        } catch (IOException ignore) {
+        }
+    }
+
     public void processBlock(BlockHeader header) throws IOException, InputOutputStreamException, MalformedBlock {
         long timeToTransfer = System.nanoTime();
 
+        context.peerVersionReceived(header.getVersion());
+        wireLength = -1;
+
         if(header.isEncrypted() && (eis == null)) {
             BlockNull nullBlock = new BlockNull(header);
-            channel.bytes_received += nullBlock.readBlock(in);
-            channel.in_transmission_time += (System.nanoTime() - timeToTransfer);
+            blockReceived("null", nullBlock.readBlock(in), timeToTransfer);
         } else {
             InputStream is = in;
             if(header.isEncrypted()) {
                 eis.setLimit((int)header.getBlockLength());
                 is = eis;
             }
+            if(header.isCompressed()) {
+                if(!BlockCompression.isCompressible(header.getBlockType()))
+                    throw new MalformedBlock("block type cannot be compressed: " + header.getBlockType(), 0);
+                wireLength = header.getBlockLength();
+                byte[] payload = BlockCompression.inflate(is, (int)header.getBlockLength());
+                header.setCompressed(false);
+                header.setPayloadLength(payload.length);
+                is = new ByteArrayInputStream(payload);
+            }
             switch (header.getBlockType()) {
                 case BlockHeader.BLOCKTYPE_PUSH_STATUS:
-                    BlockPushStatus blockStatus = new BlockPushStatus(header);
-                    channel.bytes_received += blockStatus.readBlock(is);
-                    channel.in_transmission_time += (System.nanoTime() - timeToTransfer);
-                    if(!blockStatus.status.hasAttachedFile()) {
+                    BlockPushStatus blockStatus = new BlockPushStatus(header, context);
+                    blockReceived("push_status", blockStatus.readBlock(is), timeToTransfer);
+                    if(blockStatus.isFileOffered())
+                        fileOffered(blockStatus);
+                    if(!blockStatus.status.hasAttachedFile() || blockStatus.isFileOffered()) {
                         channel.status_received++;
-                        EventBus.getDefault().post(new PushStatusReceived(
+                        metrics.timedPost(new PushStatusReceived(
                                         blockStatus.status,
                                         blockStatus.group_id_base64,
                                         blockStatus.sender_id_base64,
@@ -106,11 +182,10 @@ public class BlockProcessor {
                     break;
                 case BlockHeader.BLOCKTYPE_FILE:
                     BlockFile blockFile = new BlockFile(header);
-                    channel.bytes_received += blockFile.readBlock(is);
-                    channel.in_transmission_time += (System.nanoTime() - timeToTransfer);
+                    blockReceived("file", blockFile.readBlock(is), timeToTransfer);
                     if(blockPushStatus != null) {
                         channel.status_received++;
-                        EventBus.getDefault().post(new PushStatusReceived(
+                        metrics.timedPost(new PushStatusReceived(
                                         blockPushStatus.status,
                                         blockPushStatus.group_id_base64,
                                         blockPushStatus.sender_id_base64,
@@ -118,45 +193,57 @@ public class BlockProcessor {
                                         RumbleProtocol.protocolID,
                                         channel.getLinkLayerIdentifier())
                         );
-                    } else {
-                        EventBus.getDefault().post(new FileReceived(
+                    } else if(requestedFiles.remove(blockFile.status_id_base64) != null) {
+                        metrics.timedPost(new FileReceived(
                                         blockFile.filename,
                                         blockFile.status_id_base64,
                                         RumbleProtocol.protocolID,
                                         channel.getLinkLayerIdentifier())
                         );
+                    } else {
+                        Log.d(TAG, "[!] unsolicited file for status "+blockFile.status_id_base64);
+                        discardFile(blockFile.filename);
                     }
                     break;
+                case BlockHeader.BLOCKTYPE_FILE_REQUEST:
+                    BlockFileRequest blockFileRequest = new BlockFileRequest(header);
+                    blockReceived("file_request", blockFileRequest.readBlock(is), timeToTransfer);
+                    // the other end waits for the file it requested
+                    channel.executeWithRetry(new CommandSendFile(blockFileRequest.status_id_base64));
+                    blockFileRequest.dismiss();
+                    break;
                 case BlockHeader.BLOCKTYPE_CONTACT:
                     BlockContact blockContact = new BlockContact(header);
-                    channel.bytes_received += blockContact.readBlock(is);
-                    channel.in_transmission_time += (System.nanoTime() - timeToTransfer);
+                    blockReceived("contact", blockContact.readBlock(is), timeToTransfer);
                     UnicastConnection con = (UnicastConnection)channel.getLinkLayerConnection();
-                    EventBus.getDefault().post(new ContactInformationReceived(
+                    ContactInformationReceived contactInformation = new ContactInformationReceived(
                                     blockContact.contact,
                                     blockContact.flags,
                                     channel,
-                                    con.getLinkLayerNeighbour())
-                    );
+                                    con.getLinkLayerNeighbour());
+                    contactInformation.version = blockContact.version;
+                    contactInformation.baseVersion = blockContact.baseVersion;
+                    contactInformation.answeredVersion = blockContact.answeredVersion;
+                    contactInformation.acknowledgedVersion = blockContact.acknowledgedVersion;
+                    contactInformation.removedGroupIDs = blockContact.removedGroupIDs;
+                    contactInformation.removedHashtags = blockContact.removedHashtags;
+                    metrics.timedPost(contactInformation);
                     break;
                 case BlockHeader.BLOCKTYPE_CHAT_MESSAGE:
                     BlockChatMessage blockChatMessage = new BlockChatMessage(header);
-                    channel.bytes_received += blockChatMessage.readBlock(is);
-                    channel.in_transmission_time += (System.nanoTime() - timeToTransfer);
-                    EventBus.getDefault().post(new ChatMessageReceived(
+                    blockReceived("chat_message", blockChatMessage.readBlock(is), timeToTransfer);
+                    metrics.timedPost(new ChatMessageReceived(
                                     blockChatMessage.chatMessage,
                                     channel)
                     );
                     break;
                 case BlockHeader.BLOCKTYPE_KEEPALIVE:
                     BlockKeepAlive blockKA = new BlockKeepAlive(header);
-                    channel.bytes_received += blockKA.readBlock(is);
-                    channel.in_transmission_time += (System.nanoTime() - timeToTransfer);
+                    blockReceived("keepalive", blockKA.readBlock(is), timeToTransfer);
                     break;
                 case BlockHeader.BLOCK_CIPHER:
                     BlockCipher blockCipher = new BlockCipher(header);
-                    channel.bytes_received += blockCipher.readBlock(is);
-                    channel.in_transmission_time += (System.nanoTime() - timeToTransfer);
+                    blockReceived("cipher", blockCipher.readBlock(is), timeToTransfer);
                     if (blockCipher.type.equals(BlockCipher.CipherType.TYPE_CIPHER_GROUP)
                             && (blockCipher.group_id_base64 != null)
                             && (blockCipher.ivBytes != null)){
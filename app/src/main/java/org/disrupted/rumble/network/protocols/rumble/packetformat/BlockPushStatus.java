@@ -22,6 +22,7 @@ package org.disrupted.rumble.network.protocols.rumble.packetformat;
 import android.util.Base64;
 
 import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.AttachmentStore;
 import org.disrupted.rumble.database.DatabaseFactory;
 import org.disrupted.rumble.database.objects.Contact;
 import org.disrupted.rumble.database.objects.Group;
@@ -64,6 +65,36 @@ import java.util.Arrays;
  * |    Replication    |    like   |              2 byte + 1 byte
  * +-------------------------------+
  *
+ * Starting with BlockHeader.VERSION_ID_2, if the peer supports it, a more compact encoding
+ * is used. Integers are encoded as VarInt, the time of creation is delta-encoded against the
+ * previous cleartext status sent on this connection, and group, sender and author are sent
+ * once per connection and then referenced by their index in a dictionary (see EncodingContext)
+ *
+ * +----------------+--------------------------+
+ * |   Group Ref    |    [Group ID]            |  VarInt + [8 bytes]
+ * +----------------+--------------------------+
+ * |   Sender Ref   |    [Sender User ID]      |  VarInt + [8 bytes]
+ * +----------------+--------------------------+
+ * |   Author Ref   |    [Author ID, Length, Author (String)]  VarInt + [8 bytes + 1 byte + VARIABLE]
+ * +----------------+--------------------------+
+ * |  Status Length |     Status (String)      |  VarInt + VARIABLE
+ * +----------------+--------------------------+
+ * |  File Length   |     FileName             |  VarInt + VARIABLE
+ * +----------------+--------------------------+
+ * |  Time of Creation (delta)                 |  signed VarInt
+ * +-------------------------------------------+
+ * |  Time to Live                             |  signed VarInt
+ * +-------------------------------------------+
+ * |  Hop Count | Hop Limit | Replication | like  4 x VarInt
+ * +-------------------------------------------+
+ *
+ * A reference is either REF_LITERAL (value follows, not stored), REF_DEFINE (value follows
+ * and is stored in the dictionary) or REF_INDEX + index of a value previously defined.
+ * Values are only defined by cleartext blocks.
+ *
+ * BlockHeader.VERSION_ID_4 keeps the same encoding but the content-addressed attached file
+ * is offered instead of being sent right after the status (see BlockFileRequest).
+ *
  * @author Lucien Loiseau
  */
 public class BlockPushStatus extends Block{
@@ -105,25 +136,71 @@ public class BlockPushStatus extends Block{
             PushStatus.STATUS_POST_MAX_SIZE +
             PushStatus.STATUS_ATTACHED_FILE_MAX_SIZE;
 
+    /*
+     * v2 encoding: every field takes at least one byte, varints and references may
+     * take a few more bytes than their v1 fixed size counterpart.
+     */
+    private static final int MIN_PAYLOAD_SIZE_V2   = 11;
+    private static final int V2_OVERHEAD           = 32;
+    private static final int MAX_BLOCK_STATUS_SIZE_V2 = MAX_BLOCK_STATUS_SIZE + V2_OVERHEAD;
+
+    private static final int REF_LITERAL = 0;
+    private static final int REF_DEFINE  = 1;
+    private static final int REF_INDEX   = 2;
+
     public PushStatus status;
     public String group_id_base64;
     public String sender_id_base64;
 
+    private EncodingContext context;
+
     public BlockPushStatus(CommandSendPushStatus command) {
+        this(command, null);
+    }
+
+    public BlockPushStatus(CommandSendPushStatus command, EncodingContext context) {
         super(new BlockHeader());
         this.header.setBlockType(BlockHeader.BLOCKTYPE_PUSH_STATUS);
         this.header.setTransaction(BlockHeader.TRANSACTION_TYPE_PUSH);
         this.status = command.getStatus();
+        this.context = context;
     }
 
     public BlockPushStatus(BlockHeader header) {
+        this(header, null);
+    }
+
+    public BlockPushStatus(BlockHeader header, EncodingContext context) {
         super(header);
         this.status = null;
+        this.context = context;
+    }
+
+    private boolean isCompact() {
+        return (header.getVersion() >= BlockHeader.VERSION_ID_2);
+    }
+
+    /*
+     * the attached file is not sent along with the status but offered (see BlockFileRequest).
+     * Both ends decide from the version of the block so they always agree.
+     */
+    public boolean isFileOffered() {
+        return (header.getVersion() >= BlockHeader.VERSION_ID_4)
+                && (status != null)
+                && status.hasAttachedFile()
+                && AttachmentStore.isContentAddressed(status.getFileName());
     }
 
     public void sanityCheck() throws MalformedBlockPayload {
         if (header.getBlockType() != BlockHeader.BLOCKTYPE_PUSH_STATUS)
             throw new MalformedBlockPayload("Block type BLOCKTYPE_PUSH_STATUS expected", 0);
+        if(isCompact()) {
+            if(context == null)
+                throw new MalformedBlockPayload("no encoding context for compact BlockPushStatus", 0);
+            if((header.getBlockLength() < MIN_PAYLOAD_SIZE_V2) || (header.getBlockLength() > MAX_BLOCK_STATUS_SIZE_V2))
+                throw new MalformedBlockPayload("wrong header length parameter: "+header.getBlockLength(), 0);
+            return;
+        }
         if((header.getBlockLength() < MIN_PAYLOAD_SIZE) || (header.getBlockLength() > MAX_BLOCK_STATUS_SIZE))
             throw new MalformedBlockPayload("wrong header length parameter: "+header.getBlockLength(), 0);
     }
@@ -135,7 +212,7 @@ public class BlockPushStatus extends Block{
         /* read the entire block into a block buffer */
         long readleft = header.getBlockLength();
         byte[] blockBuffer = new byte[(int)header.getBlockLength()];
-        int count=in.read(blockBuffer, 0, (int)header.getBlockLength());
+        int count=readFully(in, blockBuffer, (int)header.getBlockLength());
         if (count < 0)
             throw new IOException("end of stream reached");
         if (count < (int)header.getBlockLength())
@@ -143,6 +220,9 @@ public class BlockPushStatus extends Block{
 
         BlockDebug.d(TAG,"BlockStatus received ("+count+" bytes): "+Arrays.toString(blockBuffer));
 
+        if(isCompact())
+            return readCompactPayload(blockBuffer);
+
         /* process the block buffer */
         try {
             ByteBuffer byteBuffer = ByteBuffer.wrap(blockBuffer);
@@ -227,12 +307,177 @@ public class BlockPushStatus extends Block{
         }
     }
 
+    private long readCompactPayload(byte[] blockBuffer) throws MalformedBlockPayload {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(blockBuffer);
+        boolean cleartext = !header.isEncrypted();
+        try {
+            group_id_base64  = readIdReference(byteBuffer, context.inGroups, FIELD_GROUP_GID_SIZE, cleartext);
+            sender_id_base64 = readIdReference(byteBuffer, context.inSenders, FIELD_SENDER_UID_SIZE, cleartext);
+            EncodingContext.AuthorEntry author = readAuthorReference(byteBuffer, cleartext);
+
+            int postLength = (int)VarInt.get(byteBuffer);
+            if ((postLength <= 0) || (postLength > byteBuffer.remaining()) || (postLength > PushStatus.STATUS_POST_MAX_SIZE))
+                throw new MalformedBlockPayload("wrong status.length parameter: " + postLength, byteBuffer.position());
+            byte[] post = new byte[postLength];
+            byteBuffer.get(post, 0, postLength);
+
+            int filenameLength = (int)VarInt.get(byteBuffer);
+            if ((filenameLength < 0) || (filenameLength > byteBuffer.remaining()) || (filenameLength > PushStatus.STATUS_FILENAME_MAX_SIZE))
+                throw new MalformedBlockPayload("wrong filename.length parameter: " + filenameLength, byteBuffer.position());
+            byte[] filename = new byte[filenameLength];
+            byteBuffer.get(filename, 0, filenameLength);
+
+            long toc = VarInt.getSigned(byteBuffer);
+            if(cleartext) {
+                toc += context.inTimeBase;
+                context.inTimeBase = toc;
+            }
+            long ttl         = VarInt.getSigned(byteBuffer);
+            long hopCount    = VarInt.get(byteBuffer);
+            long hopLimit    = VarInt.get(byteBuffer);
+            long replication = VarInt.get(byteBuffer);
+            long like        = VarInt.get(byteBuffer);
+
+            if(byteBuffer.remaining() > 0)
+                throw new MalformedBlockPayload("wrong header.length parameter, no more data to read: " + byteBuffer.position(), byteBuffer.position());
+
+            /* assemble the status */
+            Contact contact_tmp  = new Contact(author.name, author.uid, false);
+            status = new PushStatus(contact_tmp, Group.NOGROUP, new String(post, Charset.forName("UTF-8")), toc, sender_id_base64);
+
+            status.setFileName(new String(filename, Charset.forName("UTF-8")));
+            status.setTimeOfArrival(System.currentTimeMillis());
+            status.setTimeOfCreation(toc);
+            status.setHopCount((int) hopCount);
+            status.setHopLimit((int) hopLimit);
+            status.setTTL((int) ttl);
+            status.addReplication((int) replication);
+            status.setLike((int) like);
+
+            return header.getBlockLength();
+        } catch (BufferUnderflowException exception) {
+            throw new MalformedBlockPayload("buffer too small", byteBuffer.position());
+        }
+    }
+
+    private String readIdReference(ByteBuffer byteBuffer, EncodingContext.Dictionary<String> dictionary,
+                                   int size, boolean cleartext) throws MalformedBlockPayload {
+        long ref = VarInt.get(byteBuffer);
+        if(ref >= REF_INDEX) {
+            String value = dictionary.get((int)(ref - REF_INDEX));
+            if(value == null)
+                throw new MalformedBlockPayload("unknown dictionary index: " + ref, byteBuffer.position());
+            return value;
+        }
+        if((ref == REF_DEFINE) && !cleartext)
+            throw new MalformedBlockPayload("dictionary definition in an encrypted block", byteBuffer.position());
+        byte[] id = new byte[size];
+        byteBuffer.get(id, 0, size);
+        String value = Base64.encodeToString(id, 0, size, Base64.NO_WRAP);
+        if(ref == REF_DEFINE)
+            dictionary.define(value);
+        return value;
+    }
+
+    private EncodingContext.AuthorEntry readAuthorReference(ByteBuffer byteBuffer, boolean cleartext) throws MalformedBlockPayload {
+        long ref = VarInt.get(byteBuffer);
+        if(ref >= REF_INDEX) {
+            EncodingContext.AuthorEntry value = context.inAuthors.get((int)(ref - REF_INDEX));
+            if(value == null)
+                throw new MalformedBlockPayload("unknown dictionary index: " + ref, byteBuffer.position());
+            return value;
+        }
+        if((ref == REF_DEFINE) && !cleartext)
+            throw new MalformedBlockPayload("dictionary definition in an encrypted block", byteBuffer.position());
+        byte[] author_id = new byte[FIELD_AUTHOR_UID_SIZE];
+        byteBuffer.get(author_id, 0, FIELD_AUTHOR_UID_SIZE);
+        int authorLength = (byteBuffer.get() & 0xff);
+        if ((authorLength <= 0) || (authorLength > byteBuffer.remaining()) || (authorLength > Contact.CONTACT_NAME_MAX_SIZE))
+            throw new MalformedBlockPayload("wrong author.length parameter: " + authorLength, byteBuffer.position());
+        byte[] author_name = new byte[authorLength];
+        byteBuffer.get(author_name, 0, authorLength);
+        EncodingContext.AuthorEntry value = new EncodingContext.AuthorEntry(
+                Base64.encodeToString(author_id, 0, FIELD_AUTHOR_UID_SIZE, Base64.NO_WRAP),
+                new String(author_name, Charset.forName("UTF-8")));
+        if(ref == REF_DEFINE)
+            context.inAuthors.define(value);
+        return value;
+    }
+
+    private void writeIdReference(ByteBuffer blockBuffer, EncodingContext.Dictionary<String> dictionary,
+                                  String value, int size, boolean cleartext) {
+        int index = dictionary.indexOf(value);
+        if(index >= 0) {
+            VarInt.put(blockBuffer, REF_INDEX + index);
+            return;
+        }
+        if(cleartext && (dictionary.define(value) >= 0))
+            VarInt.put(blockBuffer, REF_DEFINE);
+        else
+            VarInt.put(blockBuffer, REF_LITERAL);
+        blockBuffer.put(Base64.decode(value, Base64.NO_WRAP), 0, size);
+    }
+
+    private void writeAuthorReference(ByteBuffer blockBuffer, EncodingContext.AuthorEntry value, boolean cleartext) {
+        int index = context.outAuthors.indexOf(value);
+        if(index >= 0) {
+            VarInt.put(blockBuffer, REF_INDEX + index);
+            return;
+        }
+        if(cleartext && (context.outAuthors.define(value) >= 0))
+            VarInt.put(blockBuffer, REF_DEFINE);
+        else
+            VarInt.put(blockBuffer, REF_LITERAL);
+        byte[] author_name = value.name.getBytes(Charset.forName("UTF-8"));
+        int authorLength = Math.min(author_name.length, Contact.CONTACT_NAME_MAX_SIZE);
+        blockBuffer.put(Base64.decode(value.uid, Base64.NO_WRAP), 0, FIELD_AUTHOR_UID_SIZE);
+        blockBuffer.put((byte) authorLength);
+        blockBuffer.put(author_name, 0, authorLength);
+    }
+
+    private int writeCompactPayload(ByteBuffer blockBuffer, String sender_uid, byte[] post, byte[] filename) {
+        boolean cleartext = !header.isEncrypted();
+
+        writeIdReference(blockBuffer, context.outGroups, status.getGroup().getGid(), FIELD_GROUP_GID_SIZE, cleartext);
+        writeIdReference(blockBuffer, context.outSenders, sender_uid, FIELD_SENDER_UID_SIZE, cleartext);
+        writeAuthorReference(blockBuffer, new EncodingContext.AuthorEntry(
+                status.getAuthor().getUid(), status.getAuthor().getName()), cleartext);
+
+        VarInt.put(blockBuffer, post.length);
+        blockBuffer.put(post, 0, post.length);
+        VarInt.put(blockBuffer, filename.length);
+        blockBuffer.put(filename, 0, filename.length);
+
+        long toc = status.getTimeOfCreation();
+        if(cleartext) {
+            VarInt.putSigned(blockBuffer, toc - context.outTimeBase);
+            context.outTimeBase = toc;
+        } else {
+            VarInt.putSigned(blockBuffer, toc);
+        }
+        VarInt.putSigned(blockBuffer, status.getTTL());
+        VarInt.put(blockBuffer, status.getHopCount() & 0xffff);
+        VarInt.put(blockBuffer, status.getHopLimit() & 0xffff);
+        VarInt.put(blockBuffer, status.getReplication() & 0xffff);
+        VarInt.put(blockBuffer, status.getLike() & 0xff);
+
+        return blockBuffer.position();
+    }
+
     @Override
     public long writeBlock(OutputStream out, EncryptedOutputStream eos) throws IOException,InputOutputStreamException {
+        if((context != null) && context.isFileOfferNegotiated())
+            header.setVersion(BlockHeader.VERSION_ID_4);
+        else if((context != null) && (context.getNegotiatedVersion() >= BlockHeader.VERSION_ID_2))
+            header.setVersion(BlockHeader.VERSION_ID_2);
+        else
+            header.setVersion(BlockHeader.VERSION_ID_1);
+
         /* preparing some buffer and calculate the block size */
         byte[] group_id = Base64.decode(status.getGroup().getGid(), Base64.NO_WRAP);
-        byte[] sender_id   = Base64.decode(DatabaseFactory.getContactDatabase(RumbleApplication.getContext())
-                .getLocalContact().getUid(), Base64.NO_WRAP);
+        String sender_uid  = DatabaseFactory.getContactDatabase(RumbleApplication.getContext())
+                .getLocalContact().getUid();
+        byte[] sender_id   = Base64.decode(sender_uid, Base64.NO_WRAP);
         byte[] author_id   = Base64.decode(status.getAuthor().getUid(), Base64.NO_WRAP);
         byte[] author_name = status.getAuthor().getName().getBytes(Charset.forName("UTF-8"));
         byte[] post     = status.getPost().getBytes(Charset.forName("UTF-8"));
@@ -243,23 +488,28 @@ public class BlockPushStatus extends Block{
                 filename.length;
 
         /* prepare the block buffer */
-        ByteBuffer blockBuffer = ByteBuffer.allocate(length);
-        blockBuffer.put(group_id, 0, FIELD_GROUP_GID_SIZE);
-        blockBuffer.put(sender_id, 0, FIELD_SENDER_UID_SIZE);
-        blockBuffer.put(author_id, 0, FIELD_AUTHOR_UID_SIZE);
-        blockBuffer.put((byte) author_name.length);
-        blockBuffer.put(author_name, 0, author_name.length);
-        blockBuffer.putShort((short) post.length);
-        blockBuffer.put(post, 0, post.length);
-        blockBuffer.put((byte) filename.length);
-        blockBuffer.put(filename, 0, filename.length);
-        blockBuffer.putLong(status.getTimeOfCreation());
-        blockBuffer.putLong(status.getTTL());
-        blockBuffer.putShort((short) status.getHopCount());
-        blockBuffer.putShort((short) status.getHopLimit());
-        blockBuffer.putShort((short) status.getReplication());
-        blockBuffer.put((byte) status.getLike());
-
+        ByteBuffer blockBuffer;
+        if(isCompact()) {
+            blockBuffer = ByteBuffer.allocate(length + V2_OVERHEAD);
+            length = writeCompactPayload(blockBuffer, sender_uid, post, filename);
+        } else {
+            blockBuffer = ByteBuffer.allocate(length);
+            blockBuffer.put(group_id, 0, FIELD_GROUP_GID_SIZE);
+            blockBuffer.put(sender_id, 0, FIELD_SENDER_UID_SIZE);
+            blockBuffer.put(author_id, 0, FIELD_AUTHOR_UID_SIZE);
+            blockBuffer.put((byte) author_name.length);
+            blockBuffer.put(author_name, 0, author_name.length);
+            blockBuffer.putShort((short) post.length);
+            blockBuffer.put(post, 0, post.length);
+            blockBuffer.put((byte) filename.length);
+            blockBuffer.put(filename, 0, filename.length);
+            blockBuffer.putLong(status.getTimeOfCreation());
+            blockBuffer.putLong(status.getTTL());
+            blockBuffer.putShort((short) status.getHopCount());
+            blockBuffer.putShort((short) status.getHopLimit());
+            blockBuffer.putShort((short) status.getReplication());
+            blockBuffer.put((byte) status.getLike());
+        }
 
         /* send the status and the block file */
         header.setPayloadLength(length);
@@ -17,16 +17,24 @@
 
 package org.disrupted.rumble.network.protocols.rumble.packetformat;
 
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.AttachmentStore;
+import org.disrupted.rumble.database.DatabaseFactory;
+import org.disrupted.rumble.database.objects.Group;
 import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.database.statistics.metrics.MetricRegistry;
 import org.disrupted.rumble.network.linklayer.UnicastConnection;
 import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothLinkLayerAdapter;
 import org.disrupted.rumble.network.linklayer.exception.InputOutputStreamException;
 import org.disrupted.rumble.network.protocols.ProtocolChannel;
 import org.disrupted.rumble.network.protocols.command.Command;
 import org.disrupted.rumble.network.protocols.command.CommandSendChatMessage;
+import org.disrupted.rumble.network.protocols.command.CommandSendFile;
+import org.disrupted.rumble.network.protocols.command.CommandSendFileRequest;
 import org.disrupted.rumble.network.protocols.command.CommandSendKeepAlive;
 import org.disrupted.rumble.network.protocols.command.CommandSendLocalInformation;
 import org.disrupted.rumble.network.protocols.command.CommandSendPushStatus;
+import org.disrupted.rumble.network.protocols.command.CommandSendPushStatusBatch;
 import org.disrupted.rumble.network.protocols.events.ChatMessageSent;
 import org.disrupted.rumble.network.protocols.events.ContactInformationSent;
 import org.disrupted.rumble.network.protocols.events.PushStatusReceived;
@@ -36,14 +44,15 @@ import org.disrupted.rumble.util.CryptoUtil;
 import org.disrupted.rumble.util.EncryptedOutputStream;
 import org.disrupted.rumble.util.FileUtil;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-
-import de.greenrobot.event.EventBus;
+import java.util.Set;
 
 /**
  * @author Lucien Loiseau
@@ -54,70 +63,136 @@ public class CommandProcessor {
 
     private ProtocolChannel channel;
     private OutputStream out;
+    private MetricRegistry metrics;
+    private EncodingContext context;
+
+    /* uuid of the statuses whose attached file was offered to the peer (see BlockFileRequest) */
+    private Set<String> offeredFiles;
 
     public CommandProcessor(OutputStream out, ProtocolChannel channel) {
+        this(out, channel, new EncodingContext());
+    }
+
+    public CommandProcessor(OutputStream out, ProtocolChannel channel, EncodingContext context) {
         this.out = out;
         this.channel = channel;
+        this.context = context;
+        this.metrics = MetricRegistry.getInstance();
+        this.offeredFiles = new HashSet<String>();
+    }
+
+    private long timeEncode(String type, long start) {
+        return metrics.histogram(MetricRegistry.BLOCK_ENCODE_PREFIX+type).recordSince(start);
+    }
+
+    /*
+     * if the peer supports it, the block is first encoded into a buffer and its payload is
+     * deflated before being written. The compression happens before the encryption as the
+     * EncryptedOutputStream is only given the (compressed) payload.
+     */
+    private long writeBlock(Block block, EncryptedOutputStream eos) throws IOException, InputOutputStreamException {
+        if(!context.isCompressionNegotiated() || !BlockCompression.isCompressible(block.header.getBlockType()))
+            return block.writeBlock(out, eos);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        block.writeBlock(buffer, null);
+        byte[] raw = buffer.toByteArray();
+        int rawLength = raw.length - BlockHeader.BLOCK_HEADER_LENGTH;
+
+        byte[] compressed = BlockCompression.deflate(raw, BlockHeader.BLOCK_HEADER_LENGTH, rawLength);
+        if(rawLength >= BlockCompression.COMPRESSION_THRESHOLD)
+            metrics.payloadCompressed(rawLength, (compressed == null) ? rawLength : compressed.length);
+
+        OutputStream payloadStream = (block.header.isEncrypted() && (eos != null)) ? eos : out;
+        if(compressed == null) {
+            block.header.writeBlockHeader(out);
+            payloadStream.write(raw, BlockHeader.BLOCK_HEADER_LENGTH, rawLength);
+        } else {
+            block.header.setCompressed(true);
+            block.header.setPayloadLength(compressed.length);
+            block.header.writeBlockHeader(out);
+            payloadStream.write(compressed, 0, compressed.length);
+        }
+        return block.header.getBlockLength()+BlockHeader.BLOCK_HEADER_LENGTH;
     }
 
     public boolean processCommand(Command command) throws InputOutputStreamException, IOException{
-        int bytes_transmitted = 0;
+        long bytes_transmitted = 0;
         long timeToTransfer = System.nanoTime();
+        long start = timeToTransfer;
+        Object event = null;
 
         switch (command.getCommandID()) {
             case SEND_LOCAL_INFORMATION:
                 BlockContact blockContact = new BlockContact((CommandSendLocalInformation) command);
-                bytes_transmitted += blockContact.writeBlock(out, null);
-                channel.out_transmission_time += (System.currentTimeMillis() - timeToTransfer);
-                EventBus.getDefault().post(new ContactInformationSent(
+                bytes_transmitted += writeBlock(blockContact, null);
+                timeEncode("contact", start);
+                event = new ContactInformationSent(
                                 blockContact.contact,
-                                channel)
-                );
+                                channel);
                 break;
             case SEND_CHAT_MESSAGE:
                 BlockChatMessage blockChatMessage = new BlockChatMessage((CommandSendChatMessage) command);
-                blockChatMessage.writeBlock(out, null);
-                channel.out_transmission_time += (System.nanoTime() - timeToTransfer);
-                EventBus.getDefault().post(new ChatMessageSent(
+                bytes_transmitted += writeBlock(blockChatMessage, null);
+                timeEncode("chat_message", start);
+                event = new ChatMessageSent(
                                 blockChatMessage.chatMessage,
                                 RumbleProtocol.protocolID,
-                                BluetoothLinkLayerAdapter.LinkLayerIdentifier)
-                );
+                                BluetoothLinkLayerAdapter.LinkLayerIdentifier);
                 break;
             case SEND_KEEP_ALIVE:
                 BlockKeepAlive blockKA = new BlockKeepAlive((CommandSendKeepAlive) command);
-                blockKA.writeBlock(out, null);
+                bytes_transmitted += blockKA.writeBlock(out, null);
+                timeEncode("keepalive", start);
+                break;
+            case SEND_FILE_REQUEST:
+                BlockFileRequest blockFileRequest = new BlockFileRequest((CommandSendFileRequest) command);
+                bytes_transmitted += blockFileRequest.writeBlock(out, null);
+                timeEncode("file_request", start);
                 break;
             case SEND_PUSH_STATUS:
-                CommandSendPushStatus commandSendPushStatus = (CommandSendPushStatus) command;
-                PushStatus status = commandSendPushStatus.getStatus();
-
-                /* prepare the blockstatus and blockfile for attached file, if any */
-                BlockPushStatus blockPushStatus = new BlockPushStatus(commandSendPushStatus);
-                BlockFile blockFile = null;
-                if(status.hasAttachedFile()) {
-                    File attachedFile = new File(FileUtil.getReadableAlbumStorageDir(), status.getFileName());
-                    if(!(attachedFile.exists() && attachedFile.isFile())) {
-                        BlockDebug.e(TAG, "attached file doesn't exist, abort sending push status");
+            case SEND_PUSH_STATUS_BATCH:
+                List<PushStatus> statuses;
+                if(command instanceof CommandSendPushStatusBatch) {
+                    statuses = ((CommandSendPushStatusBatch) command).getStatuses();
+                } else {
+                    statuses = new ArrayList<PushStatus>(1);
+                    statuses.add(((CommandSendPushStatus) command).getStatus());
+                }
+                if(statuses.isEmpty())
+                    return false;
+
+                /* every status of a bundle share the same group (and thus the same cipher) */
+                Group group = statuses.get(0).getGroup();
+                for(PushStatus status : statuses) {
+                    if(!status.getGroup().getGid().equals(group.getGid())) {
+                        BlockDebug.e(TAG, "statuses of a bundle must belong to the same group, abort sending push status");
                         return false;
                     }
-                    blockFile = new BlockFile(status.getFileName(), status.getUuid());
+                    if(status.hasAttachedFile()) {
+                        File attachedFile = new File(FileUtil.getReadableAlbumStorageDir(), status.getFileName());
+                        if(!(attachedFile.exists() && attachedFile.isFile())) {
+                            BlockDebug.e(TAG, "attached file doesn't exist, abort sending push status");
+                            return false;
+                        }
+                    }
                 }
 
                 /* if the group is private, send a BlockCipher AES128/CBC/PKCS5 first */
                 EncryptedOutputStream eos = null;
-                if(status.getGroup().isPrivate()) {
+                if(group.isPrivate()) {
                     try {
                         byte[] iv = CryptoUtil.generateRandomIV(16);
                         eos = CryptoUtil.getCipherOutputStream(out,
                                 CryptoUtil.CipherAlgo.ALGO_AES,
                                 CryptoUtil.CipherBlock.BLOCK_CBC,
                                 CryptoUtil.CipherPadding.PADDING_PKCS5,
-                                status.getGroup().getGroupKey(),
+                                group.getGroupKey(),
                                 iv);
-                        BlockCipher blockCipher = new BlockCipher(status.getGroup().getGid(), iv);
+                        BlockCipher blockCipher = new BlockCipher(group.getGid(), iv);
                         blockCipher.header.setLastBlock(false);
                         bytes_transmitted += blockCipher.writeBlock(out, eos);
+                        start = timeEncode("cipher", start);
                         blockCipher.dismiss();
                     } catch(CryptoUtil.CryptographicException e) {
                         BlockDebug.e(TAG, "cannot send PushStatus, failed to setup encrypted stream", e);
@@ -125,22 +200,40 @@ public class CommandProcessor {
                     }
                 }
 
-                /* send block status */
-                blockPushStatus.header.setLastBlock(!status.hasAttachedFile() && (eos == null));
-                blockPushStatus.header.setEncrypted(eos != null);
-                bytes_transmitted+=blockPushStatus.writeBlock(out, eos);
-                if(eos != null)
-                    eos.flush();
-                blockPushStatus.dismiss();
-
-                /* send block file if any */
-                if(blockFile != null) {
-                    blockFile.header.setLastBlock(eos == null);
-                    blockFile.header.setEncrypted(eos != null);
-                    bytes_transmitted += blockFile.writeBlock(out, eos);
+                /*
+                 * send the block status and the block file (if any) of every status. Each block
+                 * is still padded separately (eos.flush) as the receiver decrypts them one by one.
+                 * A content-addressed file is only offered, the peer requests it if needed.
+                 */
+                for(int i = 0; i < statuses.size(); i++) {
+                    PushStatus status = statuses.get(i);
+                    boolean lastStatus = (i == statuses.size() - 1);
+                    boolean fileOffered = context.isFileOfferNegotiated() && status.hasAttachedFile()
+                            && AttachmentStore.isContentAddressed(status.getFileName());
+                    boolean sendFile = status.hasAttachedFile() && !fileOffered;
+
+                    BlockPushStatus blockPushStatus = new BlockPushStatus(new CommandSendPushStatus(status), context);
+                    blockPushStatus.header.setLastBlock(lastStatus && !sendFile && (eos == null));
+                    blockPushStatus.header.setEncrypted(eos != null);
+                    bytes_transmitted += writeBlock(blockPushStatus, eos);
                     if(eos != null)
                         eos.flush();
-                    blockFile.dismiss();
+                    start = timeEncode("push_status", start);
+                    blockPushStatus.dismiss();
+
+                    if(fileOffered)
+                        offeredFiles.add(status.getUuid());
+
+                    if(sendFile) {
+                        BlockFile blockFile = new BlockFile(status.getFileName(), status.getUuid());
+                        blockFile.header.setLastBlock(lastStatus && (eos == null));
+                        blockFile.header.setEncrypted(eos != null);
+                        bytes_transmitted += blockFile.writeBlock(out, eos);
+                        if(eos != null)
+                            eos.flush();
+                        start = timeEncode("file", start);
+                        blockFile.dismiss();
+                    }
                 }
 
                 /* send a cleartext block */
@@ -150,24 +243,88 @@ public class CommandProcessor {
                     bytes_transmitted+=cleartext.writeBlock(out, eos);
                     cleartext.dismiss();
                     eos.close();
+                    timeEncode("cipher", start);
                 }
 
-                channel.status_sent++;
-                channel.out_transmission_time += (System.nanoTime() - timeToTransfer);
-                EventBus.getDefault().post(new PushStatusSent(
-                                status,
+                channel.status_sent += statuses.size();
+                event = new PushStatusSent(
+                                statuses,
                                 channel.getRecipientList(),
                                 RumbleProtocol.protocolID,
-                                BluetoothLinkLayerAdapter.LinkLayerIdentifier)
-                );
+                                BluetoothLinkLayerAdapter.LinkLayerIdentifier);
 
+                break;
+            case SEND_FILE:
+                String uuid = ((CommandSendFile) command).getStatusUuid();
+                if(!offeredFiles.remove(uuid)) {
+                    BlockDebug.e(TAG, "file was not offered to this peer, abort sending file");
+                    return false;
+                }
+                PushStatus offered = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatus(uuid);
+                if((offered == null) || !offered.hasAttachedFile()) {
+                    BlockDebug.e(TAG, "status has been deleted, abort sending file");
+                    return false;
+                }
+                try {
+                    File offeredFile = new File(FileUtil.getReadableAlbumStorageDir(), offered.getFileName());
+                    if (!(offeredFile.exists() && offeredFile.isFile())) {
+                        BlockDebug.e(TAG, "attached file doesn't exist, abort sending file");
+                        return false;
+                    }
+
+                    /* the file is sent in its own bundle, encrypted if the group is private */
+                    Group fileGroup = offered.getGroup();
+                    EncryptedOutputStream fileEos = null;
+                    if (fileGroup.isPrivate()) {
+                        try {
+                            byte[] iv = CryptoUtil.generateRandomIV(16);
+                            fileEos = CryptoUtil.getCipherOutputStream(out,
+                                    CryptoUtil.CipherAlgo.ALGO_AES,
+                                    CryptoUtil.CipherBlock.BLOCK_CBC,
+                                    CryptoUtil.CipherPadding.PADDING_PKCS5,
+                                    fileGroup.getGroupKey(),
+                                    iv);
+                            BlockCipher blockCipher = new BlockCipher(fileGroup.getGid(), iv);
+                            blockCipher.header.setLastBlock(false);
+                            bytes_transmitted += blockCipher.writeBlock(out, fileEos);
+                            blockCipher.dismiss();
+                        } catch (CryptoUtil.CryptographicException e) {
+                            BlockDebug.e(TAG, "cannot send file, failed to setup encrypted stream", e);
+                            return false;
+                        }
+                    }
+
+                    BlockFile blockFile = new BlockFile(offered.getFileName(), uuid);
+                    blockFile.header.setLastBlock(fileEos == null);
+                    blockFile.header.setEncrypted(fileEos != null);
+                    bytes_transmitted += blockFile.writeBlock(out, fileEos);
+                    blockFile.dismiss();
+
+                    if (fileEos != null) {
+                        fileEos.flush();
+                        BlockCipher cleartext = new BlockCipher();
+                        cleartext.header.setLastBlock(true);
+                        bytes_transmitted += cleartext.writeBlock(out, fileEos);
+                        cleartext.dismiss();
+                        fileEos.close();
+                    }
+                    timeEncode("file", start);
+                } finally {
+                    offered.discard();
+                }
                 break;
             default:
                 return false;
         }
 
-        channel.out_transmission_time += timeToTransfer;
+        long elapsed = System.nanoTime() - timeToTransfer;
+        channel.out_transmission_time += elapsed;
         channel.bytes_sent += bytes_transmitted;
+        metrics.linkSent(channel.getLinkLayerIdentifier(), bytes_transmitted, elapsed);
+
+        /* the event is posted once the transmission has been accounted for */
+        if(event != null)
+            metrics.timedPost(event);
         return true;
     }
 }
@@ -0,0 +1,153 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.rumble.packetformat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The EncodingContext holds the state shared by the BlockProcessor and the CommandProcessor
+ * of a given connection:
+ *
+ * - the highest BlockHeader version announced by the peer, which tells us which encoding
+ *   the peer is able to decode. Every block we send carries our own version so the peer
+ *   learns it from the very first block (usually the BlockContact). Starting with
+ *   VERSION_ID_3 the payloads may be compressed (see BlockCompression). Starting with
+ *   VERSION_ID_4 a content-addressed attached file is offered rather than sent along with
+ *   its status (see BlockFileRequest).
+ *
+ * - the dictionaries used by the v2 encoding of BlockPushStatus. An author, a group or a
+ *   sender is sent once and then referenced by its index. The dictionaries are only updated
+ *   by cleartext blocks so that both ends remain synchronised even if one of them cannot
+ *   decrypt a block.
+ *
+ * - the time of creation of the last cleartext status, used as a base to delta-encode the
+ *   following one.
+ */
+public class EncodingContext {
+
+    private volatile int peerVersion;
+
+    /* outgoing (CommandProcessor) */
+    public final Dictionary<String>      outGroups;
+    public final Dictionary<String>      outSenders;
+    public final Dictionary<AuthorEntry> outAuthors;
+    public long                          outTimeBase;
+
+    /* incoming (BlockProcessor) */
+    public final Dictionary<String>      inGroups;
+    public final Dictionary<String>      inSenders;
+    public final Dictionary<AuthorEntry> inAuthors;
+    public long                          inTimeBase;
+
+    public EncodingContext() {
+        this.peerVersion = BlockHeader.VERSION_ID_1;
+        this.outGroups   = new Dictionary<String>();
+        this.outSenders  = new Dictionary<String>();
+        this.outAuthors  = new Dictionary<AuthorEntry>();
+        this.outTimeBase = 0;
+        this.inGroups    = new Dictionary<String>();
+        this.inSenders   = new Dictionary<String>();
+        this.inAuthors   = new Dictionary<AuthorEntry>();
+        this.inTimeBase  = 0;
+    }
+
+    public void peerVersionReceived(int version) {
+        if(version > peerVersion)
+            peerVersion = version;
+    }
+
+    /*
+     * the version to use for blocks whose encoding depends on the version
+     */
+    public int getNegotiatedVersion() {
+        return Math.min(peerVersion, BlockHeader.VERSION_ID);
+    }
+
+    public boolean isCompressionNegotiated() {
+        return getNegotiatedVersion() >= BlockHeader.VERSION_ID_3;
+    }
+
+    public boolean isFileOfferNegotiated() {
+        return getNegotiatedVersion() >= BlockHeader.VERSION_ID_4;
+    }
+
+    public static class Dictionary<T> {
+
+        public static final int MAX_ENTRIES = 256;
+
+        private final List<T>         entries;
+        private final Map<T, Integer> indexes;
+
+        public Dictionary() {
+            entries = new ArrayList<T>();
+            indexes = new HashMap<T, Integer>();
+        }
+
+        public int indexOf(T value) {
+            Integer index = indexes.get(value);
+            return (index == null) ? -1 : index;
+        }
+
+        /*
+         * returns the index of the new entry or -1 if the dictionary is full
+         */
+        public int define(T value) {
+            if(entries.size() >= MAX_ENTRIES)
+                return -1;
+            indexes.put(value, entries.size());
+            entries.add(value);
+            return entries.size() - 1;
+        }
+
+        public boolean isFull() {
+            return entries.size() >= MAX_ENTRIES;
+        }
+
+        public T get(int index) {
+            if((index < 0) || (index >= entries.size()))
+                return null;
+            return entries.get(index);
+        }
+    }
+
+    public static class AuthorEntry {
+
+        public final String uid;
+        public final String name;
+
+        public AuthorEntry(String uid, String name) {
+            this.uid = uid;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof AuthorEntry))
+                return false;
+            AuthorEntry entry = (AuthorEntry)o;
+            return uid.equals(entry.uid) && name.equals(entry.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return uid.hashCode() * 31 + name.hashCode();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.rumble.packetformat;
+
+import org.disrupted.rumble.network.protocols.rumble.packetformat.exceptions.MalformedBlockPayload;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length encoding of integers (LEB128): 7 bits of data per byte, the most
+ * significant bit is set if more bytes are following. Small values (lengths, hop counts,
+ * dictionary indexes) are thus encoded in a single byte.
+ *
+ * Signed values are first mapped to unsigned ones with the zigzag encoding so that
+ * small negative values remain small: 0 -> 0, -1 -> 1, 1 -> 2, -2 -> 3, ...
+ */
+public class VarInt {
+
+    private static final int MAX_VARINT_SIZE = 10;
+
+    private VarInt() {
+    }
+
+    public static int sizeOf(long value) {
+        int size = 1;
+        while((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void put(ByteBuffer buffer, long value) {
+        while((value & ~0x7FL) != 0) {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    public static long get(ByteBuffer buffer) throws BufferUnderflowException, MalformedBlockPayload {
+        long value = 0;
+        for(int i = 0; i < MAX_VARINT_SIZE; i++) {
+            byte b = buffer.get();
+            value |= ((long)(b & 0x7F)) << (7 * i);
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new MalformedBlockPayload("varint is too long", buffer.position());
+    }
+
+    public static void putSigned(ByteBuffer buffer, long value) {
+        put(buffer, (value << 1) ^ (value >> 63));
+    }
+
+    public static long getSigned(ByteBuffer buffer) throws BufferUnderflowException, MalformedBlockPayload {
+        long value = get(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static int sizeOfSigned(long value) {
+        return sizeOf((value << 1) ^ (value >> 63));
+    }
+}
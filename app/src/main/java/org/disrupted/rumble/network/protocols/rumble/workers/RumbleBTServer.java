@@ -77,43 +77,31 @@ public class RumbleBTServer extends BluetoothServer {
     protected void onClientConnected(BluetoothSocket mmConnectedSocket) {
         LinkLayerNeighbour neighbour = new BluetoothNeighbour(mmConnectedSocket.getRemoteDevice().getAddress());
         RumbleStateMachine connectionState = protocol.getState(neighbour.getLinkLayerAddress());
-        Worker worker = null;
+        Worker worker = new RumbleUnicastChannel(protocol, new BluetoothServerConnection(mmConnectedSocket));
         try {
-            connectionState.lock.lock();
-            switch (connectionState.getState()) {
-                case CONNECTED:
-                case CONNECTION_ACCEPTED:
-                    Log.d(TAG, "[-] refusing client connection");
-                    mmConnectedSocket.close();
-                    return;
-                case CONNECTION_SCHEDULED:
-                    if (neighbour.getLinkLayerAddress().compareTo(localMacAddress) < 0) {
-                        Log.d(TAG, "[-] refusing client connection");
-                        mmConnectedSocket.close();
-                        return;
-                    } else {
-                        Log.d(TAG, "[-] cancelling connection " + connectionState.getWorkerID());
-                        networkCoordinator.stopWorker(
-                                BluetoothLinkLayerAdapter.LinkLayerIdentifier,
-                                connectionState.getWorkerID());
-                        break;
-                    }
-                case NOT_CONNECTED:
-                default:
-                    break;
+            /*
+             * if we already scheduled a connection to this neighbour, the neighbour with
+             * the lowest address keeps its own connection and refuses the other one
+             */
+            boolean preempt = neighbour.getLinkLayerAddress().compareTo(localMacAddress) >= 0;
+            String cancelled = connectionState.connectionAccepted(worker.getWorkerIdentifier(), preempt);
+            if(cancelled != null) {
+                Log.d(TAG, "[-] cancelling connection " + cancelled);
+                networkCoordinator.stopWorker(
+                        BluetoothLinkLayerAdapter.LinkLayerIdentifier,
+                        cancelled);
             }
-            worker = new RumbleUnicastChannel(protocol, new BluetoothServerConnection(mmConnectedSocket));
-            connectionState.connectionAccepted(worker.getWorkerIdentifier());
-        } catch(IOException ignore) {
-            Log.e(TAG,"[!] Client CON: "+ignore.getMessage());
         } catch (RumbleStateMachine.StateException e) {
-            Log.e(TAG,"[!] Rumble Bluetooth State Exception");
-        } finally {
-            connectionState.lock.unlock();
+            Log.d(TAG, "[-] refusing client connection");
+            try {
+                mmConnectedSocket.close();
+            } catch(IOException ignore) {
+                Log.e(TAG,"[!] Client CON: "+ignore.getMessage());
+            }
+            return;
         }
         EventBus.getDefault().post(new ScannerNeighbourSensed(neighbour));
-        if(worker != null)
-            networkCoordinator.addWorker(worker);
+        networkCoordinator.addWorker(worker);
     }
 
 }
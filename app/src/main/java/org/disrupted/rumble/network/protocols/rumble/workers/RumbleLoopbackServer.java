@@ -0,0 +1,80 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.rumble.workers;
+
+import org.disrupted.rumble.network.NetworkCoordinator;
+import org.disrupted.rumble.network.Worker;
+import org.disrupted.rumble.network.linklayer.exception.LinkLayerConnectionException;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackLinkLayerAdapter;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackServer;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackServerConnection;
+import org.disrupted.rumble.network.protocols.rumble.RumbleProtocol;
+import org.disrupted.rumble.network.protocols.rumble.RumbleStateMachine;
+import org.disrupted.rumble.util.Log;
+
+public class RumbleLoopbackServer extends LoopbackServer {
+
+    private static final String TAG = "RumbleLoopbackServer";
+
+    private final RumbleProtocol protocol;
+    private final NetworkCoordinator networkCoordinator;
+
+    public RumbleLoopbackServer(RumbleProtocol protocol, NetworkCoordinator networkCoordinator, String localAddress) {
+        super(localAddress);
+        this.protocol = protocol;
+        this.networkCoordinator = networkCoordinator;
+    }
+
+    @Override
+    public String getWorkerIdentifier() {
+        return "Rumble"+super.getWorkerIdentifier();
+    }
+
+    @Override
+    public String getProtocolIdentifier() {
+        return RumbleProtocol.protocolID;
+    }
+
+    @Override
+    protected void onClientConnected(LoopbackServerConnection con) {
+        String remoteAddress = con.getRemoteLinkLayerAddress();
+        RumbleStateMachine connectionState = protocol.getState(remoteAddress);
+        Worker worker = new RumbleUnicastChannel(protocol, con);
+        try {
+            /*
+             * same rule as for TCP, the node with the lowest address keeps its own connection
+             */
+            boolean preempt = localAddress.compareTo(remoteAddress) >= 0;
+            String cancelled = connectionState.connectionAccepted(worker.getWorkerIdentifier(), preempt);
+            if(cancelled != null) {
+                Log.d(TAG, "[-] cancelling connection " + cancelled);
+                networkCoordinator.stopWorker(
+                        LoopbackLinkLayerAdapter.LinkLayerIdentifier,
+                        cancelled);
+            }
+        } catch (RumbleStateMachine.StateException e) {
+            Log.d(TAG, "[-] refusing client connection");
+            try {
+                con.disconnect();
+            } catch(LinkLayerConnectionException ignore) {
+                Log.e(TAG,"[!] Client CON: "+ignore.getMessage());
+            }
+            return;
+        }
+        networkCoordinator.addWorker(worker);
+    }
+}
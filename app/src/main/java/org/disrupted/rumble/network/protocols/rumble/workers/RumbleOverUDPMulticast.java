@@ -19,9 +19,23 @@
 
 package org.disrupted.rumble.network.protocols.rumble.workers;
 
+import org.disrupted.rumble.app.EventDispatcher;
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.database.statistics.metrics.MetricRegistry;
+import org.disrupted.rumble.network.linklayer.wifi.WifiLinkLayerAdapter;
+import org.disrupted.rumble.network.protocols.command.CommandSendPushStatus;
+import org.disrupted.rumble.network.protocols.command.CommandSendPushStatusBatch;
+import org.disrupted.rumble.network.protocols.events.PushStatusSent;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.BlockHeader;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.BlockProcessor;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.BlockPushStatus;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.EncodingContext;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.exceptions.MalformedBlock;
+import org.disrupted.rumble.util.HashedWheelTimer;
 import org.disrupted.rumble.util.Log;
 
 import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.network.linklayer.exception.InputOutputStreamException;
 import org.disrupted.rumble.network.linklayer.exception.LinkLayerConnectionException;
 import org.disrupted.rumble.network.linklayer.exception.UDPMulticastSocketException;
 import org.disrupted.rumble.network.linklayer.wifi.UDP.UDPMulticastConnection;
@@ -32,29 +46,188 @@ import org.disrupted.rumble.network.protocols.events.ContactInformationReceived;
 import org.disrupted.rumble.network.protocols.rumble.RumbleProtocol;
 import org.disrupted.rumble.network.events.ContactDisconnected;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import de.greenrobot.event.EventBus;
 
 /**
+ * RumbleOverUDPMulticast disseminates the public statuses to every WiFi neighbour at once.
+ *
+ * A bundle of BlockPushStatus is encoded once and split into DATA datagrams of FRAGMENT_SIZE
+ * bytes. Every FEC_GROUP data fragments are followed by a PARITY datagram (the XOR of the
+ * group) so that a receiver can rebuild a single lost fragment per group by itself. If more
+ * is lost, the receiver multicasts a NACK carrying the bitmap of the missing fragments and
+ * the sender repeats them from its RETRANSMIT_WINDOW. A receiver that hears the NACK of
+ * another one for the same message holds its own back as the repair will serve both.
+ *
+ * Once a message is reassembled, the receiver sends an ACK carrying its contact uid. Only
+ * then is the message considered sent to this contact (PushStatusSent), the statuses that
+ * are not acknowledged within ACK_TIMEOUT are sent over the unicast channel instead.
+ *
+ *     DATA/PARITY: type(1) sender(4) seq(4) index(1) count(1) length(4) payload
+ *     NACK:        type(1) requester(4) target(4) seq(4) count(1) bitmap
+ *     ACK:         type(1) requester(4) target(4) seq(4) uid
+ *
+ * Files and private statuses are still sent over the unicast channels.
+ *
  * @author Lucien Loiseau
  */
 public class RumbleOverUDPMulticast extends ProtocolChannel {
 
     private static final String TAG = "RumbleOverUDP";
 
+    public static final int    MULTICAST_UDP_PORT = 9716;
+    public static final String MULTICAST_ADDRESS  = RumbleUDPMulticastScanner.MULTICAST_ADDRESS;
     public static final int    PACKET_SIZE = 2048;
 
+    private static final byte TYPE_DATA   = 0x01;
+    private static final byte TYPE_PARITY = 0x02;
+    private static final byte TYPE_NACK   = 0x03;
+    private static final byte TYPE_ACK    = 0x04;
+
+    private static final int  HEADER_SIZE       = 15;
+    private static final int  NACK_HEADER_SIZE  = 14;
+    private static final int  ACK_HEADER_SIZE   = 13;
+    private static final int  FRAGMENT_SIZE     = 1024;
+    private static final int  MAX_FRAGMENTS     = 255;
+    private static final int  FEC_GROUP         = 8;      // data fragments per parity fragment
+    private static final int  RETRANSMIT_WINDOW = 32;     // messages kept by the sender
+    private static final int  MAX_PENDING       = 64;     // incomplete messages kept by a receiver
+    private static final int  MAX_DELIVERED     = 512;
+    private static final int  MAX_GAP           = 8;      // messages NACKed on a sequence gap
+    private static final int  MAX_NACKS         = 4;
+    private static final long REPAIR_DELAY      = 250;    // ms, doubled after every NACK
+    private static final long DISSEMINATION_WINDOW = 60000;
+    private static final int  MAX_DISSEMINATED  = 1024;
+
+    /* ms, longer than the NACK rounds of a receiver (REPAIR_DELAY << MAX_NACKS) */
+    public  static final long ACK_TIMEOUT       = 10000;
+
+    private static final Object lock = new Object();
+
     private Set<Contact> recipientList;
-    private boolean working;
+    private volatile boolean working;
+    private final Random random;
+    private final MetricRegistry metrics;
+
+    // sender
+    private int localID;
+    private String localUid;
+    private int nextSequence;
+    private final Map<Integer, Dissemination> window;
+    private final Map<String, Dissemination>  disseminated;  // status uuid -> last message
+
+    // receiver
+    private final Map<Long, Reassembly> pending;
+    private final Map<Long, Boolean>    delivered;
+    private final Map<Integer, Integer> lastSequence;
+
+    private static class Dissemination {
+        final byte[] message;
+        final List<PushStatus> statuses;
+        final Set<Contact> expected;    // the recipients at the time it was sent
+        final Set<Contact> acked;
+        final long time;
+
+        Dissemination(byte[] message, List<PushStatus> statuses, Set<Contact> expected, long time) {
+            this.message = message;
+            this.statuses = statuses;
+            this.expected = expected;
+            this.acked = new HashSet<Contact>();
+            this.time = time;
+        }
+    }
+
+    private static class Reassembly {
+        final int sender;
+        final int sequence;
+        int count;          // 0 until the first datagram of the message is received
+        int length;
+        byte[][] fragments;
+        byte[][] parity;
+        int received;
+        int nacks;
+        boolean nackHeard;
+        HashedWheelTimer.Timeout timeout;
+
+        Reassembly(int sender, int sequence) {
+            this.sender = sender;
+            this.sequence = sequence;
+            this.count = 0;
+        }
+
+        boolean init(int count, int length) {
+            if(this.count != 0)
+                return (this.count == count) && (this.length == length);
+            this.count = count;
+            this.length = length;
+            this.fragments = new byte[count][];
+            this.parity = new byte[groups(count)][];
+            return true;
+        }
+
+        boolean isComplete() {
+            return (count != 0) && (received == count);
+        }
+
+        byte[] assemble() {
+            byte[] message = new byte[length];
+            for(int i = 0; i < count; i++)
+                System.arraycopy(fragments[i], 0, message, i*FRAGMENT_SIZE, fragments[i].length);
+            return message;
+        }
+    }
 
     public RumbleOverUDPMulticast(RumbleProtocol protocol, UDPMulticastConnection con) {
         super(protocol, con);
         this.working = false;
         this.recipientList = new HashSet<Contact>();
+        this.random = new Random();
+        this.metrics = MetricRegistry.getInstance();
+        this.window = new LinkedHashMap<Integer, Dissemination>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Dissemination> eldest) {
+                return size() > RETRANSMIT_WINDOW;
+            }
+        };
+        this.disseminated = new LinkedHashMap<String, Dissemination>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Dissemination> eldest) {
+                return size() > MAX_DISSEMINATED;
+            }
+        };
+        this.pending = new LinkedHashMap<Long, Reassembly>();
+        this.delivered = new LinkedHashMap<Long, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > MAX_DELIVERED;
+            }
+        };
+        this.lastSequence = new HashMap<Integer, Integer>();
+    }
+
+    /*
+     * only the public statuses without attached file are disseminated over multicast
+     */
+    public static boolean canDisseminate(List<PushStatus> statuses) {
+        for(PushStatus status : statuses) {
+            if(status.getGroup().isPrivate() || status.hasAttachedFile())
+                return false;
+        }
+        return true;
     }
 
     @Override
@@ -82,12 +255,16 @@ public class RumbleOverUDPMulticast extends ProtocolChannel {
         if(working)
             return;
         working = true;
+        localID = random.nextInt();
+        localUid = Contact.getLocalContact().getUid();
+        nextSequence = random.nextInt();
         EventBus.getDefault().register(this);
 
         try {
             con.connect();
         } catch (LinkLayerConnectionException exception) {
             Log.d(TAG, "[!] FAILED: " + getWorkerIdentifier() + " " + exception.getMessage());
+            stopWorker();
             return;
         }
 
@@ -102,11 +279,31 @@ public class RumbleOverUDPMulticast extends ProtocolChannel {
 
     @Override
     protected void processingPacketFromNetwork() {
+        byte[] buffer = new byte[PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, PACKET_SIZE);
         try {
-            while(true) {
-                byte[] buffer = new byte[PACKET_SIZE];
-                DatagramPacket packet = new DatagramPacket(buffer,  PACKET_SIZE);
+            while(working) {
+                packet.setLength(PACKET_SIZE);
                 ((UDPMulticastConnection)con).receive(packet);
+                int length = packet.getLength();
+                if(length < ACK_HEADER_SIZE)
+                    continue;
+                bytes_received += length;
+                switch (buffer[0]) {
+                    case TYPE_DATA:
+                    case TYPE_PARITY:
+                        if(length >= HEADER_SIZE)
+                            fragmentReceived(buffer, length);
+                        break;
+                    case TYPE_NACK:
+                        if(length >= NACK_HEADER_SIZE)
+                            nackReceived(buffer, length);
+                        break;
+                    case TYPE_ACK:
+                        ackReceived(buffer, length);
+                        break;
+                    default:
+                }
             }
         } catch (IOException e) {
         } catch (UDPMulticastSocketException e) {
@@ -115,8 +312,463 @@ public class RumbleOverUDPMulticast extends ProtocolChannel {
 
     @Override
     protected boolean onCommandReceived(Command command) {
-        EventBus.getDefault().post(new CommandExecuted(this, command, false));
-        return false;
+        boolean success = disseminate(command, null);
+        EventBus.getDefault().post(new CommandExecuted(this, command, success));
+        return success;
+    }
+
+    /*
+     * returns true if the statuses have been multicast, now or recently, to a set of receivers
+     * that includes the recipient. It does not mean that they were received: the statuses are
+     * sent to the recipient only once it acknowledged them, see ackReceived.
+     */
+    public boolean disseminate(Command command, Contact recipient) {
+        List<PushStatus> statuses;
+        if(command instanceof CommandSendPushStatusBatch) {
+            statuses = ((CommandSendPushStatusBatch) command).getStatuses();
+        } else if(command instanceof CommandSendPushStatus) {
+            statuses = new ArrayList<PushStatus>(1);
+            statuses.add(((CommandSendPushStatus) command).getStatus());
+        } else {
+            return false;
+        }
+        if(!working || !canDisseminate(statuses))
+            return false;
+        try {
+            return disseminate(statuses, recipient);
+        } catch (IOException e) {
+            return false;
+        } catch (UDPMulticastSocketException e) {
+            return false;
+        }
+    }
+
+    /*
+     * the dispatchers of every WiFi contact ask for the same statuses, only the ones that
+     * were not disseminated recently are actually sent. A recent message only serves the
+     * contacts that were listening when it was sent, it is sent again for a newcomer.
+     */
+    private boolean disseminate(List<PushStatus> statuses, Contact recipient) throws IOException, UDPMulticastSocketException {
+        long now = System.nanoTime();
+        List<PushStatus> fresh = new ArrayList<PushStatus>(statuses.size());
+        synchronized (lock) {
+            for(PushStatus status : statuses) {
+                Dissemination last = disseminated.get(status.getUuid());
+                if((last == null) || (now - last.time > DISSEMINATION_WINDOW*1000000L)
+                        || ((recipient != null) && !last.expected.contains(recipient)))
+                    fresh.add(status);
+            }
+        }
+        metrics.counter(MetricRegistry.MULTICAST_DEDUP).add(statuses.size() - fresh.size());
+        if(fresh.isEmpty())
+            return true;
+
+        long timeToTransfer = System.nanoTime();
+        EncodingContext context = new EncodingContext();
+        context.peerVersionReceived(BlockHeader.VERSION_ID);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            for (int i = 0; i < fresh.size(); i++) {
+                BlockPushStatus blockPushStatus = new BlockPushStatus(new CommandSendPushStatus(fresh.get(i)), context);
+                blockPushStatus.header.setLastBlock(i == fresh.size() - 1);
+                blockPushStatus.writeBlock(buffer, null);
+                blockPushStatus.dismiss();
+            }
+        } catch (InputOutputStreamException e) {
+            Log.d(TAG, "[!] cannot encode statuses: " + e.getMessage());
+            return false;
+        }
+        byte[] message = buffer.toByteArray();
+        int count = (message.length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE;
+        if((count == 0) || (count > MAX_FRAGMENTS))
+            return false;
+
+        Set<Contact> expected = getRecipientList();
+        if(recipient != null)
+            expected.add(recipient);
+        List<PushStatus> copies = new ArrayList<PushStatus>(fresh.size());
+        for(PushStatus status : fresh)
+            copies.add(new PushStatus(status));
+        Dissemination dissemination = new Dissemination(message, copies, expected, now);
+
+        int sequence;
+        synchronized (lock) {
+            sequence = nextSequence++;
+            window.put(sequence, dissemination);
+        }
+
+        long sent = 0;
+        for(int group = 0; group < groups(count); group++) {
+            byte[] parity = new byte[FRAGMENT_SIZE];
+            int parityLength = 0;
+            for(int i = group*FEC_GROUP; i < Math.min(count, (group+1)*FEC_GROUP); i++) {
+                int fragmentLength = fragmentLength(i, count, message.length);
+                for(int j = 0; j < fragmentLength; j++)
+                    parity[j] ^= message[i*FRAGMENT_SIZE + j];
+                parityLength = Math.max(parityLength, fragmentLength);
+                sent += send(TYPE_DATA, sequence, i, count, message.length,
+                        message, i*FRAGMENT_SIZE, fragmentLength);
+            }
+            sent += send(TYPE_PARITY, sequence, group, count, message.length,
+                    parity, 0, parityLength);
+        }
+
+        synchronized (lock) {
+            for(PushStatus status : fresh)
+                disseminated.put(status.getUuid(), dissemination);
+        }
+
+        long elapsed = System.nanoTime() - timeToTransfer;
+        status_sent += fresh.size();
+        out_transmission_time += elapsed;
+        bytes_sent += sent;
+        metrics.linkSent(getLinkLayerIdentifier(), sent, elapsed);
+        return true;
+    }
+
+    /*
+     * executed on the receiving thread, the statuses of the message are sent to the contact
+     * that acknowledged it if it was one of the recipients at the time it was sent.
+     */
+    private void ackReceived(byte[] data, int length) {
+        int target = readInt(data, 5);
+        int sequence = readInt(data, 9);
+        if(target != localID)
+            return;
+        String uid = new String(data, ACK_HEADER_SIZE, length - ACK_HEADER_SIZE, Charset.forName("UTF-8"));
+
+        Contact receiver = null;
+        List<PushStatus> statuses;
+        synchronized (lock) {
+            Dissemination dissemination = window.get(sequence);
+            if(dissemination == null)
+                return;
+            for(Contact contact : dissemination.expected) {
+                if(contact.getUid().equals(uid)) {
+                    receiver = contact;
+                    break;
+                }
+            }
+            if((receiver == null) || !dissemination.acked.add(receiver))
+                return;
+            statuses = new ArrayList<PushStatus>(dissemination.statuses);
+        }
+
+        metrics.counter(MetricRegistry.MULTICAST_ACKED).inc();
+        Set<Contact> recipients = new HashSet<Contact>(1);
+        recipients.add(receiver);
+        metrics.timedPost(new PushStatusSent(
+                statuses,
+                recipients,
+                RumbleProtocol.protocolID,
+                WifiLinkLayerAdapter.LinkLayerIdentifier));
+    }
+
+    private void sendAck(int target, int sequence) {
+        byte[] uid = localUid.getBytes(Charset.forName("UTF-8"));
+        byte[] ack = new byte[ACK_HEADER_SIZE + uid.length];
+        ack[0] = TYPE_ACK;
+        writeInt(ack, 1, localID);
+        writeInt(ack, 5, target);
+        writeInt(ack, 9, sequence);
+        System.arraycopy(uid, 0, ack, ACK_HEADER_SIZE, uid.length);
+        try {
+            ((UDPMulticastConnection)con).send(ack);
+            metrics.counter(MetricRegistry.MULTICAST_ACK_SENT).inc();
+        } catch (IOException ignore) {
+        } catch (UDPMulticastSocketException ignore) {
+        }
+    }
+
+    private static int groups(int count) {
+        return (count + FEC_GROUP - 1) / FEC_GROUP;
+    }
+
+    private static int fragmentLength(int index, int count, int length) {
+        return (index == count - 1) ? length - index*FRAGMENT_SIZE : FRAGMENT_SIZE;
+    }
+
+    private static long key(int sender, int sequence) {
+        return (((long)sender) << 32) | (sequence & 0xffffffffL);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset]   = (byte)(value >>> 24);
+        data[offset+1] = (byte)(value >>> 16);
+        data[offset+2] = (byte)(value >>> 8);
+        data[offset+3] = (byte)value;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset+1] & 0xff) << 16)
+                | ((data[offset+2] & 0xff) << 8) | (data[offset+3] & 0xff);
+    }
+
+    private int send(byte type, int sequence, int index, int count, int messageLength,
+                     byte[] payload, int offset, int length) throws IOException, UDPMulticastSocketException {
+        byte[] datagram = new byte[HEADER_SIZE + length];
+        datagram[0] = type;
+        writeInt(datagram, 1, localID);
+        writeInt(datagram, 5, sequence);
+        datagram[9] = (byte)index;
+        datagram[10] = (byte)count;
+        writeInt(datagram, 11, messageLength);
+        System.arraycopy(payload, offset, datagram, HEADER_SIZE, length);
+        ((UDPMulticastConnection)con).send(datagram);
+        metrics.counter(MetricRegistry.MULTICAST_DATAGRAMS).inc();
+        return datagram.length;
+    }
+
+    /*
+     * executed on the receiving thread for every DATA and PARITY datagram
+     */
+    private void fragmentReceived(byte[] data, int length) {
+        int sender = readInt(data, 1);
+        int sequence = readInt(data, 5);
+        int index = data[9] & 0xff;
+        int count = data[10] & 0xff;
+        int messageLength = readInt(data, 11);
+        int payloadLength = length - HEADER_SIZE;
+        if(sender == localID)
+            return;
+        if((count == 0) || (messageLength <= (count-1)*FRAGMENT_SIZE) || (messageLength > count*FRAGMENT_SIZE))
+            return;
+
+        byte[] message = null;
+        synchronized (lock) {
+            long key = key(sender, sequence);
+            if(delivered.containsKey(key))
+                return;
+            Reassembly reassembly = sequenceReceived(sender, sequence);
+            if(reassembly == null)
+                return;
+            if(!reassembly.init(count, messageLength))
+                return;
+
+            int group;
+            if(data[0] == TYPE_DATA) {
+                if((index >= count) || (payloadLength != fragmentLength(index, count, messageLength)))
+                    return;
+                if(reassembly.fragments[index] != null)
+                    return;
+                reassembly.fragments[index] = new byte[payloadLength];
+                System.arraycopy(data, HEADER_SIZE, reassembly.fragments[index], 0, payloadLength);
+                reassembly.received++;
+                group = index / FEC_GROUP;
+            } else {
+                if((index >= groups(count)) || (payloadLength > FRAGMENT_SIZE))
+                    return;
+                if(reassembly.parity[index] != null)
+                    return;
+                reassembly.parity[index] = new byte[FRAGMENT_SIZE];
+                System.arraycopy(data, HEADER_SIZE, reassembly.parity[index], 0, payloadLength);
+                group = index;
+            }
+            repair(reassembly, group);
+
+            if(reassembly.isComplete()) {
+                pending.remove(key);
+                delivered.put(key, true);
+                if(reassembly.timeout != null)
+                    reassembly.timeout.cancel();
+                message = reassembly.assemble();
+            }
+        }
+
+        if(message != null) {
+            deliver(message);
+            sendAck(sender, sequence);
+        }
+    }
+
+    /*
+     * returns the reassembly of this message (created if necessary) and prepares the ones we
+     * missed entirely if the sequence jumped. Must be called with the lock held.
+     */
+    private Reassembly sequenceReceived(int sender, int sequence) {
+        Integer last = lastSequence.get(sender);
+        if((last == null) || (sequence - last > 0)) {
+            if(last != null) {
+                int gap = Math.min(sequence - last - 1, MAX_GAP);
+                for(int i = gap; i > 0; i--)
+                    getReassembly(sender, sequence - i);
+            }
+            lastSequence.put(sender, sequence);
+        }
+        return getReassembly(sender, sequence);
+    }
+
+    private Reassembly getReassembly(int sender, int sequence) {
+        long key = key(sender, sequence);
+        if(delivered.containsKey(key))
+            return null;
+        Reassembly reassembly = pending.get(key);
+        if(reassembly != null)
+            return reassembly;
+
+        if(pending.size() >= MAX_PENDING) {
+            Iterator<Reassembly> it = pending.values().iterator();
+            Reassembly eldest = it.next();
+            if(eldest.timeout != null)
+                eldest.timeout.cancel();
+            it.remove();
+        }
+        reassembly = new Reassembly(sender, sequence);
+        pending.put(key, reassembly);
+        scheduleRepair(reassembly, REPAIR_DELAY + random.nextInt((int)REPAIR_DELAY));
+        return reassembly;
+    }
+
+    /*
+     * a single missing fragment of a group is the XOR of its parity and the other fragments
+     */
+    private void repair(Reassembly reassembly, int group) {
+        if(reassembly.parity[group] == null)
+            return;
+        int first = group*FEC_GROUP;
+        int last  = Math.min(reassembly.count, first + FEC_GROUP);
+        int missing = -1;
+        for(int i = first; i < last; i++) {
+            if(reassembly.fragments[i] == null) {
+                if(missing >= 0)
+                    return;
+                missing = i;
+            }
+        }
+        if(missing < 0)
+            return;
+
+        byte[] fragment = new byte[fragmentLength(missing, reassembly.count, reassembly.length)];
+        System.arraycopy(reassembly.parity[group], 0, fragment, 0, fragment.length);
+        for(int i = first; i < last; i++) {
+            if(i == missing)
+                continue;
+            byte[] other = reassembly.fragments[i];
+            for(int j = 0; j < Math.min(other.length, fragment.length); j++)
+                fragment[j] ^= other[j];
+        }
+        reassembly.fragments[missing] = fragment;
+        reassembly.received++;
+        metrics.counter(MetricRegistry.MULTICAST_REPAIRED).inc();
+    }
+
+    private void scheduleRepair(final Reassembly reassembly, long delay) {
+        reassembly.timeout = HashedWheelTimer.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                repairTimeout(reassembly);
+            }
+        }, delay);
+    }
+
+    /* executed on the timer thread */
+    private void repairTimeout(Reassembly reassembly) {
+        final byte[] nack;
+        synchronized (lock) {
+            long key = key(reassembly.sender, reassembly.sequence);
+            if(!working || (pending.get(key) != reassembly))
+                return;
+            if(reassembly.nackHeard) {
+                reassembly.nackHeard = false;
+                scheduleRepair(reassembly, REPAIR_DELAY << reassembly.nacks);
+                return;
+            }
+            if(reassembly.nacks >= MAX_NACKS) {
+                pending.remove(key);
+                return;
+            }
+
+            int bitmapLength = (reassembly.count + 7) / 8;
+            nack = new byte[NACK_HEADER_SIZE + bitmapLength];
+            nack[0] = TYPE_NACK;
+            writeInt(nack, 1, localID);
+            writeInt(nack, 5, reassembly.sender);
+            writeInt(nack, 9, reassembly.sequence);
+            nack[13] = (byte)reassembly.count;
+            for(int i = 0; i < reassembly.count; i++) {
+                if(reassembly.fragments[i] == null)
+                    nack[NACK_HEADER_SIZE + i/8] |= (byte)(1 << (i%8));
+            }
+            reassembly.nacks++;
+            scheduleRepair(reassembly, REPAIR_DELAY << reassembly.nacks);
+        }
+
+        // the timer thread must not perform I/O
+        EventDispatcher.getInstance().dispatch(EventDispatcher.GROUP_ASYNC, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ((UDPMulticastConnection)con).send(nack);
+                    metrics.counter(MetricRegistry.MULTICAST_NACK_SENT).inc();
+                } catch (IOException ignore) {
+                } catch (UDPMulticastSocketException ignore) {
+                }
+            }
+        });
+    }
+
+    /*
+     * executed on the receiving thread, a NACK for one of our message is served from the
+     * retransmission window, a NACK for someone else's message postpones our own.
+     */
+    private void nackReceived(byte[] data, int length) {
+        int requester = readInt(data, 1);
+        int target = readInt(data, 5);
+        int sequence = readInt(data, 9);
+        int count = data[13] & 0xff;
+        if(requester == localID)
+            return;
+
+        Dissemination dissemination;
+        synchronized (lock) {
+            if(target != localID) {
+                Reassembly reassembly = pending.get(key(target, sequence));
+                if(reassembly != null)
+                    reassembly.nackHeard = true;
+                return;
+            }
+            dissemination = window.get(sequence);
+        }
+        if(dissemination == null)
+            return;
+        byte[] message = dissemination.message;
+
+        // a NACK without bitmap asks for the whole message
+        int ourCount = (message.length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE;
+        boolean all = (count != ourCount) || (length < NACK_HEADER_SIZE + (count + 7) / 8);
+        try {
+            for(int i = 0; i < ourCount; i++) {
+                if(!all && ((data[NACK_HEADER_SIZE + i/8] & (1 << (i%8))) == 0))
+                    continue;
+                bytes_sent += send(TYPE_DATA, sequence, i, ourCount, message.length,
+                        message, i*FRAGMENT_SIZE, fragmentLength(i, ourCount, message.length));
+                metrics.counter(MetricRegistry.MULTICAST_RESENT).inc();
+            }
+        } catch (IOException ignore) {
+        } catch (UDPMulticastSocketException ignore) {
+        }
+    }
+
+    /*
+     * a message is a sequence of BlockPushStatus, the last one has the last_block flag set
+     */
+    private void deliver(byte[] message) {
+        ByteArrayInputStream in = new ByteArrayInputStream(message);
+        BlockProcessor blockProcessor = new BlockProcessor(in, this);
+        try {
+            while(in.available() > 0) {
+                BlockHeader header = BlockHeader.readBlockHeader(in);
+                if(header.getBlockType() != BlockHeader.BLOCKTYPE_PUSH_STATUS)
+                    throw new MalformedBlock("unexpected block over multicast: "+header.getBlockType(), 0);
+                blockProcessor.processBlock(header);
+            }
+        } catch (MalformedBlock e) {
+            Log.d(TAG, "[!] malformed block: " + e.reason + "("+e.bytesRead+")");
+        } catch (InputOutputStreamException e) {
+            Log.d(TAG, " "+e.getMessage());
+        } catch (IOException e) {
+            Log.d(TAG, " "+e.getMessage());
+        }
     }
 
     @Override
@@ -126,6 +778,14 @@ public class RumbleOverUDPMulticast extends ProtocolChannel {
         this.working = false;
         EventBus.getDefault().unregister(this);
 
+        synchronized (lock) {
+            for(Reassembly reassembly : pending.values()) {
+                if(reassembly.timeout != null)
+                    reassembly.timeout.cancel();
+            }
+            pending.clear();
+        }
+
         try {
             con.disconnect();
         } catch (LinkLayerConnectionException ignore) {
@@ -133,17 +793,27 @@ public class RumbleOverUDPMulticast extends ProtocolChannel {
         Log.d(TAG, "[-] ENDED: " + getWorkerIdentifier());
     }
 
-
+    /*
+     * the recipients are the contacts met over WiFi that also listen to the multicast group
+     */
     @Override
     public Set<Contact> getRecipientList() {
-        return (Set)((HashSet)recipientList).clone();
+        synchronized (lock) {
+            return new HashSet<Contact>(recipientList);
+        }
     }
     public void onEvent(ContactInformationReceived event) {
-        if(event.channel.equals(this))
+        if(!event.channel.getLinkLayerIdentifier().equals(WifiLinkLayerAdapter.LinkLayerIdentifier))
+            return;
+        if(!((RumbleProtocol)protocol).listensToMulticast(event.neighbour.getLinkLayerAddress()))
+            return;
+        synchronized (lock) {
             recipientList.add(event.contact);
+        }
     }
     public void onEvent(ContactDisconnected event) {
-        if(recipientList.contains(event.contact))
+        synchronized (lock) {
             recipientList.remove(event.contact);
+        }
     }
 }
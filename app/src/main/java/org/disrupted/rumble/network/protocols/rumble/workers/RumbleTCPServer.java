@@ -67,43 +67,30 @@ public class RumbleTCPServer extends TCPServer {
     protected void onClientConnected(Socket mmConnectedSocket) {
         WifiNeighbour neighbour = new WifiNeighbour(mmConnectedSocket.getInetAddress().getHostAddress());
         RumbleStateMachine connectionState = protocol.getState(neighbour.getLinkLayerAddress());
-        Worker worker = null;
+        Worker worker = new RumbleUnicastChannel(protocol, new TCPServerConnection(mmConnectedSocket));
         try {
-            connectionState.lock.lock();
-            switch (connectionState.getState()) {
-                case CONNECTED:
-                case CONNECTION_ACCEPTED:
-                    Log.d(TAG, "[-] refusing client connection");
-                    mmConnectedSocket.close();
-                    return;
-                case CONNECTION_SCHEDULED:
-                    if (NetUtil.getLocalIpAddress().compareTo(neighbour.getLinkLayerAddress()) < 0) {
-                        Log.d(TAG, "[-] refusing client connection");
-                        mmConnectedSocket.close();
-                        return;
-                    } else {
-                        Log.d(TAG, "[-] cancelling connection " + connectionState.getWorkerID());
-                        networkCoordinator.stopWorker(
-                                WifiLinkLayerAdapter.LinkLayerIdentifier,
-                                connectionState.getWorkerID());
-                        break;
-                    }
-                case NOT_CONNECTED:
-                default:
-                    break;
+            /*
+             * if we already scheduled a connection to this neighbour, the neighbour with
+             * the lowest address keeps its own connection and refuses the other one
+             */
+            boolean preempt = NetUtil.getLocalIpAddress().compareTo(neighbour.getLinkLayerAddress()) >= 0;
+            String cancelled = connectionState.connectionAccepted(worker.getWorkerIdentifier(), preempt);
+            if(cancelled != null) {
+                Log.d(TAG, "[-] cancelling connection " + cancelled);
+                networkCoordinator.stopWorker(
+                        WifiLinkLayerAdapter.LinkLayerIdentifier,
+                        cancelled);
             }
-
-            worker = new RumbleUnicastChannel(protocol, new TCPServerConnection(mmConnectedSocket));
-            connectionState.connectionAccepted(worker.getWorkerIdentifier());
-        } catch(IOException ignore) {
-            Log.e(TAG, "[!] Client CON: " + ignore.getMessage());
         } catch (RumbleStateMachine.StateException e) {
-            Log.e(TAG,"[!] Rumble TCP State Exception");
-        } finally {
-            connectionState.lock.unlock();
+            Log.d(TAG, "[-] refusing client connection");
+            try {
+                mmConnectedSocket.close();
+            } catch(IOException ignore) {
+                Log.e(TAG,"[!] Client CON: "+ignore.getMessage());
+            }
+            return;
         }
         EventBus.getDefault().post(new ScannerNeighbourSensed(neighbour));
-        if(worker != null)
-            networkCoordinator.addWorker(worker);
+        networkCoordinator.addWorker(worker);
     }
 }
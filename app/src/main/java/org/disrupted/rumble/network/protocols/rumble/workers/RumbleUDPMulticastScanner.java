@@ -21,31 +21,60 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import org.disrupted.rumble.util.Log;
 
+import org.disrupted.rumble.database.StatusSummary;
+import org.disrupted.rumble.database.events.ChatMessageInsertedEvent;
+import org.disrupted.rumble.network.events.ChannelConnected;
+import org.disrupted.rumble.network.events.ChannelDisconnected;
+import org.disrupted.rumble.network.events.PushQueueDrained;
 import org.disrupted.rumble.network.events.ScannerNeighbourSensed;
 import org.disrupted.rumble.network.events.ScannerNeighbourTimeout;
 import org.disrupted.rumble.network.linklayer.LinkLayerNeighbour;
 import org.disrupted.rumble.network.linklayer.Scanner;
-import org.disrupted.rumble.network.linklayer.events.AccessPointEnabled;
 import org.disrupted.rumble.network.linklayer.exception.LinkLayerConnectionException;
 import org.disrupted.rumble.network.linklayer.exception.UDPMulticastSocketException;
 import org.disrupted.rumble.network.linklayer.wifi.UDP.UDPMulticastConnection;
 import org.disrupted.rumble.network.linklayer.wifi.WifiLinkLayerAdapter;
 import org.disrupted.rumble.network.linklayer.wifi.WifiNeighbour;
 import org.disrupted.rumble.network.linklayer.wifi.WifiUtil;
-import org.disrupted.rumble.network.events.ChannelDisconnected;
+import org.disrupted.rumble.network.protocols.rumble.RumbleProtocol;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import de.greenrobot.event.EventBus;
 
 /**
+ * RumbleUDPMulticastScanner discovers the Rumble neighbours on the Wifi network by sending
+ * a beacon on a multicast group and by listening to the beacons of the others.
+ *
+ * The beacons are sent following a trickle timer (RFC 6206) like the BluetoothScanner scans:
+ * the interval doubles every time the neighbourhood stays consistent during a whole interval
+ * (no neighbour appeared or disappeared, no digest changed) up to BEACON_MAX_TIME and is reset
+ * otherwise. The beacon is sent at a random time in the second half of the interval. The
+ * interval never goes below a floor that grows with the number of neighbours so that the
+ * multicast traffic on the network stays roughly constant whatever its size.
+ *
+ * A neighbour is sensed on its first beacon and times out when no beacon has been received
+ * from it for a few of the intervals it advertises. The receiving loop only refreshes the
+ * last-seen timestamp of the neighbours already known and does not allocate anything for
+ * them, the timeouts are detected by a periodic sweep over the neighbourhood.
+ *
+ * Every beacon carries the StatusSummary digest of the sender. A new neighbour is always
+ * reachable but once we exchanged with it, we only connect again when one of the digests
+ * changed since (or a chat message was received), and never when both digests are the same.
+ * An exchange only counts once the PushService sent everything it had for the neighbour
+ * (PushQueueDrained), a channel that breaks before that leaves the exchange pending.
+ *
  * @author Lucien Loiseau
  */
 public class RumbleUDPMulticastScanner extends HandlerThread implements Scanner {
@@ -59,28 +88,79 @@ public class RumbleUDPMulticastScanner extends HandlerThread implements Scanner
     public static final String MULTICAST_ADDRESS = "239.192.0.0";
     public static final int    PACKET_SIZE = 2048;
 
-    private static final int BEACON_TIME       = 5000;
+    private static final int BEACON_TIME       = 5000;   // minimum trickle interval
+    private static final int BEACON_MAX_TIME   = 60000;  // maximum trickle interval
+    private static final int DENSITY_TARGET    = 10;     // neighbours per BEACON_TIME floor
     private static final int NEIGHBOUR_TIMEOUT = 10000;
+    private static final double TIMEOUT_FACTOR = 2.5;    // missed intervals before timeout
+    private static final int SWEEP_TIME        = NEIGHBOUR_TIMEOUT / 4;
+    private static final long EXCHANGE_MIN_INTERVAL = 60000;
+    private static final int LEGACY_BEACON_SIZE = 17;
+    private static final int BEACON_SIZE        = 22;
+
+    private static final byte[] FINGERPRINT = RUMBLE_FINGERPRINT.getBytes();
+
+    // on AP mode, WifiUtil.getIPAddress() returns null, fortunately the DHCP
+    // settings are hardcoded in Android and Cyanogenmod
+    // see https://github.com/CyanogenMod/android_frameworks_base/blob/cm-10.1/wifi/java/android/net/wifi/WifiStateMachine.java?source=c#L1299
+    // this should be replace by a method that grab the IP address instead of using hardcoded IP
+    private static final String AP_ADDRESS = "192.168.43.1";
 
     private UDPMulticastConnection con;
 
     private enum ScanningState {
         SCANNING_OFF, SCANNING_ON,
     }
-    private ScanningState scanningState;
+    private volatile ScanningState scanningState;
     private static ReentrantLock lock = new ReentrantLock();
 
+    private final RumbleProtocol protocol;
     private Handler handler;
-    private HashSet<WifiNeighbour>  wifiNeighborhood;
-    private Map<WifiNeighbour, Runnable> timeouts;
+    private final Random random;
+
+    private static class Entry {
+        final WifiNeighbour neighbour;
+        volatile long    lastSeen;      // System.nanoTime()
+        volatile long    timeout;       // nanoseconds, derived from the advertised interval
+        volatile boolean legacy;        // beacon without interval nor digest
+        volatile int     digest;
+        // state of both sides the last time we exchanged with this neighbour
+        volatile long    lastExchange;  // System.nanoTime(), 0 if never
+        volatile int     exchangedDigest;
+        volatile int     exchangedLocalDigest;
+        volatile int     exchangedChatGeneration;
+        volatile boolean deferred;
+        volatile boolean drained;       // the push queue was drained on the current channel
+
+        Entry(WifiNeighbour neighbour) {
+            this.neighbour = neighbour;
+            this.lastSeen = System.nanoTime();
+            this.lastExchange = 0;
+        }
+    }
+    private final Map<InetAddress, Entry> wifiNeighborhood;
+
+    // trickle
+    private int     interval;
+    private int     advertisedDigest;
+    private volatile boolean inconsistent;
+    private volatile boolean legacyNeighbour;
+    private final AtomicInteger chatGeneration;
 
+    // our own addresses, refreshed by the sweep so that the receiving loop does not query them
+    private volatile InetAddress localAddress;
+    private volatile InetAddress apAddress;
 
-    public RumbleUDPMulticastScanner() {
+    public RumbleUDPMulticastScanner(RumbleProtocol protocol) {
         super(TAG);
         super.start();
+        this.protocol = protocol;
+        this.random = new Random();
+        this.chatGeneration = new AtomicInteger(0);
         scanningState = ScanningState.SCANNING_OFF;
-        wifiNeighborhood = null;
-        timeouts = new HashMap<WifiNeighbour, Runnable>();
+        wifiNeighborhood = new ConcurrentHashMap<InetAddress, Entry>();
+        localAddress = null;
+        apAddress = null;
     }
 
     @Override
@@ -111,11 +191,18 @@ public class RumbleUDPMulticastScanner extends HandlerThread implements Scanner
             }
 
             Log.d(TAG, "[+] ----- Rumble UDP Scanner started -----");
-            wifiNeighborhood = new LinkedHashSet<WifiNeighbour>();
+            wifiNeighborhood.clear();
+            refreshLocalAddresses();
             if(!EventBus.getDefault().isRegistered(this))
                 EventBus.getDefault().register(this);
             receiverThread.start();
+            interval = BEACON_TIME;
+            inconsistent = false;
+            legacyNeighbour = false;
+            advertisedDigest = StatusSummary.getInstance().getDigest();
             sendBeacon();
+            handler.postDelayed(intervalEndFires, interval);
+            handler.postDelayed(sweepFires, SWEEP_TIME);
         } finally {
             lock.unlock();
         }
@@ -129,9 +216,9 @@ public class RumbleUDPMulticastScanner extends HandlerThread implements Scanner
                 return;
             scanningState = ScanningState.SCANNING_OFF;
 
-            for(Map.Entry<WifiNeighbour, Runnable> entry : timeouts.entrySet()) {
-                handler.removeCallbacks(entry.getValue());
-            }
+            handler.removeCallbacks(scheduleBeaconFires);
+            handler.removeCallbacks(intervalEndFires);
+            handler.removeCallbacks(sweepFires);
 
             // we disconnect the socket
             try {
@@ -142,10 +229,7 @@ public class RumbleUDPMulticastScanner extends HandlerThread implements Scanner
             if(EventBus.getDefault().isRegistered(this))
                 EventBus.getDefault().unregister(this);
             Log.d(TAG, "[-] ----- Rumble UDP Scanner stopped -----");
-
-            if (wifiNeighborhood != null)
-                wifiNeighborhood.clear();
-            wifiNeighborhood = null;
+            wifiNeighborhood.clear();
         } finally {
             lock.unlock();
         }
@@ -164,31 +248,58 @@ public class RumbleUDPMulticastScanner extends HandlerThread implements Scanner
 
     @Override
     public HashSet<LinkLayerNeighbour> getNeighbourList() {
-        return new HashSet<LinkLayerNeighbour>(wifiNeighborhood);
+        HashSet<LinkLayerNeighbour> ret = new HashSet<LinkLayerNeighbour>();
+        for(Entry entry : wifiNeighborhood.values())
+            ret.add(entry.neighbour);
+        return ret;
     }
 
 
     /*
-     * The Beacon is a very small UDP packet carrying a ProtocolVersion and
-     * a Fingerprint :
+     * The Beacon is a very small UDP packet carrying a ProtocolVersion, a Fingerprint,
+     * the current trickle interval of the sender (in seconds) and its StatusSummary digest:
+     *
+     * +---------------------------------+------------+----------+------------------+
+     * |          FINGERPRINT            |   Version  | Interval |      Digest      |
+     * +---------------------------------+------------+----------+------------------+
+     *             16 bytes                   1 byte     1 byte        4 bytes
      *
-     * +---------------------------------+------------+
-     * |          FINGERPRINT            |   Version  |
-     * +---------------------------------+------------+
-     *             16 bytes                   1 byte
+     * The Version is unchanged and older versions only read the first 17 bytes, they still
+     * recognize this beacon. A beacon of 17 bytes comes from an older version.
      */
+    private final byte[] beacon = new byte[BEACON_SIZE];
+
+    /* returns the size of the beacon received or -1 if it is not a Rumble beacon */
+    private static int beaconSize(byte[] data, int length) {
+        if((length != LEGACY_BEACON_SIZE) && (length < BEACON_SIZE))
+            return -1;
+        for(int i = 0; i < 16; i++) {
+            if(data[i] != FINGERPRINT[i])
+                return -1;
+        }
+        if(data[16] > RUMBLE_VERSION)
+            return -1;
+        return (length == LEGACY_BEACON_SIZE) ? LEGACY_BEACON_SIZE : BEACON_SIZE;
+    }
+
+    private static int readDigest(byte[] data) {
+        return ((data[18] & 0xff) << 24) | ((data[19] & 0xff) << 16)
+                | ((data[20] & 0xff) << 8) | (data[21] & 0xff);
+    }
+
     public void sendBeacon() {
+        System.arraycopy(FINGERPRINT, 0, beacon, 0, 16);
+        beacon[16] = RUMBLE_VERSION;
+        beacon[17] = (byte)Math.min(255, interval / 1000);
+        beacon[18] = (byte)(advertisedDigest >>> 24);
+        beacon[19] = (byte)(advertisedDigest >>> 16);
+        beacon[20] = (byte)(advertisedDigest >>> 8);
+        beacon[21] = (byte)advertisedDigest;
         try {
-            byte[] buffer = new byte[17];
-            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-            byteBuffer.put(RUMBLE_FINGERPRINT.getBytes(), 0, 16);
-            byteBuffer.put(RUMBLE_VERSION);
-            con.send(byteBuffer.array());
+            con.send(beacon);
         } catch( UDPMulticastSocketException e) {
         } catch( IOException e) {
         }
-
-        handler.postDelayed(scheduleBeaconFires, BEACON_TIME);
     }
 
     Runnable scheduleBeaconFires = new Runnable() {
@@ -205,61 +316,87 @@ public class RumbleUDPMulticastScanner extends HandlerThread implements Scanner
         }
     };
 
+    /*
+     * end of a trickle interval: the interval doubles if the neighbourhood was consistent,
+     * otherwise it goes back to its floor. The beacon of the next interval is sent at a
+     * random time in its second half.
+     */
+    Runnable intervalEndFires = new Runnable() {
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                if (scanningState.equals(ScanningState.SCANNING_OFF))
+                    return;
+
+                int digest = StatusSummary.getInstance().getDigest();
+                if(digest != advertisedDigest) {
+                    advertisedDigest = digest;
+                    inconsistent = true;
+                }
+
+                int floor = (int)Math.min(BEACON_MAX_TIME,
+                        (long)BEACON_TIME * Math.max(1, wifiNeighborhood.size() / DENSITY_TARGET));
+                if(inconsistent)
+                    interval = floor;
+                else
+                    interval = Math.max(floor, Math.min(BEACON_MAX_TIME, interval * 2));
+                // older versions time out their neighbours after NEIGHBOUR_TIMEOUT
+                if(legacyNeighbour)
+                    interval = BEACON_TIME;
+                inconsistent = false;
+
+                handler.postDelayed(scheduleBeaconFires, interval / 2 + random.nextInt(interval / 2));
+                handler.postDelayed(intervalEndFires, interval);
+            } finally {
+                lock.unlock();
+            }
+        }
+    };
+
     Thread receiverThread = new Thread(new Runnable() {
         @Override
         public void run() {
+            byte[] buffer = new byte[BEACON_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, BEACON_SIZE);
             try {
                 while(scanningState.equals(ScanningState.SCANNING_ON)) {
-                    byte[] buffer = new byte[17];
-                    DatagramPacket packet = new DatagramPacket(buffer, 17);
+                    packet.setLength(BEACON_SIZE);
                     con.receive(packet);
 
-                    // on AP mode, WifiUtil.getIPAddress() returns null, fortunately the DHCP
-                    // settings are hardcoded in Android and Cyanogenmod
-                    // see https://github.com/CyanogenMod/android_frameworks_base/blob/cm-10.1/wifi/java/android/net/wifi/WifiStateMachine.java?source=c#L1299
-                    // this should be replace by a method that grab the IP address instead of using hardcoded IP
-                    if(WifiUtil.isWiFiApEnabled() && packet.getAddress().getHostAddress().equals("192.168.43.1"))
+                    int size = beaconSize(buffer, packet.getLength());
+                    if(size < 0)
                         continue;
 
-                    if(packet.getAddress().getHostAddress().equals(WifiUtil.getIPAddress()))
-                        continue;
-
-                    byte[] data = packet.getData();
-                    if(data.length != 17)
-                        continue;
-
-                    ByteBuffer byteBuffer = ByteBuffer.wrap(data);
-
-                    byte[] fingerprint_buf = new byte[16];
-                    byteBuffer.get(fingerprint_buf, 0, 16);
-                    String fingerprint = new String(fingerprint_buf);
-                    if(!fingerprint.equals(RUMBLE_FINGERPRINT))
+                    InetAddress address = packet.getAddress();
+                    Entry entry = wifiNeighborhood.get(address);
+                    if(entry != null) {
+                        entry.lastSeen = System.nanoTime();
+                        if(size == BEACON_SIZE)
+                            updateEntry(entry, buffer, true);
                         continue;
+                    }
 
-                    byte version = byteBuffer.get();
-                    if(version > RUMBLE_VERSION)
+                    if(address.equals(localAddress) || address.equals(apAddress))
                         continue;
 
                     lock.lock();
                     try {
-                        if(wifiNeighborhood == null)
+                        if(scanningState.equals(ScanningState.SCANNING_OFF))
                             return;
-                        WifiNeighbour neighbour = new WifiNeighbour(packet.getAddress().getHostAddress());
-                        if (wifiNeighborhood.add(neighbour)) {
-                            EventBus.getDefault().post(new ScannerNeighbourSensed(neighbour));
-                        } else {
-                            //Log.d(TAG, "beacon from " + neighbour.getLinkLayerAddress());
-                            Runnable callback = timeouts.get(neighbour);
-                            if (callback != null)
-                                handler.removeCallbacks(callback);
-                        }
-
-                        Runnable callback = new RemoveNeighbour(neighbour);
-                        timeouts.put(neighbour, callback);
-                        handler.postDelayed(callback, NEIGHBOUR_TIMEOUT);
+                        entry = new Entry(new WifiNeighbour(address.getHostAddress()));
+                        entry.timeout = TimeUnit.MILLISECONDS.toNanos(NEIGHBOUR_TIMEOUT);
+                        entry.legacy = true;
+                        if(size == BEACON_SIZE)
+                            updateEntry(entry, buffer, false);
+                        else
+                            legacyNeighbour = true;
+                        wifiNeighborhood.put(address, entry);
+                        inconsistent = true;
                     } finally {
                         lock.unlock();
                     }
+                    EventBus.getDefault().post(new ScannerNeighbourSensed(entry.neighbour));
                 }
             } catch(UDPMulticastSocketException e) {
                 stopScanner();
@@ -269,54 +406,161 @@ public class RumbleUDPMulticastScanner extends HandlerThread implements Scanner
         }
     });
 
-    public class RemoveNeighbour implements Runnable {
-
-        private WifiNeighbour neighbour;
-
-        public RemoveNeighbour(WifiNeighbour neighbour) {
-            this.neighbour = neighbour;
-        }
-
+    /*
+     * removes the neighbours we did not hear from for too long
+     */
+    Runnable sweepFires = new Runnable() {
         @Override
         public void run() {
-            Log.d(TAG, "[-] neighbour "+neighbour.getLinkLayerAddress()+" timeouted");
-            timeouts.remove(neighbour);
-            lock.lock();
-            try {
-                if ((wifiNeighborhood != null) && wifiNeighborhood.remove(neighbour))
-                    EventBus.getDefault().post(new ScannerNeighbourTimeout(neighbour));
-            } finally {
-                lock.unlock();
+            if (scanningState.equals(ScanningState.SCANNING_OFF))
+                return;
+            refreshLocalAddresses();
+            long now = System.nanoTime();
+            boolean legacy = false;
+            for(Iterator<Entry> it = wifiNeighborhood.values().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if(now - entry.lastSeen > entry.timeout) {
+                    it.remove();
+                    inconsistent = true;
+                    Log.d(TAG, "[-] neighbour "+entry.neighbour.getLinkLayerAddress()+" timeouted");
+                    EventBus.getDefault().post(new ScannerNeighbourTimeout(entry.neighbour));
+                } else {
+                    legacy |= entry.legacy;
+                    if(entry.deferred)
+                        evaluate(entry);
+                }
             }
+            legacyNeighbour = legacy;
+            handler.postDelayed(sweepFires, SWEEP_TIME);
         }
+    };
 
-        @Override
-        public boolean equals(Object o) {
-            if(o == null)
-                return false;
-            if(o instanceof RemoveNeighbour) {
-                RemoveNeighbour other = (RemoveNeighbour)o;
-                if(this.neighbour.equals(other.neighbour))
-                    return true;
-            }
+    /*
+     * called by the receiving thread for every beacon that carries an interval and a digest
+     */
+    private void updateEntry(Entry entry, byte[] data, boolean known) {
+        int advertised = Math.max(1, data[17] & 0xff) * 1000;
+        entry.timeout = TimeUnit.MILLISECONDS.toNanos(
+                Math.max(NEIGHBOUR_TIMEOUT, (long)(advertised * TIMEOUT_FACTOR)));
+        entry.legacy = false;
+        int digest = readDigest(data);
+        if(known && (digest == entry.digest))
+            return;
+        entry.digest = digest;
+        if(!known)
+            return;
+        inconsistent = true;
+        evaluate(entry);
+    }
+
+    /*
+     * we always connect to a neighbour we never exchanged with. Afterwards, we only connect
+     * again if it has a different digest than ours and one of them changed since the last
+     * exchange, or if a chat message has been received since.
+     */
+    private boolean hasNewData(Entry entry) {
+        if(entry.legacy || (entry.lastExchange == 0))
+            return true;
+        if(entry.exchangedChatGeneration != chatGeneration.get())
+            return true;
+        int local = StatusSummary.getInstance().getDigest();
+        if(entry.digest == local)
             return false;
+        return (entry.digest != entry.exchangedDigest) || (local != entry.exchangedLocalDigest);
+    }
+
+    public boolean hasNewData(String linkLayerAddress) {
+        Entry entry = getEntry(linkLayerAddress);
+        return (entry == null) || hasNewData(entry);
+    }
+
+    /*
+     * the neighbours sending the new beacon also listen to the status dissemination group
+     * (see RumbleOverUDPMulticast)
+     */
+    public boolean listensToMulticast(String linkLayerAddress) {
+        Entry entry = getEntry(linkLayerAddress);
+        return (entry != null) && !entry.legacy;
+    }
+
+    /*
+     * asks the ConnectionScheduler for a channel if this neighbour has something new, at most
+     * once every EXCHANGE_MIN_INTERVAL. A deferred request is retried by the sweep.
+     */
+    private void evaluate(Entry entry) {
+        if(!hasNewData(entry))
+            return;
+        long now = System.nanoTime();
+        if((entry.lastExchange != 0)
+                && (now - entry.lastExchange < TimeUnit.MILLISECONDS.toNanos(EXCHANGE_MIN_INTERVAL))) {
+            entry.deferred = true;
+            return;
         }
+        entry.deferred = false;
+        protocol.getConnectionScheduler().connectionRequested(entry.neighbour);
+    }
 
-        @Override
-        public int hashCode() {
-            return neighbour.hashCode();
+    private Entry getEntry(String linkLayerAddress) {
+        for(Entry entry : wifiNeighborhood.values()) {
+            if(entry.neighbour.getLinkLayerAddress().equals(linkLayerAddress))
+                return entry;
         }
+        return null;
+    }
+
+    public void onEvent(ChannelConnected event) {
+        if(!event.neighbour.getLinkLayerIdentifier().equals(WifiLinkLayerAdapter.LinkLayerIdentifier))
+            return;
+        Entry entry = getEntry(event.neighbour.getLinkLayerAddress());
+        if(entry != null)
+            entry.drained = false;
+    }
 
+    public void onEvent(PushQueueDrained event) {
+        LinkLayerNeighbour neighbour = event.channel.getLinkLayerConnection().getLinkLayerNeighbour();
+        if((neighbour == null)
+                || !neighbour.getLinkLayerIdentifier().equals(WifiLinkLayerAdapter.LinkLayerIdentifier))
+            return;
+        Entry entry = getEntry(neighbour.getLinkLayerAddress());
+        if(entry != null)
+            entry.drained = true;
     }
 
+    /*
+     * only a complete exchange is recorded, after an interrupted one the neighbour is still
+     * considered to have new data
+     */
     public void onEvent(ChannelDisconnected event) {
         if(!event.neighbour.getLinkLayerIdentifier().equals(WifiLinkLayerAdapter.LinkLayerIdentifier))
             return;
-        Runnable callback = timeouts.get(event.neighbour);
-        if(callback == null) {
-            callback = new RemoveNeighbour((WifiNeighbour)event.neighbour);
-            timeouts.put((WifiNeighbour)event.neighbour, callback);
-            handler.postDelayed(callback, NEIGHBOUR_TIMEOUT);
+        Entry entry = getEntry(event.neighbour.getLinkLayerAddress());
+        if(entry == null)
+            return;
+        boolean complete = entry.drained && !event.error;
+        entry.drained = false;
+        if(!complete) {
+            Log.d(TAG, "[-] exchange with "+event.neighbour.getLinkLayerAddress()+" interrupted");
+            return;
+        }
+        entry.exchangedDigest = entry.digest;
+        entry.exchangedLocalDigest = StatusSummary.getInstance().getDigest();
+        entry.exchangedChatGeneration = chatGeneration.get();
+        entry.lastExchange = System.nanoTime();
+    }
+
+    public void onEvent(ChatMessageInsertedEvent event) {
+        chatGeneration.incrementAndGet();
+        for(Entry entry : wifiNeighborhood.values())
+            evaluate(entry);
+    }
+
+    private void refreshLocalAddresses() {
+        try {
+            String ip = WifiUtil.getIPAddress();
+            localAddress = (ip == null) ? null : InetAddress.getByName(ip);
+            apAddress = WifiUtil.isWiFiApEnabled() ? InetAddress.getByName(AP_ADDRESS) : null;
+        } catch(UnknownHostException ignore) {
+            // numeric addresses are never resolved
         }
     }
 
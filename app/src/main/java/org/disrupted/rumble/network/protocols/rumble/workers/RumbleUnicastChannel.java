@@ -17,7 +17,8 @@
 
 package org.disrupted.rumble.network.protocols.rumble.workers;
 
-import android.os.Handler;
+import org.disrupted.rumble.app.EventDispatcher;
+import org.disrupted.rumble.util.HashedWheelTimer;
 import org.disrupted.rumble.util.Log;
 
 import org.disrupted.rumble.database.objects.Contact;
@@ -25,8 +26,10 @@ import org.disrupted.rumble.network.linklayer.UnicastConnection;
 import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothClientConnection;
 import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothConnection;
 import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothServerConnection;
+import org.disrupted.rumble.network.linklayer.loopback.LoopbackClientConnection;
 import org.disrupted.rumble.network.linklayer.exception.InputOutputStreamException;
 import org.disrupted.rumble.network.linklayer.exception.LinkLayerConnectionException;
+import org.disrupted.rumble.network.linklayer.wifi.TCP.TCPClientConnection;
 import org.disrupted.rumble.network.protocols.ProtocolChannel;
 import org.disrupted.rumble.network.protocols.command.Command;
 import org.disrupted.rumble.network.protocols.command.CommandSendChatMessage;
@@ -37,6 +40,7 @@ import org.disrupted.rumble.network.protocols.events.CommandExecuted;
 import org.disrupted.rumble.network.protocols.events.ContactInformationReceived;
 import org.disrupted.rumble.network.events.ChannelConnected;
 import org.disrupted.rumble.network.events.ChannelDisconnected;
+import org.disrupted.rumble.network.protocols.rumble.ConnectionScheduler;
 import org.disrupted.rumble.network.protocols.rumble.RumbleProtocol;
 import org.disrupted.rumble.network.protocols.rumble.RumbleStateMachine;
 import org.disrupted.rumble.network.protocols.rumble.packetformat.Block;
@@ -49,19 +53,34 @@ import org.disrupted.rumble.network.protocols.rumble.packetformat.BlockKeepAlive
 import org.disrupted.rumble.network.protocols.rumble.packetformat.BlockProcessor;
 import org.disrupted.rumble.network.protocols.rumble.packetformat.BlockPushStatus;
 import org.disrupted.rumble.network.protocols.rumble.packetformat.CommandProcessor;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.EncodingContext;
 import org.disrupted.rumble.network.protocols.rumble.packetformat.exceptions.MalformedBlock;
 import org.disrupted.rumble.network.protocols.rumble.packetformat.exceptions.MalformedBlockHeader;
 import org.disrupted.rumble.util.CryptoUtil;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 
 import de.greenrobot.event.EventBus;
 
 /**
+ * The liveness of the channel is checked by a single timeout on the HashedWheelTimer that
+ * is re-armed when it fires: sending and receiving only update a timestamp. When nothing
+ * has been sent for KEEP_ALIVE_TIME a BlockKeepAlive is sent, and when nothing has been
+ * received for the socket timeout the channel is considered dead and is stopped. The idle
+ * timeout only applies once the remote peer has sent a keep-alive, older versions of Rumble
+ * never send any and an idle channel with them is not a dead one.
+ *
+ * A write that makes no progress for the socket timeout (a stalled peer that stopped
+ * reading) is considered dead as well, so that it does not hold a CommandExecutor thread.
+ *
  * @author Lucien Loiseau
  */
 public class RumbleUnicastChannel extends ProtocolChannel {
@@ -72,30 +91,42 @@ public class RumbleUnicastChannel extends ProtocolChannel {
     private static final int SOCKET_TIMEOUT_UDP  = 5000;
     private static final int SOCKET_TIMEOUT_BLUETOOTH  = 20000;
 
-    private boolean working;
+    private volatile boolean working;
     private Contact remoteContact;
 
+    private EncodingContext  encodingContext;
     private BlockProcessor   blockProcessor;
     private CommandProcessor commandProcessor;
-    private Handler keepAlive;
-    private Handler socketTimeout;
+
+    // liveness, timestamps are System.nanoTime()
+    private volatile long    lastReceived;
+    private volatile long    lastSent;
+    private volatile boolean keepAliveReceived;
+    private volatile boolean keepAlivePending;
+    private volatile boolean writing;
+    private volatile HashedWheelTimer.Timeout livenessTimeout;
 
     public RumbleUnicastChannel(RumbleProtocol protocol, UnicastConnection con) {
         super(protocol, con);
         remoteContact = null;
-        keepAlive     = new Handler(protocol.getNetworkCoordinator().getServiceLooper());
-        socketTimeout = new Handler(protocol.getNetworkCoordinator().getServiceLooper());
+        encodingContext = new EncodingContext();
+        livenessTimeout = null;
     }
 
     @Override
     public void cancelWorker() {
-        RumbleStateMachine connectionState = ((RumbleProtocol)protocol).getState(
-                con.getLinkLayerNeighbour().getLinkLayerAddress());
+        String linkLayerAddress = con.getLinkLayerNeighbour().getLinkLayerAddress();
+        RumbleStateMachine connectionState = ((RumbleProtocol)protocol).getState(linkLayerAddress);
         if(working) {
             Log.e(TAG, "[!] should not call cancelWorker() on a working Worker, call stopWorker() instead !");
             stopWorker();
-        } else
-            connectionState.notConnected();
+        } else {
+            connectionState.notConnected(getWorkerIdentifier());
+            // a cancelled client connection must give its slot back
+            if ((con instanceof BluetoothClientConnection) || (con instanceof TCPClientConnection)
+                    || (con instanceof LoopbackClientConnection))
+                ((RumbleProtocol)protocol).getConnectionScheduler().connectionEnded(linkLayerAddress, false);
+        }
     }
 
     @Override
@@ -109,22 +140,25 @@ public class RumbleUnicastChannel extends ProtocolChannel {
         RumbleStateMachine connectionState = rumbleProtocol.getState(
                 con.getLinkLayerNeighbour().getLinkLayerAddress());
 
+        ConnectionScheduler scheduler = rumbleProtocol.getConnectionScheduler();
+        String linkLayerAddress = con.getLinkLayerNeighbour().getLinkLayerAddress();
+
         try {
+            /*
+             * the ConnectionScheduler does not admit a bluetooth connection while the
+             * adapter is discovering so we do not need to wait for the scan to end here
+             */
             if (con instanceof BluetoothClientConnection) {
-                if (!connectionState.getState().equals(RumbleStateMachine.RumbleState.CONNECTION_SCHEDULED))
+                RumbleStateMachine.Snapshot snapshot = connectionState.getSnapshot();
+                if (!snapshot.state.equals(RumbleStateMachine.RumbleState.CONNECTION_SCHEDULED)
+                        || !getWorkerIdentifier().equals(snapshot.workerID))
                     throw new RumbleStateMachine.StateException();
-
-                ((BluetoothClientConnection) con).waitScannerToStop();
             }
 
             con.connect();
 
-            try {
-                connectionState.lock.lock();
-                connectionState.connected(getWorkerIdentifier());
-            } finally {
-                connectionState.lock.unlock();
-            }
+            connectionState.connected(getWorkerIdentifier());
+            scheduler.connected(linkLayerAddress);
 
             /*
              * Bluetooth hack to synchronise the client and server
@@ -137,22 +171,28 @@ public class RumbleUnicastChannel extends ProtocolChannel {
 
         } catch (RumbleStateMachine.StateException state) {
             Log.e(TAG, "[-] client connected while trying to connect");
+            scheduler.connectionEnded(linkLayerAddress, false);
             stopWorker();
             return;
         } catch (LinkLayerConnectionException llce) {
             Log.e(TAG, "[!] FAILED CON: " + getWorkerIdentifier() + " - " + llce.getMessage());
+            scheduler.connectionEnded(linkLayerAddress, true);
             stopWorker();
-            connectionState.notConnected();
+            connectionState.notConnected(getWorkerIdentifier());
             return;
         } catch (IOException io) {
             Log.e(TAG, "[!] FAILED CON: " + getWorkerIdentifier() + " - " + io.getMessage());
+            scheduler.connectionEnded(linkLayerAddress, true);
             stopWorker();
-            connectionState.notConnected();
+            connectionState.notConnected(getWorkerIdentifier());
             return;
         }
 
         try {
             Log.d(TAG, "[+] connected");
+            lastReceived = System.nanoTime();
+            lastSent = lastReceived;
+            armLivenessTimeout();
             EventBus.getDefault().post(new ChannelConnected(
                             con.getLinkLayerNeighbour(),
                             this)
@@ -167,7 +207,7 @@ public class RumbleUnicastChannel extends ProtocolChannel {
                             error)
             );
             stopWorker();
-            connectionState.notConnected();
+            connectionState.notConnected(getWorkerIdentifier());
         }
     }
 
@@ -179,23 +219,18 @@ public class RumbleUnicastChannel extends ProtocolChannel {
     @Override
     protected void processingPacketFromNetwork(){
         try {
-            InputStream in = ((UnicastConnection)this.getLinkLayerConnection()).getInputStream();
-            blockProcessor = new BlockProcessor(in, this);
+            InputStream in = new LivenessInputStream(
+                    ((UnicastConnection)this.getLinkLayerConnection()).getInputStream());
+            blockProcessor = new BlockProcessor(in, this, encodingContext);
             while (true) {
                 // read next block header (blocking)
                 BlockHeader header = BlockHeader.readBlockHeader(in);
 
-                // channel is alive, cancel timeout during block processing
-                socketTimeout.removeCallbacks(socketTimeoutFires);
+                if(header.getBlockType() == BlockHeader.BLOCKTYPE_KEEPALIVE)
+                    keepAliveReceived = true;
 
                 // process block
                 blockProcessor.processBlock(header);
-
-                // set timeout
-                if(con instanceof BluetoothConnection)
-                    socketTimeout.postDelayed(socketTimeoutFires, SOCKET_TIMEOUT_BLUETOOTH);
-                else
-                    socketTimeout.postDelayed(socketTimeoutFires, SOCKET_TIMEOUT_UDP);
             }
         } catch (IOException silentlyCloseConnection) {
             Log.d(TAG, " "+silentlyCloseConnection.getMessage());
@@ -213,18 +248,24 @@ public class RumbleUnicastChannel extends ProtocolChannel {
     protected boolean onCommandReceived(Command command) {
         try {
             if(commandProcessor == null)
-                commandProcessor = new CommandProcessor(((UnicastConnection)this.getLinkLayerConnection()).getOutputStream(), this);
-
-            // remove keep alive if any
-            keepAlive.removeCallbacks(keepAliveFires);
+                commandProcessor = new CommandProcessor(new LivenessOutputStream(
+                        ((UnicastConnection)this.getLinkLayerConnection()).getOutputStream()),
+                        this, encodingContext);
 
-            commandProcessor.processCommand(command);
+            boolean success;
+            lastSent = System.nanoTime();
+            writing = true;
+            try {
+                success = commandProcessor.processCommand(command);
+            } finally {
+                writing = false;
+            }
+            lastSent = System.nanoTime();
 
             if(!command.getCommandID().equals(Command.CommandID.SEND_KEEP_ALIVE))
-                EventBus.getDefault().post(new CommandExecuted(this, command, true));
-
-            // schedule a keep alive to send
-            keepAlive.postDelayed(keepAliveFires, KEEP_ALIVE_TIME);
+                EventBus.getDefault().post(new CommandExecuted(this, command, success));
+            else
+                keepAlivePending = false;
 
             //EventBus.getDefault().post(new CommandExecuted(this, command, false));
             return true;
@@ -235,6 +276,9 @@ public class RumbleUnicastChannel extends ProtocolChannel {
             ignore.printStackTrace();
             Log.d(TAG, "[!] "+command.getCommandID()+" "+ignore.getMessage());
         }
+        /* the upper layer may wait for the outcome of this command (see PushService) */
+        if(!command.getCommandID().equals(Command.CommandID.SEND_KEEP_ALIVE))
+            EventBus.getDefault().post(new CommandExecuted(this, command, false));
         return false;
     }
 
@@ -249,8 +293,8 @@ public class RumbleUnicastChannel extends ProtocolChannel {
             //Log.d(TAG, "[-]"+ignore.getMessage());
         }
         finally {
-            keepAlive.removeCallbacks(keepAliveFires);
-            socketTimeout.removeCallbacks(socketTimeoutFires);
+            if(livenessTimeout != null)
+                livenessTimeout.cancel();
             if(EventBus.getDefault().isRegistered(this))
                 EventBus.getDefault().unregister(this);
         }
@@ -269,20 +313,104 @@ public class RumbleUnicastChannel extends ProtocolChannel {
     }
 
     /*
-     * keep-alive handler related method
+     * keep-alive and idle timeout related methods
      */
-    private Runnable keepAliveFires = new Runnable() {
+    private long getSocketTimeout() {
+        if(con instanceof BluetoothConnection)
+            return SOCKET_TIMEOUT_BLUETOOTH;
+        else
+            return SOCKET_TIMEOUT_UDP;
+    }
+
+    private void armLivenessTimeout() {
+        if(!working)
+            return;
+        long now = System.nanoTime();
+        long nextKeepAlive = lastSent + TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_TIME);
+        long nextCheck = nextKeepAlive;
+        if(keepAliveReceived)
+            nextCheck = Math.min(nextCheck,
+                    lastReceived + TimeUnit.MILLISECONDS.toNanos(getSocketTimeout()));
+        if(writing)
+            nextCheck = Math.min(nextCheck,
+                    lastSent + TimeUnit.MILLISECONDS.toNanos(getSocketTimeout()));
+        livenessTimeout = HashedWheelTimer.getInstance().schedule(livenessCheck,
+                TimeUnit.NANOSECONDS.toMillis(nextCheck - now));
+    }
+
+    /* executed on the timer thread */
+    private final Runnable livenessCheck = new Runnable() {
         @Override
         public void run() {
-            CommandSendKeepAlive sendKeepAlive = new CommandSendKeepAlive();
-            //executeNonBlocking(sendKeepAlive);
+            if(!working)
+                return;
+            long now = System.nanoTime();
+            long timeout = TimeUnit.MILLISECONDS.toNanos(getSocketTimeout());
+            if((keepAliveReceived && (now - lastReceived > timeout))
+                    || (writing && (now - lastSent > timeout))) {
+                Log.d(TAG, "[!] channel seems dead: " + getWorkerIdentifier());
+                EventDispatcher.getInstance().dispatch(EventDispatcher.GROUP_ASYNC, new Runnable() {
+                    @Override
+                    public void run() {
+                        stopWorker();
+                    }
+                });
+                return;
+            }
+            if(!keepAlivePending
+                    && (now - lastSent >= TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_TIME))) {
+                keepAlivePending = true;
+                if(!executeNonBlocking(new CommandSendKeepAlive()))
+                    keepAlivePending = false;
+            }
+            armLivenessTimeout();
         }
     };
-    private Runnable socketTimeoutFires = new Runnable() {
+
+    /*
+     * every byte read from the socket, even in the middle of a long block, proves that
+     * the channel is alive
+     */
+    private class LivenessInputStream extends FilterInputStream {
+        LivenessInputStream(InputStream in) {
+            super(in);
+        }
+
         @Override
-        public void run() {
-            Log.d(TAG, "channel seems dead");
-            //stopWorker();
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0)
+                lastReceived = System.nanoTime();
+            return b;
         }
-    };
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if(n > 0)
+                lastReceived = System.nanoTime();
+            return n;
+        }
+    }
+
+    /*
+     * every byte written to the socket proves that the write is making progress
+     */
+    private class LivenessOutputStream extends FilterOutputStream {
+        LivenessOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            lastSent = System.nanoTime();
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+            lastSent = System.nanoTime();
+        }
+    }
 }
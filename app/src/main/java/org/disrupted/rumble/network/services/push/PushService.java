@@ -7,28 +7,41 @@ import org.disrupted.rumble.database.DatabaseExecutor;
 import org.disrupted.rumble.database.DatabaseFactory;
 import org.disrupted.rumble.database.PushStatusDatabase;
 import org.disrupted.rumble.database.events.ContactGroupListUpdated;
+import org.disrupted.rumble.database.events.ContactInformationApplied;
 import org.disrupted.rumble.database.events.ContactTagInterestUpdatedEvent;
 import org.disrupted.rumble.database.events.StatusDeletedEvent;
 import org.disrupted.rumble.database.events.StatusInsertedEvent;
 import org.disrupted.rumble.database.objects.Contact;
 import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.database.statistics.metrics.LatencyHistogram;
+import org.disrupted.rumble.database.statistics.metrics.MetricRegistry;
 import org.disrupted.rumble.network.NetworkCoordinator;
 import org.disrupted.rumble.network.protocols.ProtocolChannel;
 import org.disrupted.rumble.network.protocols.command.Command;
 import org.disrupted.rumble.network.protocols.events.CommandExecuted;
 import org.disrupted.rumble.network.protocols.command.CommandSendLocalInformation;
 import org.disrupted.rumble.network.protocols.command.CommandSendPushStatus;
+import org.disrupted.rumble.network.protocols.command.CommandSendPushStatusBatch;
 import org.disrupted.rumble.network.protocols.events.ContactInformationReceived;
+import org.disrupted.rumble.network.protocols.events.PushStatusSent;
 import org.disrupted.rumble.network.events.ChannelConnected;
 import org.disrupted.rumble.network.protocols.rumble.RumbleProtocol;
+import org.disrupted.rumble.network.protocols.rumble.workers.RumbleOverUDPMulticast;
 import org.disrupted.rumble.network.services.ServiceLayer;
 import org.disrupted.rumble.network.events.ContactDisconnected;
+import org.disrupted.rumble.network.events.PushQueueDrained;
+import org.disrupted.rumble.util.HashedWheelTimer;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -52,6 +65,17 @@ public class PushService implements ServiceLayer {
 
     private static Map<Contact, MessageDispatcher> contactToDispatcher;
 
+    private static long localInformationVersion = 0;
+
+    /* the last local information sent (version -> copy), the bases of the next deltas */
+    private static final int SENT_INFORMATION_HISTORY = 32;
+    private static final Map<Long, Contact> sentLocalInformation = new LinkedHashMap<Long, Contact>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Contact> eldest) {
+            return size() > SENT_INFORMATION_HISTORY;
+        }
+    };
+
     public static PushService getInstance(NetworkCoordinator networkCoordinator) {
         synchronized (lock) {
             if(instance == null)
@@ -94,6 +118,34 @@ public class PushService implements ServiceLayer {
         }
     }
 
+    /*
+     * every local information sent is versioned so that the neighbour can safely apply
+     * deltas (and discard outdated ones). We use the time as a base so that the version
+     * keeps increasing across restarts.
+     */
+    private static long nextLocalInformationVersion() {
+        synchronized (lock) {
+            localInformationVersion = Math.max(localInformationVersion + 1, System.currentTimeMillis());
+            return localInformationVersion;
+        }
+    }
+
+    /*
+     * the local information of every version sent is kept so that the version acknowledged
+     * by a neighbour can be used as the base of the deltas sent to it
+     */
+    private static void rememberLocalInformation(CommandSendLocalInformation command) {
+        synchronized (sentLocalInformation) {
+            sentLocalInformation.put(command.getVersion(), new Contact(command.getContact()));
+        }
+    }
+
+    private static Contact getSentLocalInformation(long version) {
+        synchronized (sentLocalInformation) {
+            return sentLocalInformation.get(version);
+        }
+    }
+
     /*
      * Whenever  a new neighbour  is connected, we send him  our contact description
      * If the  other end do the same, that should  trigger a ContactConnected event
@@ -105,8 +157,22 @@ public class PushService implements ServiceLayer {
             return;
 
         Contact local = Contact.getLocalContact();
-        CommandSendLocalInformation command = new CommandSendLocalInformation(local,Contact.FLAG_TAG_INTEREST | Contact.FLAG_GROUP_LIST);
-        event.channel.executeNonBlocking(command);
+        CommandSendLocalInformation command = new CommandSendLocalInformation(local,
+                Contact.FLAG_TAG_INTEREST | Contact.FLAG_GROUP_LIST,
+                nextLocalInformationVersion());
+        rememberLocalInformation(command);
+        event.channel.executeWithRetry(command);
+    }
+
+    /*
+     * the versioned information received from a contact is answered with the version
+     * we hold, so that it knows the base of its next deltas
+     */
+    public void onEvent(ContactInformationApplied event) {
+        if(!event.channel.getProtocolIdentifier().equals(RumbleProtocol.protocolID))
+            return;
+        event.channel.executeWithRetry(CommandSendLocalInformation.acknowledge(
+                Contact.getLocalContact(), event.version, event.appliedVersion));
     }
 
     /*
@@ -122,9 +188,19 @@ public class PushService implements ServiceLayer {
             if (dispatcher != null) {
                 Log.d(TAG, "A dispatcher contact "+event.contact.getName()
                         +" ("+event.contact.getUid()+") already exists");
+                if(event.version > 0)
+                    dispatcher.setVersioned();
+                if(event.acknowledgedVersion >= 0)
+                    dispatcher.acknowledged(event.answeredVersion, event.acknowledgedVersion);
+                // a new channel to this contact gets its own lane
+                dispatcher.channelsChanged();
                 return;
             }
             dispatcher = new MessageDispatcher(event.contact);
+            if(event.version > 0)
+                dispatcher.setVersioned();
+            if(event.acknowledgedVersion >= 0)
+                dispatcher.acknowledged(event.answeredVersion, event.acknowledgedVersion);
             dispatcher.startDispatcher();
         }
     }
@@ -185,14 +261,53 @@ public class PushService implements ServiceLayer {
         private ArrayList<Integer> statuses;
         private float threshold;
 
+        /* same content as statuses for constant time lookups */
+        private final Set<Integer> queued;
+
+        /* statuses being sent by one of the lanes, a status is never picked twice */
+        private final Set<Integer> inFlight;
+        private int queuedInFlight;
+
+        /* statuses already multicast to the contact, if not acknowledged they go unicast */
+        private final Set<Integer> disseminated;
+
+        /* one lane per channel to the contact, only modified by the dispatcher thread */
+        private final Map<ProtocolChannel, Lane> lanes;
+        private volatile List<ProtocolChannel> laneChannels;
+        private final Object laneLock = new Object();
+        private boolean wakeUp;
+
+        /* the channels already told that the queue is drained, see reportDrained() */
+        private final Set<ProtocolChannel> drainedChannels;
+        private volatile boolean statusListLoaded;
+
         // locks for managing the ArrayList
         private final ReentrantLock putLock = new ReentrantLock(true);
         private final ReentrantLock takeLock = new ReentrantLock(true);
-        private final Condition notEmpty = takeLock.newCondition();
-        private boolean running;
+        private volatile boolean running;
 
         private PushStatus max;
 
+        /*
+         * local information acknowledged by the contact (i.e. applied by the contact, see
+         * acknowledged()) used to only send what changed since then if the contact supports
+         * versioning, and the last version sent to it
+         */
+        private final Object ackLock = new Object();
+        private boolean versioned;
+        private Contact ackedLocal;
+        private long    ackedVersion;
+        private long    lastSentVersion;
+
+        private static final LatencyHistogram pickTime = MetricRegistry.getInstance()
+                .histogram(MetricRegistry.DISPATCHER_PICK);
+
+        /* maximum number of statuses sent in one bundle and of candidates examined to fill it */
+        private static final int MAX_BUNDLE_SIZE = 8;
+        private static final int MAX_BUNDLE_SCAN = 32;
+
+        private static final long LANE_REFRESH = 2000;
+
         private void fullyLock() {
             putLock.lock();
             takeLock.lock();
@@ -201,22 +316,25 @@ public class PushService implements ServiceLayer {
             putLock.unlock();
             takeLock.unlock();
         }
-        private void signalNotEmpty() {
-            final ReentrantLock takeLock = this.takeLock;
-            takeLock.lock();
-            try {
-                notEmpty.signal();
-            } finally {
-                takeLock.unlock();
-            }
-        }
-
         public MessageDispatcher(Contact contact) {
             this.running = false;
+            this.versioned = false;
+            this.ackedLocal = null;
+            this.ackedVersion = 0;
+            this.lastSentVersion = 0;
             this.contact = contact;
             this.max = null;
             this.threshold = 0;
+            this.queuedInFlight = 0;
+            this.wakeUp = false;
+            this.statusListLoaded = false;
+            drainedChannels = new HashSet<ProtocolChannel>();
             statuses = new ArrayList<Integer>();
+            queued = new HashSet<Integer>();
+            inFlight = new HashSet<Integer>();
+            disseminated = new HashSet<Integer>();
+            lanes = new ConcurrentHashMap<ProtocolChannel, Lane>();
+            laneChannels = new ArrayList<ProtocolChannel>();
             contactToDispatcher.put(contact, this);
         }
 
@@ -251,9 +369,9 @@ public class PushService implements ServiceLayer {
             public void onReadableQueryFinished(Object result) {
                 if (result != null) {
                     try {
-                        takeLock.lock();
+                        fullyLock();
                         Log.d(TAG, "[+] update status list: "+result.toString());
-                        statuses.clear();
+                        clearQueue();
                         final ArrayList<Integer> answer = (ArrayList<Integer>)result;
                         for (Integer s : answer) {
                             PushStatus message = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext())
@@ -262,61 +380,343 @@ public class PushService implements ServiceLayer {
                                 add(message);
                         }
                         // the "max" has been automatically updated while we were adding items
+                        statusListLoaded = true;
                     } finally {
-                        takeLock.unlock();
+                        fullyUnlock();
                     }
+                    wakeUp();
                 }
             }
         };
 
+        /*
+         * the dispatcher thread keeps one Lane per channel open to the contact, the lanes all
+         * pull from the same list of statuses so that each channel gets a share of the traffic
+         * proportional to how fast it sends. The bundles are sent by the shared CommandExecutor,
+         * the dispatcher only refills a lane once its bundle has been executed.
+         */
         @Override
         public void run() {
             try {
                 Log.d(TAG, "[+] MessageDispatcher initiated");
                 do {
-                        // pick a message randomly
-                        PushStatus message = pickMessage();
-
-                        // prepare the command
-                        Command cmd = new CommandSendPushStatus(message);
-
-                        // choose a channel to execute the command
-                        ProtocolChannel channel = PushService.networkCoordinator.neighbourManager.chooseBestChannel(contact);
-                        this.tmpchannel = channel;
-                        if(this.tmpchannel == null) {
-                            // the contact must have disconnected completely
-                            stopDispatcher();
-                            break;
-                        }
-
-                        // send the message (blocking operation)
-                        if(channel.execute(cmd)) {
-                            if(max.equals(message))
-                                max = null;
-                            statuses.remove(Integer.valueOf((int) message.getdbId()));
-                        }
-
-                        message.discard();
+                    List<ProtocolChannel> channels = PushService.networkCoordinator.neighbourManager.getChannels(contact);
+                    if(channels.isEmpty()) {
+                        // the contact must have disconnected completely
+                        stopDispatcher();
+                        break;
+                    }
+                    updateLanes(channels);
+                    for(Lane lane : lanes.values()) {
+                        while(running && fillLane(lane));
+                    }
+                    reportDrained();
+                    synchronized (laneLock) {
+                        if(!wakeUp)
+                            laneLock.wait(LANE_REFRESH);
+                        wakeUp = false;
+                    }
                 } while (running);
 
             } catch (InterruptedException ie) {
             } finally {
+                for(Lane lane : lanes.values())
+                    lane.drop();
+                lanes.clear();
+                laneChannels = new ArrayList<ProtocolChannel>();
                 clear();
                 Log.d(TAG, "[-] MessageDispatcher stopped");
             }
         }
 
+        public void channelsChanged() {
+            wakeUp();
+        }
+
+        private void wakeUp() {
+            synchronized (laneLock) {
+                wakeUp = true;
+                laneLock.notify();
+            }
+        }
+
+        private void updateLanes(List<ProtocolChannel> channels) {
+            for(Iterator<Map.Entry<ProtocolChannel, Lane>> it = lanes.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<ProtocolChannel, Lane> entry = it.next();
+                if(!channels.contains(entry.getKey()) || !entry.getKey().isWorking()) {
+                    entry.getValue().drop();
+                    it.remove();
+                }
+            }
+            for(ProtocolChannel channel : channels) {
+                if(!lanes.containsKey(channel) && channel.isWorking())
+                    lanes.put(channel, new Lane(channel));
+            }
+            laneChannels = new ArrayList<ProtocolChannel>(lanes.keySet());
+        }
+
+        /*
+         * the fastest lane is the one with the best measured throughput (or the best priority
+         * as long as nothing has been measured), it is the only one to send the statuses that
+         * comes with a file, the other lanes take the small statuses.
+         */
+        private boolean isFastest(ProtocolChannel channel) {
+            long throughput = channel.getOutThroughput();
+            for(ProtocolChannel other : laneChannels) {
+                if(other.equals(channel))
+                    continue;
+                long otherThroughput = other.getOutThroughput();
+                if((throughput >= 0) && (otherThroughput >= 0)) {
+                    if(otherThroughput > throughput)
+                        return false;
+                } else if(other.getChannelPriority() > channel.getChannelPriority()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /*
+         * a lane has at most one bundle in the outbox of its channel, guarded by the lane monitor
+         */
+        private class Lane {
+
+            private final ProtocolChannel channel;
+            private Command command;
+            private List<PushStatus> bundle;
+
+            Lane(ProtocolChannel channel) {
+                this.channel = channel;
+                this.command = null;
+                this.bundle = null;
+            }
+
+            synchronized boolean isIdle() {
+                return (command == null);
+            }
+
+            synchronized void queued(Command command, List<PushStatus> bundle) {
+                this.command = command;
+                this.bundle = bundle;
+            }
+
+            /* returns the bundle of this command or null if it is not the one of this lane */
+            synchronized List<PushStatus> executed(Command command) {
+                if((this.command == null) || (this.command != command))
+                    return null;
+                List<PushStatus> ret = bundle;
+                this.command = null;
+                this.bundle = null;
+                return ret;
+            }
+
+            /* the channel is gone, the bundle it had in its outbox will never be executed */
+            void drop() {
+                List<PushStatus> dropped;
+                synchronized (this) {
+                    dropped = bundle;
+                    command = null;
+                    bundle = null;
+                }
+                if(dropped != null)
+                    done(dropped, false);
+            }
+        }
+
+        /*
+         * picks the next bundle of the lane and queues it on its channel, returns true if the
+         * lane is still idle and may be filled again (the bundle was multicast)
+         */
+        private boolean fillLane(Lane lane) {
+            if(!lane.isIdle())
+                return false;
+
+            // pick a message randomly and the ones that can be sent along with it
+            boolean smallOnly = !isFastest(lane.channel);
+            PushStatus message = pickMessage(smallOnly);
+            if(message == null)
+                return false;
+            List<PushStatus> bundle = pickBundle(message, smallOnly);
+
+            // prepare the command
+            Command cmd;
+            if (bundle.size() == 1)
+                cmd = new CommandSendPushStatus(message);
+            else
+                cmd = new CommandSendPushStatusBatch(bundle);
+
+            // public statuses are disseminated at once to every wifi neighbour if possible
+            if(disseminate(cmd, bundle, lane.channel)) {
+                awaitAck(bundle);
+                for (PushStatus picked : bundle)
+                    picked.discard();
+                return true;
+            }
+
+            lane.queued(cmd, bundle);
+            if(!lane.channel.executeNonBlocking(cmd)) {
+                // the outbox is full or closed, the lane is tried again on the next wake up
+                lane.executed(cmd);
+                done(bundle, false);
+            }
+            return false;
+        }
+
+        /*
+         * once every status for the contact has been sent (and acknowledged if it was
+         * multicast), each channel is told once so that the scanners know that an exchange
+         * over it was complete (see RumbleUDPMulticastScanner)
+         */
+        private void reportDrained() {
+            boolean drained;
+            fullyLock();
+            try {
+                drained = statusListLoaded && statuses.isEmpty() && inFlight.isEmpty();
+            } finally {
+                fullyUnlock();
+            }
+            drainedChannels.retainAll(laneChannels);
+            if(!drained) {
+                drainedChannels.clear();
+                return;
+            }
+            for(ProtocolChannel channel : laneChannels) {
+                if(drainedChannels.add(channel))
+                    EventBus.getDefault().post(new PushQueueDrained(contact, channel));
+            }
+        }
+
+        private void done(List<PushStatus> bundle, boolean sent) {
+            release(bundle, sent);
+            for (PushStatus picked : bundle)
+                picked.discard();
+        }
+
+        /* the bundle of a lane has been executed by the CommandExecutor, the lane is free */
+        private void bundleExecuted(CommandExecuted event) {
+            Lane lane = lanes.get(event.worker);
+            if(lane == null)
+                return;
+            List<PushStatus> bundle = lane.executed(event.command);
+            if(bundle == null)
+                return;
+            done(bundle, event.success);
+            wakeUp();
+        }
+
+        /*
+         * a bundle is multicast only once to this contact, it is not sent until the contact
+         * acknowledges it (see onEvent(PushStatusSent)) or it falls back to the unicast channel
+         */
+        private boolean disseminate(Command cmd, List<PushStatus> bundle, ProtocolChannel channel) {
+            RumbleOverUDPMulticast multicast = RumbleProtocol.getInstance(PushService.networkCoordinator)
+                    .getDisseminationChannel(channel, bundle);
+            if(multicast == null)
+                return false;
+            fullyLock();
+            try {
+                for(PushStatus status : bundle) {
+                    if(disseminated.contains((int) status.getdbId()))
+                        return false;
+                }
+                for(PushStatus status : bundle)
+                    disseminated.add((int) status.getdbId());
+            } finally {
+                fullyUnlock();
+            }
+            return multicast.disseminate(cmd, contact);
+        }
+
+        /*
+         * the multicast bundle stays in flight until the contact acknowledged it, what is not
+         * acknowledged after ACK_TIMEOUT is made available again for the unicast channels
+         */
+        private void awaitAck(final List<PushStatus> bundle) {
+            final List<PushStatus> pending = new ArrayList<PushStatus>(bundle);
+            HashedWheelTimer.getInstance().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    release(pending, false);
+                    wakeUp();
+                }
+            }, RumbleOverUDPMulticast.ACK_TIMEOUT);
+        }
+
+        /*
+         * the statuses of a bundle are no longer in flight, they are removed from the list if
+         * they were sent or made available again to the other lanes otherwise
+         */
+        private void release(List<PushStatus> bundle, boolean sent) {
+            fullyLock();
+            try {
+                for(PushStatus status : bundle) {
+                    int id = (int) status.getdbId();
+                    releaseInFlight(id);
+                    if(sent) {
+                        if ((max != null) && max.equals(status))
+                            max = null;
+                        dequeue(id);
+                        disseminated.remove(id);
+                    }
+                }
+            } finally {
+                fullyUnlock();
+            }
+        }
+
         private void clear() {
             fullyLock();
             try {
                 if(EventBus.getDefault().isRegistered(this))
                     EventBus.getDefault().unregister(this);
-                statuses.clear();
+                clearQueue();
+                inFlight.clear();
+                disseminated.clear();
             } finally {
                 fullyUnlock();
             }
         }
 
+        /*
+         * the list of statuses and the in flight set are only modified through these methods
+         * (with the putLock held) so that available() does not need to scan the list
+         */
+        private void enqueue(int id) {
+            if(!queued.add(id))
+                return;
+            statuses.add(id);
+            if(inFlight.contains(id))
+                queuedInFlight++;
+        }
+
+        private void dequeue(int id) {
+            if(!queued.remove(id))
+                return;
+            statuses.remove(Integer.valueOf(id));
+            if(inFlight.contains(id))
+                queuedInFlight--;
+        }
+
+        private void clearQueue() {
+            statuses.clear();
+            queued.clear();
+            queuedInFlight = 0;
+        }
+
+        private void takeInFlight(int id) {
+            if(inFlight.add(id) && queued.contains(id))
+                queuedInFlight++;
+        }
+
+        private void releaseInFlight(int id) {
+            if(inFlight.remove(id) && queued.contains(id))
+                queuedInFlight--;
+        }
+
+        private int available() {
+            return statuses.size() - queuedInFlight;
+        }
+
         private boolean add(PushStatus message){
             if(this.contact == null)
                 return false;
@@ -331,7 +731,7 @@ public class PushService implements ServiceLayer {
                     return false;
                 }
 
-                statuses.add((int)message.getdbId());
+                enqueue((int) message.getdbId());
 
                 /* we update the max value */
                 if (max == null) {
@@ -345,60 +745,78 @@ public class PushService implements ServiceLayer {
                         message.discard();
                 }
 
-                signalNotEmpty();
+                wakeUp();
                 return true;
             } finally {
                 putlock.unlock();
             }
         }
 
-        // /!\  carefull, it does not lock thread
+        /*
+         * we only update the max if it has been sent (max == null) or it is no longer valid.
+         * The statuses are loaded from the database without holding the locks.
+         */
         private void updateMax() {
-            float maxScore = 0;
-
-            /*
-             * we only update the max if it has been sent (max == null) or it is no longer valid
-             */
-            if(max != null) {
-                maxScore = computeScore(max, contact);
-                if(maxScore > threshold)
+            List<Integer> candidates;
+            fullyLock();
+            try {
+                if((max != null) && (computeScore(max, contact) > threshold))
                     return;
-                max.discard();
-                max = null;
+                if(max != null) {
+                    max.discard();
+                    max = null;
+                }
+                candidates = new ArrayList<Integer>(statuses);
+            } finally {
+                fullyUnlock();
             }
 
+            PushStatus best = null;
+            float bestScore = 0;
             ArrayList<Integer> toDelete = new ArrayList<Integer>();
-            for(Integer id : statuses) {
+            for(Integer id : candidates) {
                 PushStatus message = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext())
                         .getStatus(id);
+                if(message == null) {
+                    toDelete.add(id);
+                    continue;
+                }
                 float score = computeScore(message, contact);
 
                 // we delete the message if it is no longer valid (for instance it expired)
                 if(score <= threshold) {
                     message.discard();
-                    toDelete.add((int)message.getdbId());
-                    continue;
-                }
-
-                // item becomes the new max if max was null
-                if(max == null) {
-                    max = message;
-                    maxScore = score;
+                    toDelete.add(id);
                     continue;
                 }
 
-                // if we have better score than the max, we replace it
-                if(score > maxScore) {
-                    max.discard();
-                    max = message;
-                    maxScore = score;
+                if((best == null) || (score > bestScore)) {
+                    if(best != null)
+                        best.discard();
+                    best = message;
+                    bestScore = score;
                 } else {
                     // we get rid of the message as we only stores message ids
                     message.discard();
                 }
             }
-            for(Integer i : toDelete) {
-                statuses.remove(Integer.valueOf(i));
+
+            fullyLock();
+            try {
+                for(Integer i : toDelete)
+                    dequeue(i);
+                // add() may have set a better max in the meantime
+                if(best != null) {
+                    if((max == null) || (bestScore > computeScore(max, contact))) {
+                        if(max != null)
+                            max.discard();
+                        max = best;
+                    } else {
+                        best.discard();
+                    }
+                }
+            } finally {
+                fullyUnlock();
             }
         }
 
@@ -406,62 +824,179 @@ public class PushService implements ServiceLayer {
          *  See the paper:
          *  "Roulette-wheel selection via stochastic acceptance"
          *  By Adam Lipowski, Dorota Lipowska
+         *
+         *  The statuses in flight are never picked, neither are the statuses with an attached
+         *  file if smallOnly is set. It never blocks, null is returned if there is nothing
+         *  left to pick for this lane. A candidate is loaded from the database without
+         *  holding the locks and checked again before it is marked in flight.
          */
-        private PushStatus pickMessage() throws InterruptedException {
-            final ReentrantLock takelock = this.takeLock;
-            final ReentrantLock putlock = this.takeLock;
+        private PushStatus pickMessage(boolean smallOnly) {
+            Set<Long> skipped = new HashSet<Long>();
+            long start = System.nanoTime();
 
-            boolean pickup = false;
-            PushStatus pickedUpMessage;
-            takelock.lockInterruptibly();
+            fullyLock();
             try {
-                do {
-                    while (statuses.size() == 0)
-                        notEmpty.await();
+                if(available() == 0)
+                    return null;
+            } finally {
+                fullyUnlock();
+            }
+            updateMax();
+            while(running) {
+                // draw a candidate while holding the locks
+                long id;
+                fullyLock();
+                try {
+                    if(available() <= skipped.size())
+                        return null;
+                    do {
+                        // randomly pickup an element homogeneously
+                        id = statuses.get(random.nextInt(statuses.size()));
+                    } while(inFlight.contains((int)id) || skipped.contains(id));
+                } finally {
+                    fullyUnlock();
+                }
 
-                    putlock.lock();
-                    try {
-                        updateMax();
+                // load it without holding them
+                PushStatus message = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatus(id);
+
+                // and check that it is still worth picking
+                fullyLock();
+                try {
+                    if(!queued.contains((int)id) || inFlight.contains((int)id)) {
+                        // deleted or sent in the meantime
+                        if(message != null)
+                            message.discard();
+                        continue;
+                    }
+                    if(message == null) {
+                        dequeue((int)id);
+                        continue;
+                    }
+                    if(smallOnly && message.hasAttachedFile()) {
+                        message.discard();
+                        skipped.add(id);
+                        continue;
+                    }
 
-                        // randomly pickup an element homogeneously
-                        int index = random.nextInt(statuses.size());
-                        long id = statuses.get(index);
-                        pickedUpMessage = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatus(id);
-                        if(pickedUpMessage == null) {
-                            statuses.remove(Integer.valueOf((int)id));
-                            continue;
-                        }
+                    // get max probability Pmax and element probability Pu
+                    float score = computeScore(message, contact);
+                    if (score <= threshold) {
+                        dequeue((int)id);
+                        message.discard();
+                        continue;
+                    }
+                    float maxScore = (max == null) ? score : computeScore(max, contact);
 
-                        // get max probability Pmax and element probability Pu
-                        float maxScore = computeScore(max, contact);
-                        float score = computeScore(pickedUpMessage, contact);
+                    int shallwepick = random.nextInt((int) (maxScore * 1000));
+                    if (shallwepick <= (score * 1000)) {
+                        takeInFlight((int)id);
+                        pickTime.recordSince(start);
+                        return message;
+                    }
+                    message.discard();
+                } finally {
+                    fullyUnlock();
+                }
+            }
+            return null;
+        }
 
-                        if (score <= threshold) {
-                            statuses.remove(Integer.valueOf((int)id));
-                            pickedUpMessage.discard();
-                            pickedUpMessage = null;
-                            continue;
-                        }
+        /*
+         * The first status has been picked up by the roulette-wheel, the other statuses of
+         * the same group that are still worth sending ride along with it in the same bundle
+         * so that they share the same cipher context and the same database update.
+         */
+        private List<PushStatus> pickBundle(PushStatus first, boolean smallOnly) {
+            List<PushStatus> bundle = new ArrayList<PushStatus>(MAX_BUNDLE_SIZE);
+            bundle.add(first);
 
-                        int shallwepick = random.nextInt((int) (maxScore * 1000));
-                        if (shallwepick <= (score * 1000)) {
-                            pickup = true;
-                        } else {
-                            pickedUpMessage.discard();
-                        }
-                    } finally {
-                        putlock.unlock();
+            // copy the candidates while holding the locks
+            List<Integer> candidates = new ArrayList<Integer>(MAX_BUNDLE_SCAN);
+            fullyLock();
+            try {
+                for(Integer id : statuses) {
+                    if(candidates.size() >= MAX_BUNDLE_SCAN)
+                        break;
+                    if((id == first.getdbId()) || inFlight.contains(id))
+                        continue;
+                    candidates.add(id);
+                }
+            } finally {
+                fullyUnlock();
+            }
+
+            // load them without holding the locks
+            List<PushStatus> loaded = new ArrayList<PushStatus>(MAX_BUNDLE_SIZE);
+            for(Integer id : candidates) {
+                if(loaded.size() + 1 >= MAX_BUNDLE_SIZE)
+                    break;
+                PushStatus message = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext())
+                        .getStatus(id);
+                if(message == null)
+                    continue;
+                if(!message.getGroup().getGid().equals(first.getGroup().getGid())
+                        || (smallOnly && message.hasAttachedFile())
+                        || (computeScore(message, contact) <= threshold)) {
+                    message.discard();
+                    continue;
+                }
+                loaded.add(message);
+            }
+
+            // and mark the ones still available as in flight
+            fullyLock();
+            try {
+                for(PushStatus message : loaded) {
+                    int id = (int) message.getdbId();
+                    if(!queued.contains(id) || inFlight.contains(id)) {
+                        message.discard();
+                        continue;
                     }
-                } while(!pickup);
+                    bundle.add(message);
+                    takeInFlight(id);
+                }
             } finally {
-                takelock.unlock();
+                fullyUnlock();
+            }
+            return bundle;
+        }
+
+        public void setVersioned() {
+            synchronized (ackLock) {
+                this.versioned = true;
             }
-            return pickedUpMessage;
         }
 
+        /*
+         * a versioned contact always gets both the groups and the interests (as a delta from
+         * the version it acknowledged if any) so that every version sent is a complete state
+         * that can be used as a base once acknowledged
+         */
         public void sendLocalPreferences(int flags) {
             Contact local = Contact.getLocalContact();
-            CommandSendLocalInformation command = new CommandSendLocalInformation(local,flags);
+            CommandSendLocalInformation command;
+            synchronized (ackLock) {
+                if (versioned && (ackedLocal != null)) {
+                    command = new CommandSendLocalInformation(local,
+                            Contact.FLAG_TAG_INTEREST | Contact.FLAG_GROUP_LIST,
+                            nextLocalInformationVersion(), ackedLocal, ackedVersion);
+                    if (command.isEmptyDelta())
+                        return;
+                } else if (versioned) {
+                    // we need a complete snapshot as a base for the next deltas
+                    command = new CommandSendLocalInformation(local,
+                            Contact.FLAG_TAG_INTEREST | Contact.FLAG_GROUP_LIST,
+                            nextLocalInformationVersion());
+                } else {
+                    command = new CommandSendLocalInformation(local, flags,
+                            nextLocalInformationVersion());
+                }
+                if(versioned) {
+                    rememberLocalInformation(command);
+                    lastSentVersion = command.getVersion();
+                }
+            }
 
             ProtocolChannel channel = PushService.networkCoordinator.neighbourManager.chooseBestChannel(contact);
             this.tmpchannel = channel;
@@ -470,7 +1005,7 @@ public class PushService implements ServiceLayer {
                 stopDispatcher();
                 return;
             }
-            channel.executeNonBlocking(command);
+            channel.executeWithRetry(command);
         }
 
 
@@ -482,7 +1017,7 @@ public class PushService implements ServiceLayer {
         public void onEvent(StatusDeletedEvent event) {
             fullyLock();
             try {
-                statuses.remove(Integer.valueOf((int) event.dbid));
+                dequeue((int) event.dbid);
             } finally {
                 fullyUnlock();
             }
@@ -496,6 +1031,26 @@ public class PushService implements ServiceLayer {
             }
         }
 
+        /*
+         * the statuses sent to this contact over any channel, including the ones it
+         * acknowledged over multicast, are removed from the list
+         */
+        public void onEvent(PushStatusSent event) {
+            if(!event.recipients.contains(this.contact))
+                return;
+            fullyLock();
+            try {
+                for(PushStatus status : event.statuses) {
+                    if ((max != null) && max.equals(status))
+                        max = null;
+                    dequeue((int) status.getdbId());
+                    disseminated.remove(Integer.valueOf((int) status.getdbId()));
+                }
+            } finally {
+                fullyUnlock();
+            }
+        }
+
         /*
          * we don't send any status until we received an Interest Vector
          *
@@ -513,6 +1068,36 @@ public class PushService implements ServiceLayer {
                 sendLocalPreferences(Contact.FLAG_GROUP_LIST);
             }
         }
+
+        public void onEvent(CommandExecuted event) {
+            if((event.command instanceof CommandSendPushStatus)
+                    || (event.command instanceof CommandSendPushStatusBatch))
+                bundleExecuted(event);
+        }
+
+        /*
+         * the contact answered a version of the local information, the version it holds
+         * becomes the base of the next deltas (a snapshot is sent next if we do not know
+         * it anymore). If the last version sent was not applied it is sent again.
+         */
+        public void acknowledged(long answeredVersion, long acknowledgedVersion) {
+            boolean resend;
+            synchronized (ackLock) {
+                if(acknowledgedVersion == 0) {
+                    ackedLocal = null;
+                    ackedVersion = 0;
+                } else if(acknowledgedVersion > ackedVersion) {
+                    Contact acked = getSentLocalInformation(acknowledgedVersion);
+                    ackedLocal = (acked == null) ? null : new Contact(acked);
+                    ackedVersion = (acked == null) ? 0 : acknowledgedVersion;
+                }
+                resend = (answeredVersion == lastSentVersion)
+                        && (acknowledgedVersion != answeredVersion);
+            }
+            if(resend)
+                sendLocalPreferences(Contact.FLAG_TAG_INTEREST | Contact.FLAG_GROUP_LIST);
+        }
+
         public void onEvent(ContactTagInterestUpdatedEvent event) {
             if(this.contact == null)
                 return;
@@ -42,12 +42,11 @@ import com.jeremyfeinstein.slidingmenu.lib.SlidingMenu;
 
 import org.disrupted.rumble.R;
 import org.disrupted.rumble.app.RumbleApplication;
-import org.disrupted.rumble.database.ChatMessageDatabase;
+import org.disrupted.rumble.database.ChatUnreadCounter;
 import org.disrupted.rumble.database.DatabaseExecutor;
 import org.disrupted.rumble.database.DatabaseFactory;
 import org.disrupted.rumble.database.PushStatusDatabase;
-import org.disrupted.rumble.database.events.ChatMessageInsertedEvent;
-import org.disrupted.rumble.database.events.ChatMessageUpdatedEvent;
+import org.disrupted.rumble.database.events.ChatUnreadCountChanged;
 import org.disrupted.rumble.database.events.StatusDatabaseEvent;
 import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothUtil;
 import org.disrupted.rumble.userinterface.adapter.HomePagerAdapter;
@@ -202,31 +201,26 @@ public class HomeActivity extends AppCompatActivity {
         }
     };
 
+    /*
+     * the number of unread messages is maintained by the ChatUnreadCounter, no query needed
+     */
     public void refreshChatNotifications() {
-        ChatMessageDatabase.ChatMessageQueryOption messageQueryOptions = new ChatMessageDatabase.ChatMessageQueryOption();
-        messageQueryOptions.filterFlags = ChatMessageDatabase.ChatMessageQueryOption.FILTER_READ;
-        messageQueryOptions.read = false;
-        messageQueryOptions.query_result = ChatMessageDatabase.ChatMessageQueryOption.QUERY_RESULT.COUNT;
-        DatabaseFactory.getChatMessageDatabase(RumbleApplication.getContext()).getChatMessage(messageQueryOptions, onRefreshChatMessages);
+        showChatNotifications(ChatUnreadCounter.getInstance().getCount());
     }
-    DatabaseExecutor.ReadableQueryCallback onRefreshChatMessages = new DatabaseExecutor.ReadableQueryCallback() {
-        @Override
-        public void onReadableQueryFinished(Object object) {
-            final Integer count = (Integer)object;
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    TextView view = (TextView)notifChat.findViewById(R.id.tab_badge);
-                    if (count > 0) {
-                        view.setText(count.toString());
-                        view.setVisibility(View.VISIBLE);
-                    } else {
-                        view.setVisibility(View.INVISIBLE);
-                    }
+    private void showChatNotifications(final int count) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                TextView view = (TextView)notifChat.findViewById(R.id.tab_badge);
+                if (count > 0) {
+                    view.setText(Integer.toString(count));
+                    view.setVisibility(View.VISIBLE);
+                } else {
+                    view.setVisibility(View.INVISIBLE);
                 }
-            });
-        }
-    };
+            }
+        });
+    }
 
     ViewPager.OnPageChangeListener onPageChangeListener = new ViewPager.OnPageChangeListener() {
         @Override
@@ -258,11 +252,8 @@ public class HomeActivity extends AppCompatActivity {
     public void onEvent(StatusDatabaseEvent event) {
         refreshStatusNotifications();
     }
-    public void onEvent(ChatMessageInsertedEvent event) {
-        refreshChatNotifications();
-    }
-    public void onEvent(ChatMessageUpdatedEvent event) {
-        refreshChatNotifications();
+    public void onEvent(ChatUnreadCountChanged event) {
+        showChatNotifications(event.count);
     }
 
 }
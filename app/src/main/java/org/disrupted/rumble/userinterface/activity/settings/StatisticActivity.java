@@ -18,13 +18,16 @@
 package org.disrupted.rumble.userinterface.activity.settings;
 
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AppCompatActivity;
 import android.view.MenuItem;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
+import android.widget.TextView;
 
 import org.disrupted.rumble.R;
+import org.disrupted.rumble.database.statistics.StatisticManager;
 import org.disrupted.rumble.util.RumblePreferences;
 
 /**
@@ -34,6 +37,11 @@ public class StatisticActivity extends AppCompatActivity {
 
     private static final String TAG = "StatisticActivity";
 
+    private static final long METRICS_REFRESH_MS = 1000;
+
+    private TextView metricsView;
+    private Handler  refreshHandler;
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -58,8 +66,34 @@ public class StatisticActivity extends AppCompatActivity {
                 RumblePreferences.setUserPreferenceWithSharingData(StatisticActivity.this, isChecked);
             }
         });
+
+        metricsView = (TextView)findViewById(R.id.stat_metrics);
+        refreshHandler = new Handler();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refreshHandler.post(refreshMetrics);
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        refreshHandler.removeCallbacks(refreshMetrics);
+    }
+
+    private Runnable refreshMetrics = new Runnable() {
+        @Override
+        public void run() {
+            StringBuilder sb = new StringBuilder();
+            for(String line : StatisticManager.getInstance().getMetricRegistry().dump())
+                sb.append(line).append('\n');
+            metricsView.setText(sb.toString());
+            refreshHandler.postDelayed(refreshMetrics, METRICS_REFRESH_MS);
+        }
+    };
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item){
         int id = item.getItemId();
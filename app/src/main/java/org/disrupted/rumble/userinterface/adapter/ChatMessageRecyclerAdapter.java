@@ -36,18 +36,19 @@ import com.amulyakhare.textdrawable.util.ColorGenerator;
 import com.squareup.picasso.Picasso;
 
 import org.disrupted.rumble.R;
+import org.disrupted.rumble.database.ThumbnailCache;
 import org.disrupted.rumble.database.objects.ChatMessage;
 import org.disrupted.rumble.database.objects.Contact;
 import org.disrupted.rumble.userinterface.activity.DisplayImage;
 import org.disrupted.rumble.userinterface.events.UserReadChatMessage;
 import org.disrupted.rumble.userinterface.fragments.FragmentChatMessageList;
-import org.disrupted.rumble.util.FileUtil;
 import org.disrupted.rumble.util.TimeUtil;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import de.greenrobot.event.EventBus;
 
@@ -122,18 +123,22 @@ public class ChatMessageRecyclerAdapter extends RecyclerView.Adapter<ChatMessage
 
             //textView.setVisibility(View.GONE);
             if (message.hasAttachedFile()) {
-                try {
-                    File attachedFile = new File(
-                            FileUtil.getReadableAlbumStorageDir(),
-                            message.getAttachedFile());
-                    if (!attachedFile.isFile() || !attachedFile.exists())
-                        throw new IOException("file does not exists");
-
-                    Picasso.with(activity)
-                            .load("file://" + attachedFile.getAbsolutePath())
-                            .resize(96, 96)
-                            .centerCrop()
-                            .into(attachedView);
+                File albumDir = ThumbnailCache.getInstance().getAlbumDir();
+                if (albumDir != null) {
+                    /* only the thumbnail is loaded, see ThumbnailCache */
+                    File thumbnail = ThumbnailCache.getInstance().getThumbnail(
+                            message.getUUID(), message.getAttachedFile());
+                    if (thumbnail != null) {
+                        Picasso.with(activity)
+                                .load(thumbnail)
+                                .into(attachedView);
+                    } else {
+                        Picasso.with(activity)
+                                .load(new File(albumDir, message.getAttachedFile()))
+                                .resize(ThumbnailCache.THUMBNAIL_SIZE_PX, ThumbnailCache.THUMBNAIL_SIZE_PX)
+                                .centerCrop()
+                                .into(attachedView);
+                    }
 
                     final String name = message.getAttachedFile();
                     attachedView.setOnClickListener(new View.OnClickListener() {
@@ -146,7 +151,6 @@ public class ChatMessageRecyclerAdapter extends RecyclerView.Adapter<ChatMessage
                         }
                     });
                     attachedView.setVisibility(View.VISIBLE);
-                } catch (IOException ignore) {
                 }
             } else {
                 attachedView.setVisibility(View.GONE);
@@ -168,11 +172,13 @@ public class ChatMessageRecyclerAdapter extends RecyclerView.Adapter<ChatMessage
 
     private Activity activity;
     private List<ChatMessage> messages;
+    private Set<String> uuids;
     private static final TextDrawable.IBuilder builder = TextDrawable.builder().rect();
 
     public ChatMessageRecyclerAdapter(Activity activity, FragmentChatMessageList fragment) {
         this.activity = activity;
         this.messages = new ArrayList<ChatMessage>();
+        this.uuids = new HashSet<String>();
     }
 
     @Override
@@ -199,15 +205,47 @@ public class ChatMessageRecyclerAdapter extends RecyclerView.Adapter<ChatMessage
         return messages.size();
     }
 
+    /*
+     * returns -1 if the message is already displayed
+     */
     public int addChatMessage(ChatMessage message) {
+        if(!uuids.add(message.getUUID()))
+            return -1;
         messages.add(0,message);
         return (0);
     }
 
+    /*
+     * appends older messages (a page of the history) at the end of the list and returns
+     * the number of messages actually added
+     */
+    public int appendChatMessages(List<ChatMessage> chatMessageList) {
+        int added = 0;
+        for (ChatMessage message : chatMessageList) {
+            if(uuids.add(message.getUUID())) {
+                messages.add(message);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /*
+     * the oldest message displayed, its (time of arrival, dbid) is the key of the next page,
+     * null if the list is empty
+     */
+    public ChatMessage getOldestMessage() {
+        if(messages.isEmpty())
+            return null;
+        return messages.get(messages.size()-1);
+    }
+
     public int updateChatMessage(ChatMessage message) {
         int pos = 0;
         for(ChatMessage msg : messages) {
             if(msg.getUUID().equals(message.getUUID())) {
+                if(message.getdbId() < 0)
+                    message.setdbId(msg.getdbId());
                 messages.set(pos, message);
                 return (pos);
             }
@@ -219,10 +257,12 @@ public class ChatMessageRecyclerAdapter extends RecyclerView.Adapter<ChatMessage
     public void swap(List<ChatMessage> chatMessageList) {
         if(this.messages != null)
             this.messages.clear();
+        this.uuids.clear();
 
         if(chatMessageList != null) {
             for (ChatMessage message : chatMessageList) {
-                this.messages.add(message);
+                if(this.uuids.add(message.getUUID()))
+                    this.messages.add(message);
             }
         }
     }
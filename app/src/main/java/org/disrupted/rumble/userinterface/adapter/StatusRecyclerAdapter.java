@@ -20,13 +20,15 @@ package org.disrupted.rumble.userinterface.adapter;
 import android.app.Activity;
 import android.content.Intent;
 import android.support.design.widget.Snackbar;
+import android.support.v4.util.LruCache;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.PopupMenu;
 import android.support.v7.widget.RecyclerView;
 import android.text.SpannableString;
 import android.text.Spanned;
-import android.text.util.Linkify;
 import android.text.method.LinkMovementMethod;
 import android.text.style.ClickableSpan;
+import android.text.style.URLSpan;
 import org.disrupted.rumble.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -40,9 +42,13 @@ import android.net.Uri;
 
 import com.amulyakhare.textdrawable.TextDrawable;
 import com.amulyakhare.textdrawable.util.ColorGenerator;
+import com.squareup.picasso.Callback;
 import com.squareup.picasso.Picasso;
+import com.squareup.picasso.RequestCreator;
 
 import org.disrupted.rumble.R;
+import org.disrupted.rumble.database.PushStatusDatabase;
+import org.disrupted.rumble.database.ThumbnailCache;
 import org.disrupted.rumble.database.objects.PushStatus;
 import org.disrupted.rumble.userinterface.activity.ContactDetailActivity;
 import org.disrupted.rumble.userinterface.activity.DisplayImage;
@@ -52,14 +58,17 @@ import org.disrupted.rumble.userinterface.events.UserLikedStatus;
 import org.disrupted.rumble.userinterface.events.UserReadStatus;
 import org.disrupted.rumble.userinterface.events.UserSavedStatus;
 import org.disrupted.rumble.userinterface.fragments.FragmentStatusList;
-import org.disrupted.rumble.util.FileUtil;
+import org.disrupted.rumble.util.SpanUtil;
 import org.disrupted.rumble.util.TimeUtil;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import de.greenrobot.event.EventBus;
 
@@ -139,80 +148,13 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
                     }
                 });
 
-                SpannableString ss = new SpannableString(status.getPost());
-                int beginCharPosition = -1;
-                int j;
-                for (j = 0; j < status.getPost().length(); j++) {
-                    if (status.getPost().charAt(j) == '#')
-                        beginCharPosition = j;
-                    if ((status.getPost().charAt(j) == ' ') && (beginCharPosition >= 0)) {
-                        final String word = status.getPost().substring(beginCharPosition, j);
-                        ClickableSpan clickableSpan = new ClickableSpan() {
-                            @Override
-                            public void onClick(View textView) {
-                                fragment.addFilter(word);
-                            }
-                        };
-                        ss.setSpan(clickableSpan, beginCharPosition, j, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                        beginCharPosition = -1;
-                    }
-                }
-                if (beginCharPosition >= 0) {
-                    final String word = status.getPost().substring(beginCharPosition, j);
-                    ClickableSpan clickableSpan = new ClickableSpan() {
-                        @Override
-                        public void onClick(View textView) {
-                            fragment.addFilter(word);
-                        }
-                    };
-                    ss.setSpan(clickableSpan, beginCharPosition, j, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
-                textView.setText(ss);
+                textView.setText(getSpannedPost(status));
                 textView.setMovementMethod(LinkMovementMethod.getInstance());
-                Linkify.addLinks(textView, Linkify.ALL);
 
                 /* we draw the attached file (if any) */
                 if (status.hasAttachedFile()) {
                     attachedView.setVisibility(View.VISIBLE);
-                    try {
-                        final File attachedFile = new File(FileUtil.getReadableAlbumStorageDir(), status.getFileName());
-
-                        if (!attachedFile.isFile() || !attachedFile.exists())
-                            throw new IOException("file does not exists");
-
-                        Picasso.with(activity)
-                                .load("file://"+attachedFile.getAbsolutePath())
-                                .resize(96, 96)
-                                .centerCrop()
-                                .into(attachedView);
-
-                        final String filename =  status.getFileName();
-
-			            /* we open the attached image through gallery */
-                        attachedView.setOnClickListener(new View.OnClickListener() {
-                            @Override
-                            public void onClick(View view) {
-                                Log.d(TAG, "trying to open: " + filename);
-				                Intent intent = new Intent();
-				                intent.setAction(Intent.ACTION_VIEW);
-				                intent.setDataAndType(Uri.parse("file://"+attachedFile.getAbsolutePath()), "image/*");
-				                activity.startActivity(intent);
-                            }
-                        });
-                    } catch (IOException ignore) {
-                        Picasso.with(activity)
-                                .load(R.drawable.ic_close_black_48dp)
-                                .resize(96, 96)
-                                .centerCrop()
-                                .into(attachedView);
-                        attachedView.setOnClickListener(new View.OnClickListener() {
-                            @Override
-                            public void onClick(View view) {
-                                Snackbar.make(itemView, "attached image not found", Snackbar.LENGTH_SHORT)
-                                        .show();
-                            }
-                        });
-                    }
+                    bindAttachedFile(status);
                 } else {
                     attachedView.setVisibility(View.GONE);
                 }
@@ -238,6 +180,69 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
             }
         }
 
+        /*
+         * only the thumbnail is loaded (see ThumbnailCache), the attached file itself is only
+         * decoded if its thumbnail has not been generated yet. The existence of the file is
+         * checked by Picasso in background.
+         */
+        private void bindAttachedFile(PushStatus status) {
+            File albumDir = ThumbnailCache.getInstance().getAlbumDir();
+            if (albumDir == null) {
+                bindAttachedFileNotFound();
+                return;
+            }
+
+            final File attachedFile = new File(albumDir, status.getFileName());
+            final String filename = status.getFileName();
+            File thumbnail = ThumbnailCache.getInstance().getThumbnail(status.getUuid(), filename);
+            RequestCreator request;
+            if (thumbnail != null) {
+                request = Picasso.with(activity).load(thumbnail);
+            } else {
+                request = Picasso.with(activity)
+                        .load(attachedFile)
+                        .resize(ThumbnailCache.THUMBNAIL_SIZE_PX, ThumbnailCache.THUMBNAIL_SIZE_PX)
+                        .centerCrop();
+            }
+            request.into(attachedView, new Callback() {
+                @Override
+                public void onSuccess() {
+                }
+
+                @Override
+                public void onError() {
+                    bindAttachedFileNotFound();
+                }
+            });
+
+            /* we open the attached image through gallery */
+            attachedView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    Log.d(TAG, "trying to open: " + filename);
+                    Intent intent = new Intent();
+                    intent.setAction(Intent.ACTION_VIEW);
+                    intent.setDataAndType(Uri.parse("file://"+attachedFile.getAbsolutePath()), "image/*");
+                    activity.startActivity(intent);
+                }
+            });
+        }
+
+        private void bindAttachedFileNotFound() {
+            Picasso.with(activity)
+                    .load(R.drawable.ic_close_black_48dp)
+                    .resize(ThumbnailCache.THUMBNAIL_SIZE_PX, ThumbnailCache.THUMBNAIL_SIZE_PX)
+                    .centerCrop()
+                    .into(attachedView);
+            attachedView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    Snackbar.make(itemView, "attached image not found", Snackbar.LENGTH_SHORT)
+                            .show();
+                }
+            });
+        }
+
         private class PopupMenuListener implements View.OnClickListener
         {
             @Override
@@ -273,16 +278,67 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
 
     }
 
+    public static final String PAYLOAD_TIME = "time";
+
     private FragmentStatusList fragment;
     private Activity activity;
     private List<PushStatus> statuses;
     private static final TextDrawable.IBuilder builder = TextDrawable.builder().rect();
 
+    /*
+     * uuid -> position in statuses. Appending at the bottom keeps it up to date, any other
+     * modification only marks it as dirty and it is rebuilt the next time it is needed
+     */
+    private Map<String, Integer> positions;
+    private boolean positionsDirty;
+    private int generation;
+
+    /*
+     * The spans of the posts (hashtags and links) are computed when the status is inserted
+     * (see SpanUtil) and the resulting Spanned of the last displayed posts are kept in memory
+     * so that binding a status does not need to scan its post again.
+     */
+    private static final int SPANNED_CACHE_SIZE = 64;
+    private LruCache<String, Spanned> spannedCache = new LruCache<String, Spanned>(SPANNED_CACHE_SIZE);
+
+    private Spanned getSpannedPost(PushStatus status) {
+        Spanned spanned = spannedCache.get(status.getUuid());
+        if(spanned != null)
+            return spanned;
+
+        String post = status.getPost();
+        int[] spans = status.getSpans();
+        if(spans == null) {
+            spans = SpanUtil.parse(post);
+            status.setSpans(spans);
+        }
+        SpannableString ss = new SpannableString(post);
+        for(int i = 0; i + 2 < spans.length; i += 3) {
+            final String word = post.substring(spans[i+1], spans[i+2]);
+            if(spans[i] == SpanUtil.TYPE_HASHTAG) {
+                ss.setSpan(new ClickableSpan() {
+                    @Override
+                    public void onClick(View textView) {
+                        if(fragment != null)
+                            fragment.addFilter(word);
+                    }
+                }, spans[i+1], spans[i+2], Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            } else {
+                ss.setSpan(new URLSpan(SpanUtil.getLinkTarget(spans[i], word)),
+                        spans[i+1], spans[i+2], Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+        spannedCache.put(status.getUuid(), ss);
+        return ss;
+    }
 
     public StatusRecyclerAdapter(Activity activity, FragmentStatusList fragment) {
         this.activity = activity;
         this.fragment = fragment;
         this.statuses = new ArrayList<PushStatus>();
+        this.positions = new HashMap<String, Integer>();
+        this.positionsDirty = false;
+        this.generation = 0;
     }
 
 
@@ -299,6 +355,18 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
         contactHolder.bindStatus(status);
     }
 
+    @Override
+    public void onBindViewHolder(StatusHolder contactHolder, int i, List<Object> payloads) {
+        if(payloads.isEmpty()) {
+            onBindViewHolder(contactHolder, i);
+            return;
+        }
+        // only the elapsed time has changed
+        PushStatus status = statuses.get(i);
+        contactHolder.tocView.setText(TimeUtil.timeElapsed(status.getTimeOfCreation()));
+        contactHolder.toaView.setText(TimeUtil.timeElapsed(status.getTimeOfArrival()));
+    }
+
     @Override
     public long getItemId(int position) {
         return statuses.get(position).getUuid().hashCode();
@@ -314,6 +382,7 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
 
     public void clean() {
         swap(null);
+        spannedCache.evictAll();
         activity = null;
         fragment = null;
     }
@@ -329,34 +398,74 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
         return statuses.get(0);
     }
 
+    public int getPosition(String uuid) {
+        if(positionsDirty) {
+            positions.clear();
+            for(int i = 0; i < statuses.size(); i++)
+                positions.put(statuses.get(i).getUuid(), i);
+            positionsDirty = false;
+        }
+        Integer pos = positions.get(uuid);
+        return (pos == null) ? -1 : pos;
+    }
+
     public int addStatusOnTop(PushStatus status) {
+        if(getPosition(status.getUuid()) >= 0)
+            return -1;
         statuses.add(0,status);
+        positionsDirty = true;
+        generation++;
         return 0;
     }
 
     public int addStatusesAtBottom(List<PushStatus> statusesToAdd) {
         int loaded = 0;
         for(PushStatus status : statusesToAdd) {
-            if(!this.statuses.contains(status)) {
+            if(getPosition(status.getUuid()) < 0) {
+                positions.put(status.getUuid(), statuses.size());
                 this.statuses.add(status);
                 loaded++;
             }
         }
+        if(loaded > 0)
+            generation++;
         return loaded;
     }
 
     public int deleteStatus(String uuid) {
-        Iterator<PushStatus> it = statuses.iterator();
-        while(it.hasNext()) {
-            PushStatus item = it.next();
-            if(item.getUuid().equals(uuid)) {
-                int pos = statuses.indexOf(item);
-                it.remove();
-                return pos;
-            }
+        int pos = getPosition(uuid);
+        if(pos < 0)
+            return -1;
+        statuses.remove(pos).discard();
+        positionsDirty = true;
+        generation++;
+        return pos;
+    }
+
+    /*
+     * sets a flag written in batch by the StatusFlagTracker on the displayed statuses,
+     * returns the positions of the statuses that changed
+     */
+    public List<Integer> updateFlag(String flag, Collection<Long> dbIds) {
+        Set<Long> ids = new HashSet<Long>(dbIds);
+        List<Integer> changed = new ArrayList<Integer>();
+        for(int i = 0; i < statuses.size(); i++) {
+            PushStatus status = statuses.get(i);
+            if(!ids.contains(status.getdbId()))
+                continue;
+            if(flag.equals(PushStatusDatabase.USERREAD) && !status.hasUserReadAlready())
+                status.setUserRead(true);
+            else if(flag.equals(PushStatusDatabase.USERLIKED) && !status.hasUserLiked())
+                status.setUserLike(true);
+            else if(flag.equals(PushStatusDatabase.USERSAVED) && !status.hasUserSaved())
+                status.setUserSaved(true);
+            else
+                continue;
+            changed.add(i);
         }
-        return -1;
+        return changed;
     }
+
     public void swap(List<PushStatus> statuses) {
         if(this.statuses != null) {
             for (PushStatus message : this.statuses) {
@@ -370,6 +479,91 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
                 this.statuses.add(message);
             }
         }
+        positionsDirty = true;
+        generation++;
+    }
+
+    /*
+     * Refreshing the list is done in three steps so that the diff, which may be long over
+     * thousands of statuses, is not computed on the UI thread:
+     *   - getSnapshot() (UI thread) copies the current list
+     *   - computeDiff() (any thread) compares the copy with the new list
+     *   - applyDiff() (UI thread) replaces the list and dispatches the updates, unless the list
+     *     has been modified in the meantime in which case everything is rebound.
+     */
+    public Snapshot getSnapshot() {
+        return new Snapshot(new ArrayList<PushStatus>(statuses), generation);
+    }
+
+    public static DiffUtil.DiffResult computeDiff(Snapshot snapshot, final List<PushStatus> newList) {
+        final List<PushStatus> oldList = snapshot.statuses;
+        return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldList.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newList.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldList.get(oldItemPosition).getUuid()
+                        .equals(newList.get(newItemPosition).getUuid());
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                PushStatus oldStatus = oldList.get(oldItemPosition);
+                PushStatus newStatus = newList.get(newItemPosition);
+                return (oldStatus.hasUserReadAlready() == newStatus.hasUserReadAlready())
+                        && (oldStatus.hasUserLiked() == newStatus.hasUserLiked())
+                        && (oldStatus.hasUserSaved() == newStatus.hasUserSaved())
+                        && (oldStatus.getLike() == newStatus.getLike())
+                        && oldStatus.getFileName().equals(newStatus.getFileName());
+            }
+
+            @Override
+            public Object getChangePayload(int oldItemPosition, int newItemPosition) {
+                return null;
+            }
+        }, false);
+    }
+
+    public void applyDiff(Snapshot snapshot, List<PushStatus> newList, DiffUtil.DiffResult diff) {
+        Set<String> kept = new HashSet<String>();
+        for(PushStatus status : newList)
+            kept.add(status.getUuid());
+        for(PushStatus status : statuses) {
+            if(!kept.contains(status.getUuid()))
+                status.discard();
+        }
+        statuses.clear();
+        statuses.addAll(newList);
+        positionsDirty = true;
+
+        if(snapshot.generation != generation) {
+            generation++;
+            notifyDataSetChanged();
+            return;
+        }
+        generation++;
+        diff.dispatchUpdatesTo(this);
+
+        // the items that did not change still display an outdated elapsed time
+        notifyItemRangeChanged(0, statuses.size(), PAYLOAD_TIME);
+    }
+
+    public static class Snapshot {
+        private final List<PushStatus> statuses;
+        private final int generation;
+
+        private Snapshot(List<PushStatus> statuses, int generation) {
+            this.statuses = statuses;
+            this.generation = generation;
+        }
     }
 
 }
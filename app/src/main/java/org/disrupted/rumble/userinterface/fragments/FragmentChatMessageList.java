@@ -61,6 +61,13 @@ public class FragmentChatMessageList extends Fragment {
 
     private static final String TAG = "FragmentChatMessage";
 
+    /*
+     * the history is loaded one page at a time, when the user scrolls close to the oldest
+     * message displayed. New messages are added on top as they are inserted.
+     */
+    private static final int PAGE_SIZE         = 20;
+    private static final int PREFETCH_DISTANCE = 5;
+
     private static View mView;
 
     private RecyclerView mRecyclerView;
@@ -69,6 +76,10 @@ public class FragmentChatMessageList extends Fragment {
     private FrameLayout sendBox;
     private EditText    compose;
 
+    private boolean loading;
+    private boolean historyComplete;
+    private int     generation;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -85,6 +96,7 @@ public class FragmentChatMessageList extends Fragment {
         mRecyclerView.setLayoutManager(linearLayoutManager);
         messageRecyclerAdapter = new ChatMessageRecyclerAdapter(getActivity(), this);
         mRecyclerView.setAdapter(messageRecyclerAdapter);
+        mRecyclerView.addOnScrollListener(onScrollListener);
 
         compose = (EditText) mView.findViewById(R.id.chat_compose);
 
@@ -128,20 +140,61 @@ public class FragmentChatMessageList extends Fragment {
     };
 
     public void pageIn() {
-        refreshChatMessages();
+        mRecyclerView.smoothScrollToPosition(0);
     }
     public void pageOut() {
         InputMethodManager imm = (InputMethodManager) RumbleApplication.getContext().getSystemService(Context.INPUT_METHOD_SERVICE);
         imm.hideSoftInputFromWindow(compose.getWindowToken(), 0);
     }
 
+    /*
+     * the list is reversed, the last visible position is thus the oldest message on screen
+     */
+    RecyclerView.OnScrollListener onScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+            int lastVisible = layoutManager.findLastVisibleItemPosition();
+            if(lastVisible >= messageRecyclerAdapter.getItemCount() - PREFETCH_DISTANCE)
+                loadOlderMessages();
+        }
+    };
+
     private void refreshChatMessages() {
+        generation++;
+        loading = true;
+        historyComplete = false;
+        ChatMessageDatabase.ChatMessageQueryOption options = new ChatMessageDatabase.ChatMessageQueryOption();
+        options.answerLimit = PAGE_SIZE;
+        DatabaseFactory.getChatMessageDatabase(getActivity())
+                    .getChatMessage(options, new OnChatMessagesLoaded(generation, true));
+    }
+
+    private void loadOlderMessages() {
+        if(loading || historyComplete)
+            return;
+        ChatMessage oldest = messageRecyclerAdapter.getOldestMessage();
+        if((oldest == null) || (oldest.getdbId() < 0))
+            return;
+        loading = true;
         ChatMessageDatabase.ChatMessageQueryOption options = new ChatMessageDatabase.ChatMessageQueryOption();
-        options.answerLimit = 20;
+        options.filterFlags = ChatMessageDatabase.ChatMessageQueryOption.FILTER_BEFORE_KEY;
+        options.before_key_toa  = oldest.getTimestamp();
+        options.before_key_dbid = oldest.getdbId();
+        options.answerLimit = PAGE_SIZE;
         DatabaseFactory.getChatMessageDatabase(getActivity())
-                    .getChatMessage(options, onChatMessagesLoaded);
+                .getChatMessage(options, new OnChatMessagesLoaded(generation, false));
     }
-    DatabaseExecutor.ReadableQueryCallback onChatMessagesLoaded = new DatabaseExecutor.ReadableQueryCallback() {
+
+    private class OnChatMessagesLoaded implements DatabaseExecutor.ReadableQueryCallback {
+        private final int     pageGeneration;
+        private final boolean refresh;
+
+        OnChatMessagesLoaded(int pageGeneration, boolean refresh) {
+            this.pageGeneration = pageGeneration;
+            this.refresh = refresh;
+        }
+
         @Override
         public void onReadableQueryFinished(final Object result) {
             final ArrayList<ChatMessage> answer = (ArrayList<ChatMessage>)result;
@@ -150,13 +203,26 @@ public class FragmentChatMessageList extends Fragment {
             getActivity().runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    messageRecyclerAdapter.swap(answer);
-                    messageRecyclerAdapter.notifyDataSetChanged();
-                    mRecyclerView.smoothScrollToPosition(0);
+                    // the chat was wiped in the meantime
+                    if(pageGeneration != generation)
+                        return;
+                    loading = false;
+                    if((answer == null) || (answer.size() < PAGE_SIZE))
+                        historyComplete = true;
+                    if(refresh) {
+                        messageRecyclerAdapter.swap(answer);
+                        messageRecyclerAdapter.notifyDataSetChanged();
+                        mRecyclerView.smoothScrollToPosition(0);
+                    } else if(answer != null) {
+                        int start = messageRecyclerAdapter.getItemCount();
+                        int added = messageRecyclerAdapter.appendChatMessages(answer);
+                        if(added > 0)
+                            messageRecyclerAdapter.notifyItemRangeInserted(start, added);
+                    }
                 }
             });
         }
-    };
+    }
 
     public void onEvent(final ChatMessageUpdatedEvent event) {
         getActivity().runOnUiThread(new Runnable() {
@@ -174,11 +240,12 @@ public class FragmentChatMessageList extends Fragment {
             @Override
             public void run() {
                 final ChatMessage message = event.chatMessage;
-                if(((HomeActivity)getActivity()).isChatHasFocus()) {
-                    int pos = messageRecyclerAdapter.addChatMessage(message);
-                    messageRecyclerAdapter.notifyItemInserted(pos);
+                int pos = messageRecyclerAdapter.addChatMessage(message);
+                if(pos < 0)
+                    return;
+                messageRecyclerAdapter.notifyItemInserted(pos);
+                if(((HomeActivity)getActivity()).isChatHasFocus())
                     mRecyclerView.smoothScrollToPosition(pos);
-                }
             }
         });
     }
@@ -186,8 +253,7 @@ public class FragmentChatMessageList extends Fragment {
         getActivity().runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                if(((HomeActivity)getActivity()).isChatHasFocus())
-                    refreshChatMessages();
+                refreshChatMessages();
             }
         });
     }
@@ -42,9 +42,12 @@ import org.disrupted.rumble.database.events.StatusInsertedEvent;
 import org.disrupted.rumble.database.objects.Group;
 import org.disrupted.rumble.network.protocols.events.PushStatusReceived;
 import org.disrupted.rumble.userinterface.adapter.GroupRecyclerAdapter;
+import org.disrupted.rumble.util.EventCoalescer;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import de.greenrobot.event.EventBus;
 
@@ -59,6 +62,18 @@ public class FragmentGroupList extends Fragment {
     private RecyclerView groupRecycler;
     private GroupRecyclerAdapter groupRecyclerAdapter;
 
+    /* the badge of a group is refreshed only once for a burst of statuses */
+    private final EventCoalescer<String> badgeCoalescer = new EventCoalescer<String>(
+            EventCoalescer.DEBOUNCE_WINDOW,
+            new EventCoalescer.Callback<String>() {
+                @Override
+                public void onEvents(List<String> gids) {
+                    Set<String> groups = new HashSet<String>(gids);
+                    for(String gid : groups)
+                        refreshBadge(gid);
+                }
+            });
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -88,6 +103,7 @@ public class FragmentGroupList extends Fragment {
     public void onDestroy() {
         if(EventBus.getDefault().isRegistered(this))
             EventBus.getDefault().unregister(this);
+        badgeCoalescer.cancel();
         super.onDestroy();
     }
 
@@ -151,7 +167,7 @@ public class FragmentGroupList extends Fragment {
     }
 
     public void onEvent(StatusInsertedEvent event) {
-        refreshBadge(event.status.getGroup().getGid());
+        badgeCoalescer.post(event.status.getGroup().getGid());
     }
     public void onEvent(GroupInsertedEvent event) {
         getGroupList();
@@ -50,7 +50,9 @@ import org.disrupted.rumble.network.linklayer.events.LinkLayerStarted;
 import org.disrupted.rumble.network.linklayer.events.LinkLayerStopped;
 import org.disrupted.rumble.network.linklayer.events.NeighborhoodChanged;
 import org.disrupted.rumble.userinterface.views.MultiStateButton;
+import org.disrupted.rumble.util.EventCoalescer;
 
+import java.util.List;
 import java.util.Set;
 
 import de.greenrobot.event.EventBus;
@@ -71,6 +73,16 @@ public class FragmentNetworkDrawer extends Fragment {
     boolean mBound = false;
     ImageButton  forceScan;
 
+    /* the neighbourhood is refreshed at most once per window, whatever the number of events */
+    private final EventCoalescer<NeighborhoodChanged> neighborhoodCoalescer =
+            new EventCoalescer<NeighborhoodChanged>(EventCoalescer.DEBOUNCE_WINDOW,
+                    new EventCoalescer.Callback<NeighborhoodChanged>() {
+                        @Override
+                        public void onEvents(List<NeighborhoodChanged> events) {
+                            refreshNeighborhood();
+                        }
+                    });
+
     @Override
     public void onActivityCreated(final Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
@@ -83,6 +95,7 @@ public class FragmentNetworkDrawer extends Fragment {
         Log.d(TAG, "onDestroyView");
         if(EventBus.getDefault().isRegistered(this))
             EventBus.getDefault().unregister(this);
+        neighborhoodCoalescer.cancel();
         if(mBound) {
             getActivity().unbindService(mConnection);
         }
@@ -308,19 +321,17 @@ public class FragmentNetworkDrawer extends Fragment {
             ((ProgressBar) mDrawerFragmentLayout.findViewById(R.id.scanningProgressBar)).setVisibility(View.VISIBLE);
         }
     }
+    /*
+     * called on the UI thread by the neighborhoodCoalescer
+     */
     private void refreshNeighborhood() {
-        if (mNetworkCoordinator == null)
+        if ((mNetworkCoordinator == null) || (listAdapter == null))
             return;
-        getActivity().runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                Set<NeighbourManager.Neighbour> neighborhood = mNetworkCoordinator.neighbourManager.getNeighbourList(false);
-                if (mDrawerNeighbourList.getAdapter() != null)
-                    listAdapter.swap(neighborhood);
-                neighborhood.clear();
-                listAdapter.notifyDataSetChanged();
-            }
-        });
+        Set<NeighbourManager.Neighbour> neighborhood = mNetworkCoordinator.neighbourManager.getNeighbourList(false);
+        if (mDrawerNeighbourList.getAdapter() != null)
+            listAdapter.swap(neighborhood);
+        neighborhood.clear();
+        listAdapter.notifyDataSetChanged();
     }
 
 
@@ -336,7 +347,7 @@ public class FragmentNetworkDrawer extends Fragment {
         refreshWifiController();
     }
     public void onEvent(NeighborhoodChanged event) {
-        refreshNeighborhood();
+        neighborhoodCoalescer.post(event);
     }
     public void onEvent(BluetoothScanStarted event) {
         getActivity().runOnUiThread(new Runnable() {
@@ -19,12 +19,14 @@
 
 package org.disrupted.rumble.userinterface.fragments;
 
+import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.Fragment;
 import android.support.v4.widget.SwipeRefreshLayout;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
@@ -32,25 +34,29 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ListView;
 
+import org.disrupted.rumble.app.EventDispatcher;
 import org.disrupted.rumble.database.events.ContactTagInterestUpdatedEvent;
 import org.disrupted.rumble.database.events.StatusInsertedEvent;
 import org.disrupted.rumble.userinterface.activity.HomeActivity;
 import org.disrupted.rumble.R;
 import org.disrupted.rumble.database.PushStatusDatabase;
+import org.disrupted.rumble.database.StatusPagingSource;
 import org.disrupted.rumble.database.events.GroupDeletedEvent;
+import org.disrupted.rumble.database.events.StatusDatabaseEvent;
 import org.disrupted.rumble.database.events.StatusDeletedEvent;
+import org.disrupted.rumble.database.events.StatusFlagsUpdatedEvent;
 import org.disrupted.rumble.database.events.StatusUpdatedEvent;
 import org.disrupted.rumble.database.events.StatusWipedEvent;
 import org.disrupted.rumble.database.objects.PushStatus;
 import org.disrupted.rumble.userinterface.activity.PopupComposeStatus;
-import org.disrupted.rumble.database.DatabaseExecutor;
 import org.disrupted.rumble.database.DatabaseFactory;
 import org.disrupted.rumble.userinterface.adapter.FilterListAdapter;
 import org.disrupted.rumble.userinterface.adapter.StatusRecyclerAdapter;
 import org.disrupted.rumble.userinterface.events.UserComposeStatus;
+import org.disrupted.rumble.util.EventCoalescer;
 
-import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 
 import de.greenrobot.event.EventBus;
 
@@ -69,13 +75,14 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
     private ListView filters;
     private FloatingActionButton composeFAB;
     public  boolean noCoordinatorLayout;
-    private boolean loadingMore;
-    private boolean noMoreStatusToLoad;
+    private StatusPagingSource pagingSource;
 
     private String   filter_gid = null;
     private String   filter_uid = null;
     private String   filter_hashtag = null;
 
+    private EventCoalescer<StatusDatabaseEvent> statusEventCoalescer;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -147,10 +154,10 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
         mRecyclerView.addOnScrollListener(loadMore);
 
         // now get the latest status
-        loadingMore = false;
-        noMoreStatusToLoad = false;
+        pagingSource = new StatusPagingSource(getActivity(), queryBuilder, onPageLoaded);
         refreshStatuses();
 
+        statusEventCoalescer = new EventCoalescer<StatusDatabaseEvent>(EventCoalescer.FRAME_WINDOW, onStatusEvents);
         EventBus.getDefault().register(this);
 
         return mView;
@@ -160,6 +167,8 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
     public void onDestroy() {
         if(EventBus.getDefault().isRegistered(this))
             EventBus.getDefault().unregister(this);
+        if(statusEventCoalescer != null)
+            statusEventCoalescer.cancel();
         statusRecyclerAdapter.clean();
         super.onDestroy();
     }
@@ -183,26 +192,11 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
     }
 
     private void refreshStatuses() {
-        refreshStatuses(-1,-1);
+        pagingSource.refresh();
     }
-    private void refreshStatuses(long before_toa, long after_toa) {
-        if(loadingMore)
-            return;
-        loadingMore = true;
 
+    PushStatusDatabase.StatusQueryOption newQuery() {
         PushStatusDatabase.StatusQueryOption options = new PushStatusDatabase.StatusQueryOption();
-        options.answerLimit = 10;
-        options.query_result = PushStatusDatabase.StatusQueryOption.QUERY_RESULT.LIST_OF_MESSAGE;
-        options.order_by = PushStatusDatabase.StatusQueryOption.ORDER_BY.TIME_OF_ARRIVAL;
-
-        if(before_toa > 0) {
-            options.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_BEFORE_TOA;
-            options.before_toa = before_toa;
-        }
-        if(after_toa > 0) {
-            options.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_AFTER_TOA;
-            options.after_toa = after_toa;
-        }
         if(filter_gid != null) {
             options.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_GROUP;
             options.groupIDFilters = new HashSet<String>();
@@ -218,82 +212,90 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
             if(filter_hashtag != null)
                 options.hashtagFilters.add(filter_hashtag);
         }
-        if(before_toa <= 0) {
-            DatabaseFactory.getPushStatusDatabase(getActivity())
-                    .getStatuses(options, onStatusesRefreshed);
-        } else {
-            DatabaseFactory.getPushStatusDatabase(getActivity())
-                    .getStatuses(options, onStatusesLoaded);
-        }
+        return options;
     }
-    DatabaseExecutor.ReadableQueryCallback onStatusesRefreshed = new DatabaseExecutor.ReadableQueryCallback() {
+
+    StatusPagingSource.QueryBuilder queryBuilder = new StatusPagingSource.QueryBuilder() {
         @Override
-        public void onReadableQueryFinished(final Object result) {
-            final ArrayList<PushStatus> answer = (ArrayList<PushStatus>)result;
-            if (getActivity() == null)
-                return;
-            getActivity().runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    statusRecyclerAdapter.swap(answer);
-                    statusRecyclerAdapter.notifyDataSetChanged();
-                    swipeLayout.setRefreshing(false);
-                    loadingMore = false;
-                    noMoreStatusToLoad = false;
-
-                    if (getActivity() != null) {
-                        if(getActivity() instanceof HomeActivity)
-                            ((HomeActivity) getActivity()).refreshChatNotifications();
-                    }
-                }
-            });
+        public PushStatusDatabase.StatusQueryOption newQuery() {
+            return FragmentStatusList.this.newQuery();
         }
     };
-    DatabaseExecutor.ReadableQueryCallback onStatusesLoaded = new DatabaseExecutor.ReadableQueryCallback() {
+
+    /*
+     * called from the DatabaseExecutor thread. When the list is refreshed, the diff between
+     * the current list and the first page is computed in background and only dispatched on
+     * the UI thread
+     */
+    StatusPagingSource.Callback onPageLoaded = new StatusPagingSource.Callback() {
         @Override
-        public void onReadableQueryFinished(final Object result) {
-            final ArrayList<PushStatus> answer = (ArrayList<PushStatus>)result;
-            if (getActivity() == null)
+        public void onPageLoaded(final List<PushStatus> page, final boolean refresh) {
+            final Activity activity = getActivity();
+            if (activity == null)
                 return;
-            getActivity().runOnUiThread(new Runnable() {
+
+            if(!refresh) {
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (statusRecyclerAdapter == null)
+                            return;
+                        int before = statusRecyclerAdapter.getItemCount();
+                        int loaded = statusRecyclerAdapter.addStatusesAtBottom(page);
+                        if (loaded > 0)
+                            statusRecyclerAdapter.notifyItemRangeInserted(before, loaded);
+                    }
+                });
+                return;
+            }
+
+            activity.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    int before = statusRecyclerAdapter.getItemCount();
-                    int loaded = statusRecyclerAdapter.addStatusesAtBottom(answer);
-                    if(loaded > 0) {
-                        statusRecyclerAdapter.notifyItemRangeInserted(
-                                before,
-                                statusRecyclerAdapter.getItemCount() - 1
-                        );
-                    } else {
-                        noMoreStatusToLoad = true;
-                    }
-                    swipeLayout.setRefreshing(false);
-                    loadingMore = false;
+                    if (statusRecyclerAdapter == null)
+                        return;
+                    final StatusRecyclerAdapter.Snapshot snapshot = statusRecyclerAdapter.getSnapshot();
+                    EventDispatcher.getInstance().dispatch(EventDispatcher.GROUP_ASYNC, new Runnable() {
+                        @Override
+                        public void run() {
+                            final DiffUtil.DiffResult diff = StatusRecyclerAdapter.computeDiff(snapshot, page);
+                            activity.runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    onRefreshed(snapshot, page, diff);
+                                }
+                            });
+                        }
+                    });
                 }
             });
         }
     };
 
+    private void onRefreshed(StatusRecyclerAdapter.Snapshot snapshot, List<PushStatus> page, DiffUtil.DiffResult diff) {
+        if (statusRecyclerAdapter == null)
+            return;
+        statusRecyclerAdapter.applyDiff(snapshot, page, diff);
+        pagingSource.onRefreshApplied();
+        swipeLayout.setRefreshing(false);
+
+        if (getActivity() != null) {
+            if(getActivity() instanceof HomeActivity)
+                ((HomeActivity) getActivity()).refreshChatNotifications();
+        }
+    }
+
     /*
-     * Endless scrolling. Whenever we reach the last item, we load for more
+     * Endless scrolling. The next page is requested before we reach the last item
      */
     RecyclerView.OnScrollListener loadMore = new RecyclerView.OnScrollListener() {
         @Override
         public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
             super.onScrolled(recyclerView, dx, dy);
             LinearLayoutManager mLayoutManager = (LinearLayoutManager)recyclerView.getLayoutManager();
-            int visibleItemCount = mLayoutManager.getChildCount();
-            int totalItemCount = mLayoutManager.getItemCount();
-            int pastVisiblesItems = mLayoutManager.findFirstVisibleItemPosition();
-            if ( (visibleItemCount + pastVisiblesItems) >= totalItemCount) {
-                if((!loadingMore) && (!noMoreStatusToLoad)) {
-                    PushStatus status = statusRecyclerAdapter.getLastItem();
-                    if(status == null)
-                        return;
-                    refreshStatuses(status.getTimeOfArrival(),-1);
-                }
-            }
+            if (dy >= 0)
+                pagingSource.onScrolled(mLayoutManager.findLastVisibleItemPosition(),
+                        mLayoutManager.getItemCount());
 
             /*
              * since design version > 22, I can't use misc.ScrollAwareFABBehavior because
@@ -336,36 +338,61 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
         refreshStatuses();
     }
     public void onEvent(StatusInsertedEvent event) {
-        final PushStatus message = event.status;
-        if(message.getAuthor().isLocal()) {
-            getActivity().runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    statusRecyclerAdapter.addStatusOnTop(message);
-                    statusRecyclerAdapter.notifyItemInserted(0);
-                    mRecyclerView.smoothScrollToPosition(0);
-                }
-            });
-        }
+        if(event.status.getAuthor().isLocal())
+            statusEventCoalescer.post(event);
     }
     public void onEvent(StatusDeletedEvent event) {
-        final String uuid = event.uuid;
+        statusEventCoalescer.post(event);
+    }
+
+    /*
+     * the insertions and deletions received during the same frame are applied at once
+     * (consecutive insertions being notified as a single range) so that the RecyclerView
+     * only lays out and animates once
+     */
+    EventCoalescer.Callback<StatusDatabaseEvent> onStatusEvents = new EventCoalescer.Callback<StatusDatabaseEvent>() {
+        @Override
+        public void onEvents(List<StatusDatabaseEvent> events) {
+            int inserted = 0;
+            boolean scrollToTop = false;
+            for(StatusDatabaseEvent event : events) {
+                if(event instanceof StatusInsertedEvent) {
+                    if(statusRecyclerAdapter.addStatusOnTop(((StatusInsertedEvent) event).status) < 0)
+                        continue;
+                    inserted++;
+                    scrollToTop = true;
+                } else if(event instanceof StatusDeletedEvent) {
+                    if(inserted > 0) {
+                        statusRecyclerAdapter.notifyItemRangeInserted(0, inserted);
+                        inserted = 0;
+                    }
+                    int pos = statusRecyclerAdapter.deleteStatus(((StatusDeletedEvent) event).uuid);
+                    if(pos >= 0)
+                        statusRecyclerAdapter.notifyItemRemoved(pos);
+                }
+            }
+            if(inserted > 0)
+                statusRecyclerAdapter.notifyItemRangeInserted(0, inserted);
+            if(scrollToTop)
+                mRecyclerView.smoothScrollToPosition(0);
+        }
+    };
+    public void onEvent(StatusUpdatedEvent event) {
+        final PushStatus message = event.status;
         getActivity().runOnUiThread(new Runnable() {
             @Override
             public void run() {
-            int pos = statusRecyclerAdapter.deleteStatus(uuid);
-            if(pos >= 0)
-                statusRecyclerAdapter.notifyItemRemoved(pos);
+                //if(statusRecyclerAdapter.updateStatus(message))
+                //    statusRecyclerAdapter.notifyDataSetChanged();
             }
         });
     }
-    public void onEvent(StatusUpdatedEvent event) {
-        final PushStatus message = event.status;
+    public void onEvent(final StatusFlagsUpdatedEvent event) {
         getActivity().runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                //if(statusRecyclerAdapter.updateStatus(message))
-                //    statusRecyclerAdapter.notifyDataSetChanged();
+                for(Integer pos : statusRecyclerAdapter.updateFlag(event.flag, event.dbIds))
+                    statusRecyclerAdapter.notifyItemChanged(pos);
             }
         });
     }
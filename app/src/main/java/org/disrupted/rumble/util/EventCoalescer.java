@@ -0,0 +1,96 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * EventCoalescer merges a burst of events into a single delivery on the UI thread.
+ *
+ * The first event received starts a window of the given duration, every other event that
+ * arrives during this window is queued and the whole batch is delivered once, in order,
+ * when the window ends. It is meant for the UI components that subscribe to events that
+ * the network may post hundreds of times per second (NeighborhoodChanged, StatusInsertedEvent)
+ * and that would otherwise refresh the view (and query the database) for every one of them.
+ */
+public class EventCoalescer<T> {
+
+    public static final long FRAME_WINDOW    = 16;
+    public static final long DEBOUNCE_WINDOW = 250;
+
+    public interface Callback<T> {
+        public void onEvents(List<T> events);
+    }
+
+    private final Object      lock = new Object();
+    private final Handler     handler;
+    private final long        window;
+    private final Callback<T> callback;
+
+    private List<T> pending;
+    private boolean scheduled;
+
+    public EventCoalescer(long window, Callback<T> callback) {
+        this.handler   = new Handler(Looper.getMainLooper());
+        this.window    = window;
+        this.callback  = callback;
+        this.pending   = new ArrayList<T>();
+        this.scheduled = false;
+    }
+
+    /*
+     * may be called from any thread
+     */
+    public void post(T event) {
+        synchronized (lock) {
+            pending.add(event);
+            if(scheduled)
+                return;
+            scheduled = true;
+        }
+        handler.postDelayed(flush, window);
+    }
+
+    /*
+     * drops the pending events, to be called when the subscriber is destroyed
+     */
+    public void cancel() {
+        handler.removeCallbacks(flush);
+        synchronized (lock) {
+            pending.clear();
+            scheduled = false;
+        }
+    }
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            List<T> events;
+            synchronized (lock) {
+                events = pending;
+                pending = new ArrayList<T>();
+                scheduled = false;
+            }
+            if(!events.isEmpty())
+                callback.onEvents(events);
+        }
+    };
+}
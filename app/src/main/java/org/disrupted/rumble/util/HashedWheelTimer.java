@@ -0,0 +1,159 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.util;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HashedWheelTimer is a coarse timer meant for the many timeouts that are almost always
+ * cancelled or rescheduled before they fire (keep-alive, idle timeout of every channel).
+ *
+ * The time is divided in ticks and the timeouts are hashed into a circular array of buckets
+ * according to their deadline. A single thread wakes up every tick and only looks at the
+ * timeouts of the current bucket, so scheduling and cancelling a timeout is O(1) and does not
+ * involve any lock or Handler message. The price is a precision of one tick.
+ *
+ * The tasks are executed on the timer thread and must return quickly, anything that may
+ * block (I/O, database) must be handed to another executor.
+ */
+public class HashedWheelTimer {
+
+    private static final String TAG = "HashedWheelTimer";
+
+    public static final long TICK       = 250;  // milliseconds
+    private static final int WHEEL_SIZE = 256;  // a full round is 64 seconds
+
+    private static final Object lock = new Object();
+    private static HashedWheelTimer instance;
+
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline;    // System.nanoTime()
+        private long remainingRounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+            this.cancelled = false;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final long tickNanos;
+    private final long startTime;
+    private final LinkedList<Timeout>[] wheel;
+    private final Queue<Timeout> pending;
+    private long tick;
+
+    public static HashedWheelTimer getInstance() {
+        synchronized (lock) {
+            if (instance == null)
+                instance = new HashedWheelTimer();
+
+            return instance;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private HashedWheelTimer() {
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK);
+        wheel = new LinkedList[WHEEL_SIZE];
+        for(int i = 0; i < WHEEL_SIZE; i++)
+            wheel[i] = new LinkedList<Timeout>();
+        pending = new ConcurrentLinkedQueue<Timeout>();
+        tick = 0;
+        startTime = System.nanoTime();
+
+        Thread worker = new Thread(ticker, "HashedWheelTimer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /*
+     * may be called from any thread, the task will be executed on the timer thread
+     * after at least delay milliseconds (rounded up to the next tick)
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0)));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    private final Runnable ticker = new Runnable() {
+        @Override
+        public void run() {
+            while(true) {
+                long sleep = (startTime + (tick + 1) * tickNanos) - System.nanoTime();
+                if(sleep > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    } catch (InterruptedException ignore) {
+                        return;
+                    }
+                }
+                transferPending();
+                expire(wheel[(int)(tick % WHEEL_SIZE)]);
+                tick++;
+            }
+        }
+    };
+
+    private void transferPending() {
+        Timeout timeout;
+        while((timeout = pending.poll()) != null) {
+            if(timeout.cancelled)
+                continue;
+            long expiry = (timeout.deadline - startTime + tickNanos - 1) / tickNanos;
+            expiry = Math.max(expiry, tick);
+            timeout.remainingRounds = (expiry - tick) / WHEEL_SIZE;
+            wheel[(int)(expiry % WHEEL_SIZE)].add(timeout);
+        }
+    }
+
+    private void expire(LinkedList<Timeout> bucket) {
+        for(Iterator<Timeout> it = bucket.iterator(); it.hasNext(); ) {
+            Timeout timeout = it.next();
+            if(timeout.cancelled) {
+                it.remove();
+                continue;
+            }
+            if(timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                continue;
+            }
+            it.remove();
+            try {
+                timeout.task.run();
+            } catch(Exception e) {
+                Log.e(TAG, "[!] timeout task failed: " + e.getMessage());
+            }
+        }
+    }
+}
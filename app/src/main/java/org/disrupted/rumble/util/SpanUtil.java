@@ -0,0 +1,200 @@
+/*
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.disrupted.rumble.util;
+
+import android.util.Patterns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * SpanUtil finds the hashtags and the links (web, email, phone) of a post once and for all
+ * when the status is inserted in the database so that the views displaying the status
+ * do not have to scan the post (and run Linkify) every time they are bound.
+ *
+ * The spans are stored as a flat array of (type, start, end) triplets and serialized
+ * in the database as "type,start,end;type,start,end;..."
+ *
+ * As with Linkify, the links never overlap: when two links overlap the longest one is kept
+ * (the first one if they have the same length).
+ */
+public class SpanUtil {
+
+    public static final int TYPE_HASHTAG = 0;
+    public static final int TYPE_URL     = 1;
+    public static final int TYPE_EMAIL   = 2;
+    public static final int TYPE_PHONE   = 3;
+
+    private static final int PHONE_MIN_DIGITS = 5;
+
+    private static final String[] URL_SCHEMES = {"http://", "https://", "rtsp://"};
+
+    public static int[] parse(String post) {
+        List<Integer> spans = new ArrayList<Integer>();
+
+        // hashtags run from the '#' to the next space, same as the hashtags filters
+        int begin = -1;
+        int j;
+        for (j = 0; j < post.length(); j++) {
+            if (post.charAt(j) == '#')
+                begin = j;
+            if ((post.charAt(j) == ' ') && (begin >= 0)) {
+                add(spans, TYPE_HASHTAG, begin, j);
+                begin = -1;
+            }
+        }
+        if (begin >= 0)
+            add(spans, TYPE_HASHTAG, begin, j);
+
+        // links, with the same rules as Linkify.ALL
+        List<int[]> links = new ArrayList<int[]>();
+        Matcher matcher = Patterns.WEB_URL.matcher(post);
+        while (matcher.find()) {
+            if ((matcher.start() > 0) && (post.charAt(matcher.start() - 1) == '@'))
+                continue;
+            links.add(new int[]{TYPE_URL, matcher.start(), matcher.end()});
+        }
+        matcher = Patterns.EMAIL_ADDRESS.matcher(post);
+        while (matcher.find())
+            links.add(new int[]{TYPE_EMAIL, matcher.start(), matcher.end()});
+        matcher = Patterns.PHONE.matcher(post);
+        while (matcher.find()) {
+            int digits = 0;
+            for (int i = matcher.start(); i < matcher.end(); i++) {
+                if (Character.isDigit(post.charAt(i)))
+                    digits++;
+            }
+            if (digits >= PHONE_MIN_DIGITS)
+                links.add(new int[]{TYPE_PHONE, matcher.start(), matcher.end()});
+        }
+        for (int[] link : pruneOverlaps(links))
+            add(spans, link[0], link[1], link[2]);
+
+        int[] ret = new int[spans.size()];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = spans.get(i);
+        return ret;
+    }
+
+    /*
+     * the target of a link span, as Linkify would have set it in the URLSpan
+     */
+    public static String getLinkTarget(int type, String text) {
+        switch (type) {
+            case TYPE_URL:
+                for (String scheme : URL_SCHEMES) {
+                    if (text.regionMatches(true, 0, scheme, 0, scheme.length()))
+                        return scheme + text.substring(scheme.length());
+                }
+                return URL_SCHEMES[0] + text;
+            case TYPE_EMAIL:
+                return "mailto:" + text;
+            case TYPE_PHONE:
+                StringBuilder number = new StringBuilder("tel:");
+                for (int i = 0; i < text.length(); i++) {
+                    char c = text.charAt(i);
+                    if ((c == '+') || Character.isDigit(c))
+                        number.append(c);
+                }
+                return number.toString();
+            default:
+                return null;
+        }
+    }
+
+    public static String encode(int[] spans) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i + 2 < spans.length; i += 3) {
+            if (i > 0)
+                builder.append(';');
+            builder.append(spans[i]).append(',')
+                    .append(spans[i + 1]).append(',')
+                    .append(spans[i + 2]);
+        }
+        return builder.toString();
+    }
+
+    /*
+     * returns null if the spans are missing or corrupted, they must then be parsed again
+     */
+    public static int[] decode(String encoded, int postLength) {
+        if (encoded == null)
+            return null;
+        if (encoded.length() == 0)
+            return new int[0];
+        String[] triplets = encoded.split(";");
+        int[] spans = new int[triplets.length * 3];
+        try {
+            for (int i = 0; i < triplets.length; i++) {
+                String[] values = triplets[i].split(",");
+                if (values.length != 3)
+                    return null;
+                spans[3 * i]     = Integer.parseInt(values[0]);
+                spans[3 * i + 1] = Integer.parseInt(values[1]);
+                spans[3 * i + 2] = Integer.parseInt(values[2]);
+                if ((spans[3 * i + 1] < 0) || (spans[3 * i + 2] > postLength)
+                        || (spans[3 * i + 1] >= spans[3 * i + 2]))
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return spans;
+    }
+
+    /*
+     * the links are sorted by start (the longest first for the same start), a link that
+     * overlaps the last one kept replaces it only if it is longer
+     */
+    private static List<int[]> pruneOverlaps(List<int[]> links) {
+        Collections.sort(links, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                if (a[1] != b[1])
+                    return (a[1] < b[1]) ? -1 : 1;
+                if (a[2] != b[2])
+                    return (a[2] > b[2]) ? -1 : 1;
+                return 0;
+            }
+        });
+        List<int[]> kept = new ArrayList<int[]>(links.size());
+        for (int[] link : links) {
+            if (!kept.isEmpty()) {
+                int[] last = kept.get(kept.size() - 1);
+                if (link[1] < last[2]) {
+                    if ((link[2] - link[1]) > (last[2] - last[1]))
+                        kept.set(kept.size() - 1, link);
+                    continue;
+                }
+            }
+            kept.add(link);
+        }
+        return kept;
+    }
+
+    private static void add(List<Integer> spans, int type, int start, int end) {
+        if (start >= end)
+            return;
+        spans.add(type);
+        spans.add(start);
+        spans.add(end);
+    }
+}